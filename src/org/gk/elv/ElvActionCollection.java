@@ -789,6 +789,7 @@ public class ElvActionCollection extends AuthorToolActionCollection {
         complex.hideComponents(true);
         complex.invalidateBounds();
         complex.invalidateConnectWidgets();
+        pathwayEditor.invalidateSpatialIndex();
         zoomableEditor.disableExitenceCheck(false);
     }
     
@@ -813,6 +814,7 @@ public class ElvActionCollection extends AuthorToolActionCollection {
             pathwayEditor.repaint(pathwayEditor.getVisibleRect());
             SwingUtilities.invokeLater(() -> {
                 complex.layout();
+                pathwayEditor.invalidateSpatialIndex();
                 pathwayEditor.repaint(pathwayEditor.getVisibleRect());
             });
         }
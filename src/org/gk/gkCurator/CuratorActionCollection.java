@@ -2592,6 +2592,8 @@ public class CuratorActionCollection {
 		GKFileFilter fileFilter = new GKFileFilter(GKCuratorFrame.PROJECT_EXT_NAME,
 		                                           "Reactome Project Files (*.rtpj)");
 		fileChooser.addChoosableFileFilter(fileFilter);
+		fileChooser.addChoosableFileFilter(new GKFileFilter(GKCuratorFrame.COMPRESSED_PROJECT_EXT_NAME,
+		                                                    "Compressed Reactome Project Files (*.rtpj.gz)"));
 		fileChooser.addChoosableFileFilter(new XMLFileFilter());
 		fileChooser.setFileFilter(fileFilter);
 	    return fileChooser;
@@ -99,6 +99,8 @@ public class GKCuratorFrame extends JFrame implements Launchable {
     // System info
     public static final String CURATOR_TOOL_NAME = "Reactome Curator Tool";
     public static final String PROJECT_EXT_NAME = ".rtpj";
+    // Project saved in the gzip-compressed format
+    public static final String COMPRESSED_PROJECT_EXT_NAME = PROJECT_EXT_NAME + XMLFileAdaptor.COMPRESSED_FILE_EXT;
     public static final String VERSION = "4.0.4 (November 26, 2025)";
     public static final int BUILD_NUMBER = 119;
     static final String QA_MENU_TEXT = "QA Check";
@@ -361,6 +363,8 @@ public class GKCuratorFrame extends JFrame implements Launchable {
     private void initFileAdaptor() {
         try {
             XMLFileAdaptor adaptor = new XMLFileAdaptor();
+            // Append changes into a journal file instead of rewriting the whole project
+            adaptor.setUseJournal(Boolean.valueOf(prop.getProperty("useProjectJournal", "false")));
             adaptor.addInstanceListener(new PropertyChangeListener() {
                 public void propertyChange(PropertyChangeEvent e) {
                     if (e.getPropertyName().equals("addNewInstance")) {
@@ -20,6 +20,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -36,12 +37,12 @@ import org.gk.database.InstanceListPane;
 import org.gk.database.SynchronizationManager;
 import org.gk.model.GKInstance;
 import org.gk.model.InstanceUtilities;
+import org.gk.model.ReactomeJavaConstants;
 import org.gk.persistence.MySQLAdaptor;
 import org.gk.persistence.XMLFileAdaptor;
 import org.gk.schema.GKSchema;
 import org.gk.schema.GKSchemaClass;
 import org.gk.schema.Schema;
-import org.gk.schema.SchemaAttribute;
 import org.gk.schema.SchemaClass;
 import org.gk.util.GKApplicationUtilities;
 import org.gk.util.SectionTitlePane;
@@ -754,17 +755,16 @@ public class SynchronizationDialog extends JDialog{
 				// For comparsing
 				InstanceComparer comparer = new InstanceComparer();
 				try {
+				    // Collect local instances in all classes first so that the database
+				    // can be queried for all of them together
+				    Map clsToInstances = new LinkedHashMap();
+				    List existedIDs = new ArrayList();
 					for (Iterator it = syncClassList.iterator(); it.hasNext();) {
-						if (isCancelled) 
-							break;
 						schemaClass = (SchemaClass)it.next();
 						instances = fileAdaptor.fetchInstancesByClass(schemaClass, false);
 						if (instances == null || instances.size() == 0)
 							continue;
-						progDialog.clsLabel.setText("Scan class " + schemaClass.getName() + "...");
-						progDialog.clsBar.setMinimum(0);
-						progDialog.clsBar.setMaximum(instances.size());
-						List existedIDs = new ArrayList(instances.size());
+						clsToInstances.put(schemaClass, instances);
 						for (Iterator it1 = instances.iterator(); it1.hasNext();) {
 						    instance = (GKInstance) it1.next();
 						    if (instance.getDBID().longValue() < 0) {
@@ -775,15 +775,17 @@ public class SynchronizationDialog extends JDialog{
 						        // be deleted locally so existence checking is needed.
 						        existedIDs.add(instance.getDBID());
 						}
-						if (existedIDs.size() == 0)
-						    continue;
-						Collection existences = dbAdaptor.fetchInstances(schemaClass.getName(), existedIDs);
-						if (existences.size() > 0) {
-                            // Load all modified attribute
-                            SchemaAttribute att = schemaClass.getAttribute("modified");
-                            // Load all atributes in a batch
-                            dbAdaptor.loadInstanceAttributeValues(existences, att);
-                        }
+					}
+					progDialog.clsLabel.setText("Query the database...");
+					Map dbIdToCopy = fetchDBCopies(dbAdaptor, existedIDs);
+					for (Iterator it = clsToInstances.keySet().iterator(); it.hasNext();) {
+						if (isCancelled) 
+							break;
+						schemaClass = (SchemaClass)it.next();
+						instances = (Collection) clsToInstances.get(schemaClass);
+						progDialog.clsLabel.setText("Scan class " + schemaClass.getName() + "...");
+						progDialog.clsBar.setMinimum(0);
+						progDialog.clsBar.setMaximum(instances.size());
 						index = 0;
 						for (Iterator it1 = instances.iterator(); it1.hasNext();) {
 						    if (isCancelled)
@@ -792,9 +794,9 @@ public class SynchronizationDialog extends JDialog{
 						    if (instance.getDBID().longValue() < 0) { // Handled by the previous loop
 						        continue;
 						    }
-						    // The schema class might be changed. Use the
-                            // top-leve class to fetch instance
-                            dbCopy = dbAdaptor.fetchInstance(instance.getDBID());
+						    // The schema class might be changed. The top-level
+                            // class has been used to fetch instances
+                            dbCopy = (GKInstance) dbIdToCopy.get(instance.getDBID());
                             if (dbCopy == null) {
                                 deletedInDBInstances.add(instance);
                                 typeMap.put(instance, DELETE_IN_DB_KEY);
@@ -833,10 +835,10 @@ public class SynchronizationDialog extends JDialog{
 					if (deleteMap != null && deleteMap.size() > 0) {
                         java.util.List deleteInstances = new ArrayList();
                         List clearingIDs = new ArrayList();
+                        Map deletedIdToCopy = fetchDeletedDBCopies(dbAdaptor, deleteMap);
                         for (Iterator it = deleteMap.keySet().iterator(); it.hasNext();) {
                             Long dbID = (Long) it.next();
-                            String className = (String) deleteMap.get(dbID);
-                            dbCopy = dbAdaptor.fetchInstance(className, dbID);
+                            dbCopy = (GKInstance) deletedIdToCopy.get(dbID);
                             if (dbCopy != null) {
                                 deleteInstances.add(dbCopy);
                                 typeMap.put(dbCopy, DELETE_KEY);
@@ -869,6 +871,73 @@ public class SynchronizationDialog extends JDialog{
 	}
 	
 	
+	/**
+	 * Fetch database copies for the passed DB_IDs in bulk. Values in the modified slot and 
+	 * dateTime of these InstanceEdits are loaded too, so that InstanceComparer doesn't need 
+	 * to query the database for each instance.
+	 * @param dbAdaptor
+	 * @param dbIds
+	 * @return Key: DB_ID; Value: the database copy. Deleted instances are not included.
+	 * @throws Exception
+	 */
+	private Map fetchDBCopies(MySQLAdaptor dbAdaptor,
+	                          List dbIds) throws Exception {
+	    Map rtn = new HashMap();
+	    if (dbIds.size() == 0)
+	        return rtn;
+	    // The schema class might be changed. Use the top-level class to fetch instances
+	    String rootClsName = ((GKSchema)dbAdaptor.getSchema()).getRootClass().getName();
+	    Collection existences = dbAdaptor.fetchInstances(rootClsName, dbIds);
+	    if (existences.size() == 0)
+	        return rtn;
+	    dbAdaptor.loadInstanceAttributeValues(existences, new String[]{ReactomeJavaConstants.modified});
+	    Set ies = new HashSet();
+	    for (Iterator it = existences.iterator(); it.hasNext();) {
+	        GKInstance dbCopy = (GKInstance) it.next();
+	        rtn.put(dbCopy.getDBID(), dbCopy);
+	        List modified = dbCopy.getAttributeValuesList(ReactomeJavaConstants.modified);
+	        if (modified != null)
+	            ies.addAll(modified);
+	    }
+	    // Used by InstanceUtilities.compareInstanceEdits()
+	    if (ies.size() > 0)
+	        dbAdaptor.loadInstanceAttributeValues(ies, new String[]{ReactomeJavaConstants.dateTime});
+	    return rtn;
+	}
+	
+	/**
+	 * Fetch database copies for locally deleted instances in bulk. Instances are fetched in their
+	 * local classes: an instance whose class has been changed in the database is not returned.
+	 * @param dbAdaptor
+	 * @param deleteMap Key: DB_ID; Value: class name
+	 * @return Key: DB_ID; Value: the database copy
+	 * @throws Exception
+	 */
+	private Map fetchDeletedDBCopies(MySQLAdaptor dbAdaptor,
+	                                 Map deleteMap) throws Exception {
+	    Map clsToIds = new HashMap();
+	    for (Iterator it = deleteMap.keySet().iterator(); it.hasNext();) {
+	        Long dbId = (Long) it.next();
+	        String clsName = (String) deleteMap.get(dbId);
+	        List ids = (List) clsToIds.get(clsName);
+	        if (ids == null) {
+	            ids = new ArrayList();
+	            clsToIds.put(clsName, ids);
+	        }
+	        ids.add(dbId);
+	    }
+	    Map rtn = new HashMap();
+	    for (Iterator it = clsToIds.keySet().iterator(); it.hasNext();) {
+	        String clsName = (String) it.next();
+	        Collection dbCopies = dbAdaptor.fetchInstances(clsName, (List) clsToIds.get(clsName));
+	        for (Iterator it1 = dbCopies.iterator(); it1.hasNext();) {
+	            GKInstance dbCopy = (GKInstance) it1.next();
+	            rtn.put(dbCopy.getDBID(), dbCopy);
+	        }
+	    }
+	    return rtn;
+	}
+	
 	private String mapCompareResultToString(int result) {
         switch (result) {
         	case InstanceComparer.NEW_CHANGE_IN_DB:
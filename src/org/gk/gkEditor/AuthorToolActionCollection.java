@@ -1319,6 +1319,7 @@ public class AuthorToolActionCollection {
                 complex.invalidateConnectWidgets();
             }
         }
+        pathwayEditor.invalidateSpatialIndex();
         pathwayEditor.repaint(pathwayEditor.getVisibleRect());
         enableSave();
     }
@@ -259,7 +259,9 @@ public class GKEditorManager {
 			}
 		}
 		GraphEditorPane graphPane = editorFrame.getDisplayedGraphPane();
-		if (graphPane != null)
+		if (graphPane != null) {
+			graphPane.invalidateSpatialIndex();
 			graphPane.repaint();
+		}
 	}
 }
@@ -0,0 +1,243 @@
+package org.gk.graphEditor;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.GraphicsDevice;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gk.render.RenderableCompartment;
+
+/**
+ * Cache rendered compartments in image tiles so that compartments, which are large and rarely changed,
+ * don't need to be drawn again for each repaint. Tiles are created in device space for the current
+ * zoom level, so they are dropped when the zoom level is changed. A signature is kept for each cached
+ * compartment: tiles overlapped by a compartment whose signature is changed are dropped and the others
+ * are kept. Compartments are drawn directly in the paint when they are changed, and tiles are created
+ * again in a following paint, so that no tile is created for each frame during dragging or resizing.
+ * Only drawing onto the screen is cached: exporting and printing are not affected.
+ */
+class CompartmentLayerCache {
+    private static final int TILE_SIZE = 256;
+    // About 25 MB for ARGB tiles
+    private static final int MAX_TILES = 96;
+    // For the outline stroke
+    private static final int PADDING = 4;
+
+    // Key: tile coordinates; Value: null for tiles without any compartment
+    private Map<Point, BufferedImage> tiles;
+    private Map<RenderableCompartment, String> signatures;
+    private Map<RenderableCompartment, Rectangle> areas;
+    private double scaleX;
+    private double scaleY;
+    private Font font;
+
+    public CompartmentLayerCache() {
+        tiles = new LinkedHashMap<Point, BufferedImage>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Point, BufferedImage> eldest) {
+                return size() > MAX_TILES;
+            }
+        };
+        signatures = new IdentityHashMap<RenderableCompartment, String>();
+        areas = new IdentityHashMap<RenderableCompartment, Rectangle>();
+    }
+
+    /**
+     * Drop all tiles.
+     */
+    public void clear() {
+        tiles.clear();
+        signatures.clear();
+        areas.clear();
+    }
+
+    /**
+     * Draw the passed compartments from tiles.
+     * @param g2 a scaled Graphics2D
+     * @param compartments compartments in the order they should be drawn
+     * @param clip the clip in the model space
+     * @return false if the compartments are not drawn and should be drawn by the caller.
+     */
+    public boolean draw(Graphics2D g2,
+                        List<RenderableCompartment> compartments,
+                        Rectangle clip) {
+        if (g2.getDeviceConfiguration().getDevice().getType() != GraphicsDevice.TYPE_RASTER_SCREEN)
+            return false;
+        AffineTransform at = g2.getTransform();
+        if ((at.getType() & ~(AffineTransform.TYPE_TRANSLATION |
+                              AffineTransform.TYPE_UNIFORM_SCALE |
+                              AffineTransform.TYPE_GENERAL_SCALE)) != 0)
+            return false;
+        double tx = at.getTranslateX();
+        double ty = at.getTranslateY();
+        // Tiles cannot be aligned to pixels
+        if (tx != Math.rint(tx) || ty != Math.rint(ty))
+            return false;
+        if (at.getScaleX() != scaleX || at.getScaleY() != scaleY || !g2.getFont().equals(font)) {
+            clear();
+            scaleX = at.getScaleX();
+            scaleY = at.getScaleY();
+            font = g2.getFont();
+        }
+        if (!validate(compartments))
+            return false;
+        int x1 = (int) Math.floor(clip.x * scaleX / TILE_SIZE);
+        int y1 = (int) Math.floor(clip.y * scaleY / TILE_SIZE);
+        int x2 = (int) Math.floor((clip.x + clip.width) * scaleX / TILE_SIZE);
+        int y2 = (int) Math.floor((clip.y + clip.height) * scaleY / TILE_SIZE);
+        // Too many tiles would be thrown away in the same paint
+        if ((long)(x2 - x1 + 1) * (y2 - y1 + 1) > MAX_TILES / 2)
+            return false;
+        g2.setTransform(AffineTransform.getTranslateInstance(tx, ty));
+        try {
+            for (int x = x1; x <= x2; x++) {
+                for (int y = y1; y <= y2; y++) {
+                    Point key = new Point(x, y);
+                    BufferedImage tile = null;
+                    if (tiles.containsKey(key))
+                        tile = tiles.get(key);
+                    else {
+                        tile = createTile(x, y, compartments, g2);
+                        tiles.put(key, tile);
+                    }
+                    if (tile != null)
+                        g2.drawImage(tile, x * TILE_SIZE, y * TILE_SIZE, null);
+                }
+            }
+        }
+        finally {
+            g2.setTransform(at);
+        }
+        return true;
+    }
+
+    /**
+     * Drop tiles overlapped by changed compartments.
+     * @return false if any compartment has been changed since the last paint.
+     */
+    private boolean validate(List<RenderableCompartment> compartments) {
+        List<Rectangle> dirtyAreas = new ArrayList<Rectangle>();
+        Map<RenderableCompartment, String> newSignatures = new IdentityHashMap<RenderableCompartment, String>();
+        Map<RenderableCompartment, Rectangle> newAreas = new IdentityHashMap<RenderableCompartment, Rectangle>();
+        for (RenderableCompartment compartment : compartments) {
+            String signature = getSignature(compartment);
+            if (signature == null)
+                return false; // Cannot be cached
+            Rectangle area = getArea(compartment);
+            newSignatures.put(compartment, signature);
+            newAreas.put(compartment, area);
+            if (!signature.equals(signatures.get(compartment))) {
+                dirtyAreas.add(area);
+                if (areas.containsKey(compartment))
+                    dirtyAreas.add(areas.get(compartment));
+            }
+        }
+        for (RenderableCompartment compartment : signatures.keySet()) {
+            if (!newSignatures.containsKey(compartment))
+                dirtyAreas.add(areas.get(compartment));
+        }
+        signatures = newSignatures;
+        areas = newAreas;
+        if (dirtyAreas.size() == 0)
+            return true;
+        for (Iterator<Point> it = tiles.keySet().iterator(); it.hasNext();) {
+            Rectangle tileArea = getTileArea(it.next());
+            for (Rectangle area : dirtyAreas) {
+                if (area.intersects(tileArea)) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+
+    private BufferedImage createTile(int x,
+                                     int y,
+                                     List<RenderableCompartment> compartments,
+                                     Graphics2D g2) {
+        Rectangle tileArea = getTileArea(new Point(x, y));
+        List<RenderableCompartment> list = new ArrayList<RenderableCompartment>();
+        for (RenderableCompartment compartment : compartments) {
+            if (areas.get(compartment).intersects(tileArea))
+                list.add(compartment);
+        }
+        if (list.size() == 0)
+            return null;
+        BufferedImage tile = g2.getDeviceConfiguration().createCompatibleImage(TILE_SIZE,
+                                                                               TILE_SIZE,
+                                                                               Transparency.TRANSLUCENT);
+        Graphics2D tileG2 = tile.createGraphics();
+        try {
+            tileG2.setRenderingHints(g2.getRenderingHints());
+            tileG2.setFont(g2.getFont());
+            tileG2.translate(-x * TILE_SIZE, -y * TILE_SIZE);
+            tileG2.scale(scaleX, scaleY);
+            for (RenderableCompartment compartment : list)
+                compartment.render(tileG2);
+        }
+        finally {
+            tileG2.dispose();
+        }
+        return tile;
+    }
+
+    /**
+     * @return the area of a tile in the model space.
+     */
+    private Rectangle getTileArea(Point tile) {
+        int x = (int) Math.floor(tile.x * TILE_SIZE / scaleX);
+        int y = (int) Math.floor(tile.y * TILE_SIZE / scaleY);
+        int w = (int) Math.ceil(TILE_SIZE / scaleX) + 1;
+        int h = (int) Math.ceil(TILE_SIZE / scaleY) + 1;
+        return new Rectangle(x, y, w, h);
+    }
+
+    private Rectangle getArea(RenderableCompartment compartment) {
+        Rectangle area = new Rectangle(compartment.getBounds());
+        if (compartment.getTextBounds() != null)
+            area.add(compartment.getTextBounds());
+        if (compartment.getInsets() != null)
+            area.add(compartment.getInsets());
+        area.grow(PADDING, PADDING);
+        return area;
+    }
+
+    /**
+     * @return a String for properties used in rendering. Null is returned if the passed
+     * compartment cannot be cached.
+     */
+    private String getSignature(RenderableCompartment compartment) {
+        if (compartment.getBounds() == null ||
+            !compartment.isBoundsValidate() ||
+            (compartment.getNodeAttachments() != null && compartment.getNodeAttachments().size() > 0))
+            return null;
+        StringBuilder builder = new StringBuilder();
+        builder.append(compartment.getBounds());
+        builder.append(compartment.getInsets());
+        builder.append(compartment.getTextBounds());
+        builder.append(System.identityHashCode(compartment.getTextLayouts()));
+        builder.append(compartment.getDisplayName());
+        builder.append(compartment.isVisible());
+        builder.append(compartment.isSelected());
+        builder.append(compartment.isHighlighted());
+        builder.append(compartment.getSelectionPosition());
+        builder.append(compartment.getForegroundColor());
+        builder.append(compartment.getBackgroundColor());
+        builder.append(compartment.getLineColor());
+        builder.append(compartment.getLineWidth());
+        builder.append(compartment.isNeedDashedBorder());
+        builder.append(compartment.getIsForDisease());
+        return builder.toString();
+    }
+
+}
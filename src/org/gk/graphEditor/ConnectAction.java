@@ -367,6 +367,7 @@ public class ConnectAction implements GraphEditorAction {
                 complex.move(0, 200);
                 complex.layout();
                 reaction.layout();
+                editorPane.invalidateSpatialIndex();
                 // Just want to pass the information that layout has been changed to
                 // other client. This is really a hack!!!
                 editorPane.firePropertyChange("layout", false, true);
@@ -93,6 +93,8 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
     protected GraphEditorUndoManager undoManager;
     // Key event for moving
     private KeyListener moveKeyAction;
+    // Used for hit testing in large diagrams. Null for no index.
+    protected RenderableSpatialIndex spatialIndex;
     
     /** Creates a new instance of GraphEditorPane */
     public GraphEditorPane() {
@@ -237,7 +239,7 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
 							}
 							else
 								editor.clearSelection();
-							repaint(editingNode.getBounds());
+							repaintModelArea(editingNode.getBounds());
 							break;
 						case KeyEvent.VK_RIGHT :
 							pos0 = editor.getCaretPosition();
@@ -250,7 +252,7 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
 							}
 							else
 								editor.clearSelection();
-							repaint(editingNode.getBounds());
+							repaintModelArea(editingNode.getBounds());
 							break;
 						case KeyEvent.VK_END :
 							editor.setCaretPosition(text.length());
@@ -258,7 +260,7 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
 								editor.setSelectionEnd(text.length());
 							else
 								editor.clearSelection();	
-							repaint(editingNode.getBounds());
+							repaintModelArea(editingNode.getBounds());
 							break;
 						case KeyEvent.VK_HOME :
 							editor.setCaretPosition(0);
@@ -278,7 +280,7 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
 							}
 							else
 								editor.clearSelection();
-							repaint(editingNode.getBounds());
+							repaintModelArea(editingNode.getBounds());
 							break;
 						case KeyEvent.VK_DOWN :
 							pos0 = editor.getCaretPosition();
@@ -291,7 +293,7 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
 							}
 							else
 								editor.clearSelection();
-							repaint(editingNode.getBounds());
+							repaintModelArea(editingNode.getBounds());
 							break;
 						case KeyEvent.VK_BACK_SPACE :
 							start = editor.getSelectionStart();
@@ -350,11 +352,7 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
 							}
 							editingNode.setDisplayName(text1);
 							editor.setIsChanged(true);
-                            Rectangle bounds = editingNode.getBounds();
-                            repaint((int)(bounds.x * scaleX),
-                                    (int)(bounds.y * scaleY),
-                                    (int)(bounds.width * scaleX + 1),
-                                    (int)(bounds.height * scaleY + 1));
+                            repaintModelArea(editingNode.getBounds());
 							//repaint(getVisibleRect());
 							break;
 					}
@@ -450,6 +448,7 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
     		needValidate = true;
         this.displayedObject = displayedObject;
         if (needValidate) {
+            invalidateSpatialIndex();
         	revalidate();
         	repaint();
         	removeSelection();
@@ -481,6 +480,72 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
     	return displayedObject.getComponents();
     }
     
+    /**
+     * Get displayed objects that may intersect the passed area. All displayed objects are
+     * returned if no spatial index is used. Callers should check returned objects as they do
+     * for getDisplayedObjects().
+     * @param area all displayed objects are returned if it is null
+     * @return objects in the same order as in getDisplayedObjects().
+     */
+    protected java.util.List<Renderable> getDisplayedObjectsIn(Rectangle area) {
+        java.util.List list = getDisplayedObjects();
+        if (spatialIndex == null || area == null || area.width < 0 || area.height < 0)
+            return list;
+        // Rectangle.intersects() doesn't work for an empty rectangle
+        Rectangle rect = new Rectangle(area.x, 
+                                       area.y,
+                                       Math.max(area.width, 1),
+                                       Math.max(area.height, 1));
+        return spatialIndex.query(list, rect, getVolatileRenderables());
+    }
+    
+    /**
+     * Get displayed objects that may be picked at the passed point.
+     * @param p
+     * @return
+     */
+    protected java.util.List<Renderable> getDisplayedObjectsAt(Point p) {
+        return getDisplayedObjectsIn(new Rectangle(p.x, p.y, 1, 1));
+    }
+    
+    /**
+     * Objects that may be moved or resized after the spatial index was built: the selected
+     * objects, the node whose name is being edited, their components and the reactions
+     * connected to them.
+     * @return
+     */
+    private Set<Renderable> getVolatileRenderables() {
+        Set<Renderable> set = new HashSet<Renderable>();
+        java.util.List<Renderable> changing = new ArrayList<Renderable>();
+        java.util.List selection = getSelection();
+        if (selection != null)
+            changing.addAll(selection);
+        if (isEditing && editingNode != null)
+            changing.add(editingNode);
+        if (changing.size() == 0)
+            return set;
+        for (Renderable r : changing) {
+            set.add(r);
+            java.util.List descendents = RenderUtility.getAllDescendents(r);
+            if (descendents != null)
+                set.addAll(descendents);
+        }
+        for (Renderable r : new ArrayList<Renderable>(set)) {
+            if (r instanceof Node)
+                set.addAll(((Node)r).getConnectedReactions());
+        }
+        return set;
+    }
+    
+    /**
+     * Call this method if Renderable objects have been moved, resized, inserted or deleted
+     * without firing a GraphEditorActionEvent.
+     */
+    public void invalidateSpatialIndex() {
+        if (spatialIndex != null)
+            spatialIndex.invalidate();
+    }
+    
     public void selectAll() {
     	java.util.List list = getDisplayedObjects();
         if (list != null) {
@@ -509,7 +574,7 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
     			it.remove();
     		}
     		// Add new selection
-    		for (Iterator it = list.iterator(); it.hasNext();) {
+    		for (Iterator it = getDisplayedObjectsIn(rect).iterator(); it.hasNext();) {
     			renderable = (Renderable) it.next();
     			renderable.select(rect);
     			if (renderable.isSelected())
@@ -900,6 +965,9 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
     }
     
     public void fireGraphEditorActionEvent(GraphEditorActionEvent e) {
+        // Anything but a selection change may have changed the bounds
+        if (e.getID() != GraphEditorActionEvent.SELECTION)
+            invalidateSpatialIndex();
     	if (editorActionListeners == null)
     		return;
     	GraphEditorActionListener l = null;
@@ -980,10 +1048,11 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
         java.util.List comps = getDisplayedObjects();
         if (comps == null || comps.size() == 0)
             return null;
-        int size = comps.size();
         Point p = event.getPoint();
         p.x /= scaleX;
         p.y /= scaleY;
+        comps = getDisplayedObjectsAt(p);
+        int size = comps.size();
         if (mouseOveredRenderable != null) {
             if (mouseOveredRenderable.canBePicked(p))
                 return generateToolTipText(mouseOveredRenderable);
@@ -1035,7 +1104,9 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
             autoPane = null;
         }
         editingNode.setIsEditing(false);
-		repaint(editingNode.getBounds());
+		repaintModelArea(editingNode.getBounds());
+		// The edited name may have changed the node bounds
+		invalidateSpatialIndex();
 		setIsEditing(false);
 		setEditingNode(null); // Reset to null.
 	} 
@@ -1117,6 +1188,7 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
                     newName = oldName;
                     // In case it is changed already as in the on-line editing
                     r.setDisplayName(newName);
+                    invalidateSpatialIndex();
                     repaint(getVisibleRect());
                     break;
                 }
@@ -1324,6 +1396,23 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
         g2.drawString(text, x, y);
     }
     
+    /**
+     * Repaint an area in the model space (i.e. not zoomed) only so that objects outside of the
+     * area don't need to be drawn.
+     * @param area
+     */
+    public void repaintModelArea(Rectangle area) {
+        if (area == null) {
+            repaint(getVisibleRect());
+            return;
+        }
+        // Give some room for strokes and widgets
+        repaint((int) Math.floor((area.x - 2) * scaleX),
+                (int) Math.floor((area.y - 2) * scaleY),
+                (int) Math.ceil((area.width + 4) * scaleX) + 1,
+                (int) Math.ceil((area.height + 4) * scaleY) + 1);
+    }
+    
     /**
      * This method is refactored from suclasses to this class. All subclasses should
      * call this method first.
@@ -1403,10 +1492,12 @@ public class GraphEditorPane extends ZoomableJPanel implements MouseMotionListen
     
     public void undo() {
         undoManager.undo();
+        invalidateSpatialIndex();
     }
     
     public void redo() {
         undoManager.redo();
+        invalidateSpatialIndex();
     }
     
     public boolean canUndo() {
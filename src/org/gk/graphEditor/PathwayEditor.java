@@ -54,6 +54,8 @@ public class PathwayEditor extends GraphEditorPane {
     private boolean isComplexComponentEditDisabled;
     // Used to control if private note should be drawn
     private boolean hidePrivateNote;
+    // Rendered compartments are cached in tiles
+    private CompartmentLayerCache compartmentCache;
 
     /** Creates a new instance of PathwayEditor */
     public PathwayEditor() {
@@ -95,6 +97,9 @@ public class PathwayEditor extends GraphEditorPane {
         // For linkWidgets
         linkWidgetAction = new LinkWidgetAction(this);
         linkWidgetHandler = new LinkWidgetHandler(this);
+        // Diagrams may have thousands of objects
+        spatialIndex = new RenderableSpatialIndex();
+        compartmentCache = new CompartmentLayerCache();
     }
     
     public void paint(Graphics g) {
@@ -205,16 +210,15 @@ public class PathwayEditor extends GraphEditorPane {
                                                            Renderable selected,
                                                            Rectangle clip) {
         List<RenderableCompartment> compartments = getCompartmentsInHierarchy();
-        int index = compartments.indexOf(selected);
         // Draw no membrane first
+        List<RenderableCompartment> drawOrder = new ArrayList<RenderableCompartment>();
         for (RenderableCompartment compartment : compartments) {
             if (compartment == selected)
                 continue;
             if (compartment.getDisplayName() != null &&
                 compartment.getDisplayName().endsWith("membrane"))
                 continue;
-            if (clip.intersects(compartment.getBounds()))
-                compartment.render(g);
+            drawOrder.add(compartment);
         }
         // Draw membranes now
         for (RenderableCompartment compartment : compartments) {
@@ -223,8 +227,14 @@ public class PathwayEditor extends GraphEditorPane {
             if (compartment.getDisplayName() != null &&
                 !compartment.getDisplayName().endsWith("membrane"))
                 continue;
-            if (clip.intersects(compartment.getBounds()))
-                compartment.render(g);
+            drawOrder.add(compartment);
+        }
+        if (compartmentCache == null ||
+            !compartmentCache.draw((Graphics2D) g, drawOrder, clip)) {
+            for (RenderableCompartment compartment : drawOrder) {
+                if (clip.intersects(compartment.getBounds()))
+                    compartment.render(g);
+            }
         }
         // Last draw selected so that it can be displayed
         if (selected instanceof RenderableCompartment &&
@@ -365,7 +375,11 @@ public class PathwayEditor extends GraphEditorPane {
     public RenderableComplex pickUpComplex(Node node) {
         if (isComplexComponentEditDisabled) 
             return null;
-        for (Iterator it = getDisplayedObjects().iterator(); it.hasNext();) {
+        // A container complex should contain the node
+        Rectangle area = node.getBounds();
+        if (area == null && node.getPosition() != null)
+            area = new Rectangle(node.getPosition());
+        for (Iterator it = getDisplayedObjectsIn(area).iterator(); it.hasNext();) {
             Renderable r = (Renderable) it.next();
             // Make sure it is visible. It should not be used as a conainer
             // if it is hidden.
@@ -413,7 +427,7 @@ public class PathwayEditor extends GraphEditorPane {
      */
     public List<Renderable> pickUpCompartmentComponents(RenderableCompartment compartment) {
         List<Renderable> list = new ArrayList<Renderable>();
-        for (Iterator it = getDisplayedObjects().iterator(); it.hasNext();) {
+        for (Iterator it = getDisplayedObjectsIn(compartment.getBounds()).iterator(); it.hasNext();) {
             Renderable r = (Renderable) it.next();
             if (compartment.isAssignable(r))
                 list.add(r);
@@ -437,8 +451,8 @@ public class PathwayEditor extends GraphEditorPane {
                 }
             }
         }
-        else {
-            for (Iterator it = getDisplayedObjects().iterator(); it.hasNext();) {
+        else if (complex.getBounds() != null) {
+            for (Iterator it = getDisplayedObjectsIn(complex.getBounds()).iterator(); it.hasNext();) {
                 Renderable r = (Renderable) it.next();
                 if (complex.isAssignable(r)) {
                     nodes.add((Node)r);
@@ -771,6 +785,7 @@ public class PathwayEditor extends GraphEditorPane {
             return;
         for (HyperEdge edge : edges)
             edge.layout();
+        invalidateSpatialIndex();
         repaint(getVisibleRect());
         firePropertyChange("layout", null, edges);
     }
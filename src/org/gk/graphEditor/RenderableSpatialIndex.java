@@ -0,0 +1,184 @@
+package org.gk.graphEditor;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gk.render.Renderable;
+
+/**
+ * A grid based spatial index over displayed Renderable objects so that hit testing and container
+ * lookup don't need to check all displayed objects. Each Renderable is indexed by its bounds, text
+ * bounds and position, grown by a margin for sensing distances, resize widgets and attachments.
+ * Returned objects are candidates only: callers should check them as before. The index is a snapshot:
+ * it is rebuilt after it is invalidated or the displayed list is changed. Objects that may be changed
+ * after the index is built (e.g. selected objects during dragging) should be passed as volatile
+ * objects, which are always returned as candidates.
+ */
+class RenderableSpatialIndex {
+    // Lists shorter than this will not be indexed
+    private static final int MIN_INDEXED_SIZE = 200;
+    private static final int CELL_SIZE = 256;
+    // Enough for SENSING_DISTANCE in HyperEdge, resize widgets and node attachments
+    private static final int MARGIN = 20;
+    // Objects covering more cells than this are not put into cells (e.g. a huge compartment)
+    private static final int MAX_CELLS = 1024;
+
+    // Indexed list and its size when indexed
+    private List<?> indexedList;
+    private int indexedSize;
+    // Positions in the indexed list
+    private Map<Renderable, Integer> rToOrder;
+    private Map<Renderable, Rectangle> rToRect;
+    // Key: cell coordinates packed in a long
+    private Map<Long, List<Renderable>> cells;
+    // Objects without bounds or covering too many cells
+    private List<Renderable> unindexed;
+
+    public RenderableSpatialIndex() {
+    }
+
+    /**
+     * Mark the index as out of date. It will be rebuilt when it is queried next time.
+     */
+    public void invalidate() {
+        indexedList = null;
+        rToOrder = null;
+        rToRect = null;
+        cells = null;
+        unindexed = null;
+    }
+
+    /**
+     * Get displayed objects that may intersect the passed area.
+     * @param displayedObjects the full list of displayed objects
+     * @param area
+     * @param volatileObjects objects that may have been changed since the index was built
+     * @return candidates in the same order as in displayedObjects. The full list will be returned
+     * if it is too short to be indexed.
+     */
+    public List<Renderable> query(List<?> displayedObjects,
+                                  Rectangle area,
+                                  Collection<Renderable> volatileObjects) {
+        if (displayedObjects == null || displayedObjects.size() < MIN_INDEXED_SIZE)
+            return (List<Renderable>) (displayedObjects == null ? new ArrayList<Renderable>() : displayedObjects);
+        validate(displayedObjects);
+        Map<Renderable, Boolean> found = new IdentityHashMap<Renderable, Boolean>();
+        int x1 = Math.floorDiv(area.x, CELL_SIZE);
+        int y1 = Math.floorDiv(area.y, CELL_SIZE);
+        int x2 = Math.floorDiv(area.x + Math.max(area.width, 0), CELL_SIZE);
+        int y2 = Math.floorDiv(area.y + Math.max(area.height, 0), CELL_SIZE);
+        if ((long)(x2 - x1 + 1) * (y2 - y1 + 1) > cells.size()) {
+            // The area is larger than the indexed area. Check cells instead.
+            for (List<Renderable> list : cells.values())
+                addIntersected(list, area, found);
+        }
+        else {
+            for (int x = x1; x <= x2; x++) {
+                for (int y = y1; y <= y2; y++) {
+                    List<Renderable> list = cells.get(getKey(x, y));
+                    if (list != null)
+                        addIntersected(list, area, found);
+                }
+            }
+        }
+        for (Renderable r : unindexed)
+            found.put(r, Boolean.TRUE);
+        if (volatileObjects != null) {
+            for (Renderable r : volatileObjects) {
+                if (rToOrder.containsKey(r))
+                    found.put(r, Boolean.TRUE);
+            }
+        }
+        List<Renderable> rtn = new ArrayList<Renderable>(found.keySet());
+        Collections.sort(rtn, new Comparator<Renderable>() {
+            public int compare(Renderable r1, Renderable r2) {
+                return rToOrder.get(r1).compareTo(rToOrder.get(r2));
+            }
+        });
+        return rtn;
+    }
+
+    private void addIntersected(List<Renderable> list,
+                                Rectangle area,
+                                Map<Renderable, Boolean> found) {
+        for (Renderable r : list) {
+            if (rToRect.get(r).intersects(area))
+                found.put(r, Boolean.TRUE);
+        }
+    }
+
+    private void validate(List<?> displayedObjects) {
+        if (indexedList == displayedObjects && indexedSize == displayedObjects.size())
+            return;
+        rToOrder = new IdentityHashMap<Renderable, Integer>();
+        rToRect = new IdentityHashMap<Renderable, Rectangle>();
+        cells = new HashMap<Long, List<Renderable>>();
+        unindexed = new ArrayList<Renderable>();
+        for (int i = 0; i < displayedObjects.size(); i++) {
+            Renderable r = (Renderable) displayedObjects.get(i);
+            rToOrder.put(r, i);
+            Rectangle rect = getIndexedRect(r);
+            if (rect == null) {
+                unindexed.add(r);
+                continue;
+            }
+            int x1 = Math.floorDiv(rect.x, CELL_SIZE);
+            int y1 = Math.floorDiv(rect.y, CELL_SIZE);
+            int x2 = Math.floorDiv(rect.x + rect.width, CELL_SIZE);
+            int y2 = Math.floorDiv(rect.y + rect.height, CELL_SIZE);
+            if ((long)(x2 - x1 + 1) * (y2 - y1 + 1) > MAX_CELLS) {
+                unindexed.add(r);
+                continue;
+            }
+            rToRect.put(r, rect);
+            for (int x = x1; x <= x2; x++) {
+                for (int y = y1; y <= y2; y++) {
+                    Long key = getKey(x, y);
+                    List<Renderable> list = cells.get(key);
+                    if (list == null) {
+                        list = new ArrayList<Renderable>();
+                        cells.put(key, list);
+                    }
+                    list.add(r);
+                }
+            }
+        }
+        indexedList = displayedObjects;
+        indexedSize = displayedObjects.size();
+    }
+
+    private Rectangle getIndexedRect(Renderable r) {
+        Rectangle rect = null;
+        if (r.getBounds() != null)
+            rect = new Rectangle(r.getBounds());
+        if (r.getTextBounds() != null) {
+            if (rect == null)
+                rect = new Rectangle(r.getTextBounds());
+            else
+                rect.add(r.getTextBounds());
+        }
+        Point p = r.getPosition();
+        if (p != null) {
+            if (rect == null)
+                rect = new Rectangle(p.x, p.y, 0, 0);
+            else
+                rect.add(p);
+        }
+        if (rect != null)
+            rect.grow(MARGIN, MARGIN);
+        return rect;
+    }
+
+    private Long getKey(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+}
@@ -84,6 +84,8 @@ public class SelectAction implements GraphEditorAction {
                 }
             }
             boolean isPicked = false;
+            // Objects that can be picked at the point or have been selected
+            list = editorPane.getDisplayedObjectsAt(pressPoint);
           	int size = list.size();
           	// Delay for compartments
           	List<RenderableCompartment> compartments = new ArrayList<RenderableCompartment>();
@@ -29,10 +29,11 @@ public class SetCursorAction implements GraphEditorAction {
             graphPane.setCursor(Cursor.getDefaultCursor());
             return;
         }
-        int size = comps.size();
         Point p = mouseEvent.getPoint();
         p.x /= graphPane.getScaleX();
         p.y /= graphPane.getScaleY();
+        comps = graphPane.getDisplayedObjectsAt(p);
+        int size = comps.size();
         // Check if a LinkWidget is selected
         if (graphPane instanceof PathwayEditor) {
             PathwayEditor pathwayEditor = (PathwayEditor) graphPane;
@@ -0,0 +1,260 @@
+package org.gk.model;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.gk.schema.GKSchemaClass;
+import org.gk.schema.SchemaAttribute;
+import org.gk.schema.SchemaClass;
+
+/**
+ * A compact Map from attribute names to value lists used by GKInstance. Values are kept in an
+ * array indexed by the attribute ordinals in the GKSchemaClass, so no hash entry is needed for each
+ * attribute. A single value set by GKInstance is kept inline without a List. It is wrapped into a
+ * List when the List is requested, since callers may change the returned List directly. Names not
+ * valid for the SchemaClass are kept in a HashMap created when it is needed. The map is
+ * serialized together with GKInstance.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class CompactAttributeMap extends AbstractMap<String, Object> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // Marks an attribute loaded without any value. An enum constant is used so that the
+    // same object is used after deserialization.
+    private enum Marker {EMPTY}
+    private static final Object EMPTY = Marker.EMPTY;
+
+    private GKSchemaClass schemaClass;
+    // A slot may hold: null (not loaded), EMPTY, a List or a single value
+    private Object[] slots;
+    // For names not valid for schemaClass
+    private Map<String, Object> others;
+
+    public CompactAttributeMap(SchemaClass schemaClass) {
+        this.schemaClass = (GKSchemaClass) schemaClass;
+    }
+
+    /**
+     * Change the SchemaClass. Values are kept.
+     * @param schemaClass
+     */
+    public void setSchemaClass(SchemaClass schemaClass) {
+        if (schemaClass == this.schemaClass)
+            return;
+        List<String> names = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+        collectRaw(names, values);
+        this.schemaClass = (GKSchemaClass) schemaClass;
+        slots = null;
+        others = null;
+        for (int i = 0; i < names.size(); i++)
+            putRaw(names.get(i), values.get(i));
+    }
+
+    /**
+     * Set a single value. No List is created for the value.
+     * @param name
+     * @param value null to mark the attribute as loaded without any value.
+     * @return the previous List, which is not used any more.
+     */
+    public Object putSingle(String name, Object value) {
+        return toList(putRaw(name, value == null ? EMPTY : value));
+    }
+
+    /**
+     * Get the first value without creating a List.
+     * @param name
+     * @return
+     */
+    public Object getFirst(String name) {
+        Object value = getRaw(name);
+        if (value == null || value == EMPTY)
+            return null;
+        if (value instanceof List) {
+            List list = (List) value;
+            return list.isEmpty() ? null : list.get(0);
+        }
+        return value;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String))
+            return null;
+        String name = (String) key;
+        Object value = getRaw(name);
+        if (value == null || value instanceof List)
+            return value;
+        // Callers may change the returned List. Keep it.
+        List list = toList(value);
+        putRaw(name, list);
+        return list;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (value == null)
+            value = EMPTY;
+        return toList(putRaw(key, value));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String))
+            return false;
+        return getRaw((String) key) != null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (!(key instanceof String))
+            return null;
+        String name = (String) key;
+        int index = getIndex(name);
+        Object old = null;
+        if (index < 0) {
+            if (others != null)
+                old = others.remove(name);
+        }
+        else if (slots != null && index < slots.length) {
+            old = slots[index];
+            slots[index] = null;
+        }
+        return toList(old);
+    }
+
+    @Override
+    public void clear() {
+        slots = null;
+        others = null;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        if (slots != null) {
+            for (Object value : slots) {
+                if (value != null)
+                    size ++;
+            }
+        }
+        if (others != null)
+            size += others.size();
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                final List<String> names = new ArrayList<String>();
+                collectRaw(names, new ArrayList<Object>());
+                return new Iterator<Map.Entry<String, Object>>() {
+                    private int next = 0;
+
+                    public boolean hasNext() {
+                        return next < names.size();
+                    }
+
+                    public Map.Entry<String, Object> next() {
+                        if (next >= names.size())
+                            throw new NoSuchElementException();
+                        final String name = names.get(next ++);
+                        return new Map.Entry<String, Object>() {
+                            public String getKey() {
+                                return name;
+                            }
+
+                            public Object getValue() {
+                                return get(name);
+                            }
+
+                            public Object setValue(Object value) {
+                                return put(name, value);
+                            }
+                        };
+                    }
+
+                    public void remove() {
+                        if (next == 0)
+                            throw new IllegalStateException();
+                        CompactAttributeMap.this.remove(names.get(next - 1));
+                    }
+                };
+            }
+
+            public int size() {
+                return CompactAttributeMap.this.size();
+            }
+        };
+    }
+
+    private int getIndex(String name) {
+        if (schemaClass == null)
+            return -1;
+        return schemaClass.getAttributeIndex(name);
+    }
+
+    private Object getRaw(String name) {
+        int index = getIndex(name);
+        if (index < 0)
+            return others == null ? null : others.get(name);
+        if (slots == null || index >= slots.length)
+            return null;
+        return slots[index];
+    }
+
+    private Object putRaw(String name, Object value) {
+        int index = getIndex(name);
+        if (index < 0) {
+            if (others == null)
+                others = new HashMap<String, Object>(4);
+            return others.put(name, value);
+        }
+        if (slots == null || index >= slots.length) {
+            Object[] newSlots = new Object[Math.max(index + 1, schemaClass.getAttributeCount())];
+            if (slots != null)
+                System.arraycopy(slots, 0, newSlots, 0, slots.length);
+            slots = newSlots;
+        }
+        Object old = slots[index];
+        slots[index] = value;
+        return old;
+    }
+
+    private void collectRaw(List<String> names, List<Object> values) {
+        if (slots != null) {
+            for (Iterator it = schemaClass.getAttributes().iterator(); it.hasNext();) {
+                String name = ((SchemaAttribute) it.next()).getName();
+                int index = getIndex(name);
+                if (index < slots.length && slots[index] != null) {
+                    names.add(name);
+                    values.add(slots[index]);
+                }
+            }
+        }
+        if (others != null) {
+            for (String name : others.keySet()) {
+                names.add(name);
+                values.add(others.get(name));
+            }
+        }
+    }
+
+    private List toList(Object value) {
+        if (value == null || value instanceof List)
+            return (List) value;
+        List list = new ArrayList();
+        if (value != EMPTY)
+            list.add(value);
+        return list;
+    }
+
+}
@@ -32,7 +32,8 @@ public class GKInstance implements Instance, Cloneable {
 	private Long dbID; // a unique id for db
 	// SchemaClass is the defintion of Instance
 	private SchemaClass schemaClass;
-	private Map referers = new HashMap();
+	// Created when it is needed, since most instances don't have referers loaded
+	private Map referers;
 	//private Map referersByName = new HashMap();
 	private transient PersistenceAdaptor dbAdaptor;
 	private boolean isInflated = false;
@@ -79,6 +80,30 @@ public class GKInstance implements Instance, Cloneable {
 	 */
 	public void setSchemaClass(SchemaClass schemaClass) {
 		this.schemaClass = schemaClass;
+		if (attributes instanceof CompactAttributeMap)
+			((CompactAttributeMap)attributes).setSchemaClass(schemaClass);
+	}
+	
+	/**
+	 * Choose how attribute values are stored. The compact storage keeps values in an array indexed
+	 * by attribute ordinals in the GKSchemaClass, and keeps a single value without a List until the List
+	 * is requested. It uses much less memory when many instances are loaded. Values already set are kept.
+	 * @param useCompactStorage true to use the compact storage; false to use a HashMap.
+	 */
+	public void setUseCompactStorage(boolean useCompactStorage) {
+		if (useCompactStorage == isUsingCompactStorage())
+			return;
+		Map newAttributes = null;
+		if (useCompactStorage)
+			newAttributes = new CompactAttributeMap(schemaClass);
+		else
+			newAttributes = new HashMap();
+		newAttributes.putAll(attributes);
+		attributes = newAttributes;
+	}
+	
+	public boolean isUsingCompactStorage() {
+		return attributes instanceof CompactAttributeMap;
 	}
 
 	/* 
@@ -206,6 +231,8 @@ public class GKInstance implements Instance, Cloneable {
 	public Object setAttributeValueNoCheck(String attributeName, Object value) {
 		if (value instanceof java.util.List) {
 			return attributes.put(attributeName, value);
+		} else if (attributes instanceof CompactAttributeMap) {
+			return ((CompactAttributeMap)attributes).putSingle(attributeName, value);
 		} else {
 			List valueList = new ArrayList();
 			if (value != null) {
@@ -264,6 +291,8 @@ public class GKInstance implements Instance, Cloneable {
 	}
 
 	public Object getAttributeValueNoCheck(String attributeName) {
+		if (attributes instanceof CompactAttributeMap)
+			return ((CompactAttributeMap)attributes).getFirst(attributeName);
 		Object o;
 		if ((o = attributes.get(attributeName)) == null) {
 			return null;
@@ -369,12 +398,13 @@ public class GKInstance implements Instance, Cloneable {
 	public Collection getReferers(SchemaAttribute attribute) throws Exception {
 		if (debug) System.out.println(this + "\tgetReferers(SchemaAttribute)\t" + attribute);
 		SchemaAttribute originalAtt = ((GKSchemaAttribute) attribute).getOriginalAttribute();
-		if (! referers.containsKey(originalAtt)) {
+		if (referers == null || ! referers.containsKey(originalAtt)) {
 			if (dbAdaptor != null) {
 				Collection c = dbAdaptor.fetchInstanceByAttribute(originalAtt,"=",this);
-				referers.put(originalAtt, c);
+				getReferers().put(originalAtt, c);
 				return c;
 			}
+			return null;
 		}
 		Object o = referers.get(originalAtt);
 		if (o == null) {
@@ -386,7 +416,7 @@ public class GKInstance implements Instance, Cloneable {
 	
 	public void addRefererNoCheck(SchemaAttribute att, Object referer) throws Exception {
 		SchemaAttribute originalAtt = ((GKSchemaAttribute) att).getOriginalAttribute();
-		Collection c = (Collection) referers.get(originalAtt);
+		Collection c = (Collection) getReferers().get(originalAtt);
 		if (c == null) {
 			c = new ArrayList();
 			c.add(referer);
@@ -398,6 +428,8 @@ public class GKInstance implements Instance, Cloneable {
 	}
 	
 	public void removeRefererNoCheck(SchemaAttribute att, Instance referer) {
+		if (referers == null)
+			return;
 		SchemaAttribute originalAtt = ((GKSchemaAttribute) att).getOriginalAttribute();
 		Collection c = (Collection) referers.get(originalAtt);
 		if (c != null)
@@ -406,22 +438,25 @@ public class GKInstance implements Instance, Cloneable {
 	
 	public void setRefererNoCheck(SchemaAttribute att, Object list) throws Exception {
 		SchemaAttribute originalAtt = ((GKSchemaAttribute) att).getOriginalAttribute();
-		referers.put(originalAtt, list);
+		getReferers().put(originalAtt, list);
 	}
 	
 	/**
 	 * Empty all referer values.
 	 */
 	public void clearReferers() {
-		referers.clear();
+		if (referers != null)
+			referers.clear();
 	}
 	
 	public Map getReferers() {
+		if (referers == null)
+			referers = new HashMap();
 		return referers;
 	}
 	
 	public boolean areReferersEmpty() {
-		if (referers.size() == 0)
+		if (referers == null || referers.size() == 0)
 			return true;
 		for (Iterator it = referers.keySet().iterator(); it.hasNext();) {
 			Object key = it.next();
@@ -499,6 +534,8 @@ public class GKInstance implements Instance, Cloneable {
 	}
 
 	public boolean isRefererValueLoaded (SchemaAttribute att) {
+		if (referers == null)
+			return false;
 		SchemaAttribute originalAtt = ((GKSchemaAttribute) att).getOriginalAttribute();
 		return referers.containsKey(originalAtt);
 	}
@@ -585,6 +622,7 @@ public class GKInstance implements Instance, Cloneable {
 		// Copy non-attribute values.
 		clone.setDbAdaptor(dbAdaptor);
 		clone.setSchemaClass(schemaClass);
+		clone.setUseCompactStorage(isUsingCompactStorage());
 		clone.setIsInflated(isInflated);
 		clone.setIsShell(isShell);
 		// Don't copy DB_ID
@@ -613,7 +651,8 @@ public class GKInstance implements Instance, Cloneable {
 	 */
 	public void deflate () {
 		attributes.clear();
-		referers.clear();
+		if (referers != null)
+			referers.clear();
 		this.setIsInflated(false);
 	}
     
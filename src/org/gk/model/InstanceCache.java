@@ -3,28 +3,115 @@
  */
 package org.gk.model;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gk.schema.SchemaAttribute;
+import org.gk.schema.SchemaClass;
 
 /**
- * 
+ * A cache of Instance objects keyed by DB_IDs. By default this cache is unbounded. A bounded
+ * cache can be created by using one of the following policies:
+ * <ul>
+ * <li>LRU: keep at most a specified number of instances. The least recently used instances are
+ * evicted first.</li>
+ * <li>WEIGHTED: keep instances until their estimated total size (in bytes) reaches a specified
+ * value. The least recently used instances are evicted first.</li>
+ * <li>SOFT/WEAK: instances are held by soft or weak references so that they can be collected by
+ * the garbage collector.</li>
+ * </ul>
+ * Dirty GKInstances (i.e. edited but not saved) are never evicted. Hit, miss and eviction counts
+ * are recorded so that the cache and the heap can be sized from real data.
  * @author wgm
  */
 public class InstanceCache {
+
+    public enum Policy {
+        UNBOUNDED,
+        LRU,
+        WEIGHTED,
+        SOFT,
+        WEAK
+    }
+
+    // Rough numbers used to estimate the size of GKInstance in bytes
+    private static final int INSTANCE_OVERHEAD = 160;
+    private static final int ATTRIBUTE_OVERHEAD = 80;
+    private static final int VALUE_OVERHEAD = 16;
+
+    private Policy policy;
+    // Maximum entries for LRU and maximum weight for WEIGHTED
+    private long capacity;
 //	private Map cache = new HashMap();
 	// There may be a multiple threading problem in a servlet environment.
 	// e.g. two threads may put some instances together into the cache, which
 	// basically block get and put!
 	// Use this version of map may help to avoid such a problem.
-	private Map<Long, Instance> cache = new ConcurrentHashMap<Long, Instance>();
-	
+    private Store store;
+    // Statistics
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+    private AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Create an unbounded cache.
+     */
+    public InstanceCache() {
+        this(Policy.UNBOUNDED, 0);
+    }
+
+    /**
+     * Create a cache using the specified policy. The capacity is ignored by UNBOUNDED, SOFT and WEAK.
+     * @param policy the eviction policy
+     * @param capacity the maximum number of instances for LRU, or the maximum estimated size in bytes for WEIGHTED
+     */
+    public InstanceCache(Policy policy, long capacity) {
+        if ((policy == Policy.LRU || policy == Policy.WEIGHTED) && capacity <= 0)
+            throw new IllegalArgumentException("A positive capacity is needed for policy " + policy + ": " + capacity);
+        this.policy = policy;
+        this.capacity = capacity;
+        switch (policy) {
+            case LRU :
+                store = new LRUStore(false);
+                break;
+            case WEIGHTED :
+                store = new LRUStore(true);
+                break;
+            case SOFT : case WEAK :
+                store = new ReferenceStore(policy == Policy.SOFT);
+                break;
+            default :
+                store = new MapStore();
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
 	/**
-	 * 
+	 *
 	 */
 	public void clear() {
-		cache.clear();
+		store.clear();
 	}
 
 	/**
@@ -32,7 +119,7 @@ public class InstanceCache {
 	 * @return true if the cache contains the key; false otherwise
 	 */
 	public boolean containsKey(Object arg0) {
-		return cache.containsKey(arg0);
+		return store.get(arg0) != null;
 	}
 
 	/**
@@ -40,14 +127,15 @@ public class InstanceCache {
 	 * @return true if the cache contains the value; false otherwise
 	 */
 	public boolean containsValue(GKInstance arg0) {
-		return cache.containsValue(arg0);
+		return arg0 != null && store.get(arg0.getDBID()) == arg0;
 	}
 
 	/**
-	 * @return Key/Value pairs of the cache as a set of Map Entry objects
+	 * @return Key/Value pairs of the cache as a set of Map Entry objects. For a bounded cache,
+	 * a snapshot is returned.
 	 */
 	public Set<Map.Entry<Long, Instance>> entrySet() {
-		return cache.entrySet();
+		return store.entrySet();
 	}
 
 	/**
@@ -55,25 +143,43 @@ public class InstanceCache {
 	 * @return GKInstance from cache
 	 */
 	public GKInstance get(Object arg0) {
-		return (GKInstance) cache.get(arg0);
+	    if (arg0 == null)
+	        return null;
+	    Instance instance = store.get(arg0);
+	    if (instance == null)
+	        missCount.incrementAndGet();
+	    else
+	        hitCount.incrementAndGet();
+		return (GKInstance) instance;
 	}
 
 	public GKInstance get(long dbID) {
-		return (GKInstance) cache.get(new Long(dbID));
+		return get(Long.valueOf(dbID));
+	}
+
+	/**
+	 * Get an instance without recording a hit or a miss.
+	 * @param arg0 Key used to retrieve GKInstance object from cache
+	 * @return GKInstance from cache
+	 */
+	public GKInstance peek(Object arg0) {
+	    if (arg0 == null)
+	        return null;
+	    return (GKInstance) store.get(arg0);
 	}
 
 	/**
 	 * @return true if the cache is empty; false otherwise
 	 */
 	public boolean isEmpty() {
-		return cache.isEmpty();
+		return size() == 0;
 	}
 
 	/**
-	 * @return Set of all keys in the cache
+	 * @return Set of all keys in the cache. For a bounded cache, a snapshot is returned.
 	 */
 	public Set<Long> keySet() {
-		return cache.keySet();
+		return store.keySet();
 	}
 
 	/**
@@ -84,7 +190,7 @@ public class InstanceCache {
 	public GKInstance put(Object arg0, Instance arg1) {
 	    if (!(arg0 instanceof Long))
 	        throw new IllegalArgumentException("The first parameter must be a Long object!");
-		return (GKInstance) cache.put((Long)arg0, arg1);
+		return (GKInstance) store.put((Long)arg0, arg1);
 	}
 
 	/**
@@ -105,14 +211,15 @@ public class InstanceCache {
 	}
 
 	public GKInstance put(Long dbId, GKInstance arg1) {
-		return put(dbId, arg1);
+		return put((Object) dbId, (Instance) arg1);
 	}
 
 	/**
 	 * @param arg0 Map of db id to Instance objects to add to the cache
 	 */
 	public void putAll(Map<Long, Instance> arg0) {
-		cache.putAll(arg0);
+	    for (Map.Entry<Long, Instance> entry : arg0.entrySet())
+	        store.put(entry.getKey(), entry.getValue());
 	}
 
 	/**
@@ -120,21 +227,429 @@ public class InstanceCache {
 	 * @return Value mapped to the removed key
 	 */
 	public Object remove(Object arg0) {
-		return cache.remove(arg0);
+		return store.remove(arg0);
 	}
 
 	/**
 	 * @return Size of the cache
 	 */
 	public int size() {
-		return cache.size();
+		return store.size();
 	}
 
 	/**
-	 * @return Collection of all Instance objects in the cache
+	 * @return Collection of all Instance objects in the cache. For a bounded cache, a snapshot
+	 * is returned.
 	 */
 	public Collection<Instance> values() {
-		return cache.values();
+		return store.values();
+	}
+
+	public long getHitCount() {
+	    return hitCount.get();
+	}
+
+	public long getMissCount() {
+	    return missCount.get();
+	}
+
+	public long getEvictionCount() {
+	    return evictionCount.get();
+	}
+
+	/**
+	 * @return the ratio of hits to all get calls. 0 is returned if get has not been called.
+	 */
+	public double getHitRate() {
+	    long hits = hitCount.get();
+	    long total = hits + missCount.get();
+	    if (total == 0)
+	        return 0.0d;
+	    return (double) hits / total;
+	}
+
+	public void resetStatistics() {
+	    hitCount.set(0);
+	    missCount.set(0);
+	    evictionCount.set(0);
+	}
+
+	/**
+	 * Estimate the total size of the cached instances in bytes. This is a rough number based
+	 * on the loaded attribute values and should be used to compare different runs only.
+	 * @return the estimated size in bytes
+	 */
+	public long getEstimatedWeight() {
+	    if (store instanceof LRUStore && ((LRUStore)store).isWeighted)
+	        return ((LRUStore)store).getTotalWeight();
+	    long weight = 0;
+	    for (Instance instance : values())
+	        weight += estimateWeight(instance);
+	    return weight;
+	}
+
+	/**
+	 * Re-estimate the weights of the passed instances after their attribute values are loaded
+	 * or edited. This is a no-op unless the WEIGHTED policy is used. Instances not in this
+	 * cache are ignored.
+	 * @param instances a Collection of Instance objects
+	 */
+	public void updateWeights(Collection<?> instances) {
+	    if (store instanceof LRUStore && ((LRUStore)store).isWeighted)
+	        ((LRUStore)store).updateWeights(instances);
+	}
+
+	/**
+	 * @see #updateWeights(Collection)
+	 * @param instance
+	 */
+	public void updateWeight(Instance instance) {
+	    updateWeights(Collections.singletonList(instance));
+	}
+
+	/**
+	 * @return a one line description of this cache's statistics for logging.
+	 */
+	public String getStatistics() {
+	    return "policy=" + policy +
+	           (policy == Policy.LRU || policy == Policy.WEIGHTED ? ", capacity=" + capacity : "") +
+	           ", size=" + size() +
+	           ", hits=" + getHitCount() +
+	           ", misses=" + getMissCount() +
+	           ", evictions=" + getEvictionCount() +
+	           ", hitRate=" + String.format("%.3f", getHitRate());
+	}
+
+	/**
+	 * Estimate the size of an Instance object in bytes from its loaded attribute values.
+	 * Attribute values will not be loaded by calling this method.
+	 * @param instance Instance object to estimate
+	 * @return estimated size in bytes
+	 */
+	public static long estimateWeight(Instance instance) {
+	    long weight = INSTANCE_OVERHEAD;
+	    if (!(instance instanceof GKInstance))
+	        return weight;
+	    GKInstance gkInstance = (GKInstance) instance;
+	    SchemaClass cls = gkInstance.getSchemClass();
+	    if (cls == null)
+	        return weight;
+	    for (Iterator<?> it = cls.getAttributes().iterator(); it.hasNext();) {
+	        SchemaAttribute att = (SchemaAttribute) it.next();
+	        List<?> values = gkInstance.getAttributeValuesListNoCheck(att.getName());
+	        if (values == null)
+	            continue;
+	        weight += ATTRIBUTE_OVERHEAD;
+	        for (Object value : values) {
+	            weight += VALUE_OVERHEAD;
+	            if (value instanceof String)
+	                weight += 40 + 2 * ((String)value).length();
+	        }
+	    }
+	    return weight;
+	}
+
+	private boolean isEvictable(Instance instance) {
+	    return !(instance instanceof GKInstance) || !((GKInstance)instance).isDirty();
+	}
+
+	/**
+	 * The actual storage used by a policy.
+	 */
+	private interface Store {
+	    Instance get(Object key);
+	    Instance put(Long key, Instance instance);
+	    Instance remove(Object key);
+	    void clear();
+	    int size();
+	    Set<Long> keySet();
+	    Collection<Instance> values();
+	    Set<Map.Entry<Long, Instance>> entrySet();
+	}
+
+	/**
+	 * The original unbounded map.
+	 */
+	private class MapStore implements Store {
+	    private Map<Long, Instance> cache = new ConcurrentHashMap<Long, Instance>();
+
+        public Instance get(Object key) {
+            return cache.get(key);
+        }
+
+        public Instance put(Long key, Instance instance) {
+            return cache.put(key, instance);
+        }
+
+        public Instance remove(Object key) {
+            return cache.remove(key);
+        }
+
+        public void clear() {
+            cache.clear();
+        }
+
+        public int size() {
+            return cache.size();
+        }
+
+        public Set<Long> keySet() {
+            return cache.keySet();
+        }
+
+        public Collection<Instance> values() {
+            return cache.values();
+        }
+
+        public Set<Map.Entry<Long, Instance>> entrySet() {
+            return cache.entrySet();
+        }
+	}
+
+	/**
+	 * An access-ordered map bounded by either the number of entries or the estimated weight.
+	 * The weight of an instance is estimated when it is put into the cache and re-estimated
+	 * after its attribute values are loaded (see updateWeights()). Dirty instances are also
+	 * re-estimated when they are accessed since they may have been edited.
+	 */
+	private class LRUStore implements Store {
+	    private LinkedHashMap<Long, Instance> cache = new LinkedHashMap<Long, Instance>(16, 0.75f, true);
+	    private Map<Long, Long> weights;
+	    private long totalWeight;
+	    private boolean isWeighted;
+
+	    public LRUStore(boolean isWeighted) {
+	        this.isWeighted = isWeighted;
+	        if (isWeighted)
+	            weights = new HashMap<Long, Long>();
+	    }
+
+	    public synchronized long getTotalWeight() {
+	        return totalWeight;
+	    }
+
+        public synchronized Instance get(Object key) {
+            Instance instance = cache.get(key);
+            if (instance != null && isWeighted && !isEvictable(instance)) {
+                updateWeight((Long) key, instance);
+                evict();
+            }
+            return instance;
+        }
+
+        public synchronized void updateWeights(Collection<?> instances) {
+            boolean isUpdated = false;
+            for (Object obj : instances) {
+                Instance instance = (Instance) obj;
+                Long key = instance.getDBID();
+                // Make sure this is the cached object. Loading values counts as an access.
+                if (key == null || cache.get(key) != instance)
+                    continue;
+                updateWeight(key, instance);
+                isUpdated = true;
+            }
+            if (isUpdated)
+                evict();
+        }
+
+        public synchronized Instance put(Long key, Instance instance) {
+            Instance old = cache.put(key, instance);
+            if (isWeighted)
+                updateWeight(key, instance);
+            evict();
+            return old;
+        }
+
+        private void updateWeight(Long key, Instance instance) {
+            long weight = estimateWeight(instance);
+            Long old = weights.put(key, weight);
+            totalWeight += weight - (old == null ? 0 : old);
+        }
+
+        private boolean isFull() {
+            if (isWeighted)
+                return totalWeight > capacity;
+            return cache.size() > capacity;
+        }
+
+        private void evict() {
+            if (!isFull())
+                return;
+            // The eldest entries are iterated first
+            for (Iterator<Map.Entry<Long, Instance>> it = cache.entrySet().iterator(); it.hasNext() && isFull();) {
+                Map.Entry<Long, Instance> entry = it.next();
+                if (!isEvictable(entry.getValue()))
+                    continue;
+                it.remove();
+                if (isWeighted)
+                    totalWeight -= weights.remove(entry.getKey());
+                evictionCount.incrementAndGet();
+            }
+        }
+
+        public synchronized Instance remove(Object key) {
+            Instance instance = cache.remove(key);
+            if (instance != null && isWeighted)
+                totalWeight -= weights.remove(key);
+            return instance;
+        }
+
+        public synchronized void clear() {
+            cache.clear();
+            if (isWeighted) {
+                weights.clear();
+                totalWeight = 0;
+            }
+        }
+
+        public synchronized int size() {
+            return cache.size();
+        }
+
+        public synchronized Set<Long> keySet() {
+            return new HashSet<Long>(cache.keySet());
+        }
+
+        public synchronized Collection<Instance> values() {
+            return new ArrayList<Instance>(cache.values());
+        }
+
+        public synchronized Set<Map.Entry<Long, Instance>> entrySet() {
+            return new HashMap<Long, Instance>(cache).entrySet();
+        }
+	}
+
+	/**
+	 * Instances are held by soft or weak references. Dirty instances seen by the cache are also held
+	 * in a strong map so that they cannot be collected. These strong references are dropped after
+	 * the instances are not dirty any more.
+	 */
+	private class ReferenceStore implements Store {
+	    private Map<Long, InstanceReference> cache = new ConcurrentHashMap<Long, InstanceReference>();
+	    private Map<Long, Instance> pinned = new ConcurrentHashMap<Long, Instance>();
+	    private ReferenceQueue<Instance> queue = new ReferenceQueue<Instance>();
+	    private boolean isSoft;
+
+	    public ReferenceStore(boolean isSoft) {
+	        this.isSoft = isSoft;
+	    }
+
+        public Instance get(Object key) {
+            expungeCollectedEntries();
+            InstanceReference ref = cache.get(key);
+            if (ref == null)
+                return null;
+            Instance instance = ref.get();
+            if (instance != null)
+                pinIfDirty((Long) key, instance);
+            return instance;
+        }
+
+        public Instance put(Long key, Instance instance) {
+            expungeCollectedEntries();
+            InstanceReference old = cache.put(key, createReference(key, instance));
+            pinIfDirty(key, instance);
+            return old == null ? null : old.get();
+        }
+
+        private InstanceReference createReference(Long key, Instance instance) {
+            if (isSoft)
+                return new SoftInstanceReference(key, instance, queue);
+            return new WeakInstanceReference(key, instance, queue);
+        }
+
+        private void pinIfDirty(Long key, Instance instance) {
+            if (!isEvictable(instance))
+                pinned.put(key, instance);
+        }
+
+        private void expungeCollectedEntries() {
+            Reference<? extends Instance> ref = queue.poll();
+            if (ref == null)
+                return;
+            while (ref != null) {
+                Long key = ((InstanceReference) ref).getKey();
+                // Make sure the entry has not been replaced
+                if (cache.remove(key, ref))
+                    evictionCount.incrementAndGet();
+                ref = queue.poll();
+            }
+            // Memory is tight: release instances that are not dirty any more
+            for (Iterator<Instance> it = pinned.values().iterator(); it.hasNext();) {
+                if (isEvictable(it.next()))
+                    it.remove();
+            }
+        }
+
+        public Instance remove(Object key) {
+            pinned.remove(key);
+            InstanceReference ref = cache.remove(key);
+            return ref == null ? null : ref.get();
+        }
+
+        public void clear() {
+            cache.clear();
+            pinned.clear();
+        }
+
+        public int size() {
+            expungeCollectedEntries();
+            return cache.size();
+        }
+
+        public Set<Long> keySet() {
+            return toMap().keySet();
+        }
+
+        public Collection<Instance> values() {
+            return new ArrayList<Instance>(toMap().values());
+        }
+
+        public Set<Map.Entry<Long, Instance>> entrySet() {
+            return toMap().entrySet();
+        }
+
+        private Map<Long, Instance> toMap() {
+            expungeCollectedEntries();
+            Map<Long, Instance> map = new HashMap<Long, Instance>();
+            for (Map.Entry<Long, InstanceReference> entry : cache.entrySet()) {
+                Instance instance = entry.getValue().get();
+                if (instance != null)
+                    map.put(entry.getKey(), instance);
+            }
+            return map;
+        }
+	}
+
+	private interface InstanceReference {
+	    Long getKey();
+	    Instance get();
+	}
+
+	private static class SoftInstanceReference extends SoftReference<Instance> implements InstanceReference {
+	    private Long key;
+
+	    public SoftInstanceReference(Long key, Instance instance, ReferenceQueue<Instance> queue) {
+	        super(instance, queue);
+	        this.key = key;
+	    }
+
+	    public Long getKey() {
+	        return key;
+	    }
+	}
+
+	private static class WeakInstanceReference extends WeakReference<Instance> implements InstanceReference {
+	    private Long key;
+
+	    public WeakInstanceReference(Long key, Instance instance, ReferenceQueue<Instance> queue) {
+	        super(instance, queue);
+	        this.key = key;
+	    }
+
+	    public Long getKey() {
+	        return key;
+	    }
 	}
 
 }
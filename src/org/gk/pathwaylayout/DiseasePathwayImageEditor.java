@@ -149,6 +149,8 @@ public class DiseasePathwayImageEditor extends PathwayEditor {
         if (this.pathway == null) // Just some place holder
             return; 
         splitObjects();
+        // Objects have been split or replaced after the spatial index was reset
+        invalidateSpatialIndex();
         if (isForNormal)
             return; // No need for doing overlay
         //List<Renderable> overlaidObjects = new ArrayList<Renderable>();
@@ -157,6 +159,7 @@ public class DiseasePathwayImageEditor extends PathwayEditor {
         overlayDiseaseReactions(diseaseIds);
         // Search for loss_of_functional nodes for special display
         checkLossOfFunctionNodes();
+        invalidateSpatialIndex();
     }
     
     /**
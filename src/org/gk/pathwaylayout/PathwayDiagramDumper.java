@@ -5,34 +5,100 @@
 package org.gk.pathwaylayout;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
+import org.apache.log4j.Logger;
 import org.gk.graphEditor.PathwayEditor;
 import org.gk.model.GKInstance;
 import org.gk.model.ReactomeJavaConstants;
 import org.gk.persistence.DiagramGKBReader;
 import org.gk.persistence.MySQLAdaptor;
 import org.gk.render.Node;
+import org.gk.render.RenderUtility;
+import org.gk.render.Renderable;
 import org.gk.render.RenderablePathway;
+import org.gk.render.Renderer;
+import org.gk.render.RendererFactory;
 import org.gk.util.GKApplicationUtilities;
 import org.gk.util.SwingImageCreator;
 import org.junit.Test;
 
 /**
  * This class is used to create a list of dump files for pathway diagrams for specific database.
+ * Diagrams are read and prepared in the calling thread, since the database adaptor and the
+ * RenderableRegistry used during reading cannot be shared among threads. Values needed are loaded
+ * for a chunk of diagrams in bulk. Prepared diagrams are drawn and written in a pool of worker
+ * threads, each of which has its own PathwayEditor and Renderer objects. A hash for what is drawn
+ * (the stored XML and display names) is saved for each diagram in the output directory. Diagrams
+ * whose hashes are not changed since the last run are not exported again.
  * @author wgm
  *
  */
 public class PathwayDiagramDumper {
+    private static final Logger logger = Logger.getLogger(PathwayDiagramDumper.class);
+    // Used to record what has been exported
+    public static final String HASH_FILE_NAME = "diagram_hashes.txt";
+    // Diagrams loaded from the database together
+    private static final int CHUNK_SIZE = 50;
+    
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean skipUnchanged = true;
     
     public PathwayDiagramDumper() {
     }
+    
+    /**
+     * Set the number of threads used to draw and write diagrams. The default is the number
+     * of available processors.
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
+    public int getThreads() {
+        return threads;
+    }
+    
+    /**
+     * Set if diagrams not changed since the last run should be skipped. If false, all files
+     * in the output directory are deleted first as before. The default is true.
+     * @param skipUnchanged
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+    
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
  
     /**
      * The entry point to output diagrams.
@@ -47,50 +113,255 @@ public class PathwayDiagramDumper {
         Node.setWidthRatioOfBoundsToText(1.0d);
         Node.setHeightRatioOfBoundsToText(1.0d);
         
-        outputDir = ensureDir(outputDir);
+        if (outputDir == null)
+            outputDir = new File("diagram_output");
+        File hashFile = new File(outputDir, HASH_FILE_NAME);
+        // Key: DB_ID of PathwayDiagram; Value: hash and file name
+        Map<Long, String[]> oldHashes = new HashMap<Long, String[]>();
+        if (skipUnchanged)
+            oldHashes = loadHashes(hashFile);
+        outputDir = ensureDir(outputDir, oldHashes.size() > 0);
+        final File pdfDir = new File(outputDir, "PDF");
+        final File pngDir = new File(outputDir, "PNG");
         Collection<?> diagrams = dba.fetchInstancesByClass(ReactomeJavaConstants.PathwayDiagram);
-        PathwayEditor editor = new PathwayEditor();
-        editor.setHidePrivateNote(true);
+        List<GKInstance> toExport = getDiagramsToExport(diagrams, dba);
+        logger.info("PathwayDiagramDumper: " + toExport.size() + " of " + diagrams.size() + " diagrams to export.");
         DiagramGKBReader reader = new DiagramGKBReader();
         // Used for some preprocessing
         PredictedPathwayDiagramGeneratorFromDB helper = new PredictedPathwayDiagramGeneratorFromDB();
-        PathwayDiagramGeneratorViaAT generator = new PathwayDiagramGeneratorViaAT();
-        File pdfDir = new File(outputDir, "PDF");
-        File pngDir = new File(outputDir, "PNG");
-        for (Iterator<?> it = diagrams.iterator(); it.hasNext();) {
-            GKInstance diagramInst = (GKInstance) it.next();
-//            if (!diagramInst.getDisplayName().equals("Diagram of Abnormal metabolism in phenylketonuria"))
-//                continue;
-//            if (!diagramInst.getDBID().equals(500219L))
-//                continue;
-//            // Test code
-//            if (!diagramInst.getDisplayName().equals("Diagram of Mitotic M-M/G1 phases"))
-//                continue;
-            if (!shouldExport(diagramInst))
+        final Map<Long, String[]> newHashes = new ConcurrentHashMap<Long, String[]>();
+        int poolSize = Math.max(1, threads);
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        // Limit diagrams held in memory
+        final Semaphore permits = new Semaphore(poolSize * 2);
+        final ThreadLocal<DiagramPainter> painters = new ThreadLocal<DiagramPainter>() {
+            protected DiagramPainter initialValue() {
+                return new DiagramPainter();
+            }
+        };
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        // DB_IDs of diagrams submitted for exporting
+        Set<Long> submitted = new HashSet<Long>();
+        boolean isDone = false;
+        int skipped = 0;
+        long time1 = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < toExport.size(); i += CHUNK_SIZE) {
+                List<GKInstance> chunk = toExport.subList(i, Math.min(i + CHUNK_SIZE, toExport.size()));
+                Map<GKInstance, RenderablePathway> diagramToPathway = openDiagrams(chunk, reader, dba);
+                for (GKInstance diagramInst : chunk) {
+                    final RenderablePathway pathway = diagramToPathway.get(diagramInst);
+                    if (pathway == null || pathway.getComponents() == null || pathway.getComponents().size() == 0)
+                        continue; // No need to output
+                    helper.fineTuneDiagram(pathway);
+                    final String fileName = getFileName(diagramInst);
+                    final String hash = generateHash(diagramInst, pathway, fileName);
+                    final Long dbId = diagramInst.getDBID();
+                    String[] old = oldHashes.get(dbId);
+                    if (old != null && old[0].equals(hash) && old[1].equals(fileName) &&
+                        new File(pngDir, fileName + ".png").exists() &&
+                        new File(pdfDir, fileName + ".pdf").exists()) {
+                        newHashes.put(dbId, old);
+                        skipped ++;
+                        continue;
+                    }
+                    permits.acquire();
+                    submitted.add(dbId);
+                    futures.add(executor.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            try {
+                                painters.get().export(pathway, pngDir, pdfDir, fileName);
+                                newHashes.put(dbId, new String[]{hash, fileName});
+                                return null;
+                            }
+                            finally {
+                                permits.release();
+                            }
+                        }
+                    }));
+                }
+                // Check errors so that we can stop earlier
+                checkFutures(futures, false);
+            }
+            checkFutures(futures, true);
+            isDone = true;
+        }
+        finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            if (isDone)
+                deleteStaleFiles(oldHashes, newHashes, pngDir, pdfDir);
+            else {
+                // Diagrams not reached yet can still be skipped in the next run
+                for (Long dbId : oldHashes.keySet()) {
+                    if (!submitted.contains(dbId) && !newHashes.containsKey(dbId))
+                        newHashes.put(dbId, oldHashes.get(dbId));
+                }
+            }
+            // Keep what has been exported so that they don't need to be exported again
+            saveHashes(newHashes, hashFile);
+        }
+        long time2 = System.currentTimeMillis();
+        logger.info("PathwayDiagramDumper: " + futures.size() + " diagrams exported and " + 
+                    skipped + " unchanged diagrams skipped in " + (time2 - time1) + " ms.");
+    }
+    
+    private void checkFutures(List<Future<?>> futures,
+                              boolean waitForAll) throws Exception {
+        for (Future<?> future : futures) {
+            if (!waitForAll && !future.isDone())
                 continue;
-            RenderablePathway pathway = reader.openDiagram(diagramInst);
-            if (pathway.getComponents() == null || pathway.getComponents().size() == 0)
-                continue; // No need to output
-            helper.fineTuneDiagram(pathway);
-            editor.setRenderable(pathway);
-            editor.setHidePrivateNote(true);
-            // Just to make the tightNodes() work, have to do an extra paint
-            // to make textBounds correct
-            generator.paintOnImage(editor);
-            editor.tightNodes(true);
-            // Output PDF
-            String fileName = diagramInst.getDisplayName();
-            fileName = fileName.replaceAll("(\\\\|/)", "-");
-            // Make sure the file name is not too long
-            if (fileName.length() > 255 - 4) // 4 is for .png or .pdf
-                fileName = fileName.substring(0, 255 - 4);
-            // Note: It seems there is a bug in the PDF exporter to set correct FontRenderContext.
-            // Have to call PNG export first to make some rectangles correct.
-            File pngFileName = new File(pngDir, fileName + ".png");
-            BufferedImage image = SwingImageCreator.createImage(editor);
-            ImageIO.write(image, "png", pngFileName);
-            File pdfFileName = new File(pdfDir, fileName + ".pdf");
-            SwingImageCreator.exportImageInPDF(editor, pdfFileName);
+            try {
+                future.get();
+            }
+            catch(ExecutionException e) {
+                if (e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Filter diagrams to be exported. Attributes needed are loaded in bulk.
+     */
+    private List<GKInstance> getDiagramsToExport(Collection<?> diagrams,
+                                                 MySQLAdaptor dba) throws Exception {
+        dba.loadInstanceAttributeValues(diagrams, new String[]{ReactomeJavaConstants.representedPathway});
+        Set<GKInstance> pathways = new HashSet<GKInstance>();
+        for (Object obj : diagrams) {
+            GKInstance diagram = (GKInstance) obj;
+            GKInstance pathway = (GKInstance) diagram.getAttributeValue(ReactomeJavaConstants.representedPathway);
+            if (pathway != null)
+                pathways.add(pathway);
+        }
+        dba.loadInstanceAttributeValues(pathways, new String[]{ReactomeJavaConstants.species});
+        List<GKInstance> rtn = new ArrayList<GKInstance>();
+        for (Object obj : diagrams) {
+            GKInstance diagramInst = (GKInstance) obj;
+            if (shouldExport(diagramInst))
+                rtn.add(diagramInst);
+        }
+        return rtn;
+    }
+    
+    /**
+     * Open diagrams for a chunk of PathwayDiagram instances. This is the same as
+     * DiagramGKBReader.openDiagram(GKInstance), but instances referred in diagrams are
+     * loaded together.
+     */
+    private Map<GKInstance, RenderablePathway> openDiagrams(List<GKInstance> diagrams,
+                                                            DiagramGKBReader reader,
+                                                            MySQLAdaptor dba) throws Exception {
+        dba.loadInstanceAttributeValues(diagrams, new String[]{ReactomeJavaConstants.storedATXML});
+        Map<GKInstance, RenderablePathway> diagramToPathway = new HashMap<GKInstance, RenderablePathway>();
+        Set<Long> dbIds = new HashSet<Long>();
+        for (GKInstance diagramInst : diagrams) {
+            String xml = (String) diagramInst.getAttributeValue(ReactomeJavaConstants.storedATXML);
+            if (xml == null)
+                continue;
+            RenderablePathway pathway = reader.openDiagram(xml);
+            diagramToPathway.put(diagramInst, pathway);
+            // Only an old diagram without a PathwayDiagram id needs its Pathway instance,
+            // which is fetched by setDisplayNames() itself.
+            if (pathway.getReactomeDiagramId() != null)
+                dbIds.add(pathway.getReactomeDiagramId());
+            if (pathway.getComponents() == null)
+                continue;
+            for (Object obj : pathway.getComponents()) {
+                Renderable r = (Renderable) obj;
+                if (r.getReactomeId() != null)
+                    dbIds.add(r.getReactomeId());
+            }
+        }
+        // Cached in dba so that they can be used by setDisplayNames()
+        if (dbIds.size() > 0)
+            dba.fetchInstance(dbIds);
+        for (GKInstance diagramInst : diagramToPathway.keySet()) {
+            RenderablePathway pathway = diagramToPathway.get(diagramInst);
+            reader.setDisplayNames(pathway, dba);
+            // For some old pathway diagram, there is no PathwayDiagram id
+            if (pathway.getReactomeDiagramId() == null)
+                pathway.setReactomeDiagramId(diagramInst.getDBID());
+        }
+        return diagramToPathway;
+    }
+    
+    private String getFileName(GKInstance diagramInst) {
+        String fileName = diagramInst.getDisplayName();
+        fileName = fileName.replaceAll("(\\\\|/)", "-");
+        // Make sure the file name is not too long
+        if (fileName.length() > 255 - 4) // 4 is for .png or .pdf
+            fileName = fileName.substring(0, 255 - 4);
+        return fileName;
+    }
+    
+    /**
+     * Generate a hash for what is drawn for a diagram. Display names are included since they
+     * are not in the stored XML.
+     */
+    private String generateHash(GKInstance diagramInst,
+                                RenderablePathway pathway,
+                                String fileName) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        StringBuilder builder = new StringBuilder();
+        builder.append(diagramInst.getAttributeValue(ReactomeJavaConstants.storedATXML)).append("\n");
+        builder.append(fileName).append("\n");
+        builder.append(pathway.getDisplayName()).append("\n");
+        for (Object obj : pathway.getComponents()) {
+            Renderable r = (Renderable) obj;
+            builder.append(r.getID()).append("\t").append(r.getDisplayName()).append("\n");
+        }
+        byte[] bytes = digest.digest(builder.toString().getBytes("UTF-8"));
+        StringBuilder hash = new StringBuilder();
+        for (byte b : bytes)
+            hash.append(String.format("%02x", b));
+        return hash.toString();
+    }
+    
+    private Map<Long, String[]> loadHashes(File file) throws IOException {
+        Map<Long, String[]> hashes = new HashMap<Long, String[]>();
+        if (!file.exists())
+            return hashes;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            String[] tokens = line.split("\t");
+            if (tokens.length < 3)
+                continue;
+            hashes.put(Long.valueOf(tokens[0]), new String[]{tokens[1], tokens[2]});
+        }
+        reader.close();
+        return hashes;
+    }
+    
+    private void saveHashes(Map<Long, String[]> hashes,
+                            File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        List<Long> dbIds = new ArrayList<Long>(hashes.keySet());
+        Collections.sort(dbIds);
+        for (Long dbId : dbIds) {
+            String[] values = hashes.get(dbId);
+            writer.println(dbId + "\t" + values[0] + "\t" + values[1]);
+        }
+        writer.close();
+    }
+    
+    /**
+     * Delete files exported in the last run for diagrams which have been deleted or renamed.
+     */
+    private void deleteStaleFiles(Map<Long, String[]> oldHashes,
+                                  Map<Long, String[]> newHashes,
+                                  File pngDir,
+                                  File pdfDir) {
+        Set<String> fileNames = new HashSet<String>();
+        for (String[] values : newHashes.values())
+            fileNames.add(values[1]);
+        for (String[] values : oldHashes.values()) {
+            if (fileNames.contains(values[1]))
+                continue;
+            new File(pngDir, values[1] + ".png").delete();
+            new File(pdfDir, values[1] + ".pdf").delete();
         }
     }
     
@@ -126,11 +397,28 @@ public class PathwayDiagramDumper {
        return false;
     }
     
-    private File ensureDir(File outputDir) throws IOException {
+    /**
+     * Make sure the output directory and its two sub-directories exist.
+     * @param outputDir
+     * @param keepFiles true to keep files exported by the last run
+     * @return
+     * @throws IOException
+     */
+    private File ensureDir(File outputDir,
+                           boolean keepFiles) throws IOException {
         if (outputDir == null) {
             outputDir = new File("diagram_output");
         }
         if (outputDir.exists()) {
+            if (outputDir.isDirectory() && keepFiles) {
+                File pdfDir = new File(outputDir, "PDF");
+                if (!pdfDir.exists())
+                    pdfDir.mkdir();
+                File pngDir = new File(outputDir, "PNG");
+                if (!pngDir.exists())
+                    pngDir.mkdir();
+                return outputDir;
+            }
             if (outputDir.isDirectory()) {
                 // Ensure two sub folders existing
                 File pdfDir = new File(outputDir, "PDF");
@@ -164,13 +452,68 @@ public class PathwayDiagramDumper {
         }
     }
     
+    /**
+     * Used to draw and write diagrams in a worker thread. Objects here should not be shared
+     * among threads.
+     */
+    private static class DiagramPainter {
+        private PathwayEditor editor;
+        private PathwayDiagramGeneratorViaAT generator;
+        // Renderer objects are not thread-safe
+        private RendererFactory rendererFactory;
+        
+        public DiagramPainter() {
+            editor = new PathwayEditor();
+            editor.setHidePrivateNote(true);
+            generator = new PathwayDiagramGeneratorViaAT();
+            rendererFactory = RendererFactory.createFactory();
+        }
+        
+        public void export(RenderablePathway pathway,
+                           File pngDir,
+                           File pdfDir,
+                           String fileName) throws Exception {
+            useOwnRenderers(pathway);
+            editor.setRenderable(pathway);
+            editor.setHidePrivateNote(true);
+            // Just to make the tightNodes() work, have to do an extra paint
+            // to make textBounds correct
+            generator.paintOnImage(editor);
+            editor.tightNodes(true);
+            // Note: It seems there is a bug in the PDF exporter to set correct FontRenderContext.
+            // Have to call PNG export first to make some rectangles correct.
+            File pngFileName = new File(pngDir, fileName + ".png");
+            BufferedImage image = SwingImageCreator.createImage(editor);
+            ImageIO.write(image, "png", pngFileName);
+            File pdfFileName = new File(pdfDir, fileName + ".pdf");
+            SwingImageCreator.exportImageInPDF(editor, pdfFileName);
+        }
+        
+        private void useOwnRenderers(RenderablePathway pathway) {
+            List<?> list = RenderUtility.getAllDescendents(pathway);
+            for (Object obj : list) {
+                Renderable r = (Renderable) obj;
+                Renderer renderer = rendererFactory.getRenderer(r);
+                if (renderer != null)
+                    r.setRenderer(renderer);
+            }
+            Renderer renderer = rendererFactory.getRenderer(pathway);
+            if (renderer != null)
+                pathway.setRenderer(renderer);
+        }
+    }
+    
     public static void main(String[] args) {
         if (args.length < 5) {
-            String message = "Usage java -Xmx1024m org.gk.pathwaylayout.PathwayDiagramDumper dbHost dbName dbUser dbPwd dbPort (output_dir)\n" +
-            		         "Note: the output_dir is optional. Two sub-directories will be created: one for PDF files, and another for PNG files.";
+            String message = "Usage java -Xmx1024m org.gk.pathwaylayout.PathwayDiagramDumper dbHost dbName dbUser dbPwd dbPort (output_dir) (threads)\n" +
+            		         "Note: the output_dir is optional. Two sub-directories will be created: one for PDF files, and another for PNG files.\n" +
+            		         "Diagrams not changed since the last run in the same output_dir are skipped.";
             System.err.println(message);
             return;
         }
+        // No display is needed
+        if (System.getProperty("java.awt.headless") == null)
+            System.setProperty("java.awt.headless", "true");
         try {
             MySQLAdaptor dba = new MySQLAdaptor(args[0],
                                                 args[1],
@@ -181,6 +524,8 @@ public class PathwayDiagramDumper {
             if (args.length > 5)
                 dir = new File(args[5]);
             PathwayDiagramDumper dumper = new PathwayDiagramDumper();
+            if (args.length > 6)
+                dumper.setThreads(Integer.valueOf(args[6]));
             dumper.dumpDiagrams(dba, dir);
         }
         catch(Exception e) {
@@ -0,0 +1,189 @@
+package org.gk.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * A secondary index for one attribute of instances in a class file used by FileAdaptor.search().
+ * Values are kept as they are in the file: value strings for non-instance attributes and
+ * "className:DB_ID" for instance attributes so that the display names of referred instances can
+ * be checked at search time. The length and modification time of the class file are recorded to
+ * check if the index is still valid for the file.
+ */
+class AttributeSearchIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Key: DB_ID; Value: values of the attribute, null for shell instances.
+    private Map<Long, String[]> dbIdToValues;
+    private long fileLength;
+    private long fileTime;
+
+    public AttributeSearchIndex() {
+        dbIdToValues = new HashMap<Long, String[]>();
+    }
+
+    public boolean isValid(File clsFile) {
+        return isValid(clsFile.length(), clsFile.lastModified());
+    }
+
+    public boolean isValid(long fileLength, long fileTime) {
+        return this.fileLength == fileLength && this.fileTime == fileTime;
+    }
+
+    public void setFile(File clsFile) {
+        fileLength = clsFile.length();
+        fileTime = clsFile.lastModified();
+    }
+
+    public boolean contains(Long dbId) {
+        return dbIdToValues.containsKey(dbId);
+    }
+
+    public String[] getValues(Long dbId) {
+        return dbIdToValues.get(dbId);
+    }
+
+    public void putValues(Long dbId, String[] values) {
+        dbIdToValues.put(dbId, values);
+    }
+
+    /**
+     * Keep values for the passed DB_IDs only.
+     * @param dbIds
+     */
+    public void retain(Set<Long> dbIds) {
+        dbIdToValues.keySet().retainAll(dbIds);
+    }
+
+    public void save(File file) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file));
+        try {
+            oos.writeObject(this);
+        }
+        finally {
+            oos.close();
+        }
+    }
+
+    public static AttributeSearchIndex load(File file) throws Exception {
+        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+        try {
+            return (AttributeSearchIndex) ois.readObject();
+        }
+        finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * Extract values of one attribute from instance text in a class file. Only instances
+     * having the attribute are parsed as DOM. An object should be used in one thread only.
+     */
+    static class RegionScanner {
+        private static final String[] EMPTY_VALUES = new String[0];
+        private DocumentBuilder builder;
+        private String attName;
+        private boolean isInstanceType;
+        private byte[] attPattern;
+        private byte[] shellPattern;
+
+        public RegionScanner(String attName, boolean isInstanceType) throws Exception {
+            this.attName = attName;
+            this.isInstanceType = isInstanceType;
+            // Quotation marks are always escaped in values so this can only be matched
+            // by the attribute element.
+            attPattern = ("name=\"" + attName + "\"").getBytes("UTF-8");
+            shellPattern = "isShell=\"true\"".getBytes("UTF-8");
+            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        }
+
+        /**
+         * @param bytes the text for an instance
+         * @param length
+         * @return null for a shell instance.
+         */
+        public String[] scan(byte[] bytes, int length) throws Exception {
+            int firstLineEnd = indexOf(bytes, 0, length, (byte) FileAdaptor.LINE_END);
+            if (firstLineEnd < 0)
+                firstLineEnd = length;
+            if (indexOf(bytes, 0, firstLineEnd, shellPattern) >= 0)
+                return null; // Nothing in the instance. Cannot be compared.
+            if (indexOf(bytes, firstLineEnd, length, attPattern) < 0)
+                return EMPTY_VALUES;
+            // Parse the real candidate. The default encoding for XML is UTF-8.
+            Document document = builder.parse(new ByteArrayInputStream(bytes, 0, length));
+            NodeList attList = document.getDocumentElement().getElementsByTagName("attribute");
+            int size = attList.getLength();
+            String[] values = new String[size];
+            int c = 0;
+            for (int i = 0; i < size; i++) {
+                Element elm = (Element) attList.item(i);
+                if (!attName.equals(elm.getAttribute("name")))
+                    continue;
+                if (isInstanceType) {
+                    String clsName = elm.getAttribute("class");
+                    String refIDStr = elm.getAttribute("referTo");
+                    if (clsName.length() == 0 || refIDStr.length() == 0)
+                        values[c++] = ""; // Bad data
+                    else
+                        values[c++] = clsName + ":" + refIDStr;
+                }
+                else
+                    values[c++] = elm.getAttribute("value");
+            }
+            if (c == size)
+                return values;
+            String[] rtn = new String[c];
+            System.arraycopy(values, 0, rtn, 0, c);
+            return rtn;
+        }
+
+        private int indexOf(byte[] bytes, int from, int to, byte b) {
+            for (int i = from; i < to; i++) {
+                if (bytes[i] == b)
+                    return i;
+            }
+            return -1;
+        }
+
+        private int indexOf(byte[] bytes, int from, int to, byte[] pattern) {
+            int last = to - pattern.length;
+            byte first = pattern[0];
+            for (int i = from; i <= last; i++) {
+                if (bytes[i] != first)
+                    continue;
+                int j = 1;
+                while (j < pattern.length && bytes[i + j] == pattern[j])
+                    j ++;
+                if (j == pattern.length)
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+    static String getReferredClassName(String value) {
+        return value.substring(0, value.indexOf(':'));
+    }
+
+    static Long getReferredDBID(String value) {
+        return Long.valueOf(value.substring(value.indexOf(':') + 1));
+    }
+
+}
@@ -0,0 +1,199 @@
+package org.gk.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.gk.model.GKInstance;
+import org.gk.model.InstanceUtilities;
+import org.gk.schema.GKSchemaClass;
+import org.gk.schema.SchemaAttribute;
+import org.gk.schema.SchemaClass;
+
+/**
+ * Attribute value indexes used by XMLFileAdaptor.fetchInstanceByAttribute(). An index is created
+ * for an attribute in the class defining it when the attribute is queried the first time, and
+ * covers instances in the class and its descendant classes. Values are indexed as case-insensitive
+ * strings: a hash map is used for equality queries and a sorted map, which is created when it is
+ * needed, for prefix queries. Instances with changed values should be passed to markChanged(). They
+ * are re-indexed when an index is used next time. Returned instances are candidates only: the
+ * caller should check them against the current values.
+ */
+class AttributeValueIndex {
+    // All registered instances keyed by classes. This is the same map used by XMLFileAdaptor.
+    private Map<SchemaClass, List<GKInstance>> clsMap;
+    // Key: origin class name and attribute name
+    private Map<String, ValueIndex> indexes;
+    // Instances that should be re-indexed
+    private Set<GKInstance> changedInstances;
+
+    public AttributeValueIndex(Map<SchemaClass, List<GKInstance>> clsMap) {
+        this.clsMap = clsMap;
+        indexes = new HashMap<String, ValueIndex>();
+        changedInstances = new HashSet<GKInstance>();
+    }
+
+    /**
+     * Drop all indexes. They will be created again when they are used.
+     */
+    public void invalidate() {
+        indexes.clear();
+        changedInstances.clear();
+    }
+
+    public void markChanged(GKInstance instance) {
+        if (indexes.size() == 0)
+            return;
+        changedInstances.add(instance);
+    }
+
+    public void remove(GKInstance instance) {
+        if (indexes.size() == 0)
+            return;
+        changedInstances.remove(instance);
+        for (ValueIndex index : indexes.values())
+            index.remove(instance);
+    }
+
+    /**
+     * Get instances having a value equal to the passed value, case-insensitively.
+     * @param att a non-instance type attribute
+     * @param value
+     * @return
+     */
+    public List<GKInstance> getInstances(SchemaAttribute att, String value) {
+        ValueIndex index = getIndex(att);
+        Set<GKInstance> set = index.keyToInstances.get(normalize(value));
+        if (set == null)
+            return new ArrayList<GKInstance>();
+        return new ArrayList<GKInstance>(set);
+    }
+
+    /**
+     * Get instances having a value starting with the passed prefix, case-insensitively.
+     * @param att a non-instance type attribute
+     * @param prefix
+     * @return
+     */
+    public List<GKInstance> getInstancesByPrefix(SchemaAttribute att, String prefix) {
+        ValueIndex index = getIndex(att);
+        if (index.sortedKeyToInstances == null)
+            index.sortedKeyToInstances = new TreeMap<String, Set<GKInstance>>(index.keyToInstances);
+        prefix = normalize(prefix);
+        Set<GKInstance> set = new HashSet<GKInstance>();
+        for (String key : index.sortedKeyToInstances.tailMap(prefix).keySet()) {
+            if (!key.startsWith(prefix))
+                break;
+            set.addAll(index.sortedKeyToInstances.get(key));
+        }
+        return new ArrayList<GKInstance>(set);
+    }
+
+    /**
+     * Convert a value to the form used as an index key. Two strings have the same key if
+     * they are equal by String.equalsIgnoreCase().
+     * @param value
+     * @return
+     */
+    public static String normalize(String value) {
+        char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        return new String(chars);
+    }
+
+    private ValueIndex getIndex(SchemaAttribute att) {
+        validate();
+        SchemaClass origin = att.getOrigin();
+        String key = origin.getName() + "." + att.getName();
+        ValueIndex index = indexes.get(key);
+        if (index == null) {
+            index = new ValueIndex(origin, att.getName());
+            List<GKSchemaClass> classes = new ArrayList<GKSchemaClass>();
+            InstanceUtilities.getDescendentClasses(classes, (GKSchemaClass) origin);
+            for (GKSchemaClass cls : classes) {
+                List<GKInstance> list = clsMap.get(cls);
+                if (list == null)
+                    continue;
+                for (GKInstance instance : list)
+                    index.add(instance);
+            }
+            indexes.put(key, index);
+        }
+        return index;
+    }
+
+    private void validate() {
+        if (changedInstances.size() == 0)
+            return;
+        for (GKInstance instance : changedInstances) {
+            for (ValueIndex index : indexes.values()) {
+                index.remove(instance);
+                if (instance.getSchemClass().isa(index.origin))
+                    index.add(instance);
+            }
+        }
+        changedInstances.clear();
+    }
+
+    private static class ValueIndex {
+        private SchemaClass origin;
+        private String attName;
+        private Map<String, Set<GKInstance>> keyToInstances;
+        // Created for prefix queries only
+        private TreeMap<String, Set<GKInstance>> sortedKeyToInstances;
+        // Keys as indexed so that old keys can be removed
+        private Map<GKInstance, List<String>> instanceToKeys;
+
+        public ValueIndex(SchemaClass origin, String attName) {
+            this.origin = origin;
+            this.attName = attName;
+            keyToInstances = new HashMap<String, Set<GKInstance>>();
+            instanceToKeys = new HashMap<GKInstance, List<String>>();
+        }
+
+        public void add(GKInstance instance) {
+            List<?> values = instance.getAttributeValuesListNoCheck(attName);
+            if (values == null || values.size() == 0)
+                return;
+            List<String> keys = new ArrayList<String>(values.size());
+            for (Object value : values) {
+                if (value == null)
+                    continue;
+                String key = normalize(value.toString());
+                keys.add(key);
+                Set<GKInstance> set = keyToInstances.get(key);
+                if (set == null) {
+                    set = new HashSet<GKInstance>();
+                    keyToInstances.put(key, set);
+                    if (sortedKeyToInstances != null)
+                        sortedKeyToInstances.put(key, set);
+                }
+                set.add(instance);
+            }
+            instanceToKeys.put(instance, keys);
+        }
+
+        public void remove(GKInstance instance) {
+            List<String> keys = instanceToKeys.remove(instance);
+            if (keys == null)
+                return;
+            for (String key : keys) {
+                Set<GKInstance> set = keyToInstances.get(key);
+                if (set == null)
+                    continue;
+                set.remove(instance);
+                if (set.size() == 0) {
+                    keyToInstances.remove(key);
+                    if (sortedKeyToInstances != null)
+                        sortedKeyToInstances.remove(key);
+                }
+            }
+        }
+    }
+
+}
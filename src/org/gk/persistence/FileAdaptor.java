@@ -18,6 +18,11 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -58,6 +63,8 @@ public class FileAdaptor implements PersistenceAdaptor {
 	private static final String CHARSET_NAME = "UTF-8"; // The default charset
 	private static final String LAST_DB_ID_FILE = "dbID";
 	private static final int BUFFER_SIZE = 1024; // 1 k
+	// Minimum number of instances scanned by a thread for search indexes
+	private static final int SCAN_CHUNK_SIZE = 1000;
 	private static final String BACKUP_EXT_NAME = ".bak";
 	// These variables are for escaping
 	private static final char BRACKET = '<';
@@ -92,6 +99,8 @@ public class FileAdaptor implements PersistenceAdaptor {
 	private Map newInstanceMap;
 	// A list of deleted instances: Key: DB_ID, values: className
 	private Map deleteMap;
+	// Cache the secondary indexes for search: Key: className.attName, Value: AttributeSearchIndex
+	private Map searchIndexMap = new HashMap();
 	// For update views
 	private PropertyChangeSupport propertyChangeSupport = new PropertyChangeSupport(this);
 	// For local DB_ID. The initial value should get from the local saved file.
@@ -234,6 +243,7 @@ public class FileAdaptor implements PersistenceAdaptor {
 			throw new IllegalStateException("FileAdaptor.refresh(): Cannot refresh because there are changes not saved.");
 		fetchSchema();
 		cache.clear();
+		searchIndexMap.clear();
 	}
 	
 	public String getPath() {
@@ -791,92 +801,250 @@ public class FileAdaptor implements PersistenceAdaptor {
 		if (operator.equals("REGEXP"))
 			pattern = Pattern.compile(value.toString());
 		boolean isInstanceType = schemaClass.getAttribute(attName).isInstanceTypeAttribute();
-		boolean isTouched = false;
-		GKInstance targetInstance = null;
-		GKInstance matchedInstance = null;
-		String valueStr = null;
-		ByteBuffer bb = getByteBuffer(className);
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		DocumentBuilder builder = dbf.newDocumentBuilder();
+		AttributeSearchIndex searchIndex = getSearchIndex(className, attName, isInstanceType);
 		for (Iterator it = posMap.keySet().iterator(); it.hasNext();) {
 			Long dbID = (Long) it.next();
 			if (checkedInstances.containsKey(dbID))
 				continue;
-			IndexInfo info = (IndexInfo) posMap.get(dbID);
-			bb.limit(info.pos + info.length);
-			bb.position(info.pos);
-			CharBuffer cb = decoder.decode(bb);
-			String xmlStr = XML_HEADER + LINE_END + cb.toString();
-			StringReader reader = new StringReader(xmlStr);
-			Document document = builder.parse(new InputSource(reader));
-			Element root = document.getDocumentElement();
-			// Check if it is a shell instance
-			String isShell = root.getAttribute("isShell");
-			if (isShell.equals("true")) {
-				continue; // Nothing in the instance. Cannot be compared.
+			String[] values = searchIndex.getValues(dbID);
+			if (values == null)
+				continue; // A shell instance. Cannot be compared.
+			if (isMatched(values, isInstanceType, className, operator, value, pattern)) {
+				GKInstance matchedInstance = fetchInstance(className, dbID);
+				if (matchedInstance != null)
+					rtnList.add(matchedInstance);
 			}
-			NodeList attList = root.getElementsByTagName("attribute");
-			int size = attList.getLength();
-			isTouched = false;
-			for (int i = 0; i < size; i++) {
-				Element elm = (Element)attList.item(i);
-				String name = elm.getAttribute("name");
-				if (!attName.equals(name))
+		}
+		return rtnList;
+	}
+	
+	/**
+	 * A helper to check if values of an attribute in the local file system can be passed the
+	 * comparison in search().
+	 */
+	private boolean isMatched(String[] values,
+	                          boolean isInstanceType,
+	                          String className,
+	                          String operator,
+	                          String value,
+	                          Pattern pattern) throws Exception {
+		if (values.length == 0)
+			return operator.equals("IS NULL");
+		String valueStr = null;
+		for (int i = 0; i < values.length; i++) {
+			if (isInstanceType) {
+				if (values[i].length() == 0) {
+					System.err.println("Bad Data in " + className);
+					continue; // bad data: something is wrong.
+				}
+				GKInstance targetInstance = fetchInstance(AttributeSearchIndex.getReferredClassName(values[i]),
+				                                          AttributeSearchIndex.getReferredDBID(values[i]));
+				if (targetInstance == null)
 					continue;
-				isTouched = true;
-				if (isInstanceType) {
-					String clsName = elm.getAttribute("class");
-					// It will be very slow for this type of searching.
-					String refIDStr = elm.getAttribute("referTo");
-					if (clsName.length() == 0 || refIDStr.length() == 0) {
-						System.err.println("Bad Data in " + className);
-						continue; // bad data: something is wrong.
+				valueStr = targetInstance.getDisplayName();
+			}
+			else
+				valueStr = values[i];
+			if (valueStr == null || valueStr.length() == 0)
+				continue;
+			if (operator.equals("=")) {
+				if (valueStr.equals(value))
+					return true;
+			}
+			else if (operator.equals("IS NOT NULL")) {
+				return true;
+			}
+			else if (operator.equals("LIKE")) {
+				if (valueStr.indexOf(value) >= 0)
+					return true;
+			}
+			else if (operator.equals("NOT LIKE")) {
+				if (valueStr.indexOf(value) == -1)
+					return true;
+			}
+			else if (operator.equals("REGEXP")) {
+				Matcher matcher = pattern.matcher(valueStr);
+				if (matcher.find())
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Get the secondary index for an attribute in a class. The index is loaded from the local
+	 * file system, or generated and saved if it is not there or out of date.
+	 */
+	private AttributeSearchIndex getSearchIndex(String className, 
+	                                            String attName,
+	                                            boolean isInstanceType) throws Exception {
+		File clsFile = new File(getFileName(className));
+		String key = className + "." + attName;
+		AttributeSearchIndex searchIndex = (AttributeSearchIndex) searchIndexMap.get(key);
+		File indexFile = new File(getSearchIndexFileName(className, attName));
+		if (searchIndex == null && indexFile.exists()) {
+			try {
+				searchIndex = AttributeSearchIndex.load(indexFile);
+			}
+			catch(Exception e) {
+				System.err.println("FileAdaptor.getSearchIndex(): " + e);
+			}
+		}
+		if (searchIndex == null || !searchIndex.isValid(clsFile))
+			searchIndex = new AttributeSearchIndex();
+		// Instances in the file that are not indexed yet. All instances for a new index.
+		Map posMap = (Map) indexMap.get(className);
+		java.util.List missing = new ArrayList();
+		for (Iterator it = posMap.keySet().iterator(); it.hasNext();) {
+			Long dbID = (Long) it.next();
+			if (!searchIndex.contains(dbID))
+				missing.add(dbID);
+		}
+		if (missing.size() > 0) {
+			Map values = scanAttributeValues(className, attName, isInstanceType, missing);
+			for (Iterator it = values.keySet().iterator(); it.hasNext();) {
+				Long dbID = (Long) it.next();
+				searchIndex.putValues(dbID, (String[]) values.get(dbID));
+			}
+			searchIndex.setFile(clsFile);
+			saveSearchIndex(searchIndex, indexFile);
+		}
+		searchIndexMap.put(key, searchIndex);
+		return searchIndex;
+	}
+	
+	private void saveSearchIndex(AttributeSearchIndex searchIndex, File indexFile) {
+		try {
+			searchIndex.save(indexFile);
+		}
+		catch(IOException e) {
+			// The index can be generated again
+			System.err.println("FileAdaptor.saveSearchIndex(): " + e);
+			indexFile.delete();
+		}
+	}
+	
+	/**
+	 * Extract values of an attribute for a collection of instances from the mapped file. Instances
+	 * are scanned as bytes in parallel, and only instances having the attribute are parsed as DOM.
+	 * @return Keys: DB_IDs; Values: String[] from AttributeSearchIndex.RegionScanner.
+	 */
+	private Map scanAttributeValues(String className,
+	                                final String attName,
+	                                final boolean isInstanceType,
+	                                java.util.List dbIDs) throws Exception {
+		final Map posMap = (Map) indexMap.get(className);
+		final ByteBuffer bb = getByteBuffer(className);
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+		                       dbIDs.size() / SCAN_CHUNK_SIZE + 1);
+		int chunkSize = dbIDs.size() / threads + 1;
+		java.util.List tasks = new ArrayList();
+		for (int i = 0; i < dbIDs.size(); i += chunkSize) {
+			final java.util.List chunk = dbIDs.subList(i, Math.min(i + chunkSize, dbIDs.size()));
+			tasks.add(new Callable<Map>() {
+				public Map call() throws Exception {
+					AttributeSearchIndex.RegionScanner scanner = new AttributeSearchIndex.RegionScanner(attName, isInstanceType);
+					// Each thread needs its own position and limit
+					ByteBuffer buffer = bb.duplicate();
+					byte[] bytes = new byte[BUFFER_SIZE];
+					Map values = new HashMap();
+					for (Iterator it = chunk.iterator(); it.hasNext();) {
+						Long dbID = (Long) it.next();
+						IndexInfo info = (IndexInfo) posMap.get(dbID);
+						if (bytes.length < info.length)
+							bytes = new byte[info.length];
+						buffer.limit(info.pos + info.length);
+						buffer.position(info.pos);
+						buffer.get(bytes, 0, info.length);
+						values.put(dbID, scanner.scan(bytes, info.length));
 					}
-					Long refID = new Long(refIDStr);
-					targetInstance = fetchInstance(clsName, refID);
-					valueStr = targetInstance.getDisplayName();
+					return values;
 				}
-				else
-					valueStr = elm.getAttribute("value");
-				if (valueStr.length() > 0) {
-					boolean isMatched = false;
-					if (operator.equals("=")) {
-						if (valueStr.equals(value)) {
-							isMatched = true;
-						}
-					}
-					else if (operator.equals("IS NOT NULL")) {
-						isMatched = true;
-					}
-					else if (operator.equals("LIKE")) {
-						if (valueStr.indexOf(value) >= 0) {
-							isMatched = true;
-						}
-					}
-					else if (operator.equals("NOT LIKE")) {
-						if (valueStr.indexOf(value) == -1) {
-							isMatched = true;
-						}
-					}
-					else if (operator.equals("REGEXP")) {
-						Matcher matcher = pattern.matcher(valueStr);
-						if (matcher.find()) {
-							isMatched = true;
-						}
-					}
-					if (isMatched) {
-						matchedInstance = extractInstance(root, className);
-						rtnList.add(matchedInstance);
-						break;
-					}
+			});
+		}
+		Map rtn = new HashMap();
+		if (tasks.size() == 1) {
+			rtn.putAll(((Callable<Map>) tasks.get(0)).call());
+			return rtn;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			java.util.List futures = executor.invokeAll(tasks);
+			for (Iterator it = futures.iterator(); it.hasNext();) {
+				Future<Map> future = (Future<Map>) it.next();
+				try {
+					rtn.putAll(future.get());
+				}
+				catch(ExecutionException e) {
+					if (e.getCause() instanceof Exception)
+						throw (Exception) e.getCause();
+					throw e;
 				}
 			}
-			if (!isTouched && operator.equals("IS NULL")) {
-				matchedInstance = extractInstance(root, className);
-				rtnList.add(matchedInstance);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return rtn;
+	}
+	
+	private String getSearchIndexFileName(String className, String attName) {
+		return getFileName(INDEX_FILE_NAME + "." + className + "." + attName);
+	}
+	
+	/**
+	 * Update the secondary indexes for a class after the class file is saved. Indexes that were
+	 * not valid for the file before saving are deleted so that they can be generated again.
+	 * @param className
+	 * @param oldClsFileLength the length of the class file before saving
+	 * @param oldClsFileTime the modification time of the class file before saving
+	 * @param clsIndexMap the new index map for the class
+	 * @param changedTexts Keys: DB_IDs; Values: saved text for changed and new instances.
+	 */
+	private void updateSearchIndexes(String className,
+	                                 long oldClsFileLength,
+	                                 long oldClsFileTime,
+	                                 Map clsIndexMap,
+	                                 Map changedTexts) throws Exception {
+		final String prefix = INDEX_FILE_NAME + "." + className + ".";
+		File[] indexFiles = new File(getFileName(INDEX_FILE_NAME)).getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && !name.endsWith(BACKUP_EXT_NAME);
+			}
+		});
+		if (indexFiles == null)
+			return;
+		File clsFile = new File(getFileName(className));
+		GKSchemaClass cls = (GKSchemaClass) schema.getClassByName(className);
+		for (int i = 0; i < indexFiles.length; i++) {
+			String attName = indexFiles[i].getName().substring(prefix.length());
+			String key = className + "." + attName;
+			AttributeSearchIndex searchIndex = (AttributeSearchIndex) searchIndexMap.remove(key);
+			try {
+				if (searchIndex == null)
+					searchIndex = AttributeSearchIndex.load(indexFiles[i]);
+			}
+			catch(Exception e) {
+				searchIndex = null;
+			}
+			if (searchIndex == null || 
+			    !cls.isValidAttribute(attName) ||
+			    !searchIndex.isValid(oldClsFileLength, oldClsFileTime)) {
+				indexFiles[i].delete();
+				continue;
+			}
+			searchIndex.retain(clsIndexMap.keySet());
+			AttributeSearchIndex.RegionScanner scanner = new AttributeSearchIndex.RegionScanner(attName,
+			                                                                                    cls.getAttribute(attName).isInstanceTypeAttribute());
+			for (Iterator it = changedTexts.keySet().iterator(); it.hasNext();) {
+				Long dbID = (Long) it.next();
+				byte[] bytes = (byte[]) changedTexts.get(dbID);
+				searchIndex.putValues(dbID, scanner.scan(bytes, bytes.length));
 			}
+			searchIndex.setFile(clsFile);
+			saveSearchIndex(searchIndex, indexFiles[i]);
+			searchIndexMap.put(key, searchIndex);
 		}
-		return rtnList;
 	}
 	
 	private boolean checkInstanceForSearch(GKInstance instance, String attName, String operator, String targetValue) {
@@ -1526,10 +1694,18 @@ public class FileAdaptor implements PersistenceAdaptor {
 			e.printStackTrace();
 			throw new Exception("FileAdaptor.save(): Cannot create a backup copy: " + e);
 		}
+		// For updating search indexes: Keys: class names; Values: the length and modification time
+		// of the class file before saving, and texts of changed instances
+		Map clsFileStamps = new HashMap();
+		Map clsChangedTexts = new HashMap();
 		try {
 			int bufferSize = BUFFER_SIZE * 100;
 			for (Iterator it = classes.iterator(); it.hasNext();) {
 				SchemaClass cls = (SchemaClass)it.next();
+				File clsFile = new File(getFileName(cls.getName()));
+				clsFileStamps.put(cls.getName(), new long[]{clsFile.length(), clsFile.lastModified()});
+				Map changedTexts = new HashMap();
+				clsChangedTexts.put(cls.getName(), changedTexts);
 				java.util.List dirtyInstances = (java.util.List)dirtyMap.get(cls);
 				Map map = new HashMap();
 				// Create a Map for dirty instances to speed up
@@ -1570,6 +1746,7 @@ public class FileAdaptor implements PersistenceAdaptor {
 							System.arraycopy(instanceArray, 0, newByte, offset, length);
 							IndexInfo newInfo = new IndexInfo(offset, length);
 							newClsIndexMap.put(dbID, newInfo);
+							changedTexts.put(dbID, instanceArray);
 							offset += length;
 						}
 						else { // Nothing changed. Just copy it.
@@ -1593,6 +1770,7 @@ public class FileAdaptor implements PersistenceAdaptor {
 						System.arraycopy(instanceArray, 0, newByte, offset, length);
 						IndexInfo newInfo = new IndexInfo(offset, length);
 						newClsIndexMap.put(instance.getDBID(), newInfo);
+						changedTexts.put(instance.getDBID(), instanceArray);
 						offset += length;
 					}
 				}
@@ -1610,6 +1788,21 @@ public class FileAdaptor implements PersistenceAdaptor {
 			// Save the indexMap
 			saveIndexMap();
 			saveDeleteMap();
+			for (Iterator it = clsChangedTexts.keySet().iterator(); it.hasNext();) {
+				String clsName = (String) it.next();
+				long[] stamp = (long[]) clsFileStamps.get(clsName);
+				try {
+					updateSearchIndexes(clsName,
+					                    stamp[0],
+					                    stamp[1],
+					                    (Map) indexMap.get(clsName),
+					                    (Map) clsChangedTexts.get(clsName));
+				}
+				catch(Exception e) {
+					// Indexes not updated are out of date and will be generated again.
+					System.err.println("FileAdaptor.save(): Cannot update search indexes for " + clsName + ": " + e);
+				}
+			}
 			doDelete = false; // Reset the flag
 			// clear these data maps
 			dirtyMap.clear();
@@ -13,6 +13,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.gk.model.DBIDNotSetException;
 import org.gk.model.GKInstance;
@@ -55,6 +60,23 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 	public boolean debug = false;
 	public static final int MAX_JOINS_PER_QUERY = 4;
 	private boolean useCache = true;
+	// Create GKInstances using the compact attribute storage
+	private boolean useCompactInstances = false;
+	// The single connection will be validated if it has not been used for this time (in milliseconds)
+	// to avoid the time-out problem when the tool idles for a while.
+	private long connectionCheckInterval = 60 * 1000L;
+	private long lastConnectionUse;
+	// Used in the pooled-connection mode. A connection is bound to the thread using it
+	// until it is released so that all queries in a transaction use the same connection.
+	private MySQLConnectionPool connectionPool;
+	private Map<Thread, Connection> threadToConnection = new ConcurrentHashMap<Thread, Connection>();
+	// The maximum number of DB_IDs used in an IN(...) clause for bulk loading. Larger collections
+	// are split into chunks to avoid huge statements hitting max_allowed_packet.
+	private int maxInClauseSize = 1000;
+	// Stream rows of multi-valued attribute tables instead of reading a whole result set into memory.
+	// Always used in the pooled-connection mode since each thread has its own connection.
+	private boolean useStreamingResultSet = false;
+	private final Object instanceCreationLock = new Object();
 
     /**
      * This default constructor is used for subclassing.
@@ -147,12 +169,17 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 	}
 
 	private void connect() throws SQLException {
-		String connectionStr = "jdbc:mysql://" + host + ":" + port + "/" + database;
-			 //+ "?autoReconnect=true";
+		String connectionStr = getConnectionURL();
 		Properties prop = getConnectionProps();
 		conn = DriverManager.getConnection(connectionStr, prop);
+		lastConnectionUse = System.currentTimeMillis();
 		//conn = DriverManager.getConnection(connectionStr, username, password);
 	}
+	
+	private String getConnectionURL() {
+		return "jdbc:mysql://" + host + ":" + port + "/" + database;
+			 //+ "?autoReconnect=true";
+	}
 
     protected Properties getConnectionProps() {
         Properties prop = new Properties();
@@ -196,55 +223,198 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 	/**
 	 * There is a time-out problem. When the tool idles for a while, the established
 	 * connection cannot be used anymore. About ten minutes are needed to re-create
-	 * a connection. A possible fix is to check the idle time, if the idle time is
-	 * longer than a certain number, re-create a connection.
+	 * a connection. To fix this, the single connection is validated if it has been idle
+	 * for longer than the connection check interval, and re-created if it is not valid.
+	 * <p>
+	 * If the connection pool is enabled, the returned connection is bound to the calling
+	 * thread until releaseConnection() is called from the same thread.
 	 * 
 	 * @return SQL connection
 	 */
 	public Connection getConnection() {
+		if (connectionPool != null) {
+			try {
+				return getThreadConnection();
+			}
+			catch(SQLException e) {
+				throw new IllegalStateException("Cannot get a connection from the pool: " + e.getMessage(), e);
+			}
+		}
+		return getValidatedConnection();
+	}
+	
+	/**
+	 * Validate the single connection if needed and return it. This method is synchronized
+	 * since the single connection may be re-created and the time of last use is updated
+	 * whenever a thread gets the connection.
+	 */
+	private synchronized Connection getValidatedConnection() {
+		long time = System.currentTimeMillis();
+		if (conn != null && !inTransaction && time - lastConnectionUse > connectionCheckInterval) {
+			try {
+				if (!conn.isValid(MySQLConnectionPool.DEFAULT_VALIDATION_TIMEOUT)) {
+					try {
+						conn.close();
+					}
+					catch(SQLException e) {} // Ignore it
+					connect();
+				}
+			}
+			catch(SQLException e) {
+				System.err.println("MySQLAdaptor.getValidatedConnection(): " + e);
+				e.printStackTrace();
+			}
+		}
+		lastConnectionUse = time;
 		return conn;
 	}
 	
-    /**
-     * This thread is used to handle time-out exception using MySQLAdaptor in a
-     * sever environment. A lower priority thread will call the database every
-     * 4 hours to keep the connection active. For the future, a connection pool
-     * should be used.
-     * 
-     * @param millsecond Number of milliseconds to sleep in the thread's loop
-     */
+	private Connection getThreadConnection() throws SQLException {
+		Thread thread = Thread.currentThread();
+		Connection connection = threadToConnection.get(thread);
+		if (connection != null)
+			return connection;
+		reclaimDeadThreadConnections();
+		connection = connectionPool.borrowConnection();
+		threadToConnection.put(thread, connection);
+		return connection;
+	}
+	
+	/**
+	 * Connections bound to threads that have finished are returned to the pool. This is
+	 * needed for threads which don't call releaseConnection().
+	 */
+	private void reclaimDeadThreadConnections() {
+		for (Iterator<Thread> it = threadToConnection.keySet().iterator(); it.hasNext();) {
+			Thread thread = it.next();
+			if (thread.isAlive())
+				continue;
+			Connection connection = threadToConnection.remove(thread);
+			if (connection != null)
+				connectionPool.returnConnection(connection);
+		}
+	}
+	
+	/**
+	 * Switch this MySQLAdaptor to the pooled-connection mode so that queries from different
+	 * threads don't have to wait for each other. Each thread gets its own connection via
+	 * getConnection(), which is kept until releaseConnection() is called or the thread
+	 * is finished. The original single connection is closed.
+	 * 
+	 * @param maxSize the maximum number of connections in the pool
+	 * @throws SQLException Thrown if the original connection cannot be closed
+	 */
+	public synchronized void enableConnectionPool(int maxSize) throws SQLException {
+		if (connectionPool != null) {
+			connectionPool.setMaxSize(maxSize);
+			return;
+		}
+		if (inTransaction)
+			throw new IllegalStateException("The connection pool cannot be enabled in a transaction.");
+		MySQLConnectionPool pool = new MySQLConnectionPool(getConnectionURL(),
+		                                                   getConnectionProps(),
+		                                                   maxSize);
+		if (conn != null && !conn.isClosed()) {
+			conn.close();
+			conn = null;
+		}
+		connectionPool = pool;
+	}
+	
+	/**
+	 * @return the connection pool used by this MySQLAdaptor. Null will be returned if
+	 * the pooled-connection mode is not enabled. The returned object can be used to configure
+	 * the pool (e.g. validation and idle time).
+	 */
+	public MySQLConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+	
+	public boolean isConnectionPoolEnabled() {
+		return connectionPool != null;
+	}
+	
+	/**
+	 * Return the connection bound to the current thread to the pool. This method should be called
+	 * when a thread (e.g. a servlet request) is done with this MySQLAdaptor. Nothing will be done
+	 * if the pool is not enabled or a transaction is still open in the current thread.
+	 */
+	public void releaseConnection() {
+		if (connectionPool == null)
+			return;
+		Connection connection = threadToConnection.get(Thread.currentThread());
+		if (connection == null)
+			return;
+		try {
+			if (!connection.getAutoCommit())
+				return; // In a transaction
+		}
+		catch(SQLException e) {
+			System.err.println("MySQLAdaptor.releaseConnection(): " + e);
+		}
+		threadToConnection.remove(Thread.currentThread());
+		connectionPool.returnConnection(connection);
+	}
+	
+	/**
+	 * Get a connection for a single operation. The returned connection is not bound to the
+	 * current thread and must be returned by calling returnConnection(). If the pool is not
+	 * enabled, the single shared connection is returned.
+	 * 
+	 * @return SQL connection
+	 * @throws SQLException Thrown if no connection can be borrowed from the pool
+	 */
+	public Connection borrowConnection() throws SQLException {
+		if (connectionPool == null)
+			return getConnection();
+		reclaimDeadThreadConnections();
+		return connectionPool.borrowConnection();
+	}
+	
+	/**
+	 * Return a connection got from borrowConnection().
+	 * 
+	 * @param connection SQL connection to return
+	 */
+	public void returnConnection(Connection connection) {
+		if (connectionPool == null || connection == conn)
+			return; // The shared connection should not be closed
+		connectionPool.returnConnection(connection);
+	}
+	
+	/**
+	 * Set the interval used to check if the single connection is still valid. The connection
+	 * is validated before use if it has been idle longer than this interval.
+	 * 
+	 * @param millisecond the interval in milliseconds
+	 */
+	public void setConnectionCheckInterval(long millisecond) {
+		this.connectionCheckInterval = millisecond;
+	}
+	
+	public long getConnectionCheckInterval() {
+		return connectionCheckInterval;
+	}
+	
+	/**
+	 * This method was used to handle time-out exception using MySQLAdaptor in a
+	 * sever environment by running a query in a background thread. The background
+	 * thread is not needed any more: the connection is validated before use if it has
+	 * been idle for the passed time. 
+	 * 
+	 * @param millsecond Number of milliseconds used as the connection check interval
+	 * @deprecated use setConnectionCheckInterval(long) or enableConnectionPool(int).
+	 */
+	@Deprecated
 	public void initDumbThreadForConnection(final int millsecond) {
-	    Thread t = new Thread() {
-	        public void run() {
-	            // Force this thread into a infinity circle
-	            while (true) {
-	                try {
-	                    Thread.sleep(millsecond);
-	                }
-	                catch(InterruptedException e) {
-	                    System.err.println(e.getMessage());
-	                }
-	                try {
-	                    Connection connection = getConnection();
-	                    String query = "SHOW TABLES";     
-	                    Statement stat = connection.createStatement();
-	                    ResultSet result = stat.executeQuery(query);
-	                    result.close();
-	                    stat.close();
-	                }
-	                catch(SQLException e) {
-	                    System.err.println(e.getMessage());
-	                }
-	            }
-	        }
-	    };
-	    t.setPriority(Thread.MIN_PRIORITY);
-	    t.start();
+		setConnectionCheckInterval(millsecond);
 	}
 	
 	/**
-	 * Use 4 hours as the default time to do a query in order to keep the connection live.
+	 * Use 4 hours as the default time to check the connection.
+	 * @deprecated use setConnectionCheckInterval(long) or enableConnectionPool(int).
 	 */
+	@Deprecated
 	public void initDumbThreadForConnection() {
 	    initDumbThreadForConnection(4 * 60 * 60 * 1000);
 	}
@@ -293,9 +463,19 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 	public void cleanUp() throws Exception {
 		schema = null;
 		instanceCache.clear();
-		if (conn != null && !conn.isClosed()) {
-			conn.close();
-			conn = null;
+		// Guarded as in getValidatedConnection()
+		synchronized (this) {
+			if (conn != null && !conn.isClosed()) {
+				conn.close();
+				conn = null;
+			}
+		}
+		if (connectionPool != null) {
+			for (Connection connection : threadToConnection.values())
+				connectionPool.returnConnection(connection);
+			threadToConnection.clear();
+			connectionPool.close();
+			connectionPool = null;
 		}
 	}
 
@@ -316,13 +496,14 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 		for (Iterator ai = instance.getSchemaAttributes().iterator(); ai.hasNext();) {
 			GKSchemaAttribute att = (GKSchemaAttribute) ai.next();
 			if (att.isOriginMuliple()) {
-				loadInstanceAttributeValues(list, att);
+				loadAttributeValues(list, att);
 			} else {
 				singleValueAtts.add(att);
 			}
 		}
 		loadSingleValueAttributeValues(list, singleValueAtts);
 		instance.setIsInflated(true);
+		instanceCache.updateWeight(instance);
 	}
     
     public void fastLoadInstanceAttributeValues(GKInstance instance) throws Exception {
@@ -347,6 +528,7 @@ public class MySQLAdaptor implements PersistenceAdaptor {
         fastLoadMultipleAttributeValues(instance, mulInstanceAtts, true);
         fastLoadMultipleAttributeValues(instance, mulAtts, false);
         instance.setIsInflated(true);
+        instanceCache.updateWeight(instance);
     }
     
     private void fastLoadMultipleAttributeValues(GKInstance instance,
@@ -449,11 +631,12 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 		//if (row == 0) { // Mark this attribute touched.
 		//	instance.setAttributeValueNoCheck(attribute, null);
 		//}
+		instanceCache.updateWeight(instance);
 	}
 
 	/**
-	 * NOTE: This method (or rather loadSingleValueInstanceAttributeValues which is relied
-	 * upon) expects instances to be found in InstanceCache.
+	 * Load values of the passed attributes for a collection of instances. The instances don't need
+	 * to be in InstanceCache.
 	 * @param instances Collection of GKInstance objects for which to load attributes
 	 * @param attributes Collection of GKSchemaAttribute objects for which values should be loaded
 	 * @throws Exception Thrown if unable to load attribute values or if an attribute being
@@ -464,12 +647,13 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 		for (Iterator ai = attributes.iterator(); ai.hasNext();) {
 			GKSchemaAttribute att = (GKSchemaAttribute) ai.next();
 			if (att.isOriginMuliple()) {
-				loadInstanceAttributeValues(instances, att);
+				loadAttributeValues(instances, att);
 			} else {
 				singleValueAtts.add(att);
 			}
 		}
-		loadSingleValueAttributeValues(instances,singleValueAtts);
+		loadSingleValueAttributeValuesByTable(instances, singleValueAtts);
+		instanceCache.updateWeights(instances);
 	}
 
 	public void loadInstanceAttributeValues(Collection instances, String[] attNames) throws Exception {
@@ -521,30 +705,31 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 	 */
 	public void loadInstanceAttributeValues(Collection instances, SchemaAttribute attribute) throws Exception {
 		//System.err.println("public void loadInstanceAttributeValues(GKInstance instance, SchemaAttribute attribute)");
+		loadAttributeValues(instances, attribute);
+		instanceCache.updateWeights(instances);
+	}
+	
+	/**
+	 * Load values without updating weights of the instances in InstanceCache so that
+	 * callers loading several attributes can update them once.
+	 */
+	private void loadAttributeValues(Collection instances, SchemaAttribute attribute) throws Exception {
 		if (instances.isEmpty()) {
 			return;
 		}
-		ResultSetWithHandlers rswh = createAttributeLoadingResultSetWithHandlers(instances, attribute);
-//		ResultSet rs = rswh.getResultSet();
-//		GKInstance instance = null;
-//		Long dbId = new Long(0);
-//		while (rs.next()) {
-//			if (rs.getLong(1) != dbId.longValue()) {
-//				dbId = new Long(rs.getLong(1));
-//				instance = instanceCache.get(dbId);
-//				if (instance == null) {
-//					throw(new Exception("Instance with DB_ID " + dbId + " not found in InstanceCache."));
-//				}
-//			}
-//			for (Iterator i = rswh.getAttributeHandlers().iterator(); i.hasNext();) {
-//				AttributeHandler handler = (AttributeHandler) i.next();
-//				handler.handleAttributeValue(instance, rs);
-//			}
-//		}
-		handleResultSet(instances,rswh);
+		if (((GKSchemaAttribute) attribute).isOriginMuliple()) {
+			loadMultiValueAttributeValues(instances, attribute);
+		} else {
+			List attributes = new ArrayList(1);
+			attributes.add(attribute);
+			loadSingleValueAttributeValuesByTable(instances, attributes);
+		}
 		// Mark the attribute as loaded to avoid querying the database unnecessarily.
-		String attName = attribute.getName(); // Different classes use different attributes instances. Only
-		                                      // names are the same.
+		markAttributeLoaded(instances, attribute.getName());
+	}
+	
+	private void markAttributeLoaded(Collection instances, String attName) throws Exception {
+		// Different classes use different attributes instances. Only names are the same.
 		for (Iterator ii = instances.iterator(); ii.hasNext();) {
 			GKInstance i = (GKInstance) ii.next();
 			if (i.getSchemClass().isValidAttribute(attName)) {
@@ -592,39 +777,41 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 			: attribute.getOrigin().getName();
 		String rootClassName = ((GKSchema) schema).getRootClass().getName();
 		String rootClassAlias = "A_1";
-		String[] tmp = new String[instances.size()];
-		Arrays.fill(tmp, "?");
-		StringBuffer sql = new StringBuffer(
-			"SELECT " + rootClassAlias + "." + DB_ID_NAME + "," +
-			rootClassAlias + "._class," +
-			rootClassAlias + "._displayName," +
-			tableName + "." + attName + "," +
-			tableName + "." + attName + "_class" +
-			"\nFROM " + rootClassName + " AS " + rootClassAlias + "," + tableName +
-			"\nWHERE " + rootClassAlias + "." + DB_ID_NAME + "=" + tableName + "." + DB_ID_NAME +
-			"\nAND " + tableName + "." + attName + " IN(" + 
-			StringUtils.join(",",Arrays.asList(tmp)) + ")"
-			//+ "\nORDER BY " + tableName + "." + DB_ID_NAME
-			);
-		SchemaAttribute _displayName = ((GKSchema) schema).getRootClass().getAttribute("_displayName");
-		AttributeHandler ah = new SingleValueAttributeHandler(_displayName, 3);
-		if (debug) System.out.println("\n" + sql.toString());
-		PreparedStatement ps = getConnection().prepareStatement(sql.toString());
-		int j = 0;
-		for (Iterator ii = instances.iterator(); ii.hasNext();) {
-			GKInstance ins = (GKInstance) ii.next();
-			ps.setObject(++j, ins.getDBID());
-			if (debug) System.out.println("\t" + ins.getDBID());
-		}
-		ResultSet rs = ps.executeQuery();		
-		while (rs.next()) {
-			Long refererDbId = new Long(rs.getLong(1));
-			String refererClass = rs.getString(2);
-			Long refereeDbId = new Long(rs.getLong(4));
-			String refereeClass = rs.getString(5);
-			GKInstance referer = (GKInstance) getInstance(refererClass, refererDbId);
-			GKInstance referee = (GKInstance) getInstance(refereeClass, refereeDbId);
-			referee.addRefererNoCheck(attribute, referer);
+		for (List<GKInstance> chunk : splitIntoChunks((Collection<GKInstance>) instances)) {
+			String[] tmp = new String[chunk.size()];
+			Arrays.fill(tmp, "?");
+			StringBuffer sql = new StringBuffer(
+				"SELECT " + rootClassAlias + "." + DB_ID_NAME + "," +
+				rootClassAlias + "._class," +
+				rootClassAlias + "._displayName," +
+				tableName + "." + attName + "," +
+				tableName + "." + attName + "_class" +
+				"\nFROM " + rootClassName + " AS " + rootClassAlias + "," + tableName +
+				"\nWHERE " + rootClassAlias + "." + DB_ID_NAME + "=" + tableName + "." + DB_ID_NAME +
+				"\nAND " + tableName + "." + attName + " IN(" + 
+				StringUtils.join(",",Arrays.asList(tmp)) + ")"
+				//+ "\nORDER BY " + tableName + "." + DB_ID_NAME
+				);
+			if (debug) System.out.println("\n" + sql.toString());
+			PreparedStatement ps = getConnection().prepareStatement(sql.toString());
+			int j = 0;
+			for (Iterator ii = chunk.iterator(); ii.hasNext();) {
+				GKInstance ins = (GKInstance) ii.next();
+				ps.setObject(++j, ins.getDBID());
+				if (debug) System.out.println("\t" + ins.getDBID());
+			}
+			ResultSet rs = ps.executeQuery();		
+			while (rs.next()) {
+				Long refererDbId = Long.valueOf(rs.getLong(1));
+				String refererClass = rs.getString(2);
+				Long refereeDbId = Long.valueOf(rs.getLong(4));
+				String refereeClass = rs.getString(5);
+				GKInstance referer = (GKInstance) getInstance(refererClass, refererDbId);
+				GKInstance referee = (GKInstance) getInstance(refereeClass, refereeDbId);
+				referee.addRefererNoCheck(attribute, referer);
+			}
+			rs.close();
+			ps.close();
 		}
 		for (Iterator ii = instances.iterator(); ii.hasNext();) {
 			GKInstance i = (GKInstance) ii.next();
@@ -636,6 +823,303 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 		}
 	}
 
+	/**
+	 * Set the maximum number of DB_IDs used in one IN(...) clause when attribute values are loaded
+	 * for a collection of instances. Larger collections are split into chunks of this size.
+	 * 
+	 * @param size the maximum number of DB_IDs in one query
+	 */
+	public void setMaxInClauseSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("The size of IN clause should be at least 1: " + size);
+		this.maxInClauseSize = size;
+	}
+	
+	public int getMaxInClauseSize() {
+		return maxInClauseSize;
+	}
+	
+	/**
+	 * Set if rows of multi-valued attribute tables should be streamed from the database. Since a
+	 * connection cannot be used for other queries while a streaming result set is open, this should
+	 * not be turned on for a single connection shared by several threads. Streaming is always used
+	 * in the pooled-connection mode.
+	 * 
+	 * @param useStreaming true to stream rows
+	 */
+	public void setUseStreamingResultSet(boolean useStreaming) {
+		this.useStreamingResultSet = useStreaming;
+	}
+	
+	public boolean isUseStreamingResultSet() {
+		return useStreamingResultSet;
+	}
+	
+	private <T> List<List<T>> splitIntoChunks(Collection<T> collection) {
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		List<T> chunk = null;
+		for (T t : collection) {
+			if (chunk == null || chunk.size() == maxInClauseSize) {
+				chunk = new ArrayList<T>(Math.min(maxInClauseSize, collection.size()));
+				chunks.add(chunk);
+			}
+			chunk.add(t);
+		}
+		return chunks;
+	}
+	
+	/**
+	 * Load values of single-valued attributes for a collection of instances. Attributes are grouped
+	 * by the tables holding them so that only one query is needed for each table and each chunk
+	 * of DB_IDs.
+	 */
+	private void loadSingleValueAttributeValuesByTable(Collection instances, Collection attributes) throws Exception {
+		if (attributes.isEmpty() || instances.isEmpty()) {
+			return;
+		}
+		List<AttributeLoadingQuery> queries = createSingleValueLoadingQueries(attributes);
+		List<List<GKInstance>> chunks = splitIntoChunks((Collection<GKInstance>) instances);
+		for (AttributeLoadingQuery query : queries) {
+			for (List<GKInstance> chunk : chunks)
+				loadAttributeValuesInChunk(getConnection(), query, chunk, false);
+		}
+		markAttributesLoaded(instances, attributes);
+	}
+	
+	/**
+	 * Load values of a multi-valued attribute for a collection of instances. One query is used for
+	 * each chunk of DB_IDs and rows are streamed if possible.
+	 */
+	private void loadMultiValueAttributeValues(Collection instances, SchemaAttribute attribute) throws Exception {
+		AttributeLoadingQuery query = createMultiValueLoadingQuery(attribute);
+		query.isStreaming = useStreamingResultSet || connectionPool != null;
+		for (List<GKInstance> chunk : splitIntoChunks((Collection<GKInstance>) instances))
+			loadAttributeValuesInChunk(getConnection(), query, chunk, false);
+	}
+	
+	/**
+	 * Create one query for each table holding the passed single-valued attributes.
+	 */
+	private List<AttributeLoadingQuery> createSingleValueLoadingQueries(Collection attributes) throws Exception {
+		Map<String, List<GKSchemaAttribute>> tableToAtts = new HashMap<String, List<GKSchemaAttribute>>();
+		for (Iterator ai = attributes.iterator(); ai.hasNext();) {
+			GKSchemaAttribute att = (GKSchemaAttribute) ai.next();
+			if (att.isOriginMuliple()) {
+				throw(new Exception("Attribute " + att + " is a multi-value attribute. " +
+				"This method can only load single-value attributes."));
+			}
+			String tableName = att.getOrigin().getName();
+			List<GKSchemaAttribute> atts = tableToAtts.get(tableName);
+			if (atts == null) {
+				atts = new ArrayList<GKSchemaAttribute>();
+				tableToAtts.put(tableName, atts);
+			}
+			atts.add(att);
+		}
+		List<AttributeLoadingQuery> queries = new ArrayList<AttributeLoadingQuery>();
+		for (String tableName : tableToAtts.keySet()) {
+			List<String> select = new ArrayList<String>();
+			List attributeHandlers = new ArrayList();
+			int colCount = 1;
+			for (GKSchemaAttribute att : tableToAtts.get(tableName)) {
+				String attName = att.getName();
+				if (att.isInstanceTypeAttribute()) {
+					select.add(attName);
+					select.add(attName + "_class");
+					attributeHandlers.add(new SingleInstanceAttributeHandler(att, ++colCount, ++colCount));
+				} else {
+					select.add(attName);
+					attributeHandlers.add(new SingleValueAttributeHandler(att, ++colCount));
+				}
+			}
+			String query = "SELECT " + DB_ID_NAME + "," + StringUtils.join(",", select) + 
+			               " FROM " + tableName + " WHERE " + DB_ID_NAME + " IN(";
+			queries.add(new AttributeLoadingQuery(query, attributeHandlers));
+		}
+		return queries;
+	}
+	
+	private AttributeLoadingQuery createMultiValueLoadingQuery(SchemaAttribute attribute) throws Exception {
+		SchemaAttribute originalAttribute = attribute.getOrigin().getAttribute(attribute.getName());
+		String attributeName = attribute.getName();
+		StringBuffer query = new StringBuffer("SELECT " + DB_ID_NAME + "," + attributeName);
+		List attributeHandlers = new ArrayList();
+		if (originalAttribute.isInstanceTypeAttribute()) {
+			query.append("," + attributeName + "_class," + attributeName + "_rank");
+			attributeHandlers.add(new MultiInstanceAttributeHandler(attribute, 2, 3, 4));
+		} else {
+			query.append("," + attributeName + "_rank");
+			attributeHandlers.add(new MultiValueAttributeHandler(attribute, 2, 3));
+		}
+		// Values are placed by their ranks. No ORDER BY is needed.
+		query.append(" FROM " + attribute.getOrigin().getName() + "_2_" + attributeName);
+		query.append(" WHERE " + DB_ID_NAME + " IN(");
+		return new AttributeLoadingQuery(query.toString(), attributeHandlers);
+	}
+	
+	/**
+	 * Run an attribute loading query for a chunk of instances.
+	 * @param connection the connection used to run the query
+	 * @param synchronize true if other threads may load values into the same instances at the same time
+	 * @return the number of rows processed
+	 */
+	private int loadAttributeValuesInChunk(Connection connection,
+	                                       AttributeLoadingQuery query,
+	                                       List<GKInstance> chunk,
+	                                       boolean synchronize) throws Exception {
+		String[] tmp = new String[chunk.size()];
+		Arrays.fill(tmp, "?");
+		String sql = query.queryPrefix + StringUtils.join(",", Arrays.asList(tmp)) + ")";
+		if (debug) System.out.println(sql);
+		PreparedStatement ps = connection.prepareStatement(sql, 
+		                                                   ResultSet.TYPE_FORWARD_ONLY,
+		                                                   ResultSet.CONCUR_READ_ONLY);
+		try {
+			if (query.isStreaming)
+				ps.setFetchSize(Integer.MIN_VALUE); // This is how MySQL Connector/J streams rows
+			for (int i = 0; i < chunk.size(); i++)
+				ps.setObject(i + 1, chunk.get(i).getDBID());
+			ResultSet rs = ps.executeQuery();
+			try {
+				return handleResultSet(chunk, 
+				                       new ResultSetWithHandlers(rs, query.attributeHandlers),
+				                       synchronize);
+			}
+			finally {
+				rs.close();
+			}
+		}
+		finally {
+			ps.close();
+		}
+	}
+	
+	/**
+	 * Load attribute values for a collection of instances by running queries in several threads. Each
+	 * table (and each chunk of DB_IDs) is queried in its own task using its own connection: connections
+	 * are borrowed from the connection pool if it is enabled. Otherwise, a temporary pool is created for
+	 * this call. Values are merged into GKInstance objects under a lock for each instance.
+	 * 
+	 * @param instances Collection of GKInstance objects for which to load attributes
+	 * @param attNames names of attributes to be loaded
+	 * @param threads the number of threads used to query the database
+	 * @throws Exception Thrown if any query fails
+	 */
+	public void loadInstanceAttributeValuesInParallel(Collection instances, 
+	                                                  String[] attNames,
+	                                                  int threads) throws Exception {
+		GKSchema s = (GKSchema) getSchema();
+		Set attributes = new HashSet();
+		for (int i = 0; i < attNames.length; i++) {
+			attributes.addAll(s.getOriginalAttributesByName(attNames[i]));
+		}
+		loadInstanceAttributeValuesInParallel(instances, attributes, threads);
+	}
+	
+	/**
+	 * Load attribute values for a collection of instances by running queries in several threads.
+	 * 
+	 * @param instances Collection of GKInstance objects for which to load attributes
+	 * @param attributes Collection of GKSchemaAttribute objects for which values should be loaded
+	 * @param threads the number of threads used to query the database
+	 * @throws Exception Thrown if any query fails
+	 * @see #loadInstanceAttributeValuesInParallel(Collection, String[], int)
+	 */
+	public void loadInstanceAttributeValuesInParallel(Collection instances,
+	                                                  Collection attributes,
+	                                                  int threads) throws Exception {
+		if (instances.isEmpty() || attributes.isEmpty())
+			return;
+		if (threads < 2) {
+			loadInstanceAttributeValues(instances, attributes);
+			return;
+		}
+		Collection singleValueAtts = new HashSet();
+		Collection multiValueAtts = new HashSet();
+		List<AttributeLoadingQuery> queries = new ArrayList<AttributeLoadingQuery>();
+		for (Iterator ai = attributes.iterator(); ai.hasNext();) {
+			GKSchemaAttribute att = (GKSchemaAttribute) ai.next();
+			if (att.isOriginMuliple()) {
+				multiValueAtts.add(att);
+				AttributeLoadingQuery query = createMultiValueLoadingQuery(att);
+				query.isStreaming = true; // Each task has its own connection
+				queries.add(query);
+			}
+			else
+				singleValueAtts.add(att);
+		}
+		queries.addAll(createSingleValueLoadingQueries(singleValueAtts));
+		List<List<GKInstance>> chunks = splitIntoChunks((Collection<GKInstance>) instances);
+		final MySQLConnectionPool pool;
+		boolean isTemporaryPool = false;
+		if (connectionPool != null)
+			pool = connectionPool;
+		else {
+			pool = new MySQLConnectionPool(getConnectionURL(), getConnectionProps(), threads);
+			isTemporaryPool = true;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (final AttributeLoadingQuery query : queries) {
+				for (final List<GKInstance> chunk : chunks) {
+					futures.add(executor.submit(() -> {
+						Connection connection = pool.borrowConnection();
+						try {
+							return loadAttributeValuesInChunk(connection, query, chunk, true);
+						}
+						finally {
+							pool.returnConnection(connection);
+						}
+					}));
+				}
+			}
+			for (Future<Integer> future : futures) {
+				try {
+					future.get();
+				}
+				catch(ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception)
+						throw (Exception) cause;
+					throw e;
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			if (isTemporaryPool)
+				pool.close();
+		}
+		markAttributesLoaded(instances, singleValueAtts);
+		for (Iterator ai = multiValueAtts.iterator(); ai.hasNext();) {
+			SchemaAttribute att = (SchemaAttribute) ai.next();
+			markAttributeLoaded(instances, att.getName());
+		}
+		instanceCache.updateWeights(instances);
+	}
+	
+	/**
+	 * Mark attributes having no values in the database as loaded to avoid querying the database again.
+	 */
+	private void markAttributesLoaded(Collection instances, Collection attributes) {
+		for (Iterator ii = instances.iterator(); ii.hasNext();) {
+			GKInstance ins = (GKInstance) ii.next();
+			for (Iterator ai = attributes.iterator(); ai.hasNext();) {
+				SchemaAttribute att = (SchemaAttribute) ai.next();
+				if (ins.getSchemClass().isValidAttribute(att)) {
+					if (! ins.isAttributeValueLoaded(att)) {
+						ins.setAttributeValueNoCheck(att, null);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Load values of single-valued attributes by joining all tables holding them. This method is used
+	 * for a single instance so that only one query is needed for all tables.
+	 */
 	private void loadSingleValueAttributeValues(Collection instances, Collection attributes) throws Exception {
 		if (attributes.isEmpty() || instances.isEmpty()) {
 			return;
@@ -689,17 +1173,9 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 		}
 		ResultSet rs = ps.executeQuery();
 		handleResultSet(instances, new ResultSetWithHandlers(rs, attributeHandlers));
-		for (Iterator ii = instances.iterator(); ii.hasNext();) {
-			GKInstance ins = (GKInstance) ii.next();
-			for (Iterator ai = attributes.iterator(); ai.hasNext();) {
-				SchemaAttribute att = (SchemaAttribute) ai.next();
-				if (ins.getSchemClass().isValidAttribute(att)) {
-					if (! ins.isAttributeValueLoaded(att)) {
-						ins.setAttributeValueNoCheck(att, null);
-					}
-				}
-			}
-		}
+		rs.close();
+		ps.close();
+		markAttributesLoaded(instances, attributes);
 	}
 
 	/**
@@ -724,34 +1200,66 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 	 * @param rswh
 	 * @return the number of rows processed
 	 * @throws Exception
-	 * NOTE: This method expects the instances specified in the 1st collection to be
-	 * found in the InstanceCache.
+	 * NOTE: The first column of the result set should be DB_IDs of the instances specified in
+	 * the 1st collection.
 	 */
 	private int handleResultSet(Collection instances, ResultSetWithHandlers rswh) throws Exception {
+		return handleResultSet(instances, rswh, false);
+	}
+	
+	/**
+	 * @param synchronize true to lock each instance when values are set since other threads may
+	 * set values for other attributes of the same instance.
+	 */
+	private int handleResultSet(Collection instances, 
+	                            ResultSetWithHandlers rswh,
+	                            boolean synchronize) throws Exception {
 		ResultSet rs = rswh.getResultSet();
 		List handlers = rswh.getAttributeHandlers();
+		// Look up instances from the passed collection instead of InstanceCache since
+		// a bounded cache may have evicted them or caching may be switched off.
+		Map<Long, GKInstance> idToInstance = mapInstancesByDBID(instances);
 		int c = 0;
 		GKInstance instance = null;
 		Long dbId = new Long(0);
 		while (rs.next()) {
 			if (rs.getLong(1) != dbId.longValue()) {
 				dbId = new Long(rs.getLong(1));
-				instance = instanceCache.get(dbId);
+				instance = idToInstance.get(dbId);
 				if (instance == null) {
 					throw (
 						new Exception("Instance with DB_ID " + dbId
-									+ " not found in InstanceCache."));
+									+ " not found in the passed instances."));
 				}
 			}
-			for (Iterator i = handlers.iterator(); i.hasNext();) {
-				AttributeHandler handler = (AttributeHandler) i.next();
-				handler.handleAttributeValue(instance, rs);
+			if (synchronize) {
+				synchronized (instance) {
+					for (Iterator i = handlers.iterator(); i.hasNext();) {
+						AttributeHandler handler = (AttributeHandler) i.next();
+						handler.handleAttributeValue(instance, rs);
+					}
+				}
+			}
+			else {
+				for (Iterator i = handlers.iterator(); i.hasNext();) {
+					AttributeHandler handler = (AttributeHandler) i.next();
+					handler.handleAttributeValue(instance, rs);
+				}
 			}
 			c ++;
 		}
 		return c;
 	}
 	
+	private Map<Long, GKInstance> mapInstancesByDBID(Collection instances) {
+		Map<Long, GKInstance> idToInstance = new HashMap<Long, GKInstance>();
+		for (Iterator it = instances.iterator(); it.hasNext();) {
+			GKInstance instance = (GKInstance) it.next();
+			idToInstance.put(instance.getDBID(), instance);
+		}
+		return idToInstance;
+	}
+	
 	/**
 	 * If a "true" argument is supplied, instance caching will be switched on.
 	 * A "false" argument will switch instance caching off.  If you switch it off,
@@ -774,10 +1282,45 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 		return useCache;
 	}
 
+	/**
+	 * Set if instances created by this MySQLAdaptor should use the compact attribute storage
+	 * (see GKInstance.setUseCompactStorage()). It is suggested when many instances are loaded into
+	 * memory, e.g. during slicing. Instances already created are not changed.
+	 * 
+	 * @param useCompactInstances true to use the compact storage; false otherwise
+	 */
+	public void setUseCompactInstances(boolean useCompactInstances) {
+		this.useCompactInstances = useCompactInstances;
+	}
+
+	public boolean isUseCompactInstances() {
+		return useCompactInstances;
+	}
+
+	/**
+	 * Replace the InstanceCache used by this MySQLAdaptor, e.g. by a bounded cache for a
+	 * long-running process. Instances in the current cache are not copied.
+	 * 
+	 * @param cache the new InstanceCache
+	 */
+	public void setInstanceCache(InstanceCache cache) {
+		if (cache == null)
+			throw new IllegalArgumentException("InstanceCache cannot be null.");
+		this.instanceCache = cache;
+	}
+	
+	/**
+	 * @return the InstanceCache used by this MySQLAdaptor. Its hit, miss and eviction counts
+	 * can be used to size the cache and the heap.
+	 */
+	public InstanceCache getInstanceCache() {
+		return instanceCache;
+	}
+
 	/**
 	 * Tries to get an instance of the given class, with the given DB_ID, from
 	 * instance cache, if possible.  Otherwise, creates a new instance with
-	 * the given DB_ID.  This new instance will be cached even if caching is
+	 * the given DB_ID.  This new instance will not be cached if caching is
 	 * switched off.
 	 * 
 	 * @param className Name of the class for the instance to retrieve or create
@@ -789,7 +1332,13 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 	 */
 	public Instance getInstance(String className, Long dbID) throws InstantiationException, IllegalAccessException, ClassNotFoundException {
 		GKInstance instance;
-		if (!useCache || (instance = instanceCache.get(dbID)) == null) {
+		if (useCache && (instance = instanceCache.get(dbID)) != null)
+			return instance;
+		// Make sure only one object is created for a DB_ID when instances are loaded
+		// in several threads.
+		synchronized (instanceCreationLock) {
+			if (useCache && (instance = instanceCache.peek(dbID)) != null)
+				return instance;
 			if (classMap != null && classMap.containsKey(className)) {
 				String targetClassName = (String) classMap.get(className);
 				instance = (GKInstance) Class.forName(targetClassName).newInstance();
@@ -797,9 +1346,12 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 				instance = new GKInstance();
 			}
 			instance.setSchemaClass(getSchema().getClassByName(className));
+			if (useCompactInstances)
+				instance.setUseCompactStorage(true);
 			instance.setDBID(dbID);
 			instance.setDbAdaptor(this);
-			instanceCache.put(instance);
+			if (useCache)
+				instanceCache.put(instance);
 		}
 		return instance;
 	}
@@ -849,60 +1401,6 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 		return new ResultSetWithHandlers(rs, attributeHandlers);
 	}
 
-	private ResultSetWithHandlers createAttributeLoadingResultSetWithHandlers(
-		Collection instances,
-		SchemaAttribute attribute)
-		throws SQLException, InvalidAttributeException {
-		SchemaAttribute originalAttribute =
-			attribute.getOrigin().getAttribute(attribute.getName());
-		String attributeName = attribute.getName();
-		StringBuffer queryString = new StringBuffer("SELECT " + DB_ID_NAME + "," + attributeName);
-		AttributeHandler attributeHandler;
-		StringBuffer orderByRank = new StringBuffer("");
-		if (originalAttribute.isMultiple()) {
-			if (originalAttribute.isInstanceTypeAttribute()) {
-				queryString.append(
-					"," + attributeName + "_class," + attributeName + "_rank");
-				attributeHandler =
-					new MultiInstanceAttributeHandler(attribute, 2, 3, 4);
-			} else {
-				queryString.append("," + attributeName + "_rank");
-				attributeHandler =
-					new MultiValueAttributeHandler(attribute, 2, 3);
-			}
-			queryString.append(
-				" FROM " + attribute.getOrigin().getName() + "_2_" + attributeName);
-			orderByRank.append(" ," + attributeName + "_rank");
-		} else {
-			if (originalAttribute.isInstanceTypeAttribute()) {
-				queryString.append("," + attributeName + "_class");
-				attributeHandler =
-					new SingleInstanceAttributeHandler(attribute, 2, 3);
-			} else {
-				attributeHandler =
-					new SingleValueAttributeHandler(attribute, 2);
-			}
-			queryString.append(" FROM " + attribute.getOrigin().getName());
-		}
-		queryString.append(" WHERE " + DB_ID_NAME + " IN(");
-		String[] tmp = new String[instances.size()];
-		Arrays.fill(tmp, "?");
-		queryString.append(StringUtils.join(",",Arrays.asList(tmp)) + ")");
-		queryString.append(" ORDER BY " + DB_ID_NAME + orderByRank.toString());
-		if (debug) System.out.println(queryString.toString());
-		PreparedStatement ps = getConnection().prepareStatement(queryString.toString());
-		int i = 0;
-		for (Iterator ii = instances.iterator(); ii.hasNext();) {
-			GKInstance ins = (GKInstance) ii.next();
-			ps.setObject(++i, ins.getDBID());
-			if (debug) System.out.println("\t" + ins.getDBID());
-		}
-		ResultSet rs = ps.executeQuery();
-		List attributeHandlers = new ArrayList();
-		attributeHandlers.add(attributeHandler);
-		return new ResultSetWithHandlers(rs, attributeHandlers);
-	}
-
 	public Collection fetchInstanceByAttribute(SchemaAttribute att, String operator, Object value) throws Exception {
 			AttributeQueryRequest aqr = new AttributeQueryRequest(att, operator, value);
 			return fetchInstance(aqr);
@@ -1112,38 +1610,43 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 	        return new ArrayList();
 		((GKSchema) schema).isValidClassOrThrow(className);
 		String rootClassName = ((GKSchema) schema).getRootClass().getName();
-		StringBuffer sql = new StringBuffer("SELECT " + rootClassName + "." + DB_ID_NAME + "," +
-											rootClassName + "._class," +
-											rootClassName + "._displayName" +
-											"\nFROM " + rootClassName);
-		if (!className.equals(rootClassName)) {
-			sql.append(", " + className
-					   + " WHERE " + rootClassName + "." + DB_ID_NAME + "=" + className + "." + DB_ID_NAME +
-					   " AND " + rootClassName + "." + DB_ID_NAME + " IN (" + StringUtils.join(",", dbIds) + ")");
-		}
-		else
-		    sql.append(" WHERE " + rootClassName + "." + DB_ID_NAME + " IN (" +
-		    		   StringUtils.join(",", dbIds) + ")");
-		PreparedStatement ps = getConnection().prepareStatement(sql.toString());
-		ResultSet rs = ps.executeQuery();
 		Set instances = new HashSet();
-		Long dbId = new Long(0);
-		Instance instance = null;
-		while (rs.next()) {
-			long newID = rs.getLong(1); 
-			if (newID != dbId.longValue()) {
-				dbId = new Long(newID);
-				String clsName = rs.getString(2);
-				//System.out.println(clsName + ":" + dbId);
-				instance = getInstance(clsName, dbId);
-				instances.add(instance);
-			}
-			// Want to mark _displayName loaded if _displayName is null. Don't want to modify 
-			// SinleValueAttributeHandler. So I directly modify code here. ---- Guanming
-			if (instance != null) {
-				String displayName = rs.getString(3);
-				instance.setDisplayName(displayName);
+		// Query in chunks to avoid a huge IN clause
+		for (List chunk : splitIntoChunks((Collection<Object>) dbIds)) {
+			StringBuffer sql = new StringBuffer("SELECT " + rootClassName + "." + DB_ID_NAME + "," +
+												rootClassName + "._class," +
+												rootClassName + "._displayName" +
+												"\nFROM " + rootClassName);
+			if (!className.equals(rootClassName)) {
+				sql.append(", " + className
+						   + " WHERE " + rootClassName + "." + DB_ID_NAME + "=" + className + "." + DB_ID_NAME +
+						   " AND " + rootClassName + "." + DB_ID_NAME + " IN (" + StringUtils.join(",", chunk) + ")");
+			}
+			else
+			    sql.append(" WHERE " + rootClassName + "." + DB_ID_NAME + " IN (" +
+			    		   StringUtils.join(",", chunk) + ")");
+			PreparedStatement ps = getConnection().prepareStatement(sql.toString());
+			ResultSet rs = ps.executeQuery();
+			Long dbId = Long.valueOf(0);
+			Instance instance = null;
+			while (rs.next()) {
+				long newID = rs.getLong(1); 
+				if (newID != dbId.longValue()) {
+					dbId = Long.valueOf(newID);
+					String clsName = rs.getString(2);
+					//System.out.println(clsName + ":" + dbId);
+					instance = getInstance(clsName, dbId);
+					instances.add(instance);
+				}
+				// Want to mark _displayName loaded if _displayName is null. Don't want to modify 
+				// SinleValueAttributeHandler. So I directly modify code here. ---- Guanming
+				if (instance != null) {
+					String displayName = rs.getString(3);
+					instance.setDisplayName(displayName);
+				}
 			}
+			rs.close();
+			ps.close();
 		}
 		return instances;
 	}
@@ -1522,6 +2025,21 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 		
 	}
 
+	/**
+	 * A query used to load attribute values for a chunk of instances. Placeholders for DB_IDs
+	 * should be appended to the query prefix, which ends with "IN(".
+	 */
+	class AttributeLoadingQuery {
+		private String queryPrefix;
+		private List attributeHandlers;
+		private boolean isStreaming;
+		
+		public AttributeLoadingQuery(String queryPrefix, List attributeHandlers) {
+			this.queryPrefix = queryPrefix;
+			this.attributeHandlers = attributeHandlers;
+		}
+	}
+
 	class ResultSetWithHandlers {
 		private ResultSet rs;
 		private List attributeHandlers;
@@ -2643,6 +3161,16 @@ public class MySQLAdaptor implements PersistenceAdaptor {
 	 * @return true if a transaction is active; false otherwise
 	 */
 	public boolean isInTransaction() {
+		if (connectionPool != null) {
+			// Transactions are bound to the connection of the current thread
+			Connection connection = threadToConnection.get(Thread.currentThread());
+			try {
+				return connection != null && !connection.getAutoCommit();
+			}
+			catch(SQLException e) {
+				return false;
+			}
+		}
 		return inTransaction;
 	}
 
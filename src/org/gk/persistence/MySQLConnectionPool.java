@@ -0,0 +1,283 @@
+package org.gk.persistence;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Properties;
+
+/**
+ * A simple bounded JDBC connection pool used by MySQLAdaptor so that several threads can
+ * query the same database at the same time. Connections are validated when they are borrowed
+ * and closed after they have been idle longer than the configured idle time. No background
+ * thread is used: idle eviction is done whenever a connection is borrowed or returned, or
+ * by calling evictIdleConnections() explicitly.
+ */
+public class MySQLConnectionPool {
+    // Default values
+    public static final int DEFAULT_MAX_SIZE = 8;
+    public static final long DEFAULT_MAX_IDLE_TIME = 10 * 60 * 1000L; // 10 minutes
+    public static final int DEFAULT_VALIDATION_TIMEOUT = 5; // in seconds
+    public static final long DEFAULT_BORROW_TIMEOUT = 5 * 60 * 1000L; // 5 minutes
+
+    private String url;
+    private Properties connectionProps;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+    private int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+    private long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+    // Connections that are not used by any client. The most recently returned is the first.
+    private Deque<IdleConnection> idleConnections;
+    // Total connections created by this pool and not closed yet
+    private int totalSize;
+    private boolean isClosed;
+
+    public MySQLConnectionPool(String url, Properties connectionProps) {
+        this(url, connectionProps, DEFAULT_MAX_SIZE);
+    }
+
+    public MySQLConnectionPool(String url,
+                               Properties connectionProps,
+                               int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("The size of a connection pool should be at least 1: " + maxSize);
+        this.url = url;
+        this.connectionProps = connectionProps;
+        this.maxSize = maxSize;
+        idleConnections = new ArrayDeque<IdleConnection>();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Change the maximum number of connections. If the pool has more open connections than
+     * the new size, extra connections will be closed when they are returned.
+     * @param maxSize the maximum number of connections
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("The size of a connection pool should be at least 1: " + maxSize);
+        this.maxSize = maxSize;
+        notifyAll();
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * @param maxIdleTime idle connections older than this time (in milliseconds) will be closed.
+     * A value of 0 or less disables idle eviction.
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    /**
+     * @param validationTimeout timeout in seconds used by Connection.isValid() when a connection is
+     * borrowed. A value less than 0 disables validation.
+     */
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * @param borrowTimeout the longest time in milliseconds a client will wait for a free connection
+     * before a SQLException is thrown.
+     */
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * @return the number of open connections, both idle and in use.
+     */
+    public synchronized int getSize() {
+        return totalSize;
+    }
+
+    public synchronized int getIdleSize() {
+        return idleConnections.size();
+    }
+
+    public synchronized int getActiveSize() {
+        return totalSize - idleConnections.size();
+    }
+
+    /**
+     * Get a validated connection from this pool. A new connection will be created if there is
+     * no idle connection and the pool is not full. Otherwise, the calling thread will wait until
+     * a connection is returned.
+     * @return a valid Connection that should be returned by calling returnConnection().
+     * @throws SQLException thrown if no connection can be made or the waiting is timed out.
+     */
+    public Connection borrowConnection() throws SQLException {
+        long deadline = System.currentTimeMillis() + borrowTimeout;
+        while (true) {
+            IdleConnection idle = null;
+            boolean canCreate = false;
+            synchronized (this) {
+                if (isClosed)
+                    throw new SQLException("The connection pool has been closed.");
+                evictIdleConnections();
+                if (idleConnections.size() > 0)
+                    idle = idleConnections.pollFirst();
+                else if (totalSize < maxSize) {
+                    totalSize ++; // Reserve a slot
+                    canCreate = true;
+                }
+                else {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        throw new SQLException("Timed out waiting for a free connection: all " + maxSize + " connections are in use.");
+                    try {
+                        wait(wait);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a free connection.");
+                    }
+                    continue;
+                }
+            }
+            if (canCreate)
+                return createConnection();
+            // Validation is done outside the lock since it needs a round trip to the server
+            if (isValid(idle.connection))
+                return idle.connection;
+            discard(idle.connection);
+        }
+    }
+
+    /**
+     * Return a connection borrowed from this pool.
+     * @param connection the Connection returned by borrowConnection().
+     */
+    public void returnConnection(Connection connection) {
+        if (connection == null)
+            return;
+        boolean needClose = false;
+        try {
+            if (connection.isClosed()) {
+                synchronized (this) {
+                    totalSize --;
+                    notifyAll();
+                }
+                return;
+            }
+            // In case the client forgets to finish a transaction
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+        catch(SQLException e) {
+            System.err.println("MySQLConnectionPool.returnConnection(): " + e);
+            needClose = true;
+        }
+        synchronized (this) {
+            if (!needClose && !isClosed && totalSize <= maxSize) {
+                idleConnections.addFirst(new IdleConnection(connection));
+                notifyAll();
+                return;
+            }
+        }
+        discard(connection);
+    }
+
+    /**
+     * Close connections that have been idle for longer than the maximum idle time.
+     */
+    public synchronized void evictIdleConnections() {
+        if (maxIdleTime <= 0)
+            return;
+        long time = System.currentTimeMillis();
+        // The oldest connections are at the end
+        for (Iterator<IdleConnection> it = idleConnections.descendingIterator(); it.hasNext();) {
+            IdleConnection idle = it.next();
+            if (time - idle.idleSince < maxIdleTime)
+                break;
+            it.remove();
+            closeQuietly(idle.connection);
+            totalSize --;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Close all idle connections and mark this pool closed. Connections in use will be closed
+     * when they are returned.
+     */
+    public synchronized void close() {
+        isClosed = true;
+        for (IdleConnection idle : idleConnections) {
+            closeQuietly(idle.connection);
+            totalSize --;
+        }
+        idleConnections.clear();
+        notifyAll();
+    }
+
+    private Connection createConnection() throws SQLException {
+        try {
+            return DriverManager.getConnection(url, connectionProps);
+        }
+        catch(SQLException e) {
+            // Release the reserved slot
+            synchronized (this) {
+                totalSize --;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private boolean isValid(Connection connection) {
+        if (validationTimeout < 0)
+            return true;
+        try {
+            return connection.isValid(validationTimeout);
+        }
+        catch(SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(Connection connection) {
+        closeQuietly(connection);
+        synchronized (this) {
+            totalSize --;
+            notifyAll();
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        }
+        catch(SQLException e) {} // Ignore it
+    }
+
+    private static class IdleConnection {
+        private Connection connection;
+        private long idleSince;
+
+        public IdleConnection(Connection connection) {
+            this.connection = connection;
+            this.idleSince = System.currentTimeMillis();
+        }
+    }
+
+}
@@ -95,12 +95,11 @@ public class PersistenceManager {
 		if (adaptor == null) {
 			try {
 				adaptor = new MySQLAdaptor(host, dbName, user, pwd, port);
-				// Keep the connection active using a dumb thread
-				// Use 10 minutes
+				// Validate the connection if it has been idle for a while
 				// As of November 14, 2018, make this configurable to avoid some kind of server
 				// wrong configuration, which may stall connection.
 				double minute = getBackgroundThreadWaitingTime();
-				adaptor.initDumbThreadForConnection((int)(minute * 60 * 1000));
+				adaptor.setConnectionCheckInterval((long)(minute * 60 * 1000));
 				adaptorMap.put(info, adaptor);
 			}
 			catch(SQLException e) {
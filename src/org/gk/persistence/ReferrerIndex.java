@@ -0,0 +1,169 @@
+package org.gk.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.gk.model.GKInstance;
+import org.gk.schema.SchemaAttribute;
+import org.gk.schema.SchemaClass;
+
+/**
+ * A reverse-reference index used by XMLFileAdaptor to find referrers of a GKInstance without
+ * scanning all instances. The index maps a referred instance to its referrers keyed by attribute
+ * names. It is built from all registered instances when it is queried the first time. After that,
+ * instances with changed attribute values should be passed to markChanged(): their references are
+ * re-indexed when the index is queried next time. Entries are checked against the current attribute
+ * values when they are returned so that a stale entry cannot be reported as a referrer.
+ */
+class ReferrerIndex {
+    // All registered instances keyed by classes. This is the same map used by XMLFileAdaptor.
+    private Map<SchemaClass, List<GKInstance>> clsMap;
+    // Key: referred instance; Value: map from attribute names to referrers
+    private Map<GKInstance, Map<String, Set<GKInstance>>> targetToReferrers;
+    // Key: referrer; Value: map from attribute names to referred instances as indexed.
+    // Used to remove old entries when a referrer is re-indexed.
+    private Map<GKInstance, Map<String, List<GKInstance>>> referrerToTargets;
+    // Instances that should be re-indexed
+    private Set<GKInstance> changedReferrers;
+
+    public ReferrerIndex(Map<SchemaClass, List<GKInstance>> clsMap) {
+        this.clsMap = clsMap;
+        changedReferrers = new HashSet<GKInstance>();
+    }
+
+    /**
+     * Drop the index. It will be rebuilt when it is queried next time.
+     */
+    public void invalidate() {
+        targetToReferrers = null;
+        referrerToTargets = null;
+        changedReferrers.clear();
+    }
+
+    public boolean isBuilt() {
+        return targetToReferrers != null;
+    }
+
+    /**
+     * Call this method if attribute values in the passed instance have been changed.
+     * @param instance
+     */
+    public void markChanged(GKInstance instance) {
+        if (targetToReferrers == null)
+            return; // Nothing to do. Everything will be indexed later on.
+        changedReferrers.add(instance);
+    }
+
+    /**
+     * Remove a deleted instance from the index, both as a referrer and as a referred instance.
+     * @param instance
+     */
+    public void remove(GKInstance instance) {
+        if (targetToReferrers == null)
+            return;
+        changedReferrers.remove(instance);
+        removeReferences(instance);
+        targetToReferrers.remove(instance);
+    }
+
+    /**
+     * Get candidate referrers for the passed instance. The returned map should not be modified.
+     * @param instance
+     * @return key: attribute name; value: instances using the passed instance in the attribute.
+     */
+    public Map<String, Set<GKInstance>> getReferrers(GKInstance instance) {
+        validate();
+        Map<String, Set<GKInstance>> attToReferrers = targetToReferrers.get(instance);
+        if (attToReferrers == null)
+            return new HashMap<String, Set<GKInstance>>();
+        return attToReferrers;
+    }
+
+    private void validate() {
+        if (targetToReferrers == null) {
+            targetToReferrers = new HashMap<GKInstance, Map<String, Set<GKInstance>>>();
+            referrerToTargets = new HashMap<GKInstance, Map<String, List<GKInstance>>>();
+            changedReferrers.clear();
+            for (List<GKInstance> list : clsMap.values()) {
+                for (GKInstance instance : list)
+                    addReferences(instance);
+            }
+            return;
+        }
+        if (changedReferrers.size() == 0)
+            return;
+        for (GKInstance instance : changedReferrers) {
+            removeReferences(instance);
+            addReferences(instance);
+        }
+        changedReferrers.clear();
+    }
+
+    private void addReferences(GKInstance referrer) {
+        Map<String, List<GKInstance>> attToTargets = null;
+        for (Iterator<?> it = referrer.getSchemaAttributes().iterator(); it.hasNext();) {
+            SchemaAttribute att = (SchemaAttribute) it.next();
+            if (!att.isInstanceTypeAttribute())
+                continue;
+            // Don't use getAttributeValuesList(), which may load values
+            List<?> values = referrer.getAttributeValuesListNoCheck(att.getName());
+            if (values == null || values.size() == 0)
+                continue;
+            List<GKInstance> targets = new ArrayList<GKInstance>(values.size());
+            for (Object value : values) {
+                if (!(value instanceof GKInstance))
+                    continue;
+                GKInstance target = (GKInstance) value;
+                targets.add(target);
+                Map<String, Set<GKInstance>> attToReferrers = targetToReferrers.get(target);
+                if (attToReferrers == null) {
+                    attToReferrers = new HashMap<String, Set<GKInstance>>();
+                    targetToReferrers.put(target, attToReferrers);
+                }
+                Set<GKInstance> referrers = attToReferrers.get(att.getName());
+                if (referrers == null) {
+                    referrers = new HashSet<GKInstance>();
+                    attToReferrers.put(att.getName(), referrers);
+                }
+                referrers.add(referrer);
+            }
+            if (targets.size() == 0)
+                continue;
+            if (attToTargets == null)
+                attToTargets = new HashMap<String, List<GKInstance>>();
+            attToTargets.put(att.getName(), targets);
+        }
+        if (attToTargets != null)
+            referrerToTargets.put(referrer, attToTargets);
+    }
+
+    private void removeReferences(GKInstance referrer) {
+        Map<String, List<GKInstance>> attToTargets = referrerToTargets.remove(referrer);
+        if (attToTargets == null)
+            return;
+        for (String attName : attToTargets.keySet()) {
+            Collection<GKInstance> targets = attToTargets.get(attName);
+            for (GKInstance target : targets) {
+                Map<String, Set<GKInstance>> attToReferrers = targetToReferrers.get(target);
+                if (attToReferrers == null)
+                    continue;
+                Set<GKInstance> referrers = attToReferrers.get(attName);
+                if (referrers == null)
+                    continue;
+                referrers.remove(referrer);
+                if (referrers.size() == 0) {
+                    attToReferrers.remove(attName);
+                    if (attToReferrers.size() == 0)
+                        targetToReferrers.remove(target);
+                }
+            }
+        }
+    }
+
+}
@@ -8,26 +8,45 @@ import java.awt.Dimension;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.gk.model.Bookmark;
 import org.gk.model.GKInstance;
@@ -50,14 +69,9 @@ import org.gk.schema.Schema;
 import org.gk.schema.SchemaAttribute;
 import org.gk.schema.SchemaClass;
 import org.gk.util.AuthorToolAppletUtilities;
-import org.jdom.input.DOMBuilder;
 import org.jdom.input.SAXBuilder;
 import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * This PersistenceAdaptor is used to talk to a single xml file that contains all local instances.
@@ -77,6 +91,19 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
     private static final String QUOTATION_ESCAPE = "&quot;";
     private static final String LINE_END_ESCAPE = BRACKET_ESCAPE + "br" + RIGHT_BRACKET_ESCAPE;
     // For xml header
+    // Projects saved into files ending with this extension are gzip-compressed
+    public static final String COMPRESSED_FILE_EXT = ".gz";
+    private static final int WRITER_BUFFER_SIZE = 64 * 1024;
+    // Delta records are appended into a file named as the project file plus this extension
+    public static final String JOURNAL_FILE_EXT = ".journal";
+    private static final String JOURNAL_RECORD_HEADER = "#delta";
+    // The first line of a journal describes the project file the journal was written against
+    private static final String JOURNAL_BASE_HEADER = "#base";
+    // A journal not matching its project file is moved to a file with this extension added
+    public static final String STALE_JOURNAL_FILE_EXT = ".stale";
+    // Used internally for LIKE 'text%'
+    private static final String PREFIX_OPERATOR = "LIKE PREFIX";
+    private static final Pattern NEXT_ID_PATTERN = Pattern.compile("nextId=\"\\d+\"");
     public static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"" + CHARSET_NAME + "\" ?>"; 
     // The file name
     private String sourceName;
@@ -107,6 +134,29 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
     private Map<GKInstance, RenderablePathway> pathwayToDiagram;
     // Used to map from PathwayDiagram instance to actual layout
     private Map<GKInstance, RenderablePathway> pdInstToDiagram;
+    // Diagrams that have not been parsed yet: XML text keyed by PathwayDiagram instance
+    private Map<GKInstance, String> pdInstToDiagramXML;
+    // For journal (delta) saving
+    private boolean useJournal = false;
+    // The project file is rewritten if the journal is larger than this ratio of the project file
+    private double journalCompactionRatio = 0.5d;
+    // Changes after the last save
+    private Set<GKInstance> changedInstances = new HashSet<GKInstance>();
+    private Set<Long> removedDbIds = new HashSet<Long>();
+    private List<Long[]> changedDbIds = new ArrayList<Long[]>();
+    // Some changes (e.g. checking out from the database) cannot be journaled
+    private boolean needFullSave = false;
+    // Meta and diagrams as they were saved last time
+    private String savedMeta;
+    private Map<RenderablePathway, Integer> savedDiagramHashes = new IdentityHashMap<RenderablePathway, Integer>();
+    private Map<RenderablePathway, Integer> writtenDiagramHashes;
+    // Flag used to apply delta records from the journal
+    private boolean isLoadingDelta = false;
+    // Used to find referrers quickly
+    private ReferrerIndex referrerIndex;
+    // Used by fetchInstanceByAttribute()
+    private AttributeValueIndex attributeValueIndex;
+    private boolean useAttributeIndexes = true;
         
     /**
      * Default constructor.
@@ -118,6 +168,8 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         cache = new InstanceCache();
         deleteMap = new HashMap<Long, String>();
         clsMap = new HashMap<SchemaClass, List<GKInstance>>();
+        referrerIndex = new ReferrerIndex(clsMap);
+        attributeValueIndex = new AttributeValueIndex(clsMap);
         bookmarks = new Bookmarks();
         bookmarks.addPropertyChangeListener(new PropertyChangeListener() {
         	public void propertyChange(PropertyChangeEvent e) {
@@ -160,6 +212,9 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         if (pdInstToDiagram == null)
             pdInstToDiagram = new HashMap<GKInstance, RenderablePathway>();
         boolean isReplace = pdInstToDiagram.containsKey(pdInst);
+        // A diagram not parsed yet is replaced too
+        if (pdInstToDiagramXML != null && pdInstToDiagramXML.remove(pdInst) != null)
+            isReplace = true;
         pdInstToDiagram.put(pdInst, diagram);
         // Just in case 
         diagram.setReactomeDiagramId(pdInst.getDBID());
@@ -215,13 +270,21 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
      * @throws Exception Thrown if unable to retrieve represented pathways from the RenderablePathway instance
      */
     public RenderablePathway getDiagram(GKInstance pathway) throws Exception {
-        if (pdInstToDiagram == null)
-            return null;
-        // Search for diagram from pdInstanceToDiagram map
-        for (GKInstance pdInst : pdInstToDiagram.keySet()) {
-            List<?> pathways = pdInst.getAttributeValuesList(ReactomeJavaConstants.representedPathway);
-            if (pathways != null && pathways.contains(pathway))
-                return pdInstToDiagram.get(pdInst);
+        if (pdInstToDiagram != null) {
+            // Search for diagram from pdInstanceToDiagram map
+            for (GKInstance pdInst : pdInstToDiagram.keySet()) {
+                List<?> pathways = pdInst.getAttributeValuesList(ReactomeJavaConstants.representedPathway);
+                if (pathways != null && pathways.contains(pathway))
+                    return pdInstToDiagram.get(pdInst);
+            }
+        }
+        if (pdInstToDiagramXML != null) {
+            // Only the diagram for the passed pathway is parsed
+            for (GKInstance pdInst : pdInstToDiagramXML.keySet()) {
+                List<?> pathways = pdInst.getAttributeValuesList(ReactomeJavaConstants.representedPathway);
+                if (pathways != null && pathways.contains(pathway))
+                    return loadDeferredDiagram(pdInst);
+            }
         }
         return null;
     }
@@ -233,6 +296,8 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
      * @return PathwayDiagram instance (GKInstance object) associated with the RenderablePathway instance
      */
     public GKInstance getPathwayDiagramInstance(RenderablePathway diagram) {
+        if (pdInstToDiagram == null)
+            return null;
         for (GKInstance pdInst : pdInstToDiagram.keySet()) { 
             RenderablePathway diagram1 = pdInstToDiagram.get(pdInst);
             if (diagram1 == diagram)
@@ -302,11 +367,27 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
     	    pathwayToDiagram.clear();
     	if (pdInstToDiagram != null)
     	    pdInstToDiagram.clear();
+    	if (pdInstToDiagramXML != null)
+    	    pdInstToDiagramXML.clear();
+    	resetJournalTracking();
+    	savedMeta = null;
+    	referrerIndex.invalidate();
+    	attributeValueIndex.invalidate();
     }
     
     private void load(String fileName) throws Exception {
-        FileInputStream fis = new FileInputStream(fileName);
-        load(fis);
+        InputStream is = new BufferedInputStream(new FileInputStream(fileName));
+        try {
+            load(is);
+        }
+        finally {
+            is.close();
+        }
+        // Apply changes saved after the last full save
+        replayJournal(fileName);
+        referrerIndex.invalidate();
+        attributeValueIndex.invalidate();
+        savedMeta = getMetaText();
 //        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 //        DocumentBuilder builder = dbf.newDocumentBuilder();
 //        Document doc = builder.parse(fileName);
@@ -330,134 +411,268 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
 //        loadDiagrams(root);
     }
     
+    /**
+     * Load a project from the passed InputStream. The project is parsed with a StAX reader
+     * in one pass: GKInstance objects are created as soon as their elements are read, and
+     * references to instances that have not been read yet are resolved by creating the
+     * referred instances in advance. The diagrams are not parsed here: the XML of each
+     * diagram is kept and converted into a RenderablePathway when it is needed.
+     * A gzip-compressed project is detected and decompressed automatically.
+     * @param in
+     * @throws Exception
+     */
     public void load(InputStream in) throws Exception {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = dbf.newDocumentBuilder();
-        Document doc = builder.parse(in);
-        Element root = doc.getDocumentElement();
-        // The first level is the classes
-        Element reactomeElm = getReactomeElement(root);
-        NodeList classNodes = reactomeElm.getChildNodes();
-        int size = classNodes.getLength();
-        for (int i = 0; i < size; i++) {
-            Node clsNode = classNodes.item(i);
-            if (clsNode.getNodeType() != Node.ELEMENT_NODE)
-                continue; // Handle element node only
-            if (clsNode.getNodeName().equals("meta")) 
-                loadMeta(clsNode);
+        if (!in.markSupported())
+            in = new BufferedInputStream(in);
+        // Check if the project is compressed by the gzip magic number
+        in.mark(2);
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+        if (b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && 
+            b2 == (GZIPInputStream.GZIP_MAGIC >> 8))
+            in = new GZIPInputStream(in, WRITER_BUFFER_SIZE);
+        XMLStreamReader reader = createXMLStreamReader(in);
+        try {
+            if (nextElement(reader) != XMLStreamConstants.START_ELEMENT)
+                return; // Empty document
+            String rootName = reader.getLocalName();
+            if (!rootName.equals("rtpj")) {
+                // Old documents have no diagrams
+                loadReactomeElement(reader);
+                return;
+            }
+            while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (name.equals("reactome"))
+                    loadReactomeElement(reader);
+                else if (name.equals("Process"))
+                    // Diagrams are always after the reactome element so that instances
+                    // used by them have been loaded.
+                    deferDiagram(reader);
+                else
+                    skipElement(reader);
+            }
+        }
+        finally {
+            reader.close();
+            referrerIndex.invalidate();
+            attributeValueIndex.invalidate();
+        }
+    }
+    
+    private XMLStreamReader createXMLStreamReader(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return factory.createXMLStreamReader(in);
+    }
+    
+    /**
+     * Move the reader to the next start or end element.
+     * @param reader
+     * @return XMLStreamConstants.START_ELEMENT, END_ELEMENT or END_DOCUMENT.
+     * @throws XMLStreamException
+     */
+    private int nextElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT ||
+                event == XMLStreamConstants.END_ELEMENT)
+                return event;
+        }
+        return XMLStreamConstants.END_DOCUMENT;
+    }
+    
+    /**
+     * Skip the current element and all its children. The reader should be at the start
+     * of an element, and will be at the end of the same element.
+     * @param reader
+     * @throws XMLStreamException
+     */
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = nextElement(reader);
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth ++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth --;
             else
-                loadInstances(clsNode);
+                break; // End of document
         }
-        // This method has to be called after all instances have been loaded
-        // since some of attributes in the instances are used by Renderable objects
-        // in the diagram (e.g. _displayName)
-        loadDiagrams(root);
     }
     
     /**
-     * A helper method is used to load diagrams.
-     * @param root
+     * Get the value of an XML attribute in the current element. An empty String is
+     * returned if the attribute is not there.
      */
-    private void loadDiagrams(Element root) throws Exception {
-        // For old documents
-        String elmName = root.getNodeName();
-        if (elmName.equals("reactome"))
-            return ;
-        NodeList list = root.getChildNodes();
-        DiagramGKBReader diagramReader = new DiagramGKBReader();
-        diagramReader.setPersistenceAdaptor(this);
-        // Used to convert from DOM element to JDOM element
-        DOMBuilder domBuilder = new DOMBuilder();
-        for (int i = 0; i < list.getLength(); i++) {
-            Node node = list.item(i);
-            if (node.getNodeName().equals("Process")) {
-                Element processElm = (Element) node;
-                org.jdom.Element jdomElm = domBuilder.build(processElm);
-                loadDiagram(diagramReader, 
-                            jdomElm);
+    private String getAttribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        if (value == null)
+            return "";
+        return value;
+    }
+    
+    private void loadReactomeElement(XMLStreamReader reader) throws Exception {
+        // The first level is the classes
+        while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (name.equals("meta")) {
+                if (isLoadingDelta)
+                    resetMeta(); // A delta record has the whole meta
+                loadMeta(reader);
             }
+            else
+                loadInstances(reader, name);
         }
     }
-
-    private void loadDiagram(DiagramGKBReader diagramReader,
-                             org.jdom.Element jdomElm) throws Exception {
-        RenderablePathway diagram = diagramReader.openProcess(jdomElm);
-        diagramReader.setDisplayNames(diagram, this);
+    
+    /**
+     * Keep the XML text for a diagram so that it can be parsed later on. The reader should be
+     * at the start of a Process element.
+     * @param reader
+     * @throws Exception
+     */
+    private void deferDiagram(XMLStreamReader reader) throws Exception {
         // Check DiagramInstance first
-        String diagramId = jdomElm.getAttributeValue("reactomeDiagramId");
-        if (diagramId != null) {
-            GKInstance diagramInst = fetchInstance(new Long(diagramId));
-            if (diagramInst != null) {
-                addDiagramForPathwayDiagram(diagramInst, diagram);
+        GKInstance pdInst = null;
+        String diagramId = reader.getAttributeValue(null, "reactomeDiagramId");
+        if (diagramId != null)
+            pdInst = fetchInstance(Long.valueOf(diagramId));
+        else { // Second choice
+            String processId = reader.getAttributeValue(null, "reactomeId");
+            GKInstance pathway = processId == null ? null : fetchInstance(Long.valueOf(processId));
+            if (pathway != null) {
+                Collection<?> c = fetchInstanceByAttribute(ReactomeJavaConstants.PathwayDiagram,
+                                                           ReactomeJavaConstants.representedPathway,
+                                                           "=",
+                                                           pathway);
+                if (c != null && c.size() > 0)
+                    pdInst = (GKInstance) c.iterator().next();
             }
         }
-        else { // Second choice
-            String processId = jdomElm.getAttributeValue("reactomeId");
-            GKInstance instance = fetchInstance(new Long(processId));
-            addDiagram(instance, diagram);
+        if (pdInst == null) {
+            skipElement(reader);
+            return;
+        }
+        // A diagram from the journal replaces the parsed one
+        if (pdInstToDiagram != null)
+            pdInstToDiagram.remove(pdInst);
+        // Copy the element into a String
+        StringWriter stringWriter = new StringWriter();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(stringWriter);
+        int depth = 0;
+        int event = reader.getEventType();
+        while (true) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                writer.writeStartElement(reader.getLocalName());
+                for (int i = 0; i < reader.getAttributeCount(); i++)
+                    writer.writeAttribute(reader.getAttributeLocalName(i), 
+                                          reader.getAttributeValue(i));
+                depth ++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                writer.writeEndElement();
+                depth --;
+                if (depth == 0)
+                    break;
+            }
+            else if (event == XMLStreamConstants.CHARACTERS ||
+                     event == XMLStreamConstants.CDATA)
+                writer.writeCharacters(reader.getText());
+            event = reader.next();
         }
+        writer.close();
+        if (pdInstToDiagramXML == null)
+            pdInstToDiagramXML = new HashMap<GKInstance, String>();
+        pdInstToDiagramXML.put(pdInst, stringWriter.toString());
     }
     
-    private Element getReactomeElement(Element docElm) {
-        String elmName = docElm.getNodeName();
-        if (elmName.equals("reactome"))
-            return docElm;
-        else if (elmName.equals("rtpj")) {
-            NodeList list = docElm.getChildNodes();
-            for (int i = 0; i < list.getLength(); i++) {
-                Node node = list.item(i);
-                if (node.getNodeName().equals("reactome"))
-                    return (Element) node;
+    /**
+     * Parse the deferred diagram for the passed PathwayDiagram instance.
+     * @param pdInst
+     * @return the parsed diagram or null if there is no deferred diagram for pdInst.
+     * @throws Exception
+     */
+    private RenderablePathway loadDeferredDiagram(GKInstance pdInst) throws Exception {
+        if (pdInstToDiagramXML == null)
+            return null;
+        String xml = pdInstToDiagramXML.remove(pdInst);
+        if (xml == null)
+            return null;
+        DiagramGKBReader diagramReader = new DiagramGKBReader();
+        diagramReader.setPersistenceAdaptor(this);
+        SAXBuilder builder = new SAXBuilder();
+        org.jdom.Element jdomElm = builder.build(new StringReader(xml)).getRootElement();
+        RenderablePathway diagram = diagramReader.openProcess(jdomElm);
+        // Display names are set from the instances now so that they are
+        // the same as parsed when the project is opened.
+        diagramReader.setDisplayNames(diagram, this);
+        addDiagramForPathwayDiagram(pdInst, diagram);
+        // So that an unchanged diagram is not written into the journal
+        if (useJournal)
+            savedDiagramHashes.put(diagram, getDiagramHash(convertDiagramToString(diagram)));
+        return diagram;
+    }
+    
+    /**
+     * Parse all deferred diagrams. This method should be called before pdInstToDiagram
+     * is used as a whole.
+     */
+    private void loadDeferredDiagrams() {
+        if (pdInstToDiagramXML == null || pdInstToDiagramXML.size() == 0)
+            return;
+        List<GKInstance> pdInsts = new ArrayList<GKInstance>(pdInstToDiagramXML.keySet());
+        for (GKInstance pdInst : pdInsts) {
+            try {
+                loadDeferredDiagram(pdInst);
+            }
+            catch(Exception e) {
+                System.err.println("XMLFileAdaptor.loadDeferredDiagrams(): " + e);
+                e.printStackTrace();
             }
         }
-        return docElm;
     }
     
-    private void loadMeta(Node metaNode) {
+    private void loadMeta(XMLStreamReader reader) throws XMLStreamException {
         // There are two meta types: deletion and bookmarks
-        NodeList children = metaNode.getChildNodes();
-        int size = children.getLength();
-        for (int i = 0; i < size; i++) {
-            Node node = children.item(i);
-            if (node.getNodeName().equals("deletion"))
-                loadDeletion(node);
-            else if (node.getNodeName().equals("bookmarks")) {
-                loadBookmarks(node);
-            }
-            else if (node.getNodeName().equals("defaultPerson")) {
-                loadDefaultPerson(node);
-            }
-            else if (node.getNodeName().equals("description")) {
-                loadProjectDescription(node);
-            }
+        while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (name.equals("deletion"))
+                loadDeletion(reader);
+            else if (name.equals("bookmarks"))
+                loadBookmarks(reader);
+            else if (name.equals("defaultPerson"))
+                loadDefaultPerson(reader);
+            else if (name.equals("description"))
+                loadProjectDescription(reader);
+            else
+                skipElement(reader);
         }
     }
     
-    private void loadProjectDescription(Node node) {
-        Node firstChild = ((Element)node).getFirstChild();
-        if (firstChild != null) {
-            String text = firstChild.getNodeValue(); // Should be text
+    private void loadProjectDescription(XMLStreamReader reader) throws XMLStreamException {
+        String text = reader.getElementText();
+        if (text != null && text.length() > 0)
             projectDescription = text.replaceAll("<br>", LINE_END + "");
-        }
     }
     
-    private void loadDefaultPerson(Node node) {
-        String dbId = ((Element)node).getAttribute("dbId");
+    private void loadDefaultPerson(XMLStreamReader reader) throws XMLStreamException {
+        String dbId = reader.getAttributeValue(null, "dbId");
         if (dbId != null)
             setDefaultPersonId(new Long(dbId));
+        skipElement(reader);
     }
     
-    private void loadDeletion(Node deletionNode) {
-        NodeList children = deletionNode.getChildNodes();
-        int size = children.getLength();
-        for (int i = 0; i < size; i++) {
-            Node instanceNode = children.item(i);
-            if (instanceNode.getNodeName().equals("instance")) {
-                Element elm = (Element) instanceNode;
-                String dbId = elm.getAttribute("DB_ID");
-                String className = elm.getAttribute("class");
+    private void loadDeletion(XMLStreamReader reader) throws XMLStreamException {
+        while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+            if (reader.getLocalName().equals("instance")) {
+                String dbId = getAttribute(reader, "DB_ID");
+                String className = getAttribute(reader, "class");
                 deleteMap.put(new Long(dbId), className);
             }
+            skipElement(reader);
         }
     }
     
@@ -469,21 +684,21 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         return deleteMap;
     }
     
-    private void loadBookmarks(Node bookmarkNode) {
+    private void loadBookmarks(XMLStreamReader reader) throws XMLStreamException {
         java.util.List bkList = new ArrayList();
-        Element bookmarkElm = (Element) bookmarkNode;
-        String sortingKey = bookmarkElm.getAttribute("sortingKey");
-        NodeList list = bookmarkElm.getElementsByTagName("bookmark");
-        for (int i = 0; i < list.getLength(); i++) {
-            Element elm = (Element) list.item(i);
-            Bookmark bookmark = new Bookmark();
-            bookmark.setDisplayName(elm.getAttribute("displayName"));
-            bookmark.setDbID(new Long(elm.getAttribute("DB_ID")));
-            bookmark.setType(elm.getAttribute("type"));
-            String desc = elm.getAttribute("desc");
-            if (desc != null && desc.length() > 0)
-                bookmark.setDescription(desc);
-            bkList.add(bookmark);
+        String sortingKey = getAttribute(reader, "sortingKey");
+        while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+            if (reader.getLocalName().equals("bookmark")) {
+                Bookmark bookmark = new Bookmark();
+                bookmark.setDisplayName(getAttribute(reader, "displayName"));
+                bookmark.setDbID(Long.valueOf(getAttribute(reader, "DB_ID")));
+                bookmark.setType(getAttribute(reader, "type"));
+                String desc = getAttribute(reader, "desc");
+                if (desc.length() > 0)
+                    bookmark.setDescription(desc);
+                bkList.add(bookmark);
+            }
+            skipElement(reader);
         }
         bookmarks.setSortingKey(sortingKey);
         bookmarks.setBookmarks(bkList);
@@ -493,44 +708,67 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         return this.bookmarks;
     }
     
-    private void loadInstances(Node clsNode) throws Exception {
-        String clsName = clsNode.getNodeName();
+    private void loadInstances(XMLStreamReader reader, String clsName) throws Exception {
         SchemaClass cls = schema.getClassByName(clsName);
         if (cls == null) {
             throw new IllegalStateException("Class \"" + clsName +  "\" cannot be found!");
         }
-        NodeList instanceNodes = clsNode.getChildNodes();
-        int size = instanceNodes.getLength();
-        List<GKInstance> instances = new ArrayList<GKInstance>(size);
-        clsMap.put(cls, instances);
-        for (int i = 0; i < size; i++) {
-            Node instanceNode = instanceNodes.item(i);
-            if (instanceNode.getNodeName().equals("instance")) {
-                GKInstance instance = loadInstance((Element)instanceNode, cls);
-                instances.add(instance);
+        List<GKInstance> instances = null;
+        if (isLoadingDelta)
+            instances = clsMap.get(cls);
+        if (instances == null) {
+            instances = new ArrayList<GKInstance>();
+            clsMap.put(cls, instances);
+        }
+        // An instance in a delta record may be there already. Use a set to avoid
+        // scanning the list for each instance.
+        Set<Long> loadedIds = null;
+        if (isLoadingDelta) {
+            loadedIds = new HashSet<Long>();
+            for (GKInstance instance : instances)
+                loadedIds.add(instance.getDBID());
+        }
+        while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+            if (reader.getLocalName().equals("instance")) {
+                GKInstance instance = loadInstance(reader, cls);
+                if (loadedIds == null || loadedIds.add(instance.getDBID()))
+                    instances.add(instance);
             }
+            else
+                skipElement(reader);
         }
     }
     
-    private GKInstance loadInstance(Element instanceNode, 
+    private GKInstance loadInstance(XMLStreamReader reader, 
                                     SchemaClass cls) throws Exception {
-        String dbId = instanceNode.getAttribute("DB_ID");
+        String dbId = getAttribute(reader, "DB_ID");
         Long id = new Long(dbId);
         GKInstance instance = createInstance(id, cls);
-        String displayName = instanceNode.getAttribute("displayName");
-        String isShell = instanceNode.getAttribute("isShell");
+        if (isLoadingDelta) {
+            // The type may be switched
+            if (instance.getSchemClass() != cls) {
+                removeFromClassMap(instance);
+                instance.setSchemaClass(cls);
+            }
+            // Values in a delta record replace the old values
+            instance.deflate();
+        }
+        String displayName = getAttribute(reader, "displayName");
+        String isShell = getAttribute(reader, "isShell");
         boolean shell = Boolean.valueOf(isShell).booleanValue();
         instance.setIsShell(shell);
-        String isDirty = instanceNode.getAttribute("isDirty");
-        if (isDirty != null && isDirty.length() > 0)
+        String isDirty = getAttribute(reader, "isDirty");
+        if (isDirty.length() > 0)
         	instance.setIsDirty(Boolean.valueOf(isDirty));
-        String isStructureUpdated = instanceNode.getAttribute("isStructureUpdated");
-        if (isStructureUpdated != null && isStructureUpdated.length() > 0)
+        String isStructureUpdated = getAttribute(reader, "isStructureUpdated");
+        if (isStructureUpdated.length() > 0)
             instance.setIsStructuralUpdated(Boolean.valueOf(isStructureUpdated));
         if (!shell)  // load more attributes. Don't set displayName for it
-            loadAttributes(instanceNode, instance);
-        else 
+            loadAttributes(reader, instance);
+        else {
             instance.setDisplayName(displayName);
+            skipElement(reader);
+        }
         instance.setDBID(id); // Because of a bug in GKInstance, DB_ID has
                               // to be set explicitly.
         				      // Another bug: DB_ID is definied as Integer type,
@@ -538,61 +776,64 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         return instance;
     }
     
-    private void loadAttributes(Element instanceNode, GKInstance instance) throws Exception {
-        NodeList attributeNodes = instanceNode.getChildNodes();
-        int size = attributeNodes.getLength();
+    private void loadAttributes(XMLStreamReader reader, GKInstance instance) throws Exception {
         SchemaClass schemaClass = instance.getSchemClass();
-        for (int i = 0; i < size; i++) {
-            Node attNode = attributeNodes.item(i);
-            if (attNode.getNodeName().equals("attribute")) {
-                Element elm = (Element) attNode;
-                String name = elm.getAttribute("name");
-                if (!schemaClass.isValidAttribute(name)) // Schema might be changed
-                    continue;
-                SchemaAttribute att = schemaClass.getAttribute(name);
-                String value = null;
-                Object attValue = null;
-                int type = att.getTypeAsInt();
-                switch (type) {
-                    case SchemaAttribute.INSTANCE_TYPE :
-                        String clsValue = elm.getAttribute("class");
-                        value = elm.getAttribute("referTo");
-                        Long dbID = new Long(value);
-                        GKInstance tmpInstance = createInstance(dbID, clsValue);
-                        attValue = tmpInstance;
-                        break;
-                    case SchemaAttribute.STRING_TYPE :
-                        value = elm.getAttribute("value");
-                        attValue = value;
-                        break;
-                    case SchemaAttribute.INTEGER_TYPE :
-                        value = elm.getAttribute("value");
-                        attValue = new Integer(value);
-                        break;
-                    case SchemaAttribute.LONG_TYPE :
-                        value = elm.getAttribute("value");
-                        attValue = new Long(value);
-                        break;
-                    case SchemaAttribute.FLOAT_TYPE :
-                        value = elm.getAttribute("value");
-                        attValue = new Float(value);
-                        break;
-                    case SchemaAttribute.BOOLEAN_TYPE :
-                        value = elm.getAttribute("value");
-                        attValue = new Boolean(value);
-                        break;
-                    default :
-                        value = elm.getAttribute("value");
-                        attValue = value;        
-                }
-                if (att.isMultiple())
-                    instance.addAttributeValueNoCheck(att, attValue);
-                else {
-                    if (name.equals(ReactomeJavaConstants.storedATXML))
-                        attValue = attValue.toString().replaceAll("<br>", LINE_END + "");
-                    instance.setAttributeValueNoCheck(att, attValue);
-                }
+        while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+            if (!reader.getLocalName().equals("attribute")) {
+                skipElement(reader);
+                continue;
             }
+            String name = getAttribute(reader, "name");
+            if (!schemaClass.isValidAttribute(name)) { // Schema might be changed
+                skipElement(reader);
+                continue;
+            }
+            SchemaAttribute att = schemaClass.getAttribute(name);
+            String value = null;
+            Object attValue = null;
+            int type = att.getTypeAsInt();
+            switch (type) {
+                case SchemaAttribute.INSTANCE_TYPE :
+                    String clsValue = getAttribute(reader, "class");
+                    value = getAttribute(reader, "referTo");
+                    Long dbID = Long.valueOf(value);
+                    // The referred instance may not be read yet. It will be created
+                    // here and filled when its element is reached.
+                    GKInstance tmpInstance = createInstance(dbID, clsValue);
+                    attValue = tmpInstance;
+                    break;
+                case SchemaAttribute.STRING_TYPE :
+                    value = getAttribute(reader, "value");
+                    attValue = value;
+                    break;
+                case SchemaAttribute.INTEGER_TYPE :
+                    value = getAttribute(reader, "value");
+                    attValue = Integer.valueOf(value);
+                    break;
+                case SchemaAttribute.LONG_TYPE :
+                    value = getAttribute(reader, "value");
+                    attValue = Long.valueOf(value);
+                    break;
+                case SchemaAttribute.FLOAT_TYPE :
+                    value = getAttribute(reader, "value");
+                    attValue = Float.valueOf(value);
+                    break;
+                case SchemaAttribute.BOOLEAN_TYPE :
+                    value = getAttribute(reader, "value");
+                    attValue = Boolean.valueOf(value);
+                    break;
+                default :
+                    value = getAttribute(reader, "value");
+                    attValue = value;        
+            }
+            if (att.isMultiple())
+                instance.addAttributeValueNoCheck(att, attValue);
+            else {
+                if (name.equals(ReactomeJavaConstants.storedATXML))
+                    attValue = attValue.toString().replaceAll("<br>", LINE_END + "");
+                instance.setAttributeValueNoCheck(att, attValue);
+            }
+            skipElement(reader);
         }
         instance.setIsInflated(true);
     }
@@ -666,6 +907,9 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         // Remove from deleteMap
         if (deleteMap.containsKey(newInstance.getDBID()))
             deleteMap.remove(newInstance.getDBID());
+        changedInstances.add(newInstance);
+        referrerIndex.markChanged(newInstance);
+        attributeValueIndex.markChanged(newInstance);
         if (newInstance.getDBID().longValue() < 0)
             ((GKInstance)newInstance).setIsDirty(true);
         // Have to add to cache
@@ -715,6 +959,9 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
             instance.setIsInflated(true);
             instance.setIsDirty(true);
             addToClasssMap(instance);
+            changedInstances.add(instance);
+            referrerIndex.markChanged(instance);
+            attributeValueIndex.markChanged(instance);
             // Since different class has different way to generate _displayName,
             // We need to re-generate _displayName
             InstanceDisplayNameGenerator.setDisplayName(instance);
@@ -736,6 +983,7 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         if (!instance.isDirty())
             return; // Do nothing it is already NOT Dirty
         instance.setIsDirty(false);
+        changedInstances.add(instance);
         isDirty = true; // The whole file is dirty
         propertyChangeSupport.firePropertyChange("removeDirty", null, instance);
     }
@@ -780,6 +1028,9 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
      * @param instance GKInstance object to mark as dirty
      */
     public void markAsDirty(Instance instance) {
+        changedInstances.add((GKInstance)instance);
+        referrerIndex.markChanged((GKInstance)instance);
+        attributeValueIndex.markChanged((GKInstance)instance);
         if (((GKInstance)instance).isDirty()) {
             isDirty = true;
             propertyChangeSupport.firePropertyChange("markAsDirty", null, null);
@@ -812,6 +1063,8 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
      * @param instance GKInstance object to delete
      */
     public void deleteInstance(GKInstance instance) {
+        // Parse diagrams before any instance used by them is gone
+        loadDeferredDiagrams();
         SchemaClass schemaClass = instance.getSchemClass();
         // Have to null other instances' attribute values that refer to this instance.
         try {
@@ -869,6 +1122,10 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         // Remove it from cache
         cache.remove(instance.getDBID());
         removeFromClassMap(instance);
+        changedInstances.remove(instance);
+        referrerIndex.remove(instance);
+        attributeValueIndex.remove(instance);
+        removedDbIds.add(instance.getDBID());
         if (instance.getSchemClass().isa(ReactomeJavaConstants.PathwayDiagram))
             deletePathwayDiagram(instance);
         isDirty = true;
@@ -876,6 +1133,8 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
     }
     
     private void deletePathwayDiagram(GKInstance pathwayDiagram) {
+        if (pdInstToDiagramXML != null)
+            pdInstToDiagramXML.remove(pathwayDiagram);
         if (pdInstToDiagram == null)
             return;
         pdInstToDiagram.remove(pathwayDiagram);
@@ -905,11 +1164,35 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         // Have to get rid of % for like and not like
         if (operator.equals("LIKE") || operator.contentEquals("NOT LIKE")) {
             String tmp = value.toString();
-            value = tmp.substring(1, tmp.length() - 1);
+            // Search for values starting with the passed text (e.g. 'ATP%')
+            if (operator.equals("LIKE") && 
+                tmp.length() > 1 &&
+                !tmp.startsWith("%") && 
+                tmp.endsWith("%")) {
+                operator = PREFIX_OPERATOR;
+                value = tmp.substring(0, tmp.length() - 1);
+            }
+            else
+                value = tmp.substring(1, tmp.length() - 1);
         }
         java.util.List rtnList = new ArrayList();
+        Collection instances = null;
+        if (useAttributeIndexes)
+            instances = fetchIndexedCandidates(schemaClass, attName, operator, value);
+        if (instances != null) {
+            for (Iterator it = instances.iterator(); it.hasNext();) {
+                GKInstance instance = (GKInstance) it.next();
+                // Make sure candidates are still registered and in the right class
+                if (fetchInstance(instance.getDBID()) != instance ||
+                    !instance.getSchemClass().isa(schemaClass))
+                    continue;
+                if (checkInstance(instance, attName, operator, value))
+                    rtnList.add(instance);
+            }
+            return rtnList;
+        }
         // Check newly created Instance objects
-        Collection instances = fetchInstancesByClass(schemaClass);
+        instances = fetchInstancesByClass(schemaClass);
         if (instances != null && instances.size() > 0) {
             for (Iterator it = instances.iterator(); it.hasNext();) {
                 GKInstance instance = (GKInstance) it.next();
@@ -920,6 +1203,56 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         return rtnList;
     }   
     
+    /**
+     * Use indexes to get candidates for a query. Equality and prefix queries on non-instance
+     * type attributes are answered by attribute value indexes, and equality queries on instance
+     * type attributes by the referrer index.
+     * @return null if the query cannot be answered by indexes.
+     */
+    private Collection<GKInstance> fetchIndexedCandidates(SchemaClass schemaClass,
+                                                          String attName,
+                                                          String operator,
+                                                          Object value) throws Exception {
+        if (value == null)
+            return null;
+        SchemaAttribute att = schemaClass.getAttribute(attName);
+        if (att.isInstanceTypeAttribute()) {
+            if (!operator.equals("=") || !(value instanceof GKInstance))
+                return null;
+            GKInstance target = (GKInstance) value;
+            // Values are compared by DB_IDs. Only an instance in this adaptor can be used.
+            if (fetchInstance(target.getDBID()) != target)
+                return null;
+            Set<GKInstance> referrers = referrerIndex.getReferrers(target).get(attName);
+            if (referrers == null)
+                return new ArrayList<GKInstance>();
+            return new ArrayList<GKInstance>(referrers);
+        }
+        if (value instanceof GKInstance)
+            return null;
+        if (operator.equals("="))
+            return attributeValueIndex.getInstances(att, value.toString());
+        if (operator.equals(PREFIX_OPERATOR))
+            return attributeValueIndex.getInstancesByPrefix(att, value.toString());
+        return null;
+    }
+    
+    /**
+     * Attribute value indexes are used by fetchInstanceByAttribute() for equality and prefix
+     * queries. The indexes are maintained by methods changing instances in this adaptor
+     * (e.g. markAsDirty()). Turn them off if instances are changed without notifying this adaptor.
+     * @param useAttributeIndexes
+     */
+    public void setUseAttributeIndexes(boolean useAttributeIndexes) {
+        this.useAttributeIndexes = useAttributeIndexes;
+        if (!useAttributeIndexes)
+            attributeValueIndex.invalidate();
+    }
+    
+    public boolean isUseAttributeIndexes() {
+        return useAttributeIndexes;
+    }
+    
     /**
      * A helper to check if the specified GKInstance object can be passed a comparison.
      */
@@ -1025,6 +1358,14 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
                             return true;
                     }
                 }
+                else if (operator.equals(PREFIX_OPERATOR)) {
+                    target = AttributeValueIndex.normalize(target);
+                    for (Iterator it = attValues.iterator(); it.hasNext();) {
+                        String tmp = AttributeValueIndex.normalize(it.next().toString());
+                        if (tmp.startsWith(target))
+                            return true;
+                    }
+                }
                 else if (operator.equals("REGEXP")) {
                     Pattern pattern = Pattern.compile(target);
                     for (Iterator it = attValues.iterator(); it.hasNext();) {
@@ -1194,7 +1535,9 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
                 !attribute.getName().equals(ReactomeJavaConstants.height) &&
                 !attribute.getName().equals(ReactomeJavaConstants.storedATXML))
                 return; // Only the above attributes should be updated
-            RenderablePathway diagram = pdInstToDiagram.get(instance);
+            RenderablePathway diagram = loadDeferredDiagram(instance);
+            if (diagram == null && pdInstToDiagram != null)
+                diagram = pdInstToDiagram.get(instance);
             if (diagram == null)
                 return;
             if (attribute.getName().equals(ReactomeJavaConstants.width)) {
@@ -1223,6 +1566,7 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
      * model to avoid DB_ID changes.
      */
     public void assignInstancesToDiagrams() {
+        loadDeferredDiagrams();
         if (pdInstToDiagram == null || pdInstToDiagram.size() == 0)
             return;
         for (RenderablePathway diagram : pdInstToDiagram.values()) {
@@ -1266,42 +1610,7 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
      * @throws Exception Thrown if unable to load attribute values for potential referrer instances
      */
     public Map<String, List<GKInstance>> getReferrersMap(GKInstance instance) throws Exception {
-        SchemaClass cls = instance.getSchemClass();
-        Set referrerClasses = new HashSet();
-        java.util.List top = new ArrayList(1);
-        for (Iterator it = cls.getReferers().iterator(); it.hasNext();) {
-            GKSchemaAttribute att = (GKSchemaAttribute)it.next();
-            GKSchemaClass origin = (GKSchemaClass) att.getOrigin();
-            top.clear();
-            top.add(origin);
-            java.util.List classes = InstanceUtilities.getAllSchemaClasses(top);
-            referrerClasses.addAll(classes);
-        }
-        Map<String, Set<GKInstance>> map = new HashMap<String, Set<GKInstance>>();
-        for (Iterator<?> it = referrerClasses.iterator(); it.hasNext();) {
-            SchemaClass tmpCls = (SchemaClass) it.next();
-            List<GKInstance> instanceList = clsMap.get(tmpCls);
-            if (instanceList != null && instanceList.size() > 0) {
-                for (GKInstance tmpInstance : instanceList) {
-                    for (Iterator<?> it2 = tmpInstance.getSchemaAttributes().iterator(); it2.hasNext();) {
-                        SchemaAttribute att = (SchemaAttribute) it2.next();
-                        if (!att.isInstanceTypeAttribute())
-                            continue;
-                        if (!att.isValidValue(instance))
-                            continue;
-                        java.util.List<?> values = tmpInstance.getAttributeValuesList(att);
-                        if (values != null && values.size() > 0 && values.contains(instance)) {
-                            Set<GKInstance> referrers = map.get(att.getName());
-                            if (referrers == null) {
-                                referrers = new HashSet<GKInstance>();
-                                map.put(att.getName(), referrers);
-                            }
-                            referrers.add(tmpInstance);
-                        }
-                    }
-                }
-            }           
-        }
+        Map<String, Set<GKInstance>> map = searchReferrers(instance);
         // Need to sort the referrers by converting to list
         Map<String, List<GKInstance>> rtn = new HashMap<String, List<GKInstance>>();
         for (Iterator<?> it = map.keySet().iterator(); it.hasNext();) {
@@ -1316,37 +1625,45 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
     
     public java.util.List getReferers(GKInstance instance) throws Exception {
         Set set = new HashSet();
-        SchemaClass cls = instance.getSchemClass();
-        Set referrerClasses = new HashSet();
-        java.util.List top = new ArrayList(1);
-        for (Iterator it = cls.getReferers().iterator(); it.hasNext();) {
-            GKSchemaAttribute att = (GKSchemaAttribute)it.next();
-            GKSchemaClass origin = (GKSchemaClass) att.getOrigin();
-            top.clear();
-            top.add(origin);
-            java.util.List classes = InstanceUtilities.getAllSchemaClasses(top);
-            referrerClasses.addAll(classes);
-        }
-        for (Iterator it = referrerClasses.iterator(); it.hasNext();) {
-            SchemaClass tmpCls = (SchemaClass) it.next();
-            java.util.List instanceList = (java.util.List) clsMap.get(tmpCls);
-            if (instanceList != null && instanceList.size() > 0) {
-                for (Iterator it1 = instanceList.iterator(); it1.hasNext();) {
-                    GKInstance tmpInstance = (GKInstance)it1.next();
-                    for (Iterator it2 = tmpInstance.getSchemaAttributes().iterator(); it2.hasNext();) {
-                        SchemaAttribute att = (SchemaAttribute) it2.next();
-                        if (!att.isInstanceTypeAttribute())
-                            continue;
-                        if (!att.isValidValue(instance))
-                            continue;
-                        java.util.List values = tmpInstance.getAttributeValuesList(att);
-                        if (values != null && values.size() > 0 & values.contains(instance))
-                            set.add(tmpInstance);
+        Map<String, Set<GKInstance>> map = searchReferrers(instance);
+        for (Set<GKInstance> referrers : map.values())
+            set.addAll(referrers);
+        return new ArrayList(set);      
+    }
+    
+    /**
+     * Search referrers in the referrer index instead of checking all instances. Entries in the index
+     * are checked against the current values, and only registered instances are returned.
+     * @param instance
+     * @return key: attribute name; value: referrers using instance in the attribute.
+     * @throws Exception
+     */
+    private Map<String, Set<GKInstance>> searchReferrers(GKInstance instance) throws Exception {
+        Map<String, Set<GKInstance>> map = new HashMap<String, Set<GKInstance>>();
+        Map<String, Set<GKInstance>> candidates = referrerIndex.getReferrers(instance);
+        for (String attName : candidates.keySet()) {
+            for (GKInstance tmpInstance : candidates.get(attName)) {
+                // Deleted or not registered yet
+                if (fetchInstance(tmpInstance.getDBID()) != tmpInstance)
+                    continue;
+                SchemaClass tmpCls = tmpInstance.getSchemClass();
+                if (!tmpCls.isValidAttribute(attName))
+                    continue;
+                SchemaAttribute att = tmpCls.getAttribute(attName);
+                if (!att.isValidValue(instance))
+                    continue;
+                java.util.List<?> values = tmpInstance.getAttributeValuesListNoCheck(attName);
+                if (values != null && values.size() > 0 && values.contains(instance)) {
+                    Set<GKInstance> referrers = map.get(attName);
+                    if (referrers == null) {
+                        referrers = new HashSet<GKInstance>();
+                        map.put(attName, referrers);
                     }
+                    referrers.add(tmpInstance);
                 }
-            }            
+            }
         }
-        return new ArrayList(set);      
+        return map;
     }
     
     /* 
@@ -1358,6 +1675,14 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
     
     public void save(String destName) throws Exception {
 		saveAsTemp(destName);
+		// The journal for the file is merged now
+		File journalFile = getJournalFile(destName);
+		if (journalFile.exists())
+		    journalFile.delete();
+		resetJournalTracking();
+		savedMeta = getMetaText();
+		if (writtenDiagramHashes != null)
+		    savedDiagramHashes.putAll(writtenDiagramHashes);
 		// Fire the save action.
 		isDirty = false;
 		this.sourceName = destName;
@@ -1375,62 +1700,94 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
      * @throws Exception Thrown if unable if unable to write the contents to the file specified
      */
     public void saveAsTemp(String destName) throws Exception {
-        FileOutputStream fos = new FileOutputStream(destName);
-        saveAsTemp(fos);
-//        String text = convertAsString();
-//        // Use JDOM API
-//        StringReader input = new StringReader(text);
-//        SAXBuilder saxBuilder = new SAXBuilder();
-//        org.jdom.Document document = saxBuilder.build(input);
-//        org.jdom.Element reactomeElm = document.getRootElement();
-//        document.removeContent(reactomeElm);
-//        org.jdom.Document rtpjDoc = new org.jdom.Document();
-//        org.jdom.Element rootElm = new org.jdom.Element("rtpj");
-//        rtpjDoc.setRootElement(rootElm);
-//        rootElm.addContent(reactomeElm);
-//        saveDiagrams(rootElm);
-//        XMLOutputter outputer = new XMLOutputter(Format.getPrettyFormat());
-//        FileWriter writer = new FileWriter(destName);
-//        outputer.output(rtpjDoc, writer);
+        // Write into a temp file first so that the original file is not
+        // broken if anything is wrong during saving
+        File destFile = new File(destName);
+        File tempFile = new File(destFile.getAbsolutePath() + ".saving");
+        OutputStream os = new FileOutputStream(tempFile);
+        try {
+            if (isCompressedFile(destName))
+                os = new GZIPOutputStream(os, WRITER_BUFFER_SIZE);
+            saveAsTemp(os);
+            os.close();
+        }
+        catch(Exception e) {
+            os.close();
+            tempFile.delete();
+            throw e;
+        }
+        Files.move(tempFile.toPath(), 
+                   destFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
     }
     
+    /**
+     * Check if a project file should be saved in the gzip-compressed format, which is
+     * decided by the file name extension.
+     * @param fileName
+     * @return true if fileName ends with {@link #COMPRESSED_FILE_EXT}.
+     */
+    public static boolean isCompressedFile(String fileName) {
+        return fileName != null && 
+               fileName.toLowerCase().endsWith(COMPRESSED_FILE_EXT);
+    }
+    
+    /**
+     * Write the whole project into the passed OutputStream. Instances, meta information and
+     * diagrams are written one by one into a buffered writer so that the project is never
+     * held in memory as a whole. The passed stream is flushed but not closed.
+     * @param os
+     * @throws Exception
+     */
     public synchronized void saveAsTemp(OutputStream os) throws Exception {
-        String text = convertAsString();
-        // Use JDOM API
-        StringReader input = new StringReader(text);
-        SAXBuilder saxBuilder = new SAXBuilder();
-        org.jdom.Document document = saxBuilder.build(input);
-        org.jdom.Element reactomeElm = document.getRootElement();
-        document.removeContent(reactomeElm);
-        org.jdom.Document rtpjDoc = new org.jdom.Document();
-        org.jdom.Element rootElm = new org.jdom.Element("rtpj");
-        rtpjDoc.setRootElement(rootElm);
-        rootElm.addContent(reactomeElm);
-        saveDiagrams(rootElm);
-        XMLOutputter outputer = new XMLOutputter(Format.getPrettyFormat());
-        outputer.output(rtpjDoc, os);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, CHARSET_NAME), 
+                                           WRITER_BUFFER_SIZE);
+        writer.write(XML_HEADER);
+        writer.write(LINE_END);
+        writer.write("<rtpj>\n");
+        writeInstances(writer);
+        saveDiagrams(writer);
+        writer.write("</rtpj>\n");
+        writer.flush();
     }
     
     /**
      * TODO: Move diagram related methods to another class!!!
-     * @param root
+     * @param writer
      */
-    private void saveDiagrams(org.jdom.Element root) {
+    private void saveDiagrams(Writer writer) throws IOException {
+        loadDeferredDiagrams();
         if (pdInstToDiagram == null || pdInstToDiagram.size() == 0)
             return;
-        DiagramGKBWriter writer = new DiagramGKBWriter();
-        writer.setPersistenceAdaptor(this);
+        writtenDiagramHashes = new IdentityHashMap<RenderablePathway, Integer>();
         for (RenderablePathway diagram : pdInstToDiagram.values()) {
-            org.jdom.Element projectElm = writer.createRootElement(diagram);
-            root.addContent(projectElm);
+            String text = convertDiagramToString(diagram);
+            writer.write(text);
+            writer.write(LINE_END);
+            writtenDiagramHashes.put(diagram, getDiagramHash(text));
         }
     }
+    
+    /**
+     * The hash code is used to check if a diagram is changed. The nextId attribute is excluded
+     * since it is taken from a global registry and changed whenever a diagram is written.
+     */
+    private int getDiagramHash(String diagramText) {
+        return NEXT_ID_PATTERN.matcher(diagramText).replaceFirst("").hashCode();
+    }
+    
+    private String convertDiagramToString(RenderablePathway diagram) throws IOException {
+        DiagramGKBWriter diagramWriter = new DiagramGKBWriter();
+        diagramWriter.setPersistenceAdaptor(this);
+        Format format = Format.getPrettyFormat();
+        format.setEncoding(CHARSET_NAME);
+        XMLOutputter outputter = new XMLOutputter(format);
+        org.jdom.Element projectElm = diagramWriter.createRootElement(diagram);
+        return outputter.outputString(projectElm);
+    }
 
-    private String convertAsString() throws Exception {
-        StringBuffer buffer = new StringBuffer();
-        buffer.append(XML_HEADER);
-        buffer.append(LINE_END);
-        buffer.append("<reactome>\n");
+    private void writeInstances(Writer writer) throws Exception {
+        writer.write("<reactome>\n");
         GKSchemaClass cls = null;
         List instances = null;
         GKInstance instance = null;
@@ -1440,22 +1797,21 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
             instances = (List) clsMap.get(cls);
             if (instances == null || instances.size() == 0)
                 continue;
-            buffer.append(indent);
-            buffer.append("<");
-            buffer.append(cls.getName());
-            buffer.append(">\n");
+            writer.write(indent);
+            writer.write("<");
+            writer.write(cls.getName());
+            writer.write(">\n");
             for (Iterator it1 = instances.iterator(); it1.hasNext();) {
                 instance = (GKInstance) it1.next();
-                buffer.append(convertInstanceToString(instance, indent));
+                writeInstance(writer, instance, indent);
             }
-            buffer.append(indent);
-            buffer.append("</");
-            buffer.append(cls.getName());
-            buffer.append(">\n");
+            writer.write(indent);
+            writer.write("</");
+            writer.write(cls.getName());
+            writer.write(">\n");
         }
-        saveMeta(buffer, indent);
-        buffer.append("</reactome>\n");
-        return buffer.toString();
+        saveMeta(writer, indent);
+        writer.write("</reactome>\n");
     }
     
     /**
@@ -1465,76 +1821,378 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
 	 * to write contents to the source name
 	 */
     public void save() throws Exception {
-    	if (sourceName != null)
-    		save(sourceName);
-    	else
+    	if (sourceName == null)
     		throw new IllegalStateException("XMLFileAdaptor.save(): No source name specified.");
+    	if (useJournal && canAppendJournal()) {
+    	    appendJournal();
+    	    isDirty = false;
+    	    propertyChangeSupport.firePropertyChange("save", 
+    	                                             null, 
+    	                                             null);
+    	}
+    	else
+    	    save(sourceName);
+    }
+    
+    /**
+     * Merge the journal into the project file by saving the whole project.
+     * @throws Exception
+     */
+    public void compactJournal() throws Exception {
+        if (sourceName == null)
+            throw new IllegalStateException("XMLFileAdaptor.compactJournal(): No source name specified.");
+        save(sourceName);
+    }
+    
+    /**
+     * Set if changes should be appended into a journal file when save() is called, instead of
+     * rewriting the whole project file. The journal is merged into the project file when it
+     * becomes large compared to the project file, or when a change cannot be journaled 
+     * (e.g. instances are checked out from the database). A journal file is always applied
+     * when a project is opened regardless of this flag.
+     * @param useJournal
+     */
+    public void setUseJournal(boolean useJournal) {
+        this.useJournal = useJournal;
+    }
+    
+    public boolean isUseJournal() {
+        return this.useJournal;
+    }
+    
+    /**
+     * @param ratio the journal will be merged into the project file if its size is larger than
+     * this ratio of the project file size.
+     */
+    public void setJournalCompactionRatio(double ratio) {
+        this.journalCompactionRatio = ratio;
+    }
+    
+    public double getJournalCompactionRatio() {
+        return this.journalCompactionRatio;
+    }
+    
+    public static File getJournalFile(String fileName) {
+        return new File(fileName + JOURNAL_FILE_EXT);
+    }
+    
+    private void resetJournalTracking() {
+        changedInstances.clear();
+        removedDbIds.clear();
+        changedDbIds.clear();
+        needFullSave = false;
+    }
+    
+    private boolean canAppendJournal() {
+        if (needFullSave)
+            return false;
+        File projectFile = new File(sourceName);
+        if (!projectFile.exists())
+            return false;
+        File journalFile = getJournalFile(sourceName);
+        return journalFile.length() < projectFile.length() * journalCompactionRatio;
+    }
+    
+    /**
+     * Append changes after the last save as a delta record into the journal file. A record has a
+     * header line containing its length in bytes and its CRC32 checksum so that a record that is 
+     * not written completely (e.g. because of a crash) can be detected.
+     * @throws Exception
+     */
+    private synchronized void appendJournal() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(bos, CHARSET_NAME));
+        String indent = "    ";
+        writer.write("<delta>\n");
+        for (Long[] ids : changedDbIds) {
+            writer.write(indent);
+            writer.write("<dbIdChange old=\"" + ids[0] + "\" new=\"" + ids[1] + "\" />\n");
+        }
+        for (Long dbId : removedDbIds) {
+            writer.write(indent);
+            writer.write("<removed DB_ID=\"" + dbId + "\" />\n");
+        }
+        writer.write(indent);
+        writer.write("<reactome>\n");
+        Map<SchemaClass, List<GKInstance>> clsToInstances = new HashMap<SchemaClass, List<GKInstance>>();
+        for (GKInstance instance : changedInstances) {
+            if (cache.get(instance.getDBID()) != instance)
+                continue; // Not in this project any more
+            List<GKInstance> list = clsToInstances.get(instance.getSchemClass());
+            if (list == null) {
+                list = new ArrayList<GKInstance>();
+                clsToInstances.put(instance.getSchemClass(), list);
+            }
+            list.add(instance);
+        }
+        for (SchemaClass cls : clsToInstances.keySet()) {
+            writer.write(indent);
+            writer.write("<" + cls.getName() + ">\n");
+            for (GKInstance instance : clsToInstances.get(cls))
+                writeInstance(writer, instance, indent);
+            writer.write(indent);
+            writer.write("</" + cls.getName() + ">\n");
+        }
+        String meta = getMetaText();
+        if (!meta.equals(savedMeta)) {
+            if (meta.length() == 0)
+                writer.write(indent + "<meta />\n");
+            else
+                writer.write(meta);
+        }
+        writer.write(indent);
+        writer.write("</reactome>\n");
+        // Diagrams not parsed yet cannot be changed
+        Map<RenderablePathway, Integer> diagramHashes = new IdentityHashMap<RenderablePathway, Integer>();
+        if (pdInstToDiagram != null) {
+            for (RenderablePathway diagram : pdInstToDiagram.values()) {
+                String text = convertDiagramToString(diagram);
+                Integer hash = getDiagramHash(text);
+                if (hash.equals(savedDiagramHashes.get(diagram)))
+                    continue;
+                writer.write(text);
+                writer.write(LINE_END);
+                diagramHashes.put(diagram, hash);
+            }
+        }
+        writer.write("</delta>\n");
+        writer.flush();
+        byte[] record = bos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        String header = JOURNAL_RECORD_HEADER + " " + record.length + " " + crc.getValue() + LINE_END;
+        File journalFile = getJournalFile(sourceName);
+        // length() is 0 for a file that doesn't exist
+        String baseLine = null;
+        if (journalFile.length() == 0)
+            baseLine = getJournalBaseLine(new File(sourceName)) + LINE_END;
+        FileOutputStream fos = new FileOutputStream(journalFile, true);
+        try {
+            if (baseLine != null)
+                fos.write(baseLine.getBytes(CHARSET_NAME));
+            fos.write(header.getBytes(CHARSET_NAME));
+            fos.write(record);
+            fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+        resetJournalTracking();
+        savedMeta = meta;
+        savedDiagramHashes.putAll(diagramHashes);
+    }
+    
+    /**
+     * Describe a project file by its length and CRC32 checksum. A journal starts with this line
+     * so that it is not applied to a project file rewritten by other means (e.g. an older
+     * version of this tool or restoring a backup).
+     */
+    private String getJournalBaseLine(File projectFile) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream is = new FileInputStream(projectFile);
+        try {
+            byte[] buffer = new byte[WRITER_BUFFER_SIZE];
+            int read = 0;
+            while ((read = is.read(buffer)) > 0)
+                crc.update(buffer, 0, read);
+        }
+        finally {
+            is.close();
+        }
+        return JOURNAL_BASE_HEADER + " " + projectFile.length() + " " + crc.getValue();
+    }
+    
+    /**
+     * Apply delta records in the journal file for the passed project file. A record at the end
+     * that was not written completely is discarded. A journal written against another version
+     * of the project file is not applied. It is renamed with STALE_JOURNAL_FILE_EXT added.
+     * @param fileName
+     * @throws Exception
+     */
+    private void replayJournal(String fileName) throws Exception {
+        File journalFile = getJournalFile(fileName);
+        if (!journalFile.exists())
+            return;
+        byte[] bytes = Files.readAllBytes(journalFile.toPath());
+        int pos = 0;
+        while (pos < bytes.length && bytes[pos] != LINE_END)
+            pos ++;
+        String baseLine = new String(bytes, 0, pos, CHARSET_NAME);
+        if (pos == bytes.length || !baseLine.equals(getJournalBaseLine(new File(fileName)))) {
+            File staleFile = new File(journalFile.getPath() + STALE_JOURNAL_FILE_EXT);
+            System.err.println("XMLFileAdaptor.replayJournal(): " + journalFile.getName() + 
+                               " was not written for the current project file. It is moved to " + 
+                               staleFile.getName() + ".");
+            if (staleFile.exists())
+                staleFile.delete();
+            if (!journalFile.renameTo(staleFile))
+                throw new IOException("Cannot rename " + journalFile + " to " + staleFile);
+            return;
+        }
+        pos ++;
+        while (pos < bytes.length) {
+            int lineEnd = pos;
+            while (lineEnd < bytes.length && bytes[lineEnd] != LINE_END)
+                lineEnd ++;
+            String[] header = new String(bytes, pos, lineEnd - pos, CHARSET_NAME).split(" ");
+            boolean isValid = false;
+            int length = 0;
+            if (lineEnd < bytes.length && 
+                header.length == 3 && 
+                header[0].equals(JOURNAL_RECORD_HEADER)) {
+                length = Integer.parseInt(header[1]);
+                if (lineEnd + 1 + length <= bytes.length) {
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes, lineEnd + 1, length);
+                    isValid = crc.getValue() == Long.parseLong(header[2]);
+                }
+            }
+            if (!isValid) {
+                System.err.println("XMLFileAdaptor.replayJournal(): Discard an incomplete record at " + pos + 
+                                   " in " + journalFile.getName());
+                // Remove it so that new records can be appended
+                RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+                raf.setLength(pos);
+                raf.close();
+                break;
+            }
+            applyDelta(new ByteArrayInputStream(bytes, lineEnd + 1, length));
+            pos = lineEnd + 1 + length;
+        }
+    }
+    
+    private void applyDelta(InputStream in) throws Exception {
+        XMLStreamReader reader = createXMLStreamReader(in);
+        isLoadingDelta = true;
+        try {
+            if (nextElement(reader) != XMLStreamConstants.START_ELEMENT)
+                return;
+            while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (name.equals("dbIdChange")) {
+                    applyDbIdChange(Long.valueOf(getAttribute(reader, "old")),
+                                    Long.valueOf(getAttribute(reader, "new")));
+                    skipElement(reader);
+                }
+                else if (name.equals("removed")) {
+                    applyRemoval(Long.valueOf(getAttribute(reader, "DB_ID")));
+                    skipElement(reader);
+                }
+                else if (name.equals("reactome"))
+                    loadReactomeElement(reader);
+                else if (name.equals("Process"))
+                    deferDiagram(reader);
+                else
+                    skipElement(reader);
+            }
+        }
+        finally {
+            isLoadingDelta = false;
+            reader.close();
+        }
+    }
+    
+    private void applyDbIdChange(Long oldDbId, Long newDbId) {
+        GKInstance instance = cache.get(oldDbId);
+        if (instance == null)
+            return; // Created after the last full save
+        instance.setDBID(newDbId);
+        cache.remove(oldDbId);
+        cache.put(instance);
+        updateDBIDsInDiagrams(oldDbId, instance);
+    }
+    
+    private void applyRemoval(Long dbId) {
+        GKInstance instance = cache.get(dbId);
+        if (instance == null)
+            return;
+        cache.remove(dbId);
+        removeFromClassMap(instance);
+        if (instance.getSchemClass().isa(ReactomeJavaConstants.PathwayDiagram))
+            deletePathwayDiagram(instance);
     }
     
-    private void saveMeta(StringBuffer buffer, String indent) {
+    private String getMetaText() throws IOException {
+        StringWriter writer = new StringWriter();
+        saveMeta(writer, "    ");
+        return writer.toString();
+    }
+    
+    private void resetMeta() {
+        deleteMap.clear();
+        bookmarks.setSortingKey(null);
+        bookmarks.setBookmarks(new ArrayList());
+        defaultPersonId = null;
+        projectDescription = null;
+    }
+    
+    private void saveMeta(Writer writer, String indent) throws IOException {
         if ((deleteMap == null || deleteMap.size() == 0) && 
             (bookmarks == null || bookmarks.size() == 0) &&
             (defaultPersonId == null) &&
             (projectDescription == null))
             return;
-        buffer.append(indent);
-        buffer.append("<meta>\n");
+        writer.write(indent);
+        writer.write("<meta>\n");
         String indent1 = indent + indent;
         String indent2 = indent1 + indent;
         // Save deletion
         if (deleteMap != null && deleteMap.size() > 0) {
-            buffer.append(indent1);
-            buffer.append("<deletion>");
-            buffer.append(LINE_END);
+            writer.write(indent1);
+            writer.write("<deletion>");
+            writer.write(LINE_END);
             for (Iterator it = deleteMap.keySet().iterator(); it.hasNext();) {
                 Long dbID = (Long) it.next();
                 String clsName = (String) deleteMap.get(dbID);
-                buffer.append(indent2);
-                buffer.append("<instance DB_ID=\"");
-                buffer.append(dbID);
-                buffer.append("\" class=\"");
-                buffer.append(clsName);
-                buffer.append("\" />");
-                buffer.append(LINE_END);
+                writer.write(indent2);
+                writer.write("<instance DB_ID=\"");
+                writer.write(dbID.toString());
+                writer.write("\" class=\"");
+                writer.write(clsName);
+                writer.write("\" />");
+                writer.write(LINE_END);
             }
-            buffer.append(indent1);
-            buffer.append("</deletion>\n");
+            writer.write(indent1);
+            writer.write("</deletion>\n");
         }
         // Save bookmarks
         if (bookmarks != null && bookmarks.size() > 0) {
-            buffer.append(indent1);
+            writer.write(indent1);
             if (bookmarks.getSortingKey() == null)
-                buffer.append("<bookmarks>\n");
+                writer.write("<bookmarks>\n");
             else {
-                buffer.append("<bookmarks sortingKey=\"");
-                buffer.append(bookmarks.getSortingKey());
-                buffer.append("\">\n");
+                writer.write("<bookmarks sortingKey=\"");
+                writer.write(bookmarks.getSortingKey());
+                writer.write("\">\n");
             }
             for (Iterator it = bookmarks.getBookmarks().iterator(); it.hasNext();) {
                 Bookmark bookmark = (Bookmark) it.next();
-                buffer.append(indent2);
-                buffer.append("<bookmark DB_ID=\"");
-                buffer.append(bookmark.getDbID());
-                buffer.append("\" displayName=\"");
-                buffer.append(validateXMLText(bookmark.getDisplayName()));
-                buffer.append("\" type=\"");
-                buffer.append(bookmark.getType());
-                buffer.append("\" />\n");
+                writer.write(indent2);
+                writer.write("<bookmark DB_ID=\"");
+                writer.write(String.valueOf(bookmark.getDbID()));
+                writer.write("\" displayName=\"");
+                writer.write(validateXMLText(bookmark.getDisplayName()));
+                writer.write("\" type=\"");
+                writer.write(bookmark.getType());
+                writer.write("\" />\n");
             }
-            buffer.append(indent1);
-            buffer.append("</bookmarks>\n");
+            writer.write(indent1);
+            writer.write("</bookmarks>\n");
         }
         if (defaultPersonId != null) {
-            buffer.append(indent1).append("<defaultPerson dbId=\"");
-            buffer.append(defaultPersonId).append("\" />\n");
+            writer.write(indent1);
+            writer.write("<defaultPerson dbId=\"");
+            writer.write(defaultPersonId.toString());
+            writer.write("\" />\n");
         }
         if (projectDescription != null) {
-            buffer.append(indent1).append("<description>");
-            String tmp = validateXMLText(projectDescription);
-            buffer.append(tmp).append("</description>\n");
+            writer.write(indent1);
+            writer.write("<description>");
+            writer.write(validateXMLText(projectDescription));
+            writer.write("</description>\n");
         }
-        buffer.append(indent);
-        buffer.append("</meta>\n");
+        writer.write(indent);
+        writer.write("</meta>\n");
     }
     
     /**
@@ -1610,6 +2268,10 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
             copyAttributesFromDBToLocal(pdInstance, localInst);
         }
         isDirty = true;
+        // Too many changes to track: the whole project should be saved
+        needFullSave = true;
+        referrerIndex.invalidate();
+        attributeValueIndex.invalidate();
         // Have to call update instances first
         propertyChangeSupport.firePropertyChange("addNewInstance", null, newList);
     }
@@ -1674,7 +2336,21 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         org.jdom.Element root = document.getRootElement();
         DiagramGKBReader reader = new DiagramGKBReader();
         reader.setPersistenceAdaptor(this);
-        loadDiagram(reader, root);
+        RenderablePathway diagram = reader.openProcess(root);
+        reader.setDisplayNames(diagram, this);
+        // Check DiagramInstance first
+        String diagramId = root.getAttributeValue("reactomeDiagramId");
+        if (diagramId != null) {
+            GKInstance diagramInst = fetchInstance(Long.valueOf(diagramId));
+            if (diagramInst != null) {
+                addDiagramForPathwayDiagram(diagramInst, diagram);
+            }
+        }
+        else { // Second choice
+            String processId = root.getAttributeValue("reactomeId");
+            GKInstance instance = fetchInstance(Long.valueOf(processId));
+            addDiagram(instance, diagram);
+        }
     }
     
     /**
@@ -1694,25 +2370,25 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         return dbAtt.getName();
     }
     
-    private String convertInstanceToString(GKInstance instance, 
-                                           String indent) throws Exception {
-        StringBuffer buffer = new StringBuffer();
+    private void writeInstance(Writer writer,
+                               GKInstance instance, 
+                               String indent) throws Exception {
         SchemaClass schemaClass = instance.getSchemClass();
-        buffer.append(indent + indent);
-        buffer.append("<instance ");
-        buffer.append("DB_ID=\"" + instance.getDBID() + "\" ");
-        buffer.append("displayName=\"" + validateXMLText(instance.getDisplayName()) + "\"");
+        writer.write(indent + indent);
+        writer.write("<instance ");
+        writer.write("DB_ID=\"" + instance.getDBID() + "\" ");
+        writer.write("displayName=\"" + validateXMLText(instance.getDisplayName()) + "\"");
         if (instance.isShell()) {
-            buffer.append(" isShell=\"true\">");
-            buffer.append(LINE_END);
+            writer.write(" isShell=\"true\">");
+            writer.write(LINE_END);
         }
         else {
-            buffer.append(" isShell=\"false\"");
-            buffer.append(" isDirty=\"");
-            buffer.append(instance.isDirty());
-            buffer.append("\" isStructureUpdated=\"");
-            buffer.append(instance.isStructuralUpdated());
-            buffer.append("\">\n");
+            writer.write(" isShell=\"false\"");
+            writer.write(" isDirty=\"");
+            writer.write(String.valueOf(instance.isDirty()));
+            writer.write("\" isStructureUpdated=\"");
+            writer.write(String.valueOf(instance.isStructuralUpdated()));
+            writer.write("\">\n");
             String indent1 = indent + indent + indent;
             // Put valid attributes in
             for (Iterator i1 = schemaClass.getAttributes().iterator(); i1.hasNext();) {
@@ -1731,32 +2407,31 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
                                 GKInstance tmp = (GKInstance) it2.next();
                                 if (tmp == null)
                                     continue; // Just in case
-                                buffer.append(indent1);
-                                buffer.append("<attribute ");
-                                buffer.append("name=\"" + att.getName() + "\" ");
-                                buffer.append("class=\"" + tmp.getSchemClass().getName() + "\" ");
-                                buffer.append("referTo=\"" + tmp.getDBID() + "\" />");
-                                buffer.append(LINE_END);
+                                writer.write(indent1);
+                                writer.write("<attribute ");
+                                writer.write("name=\"" + att.getName() + "\" ");
+                                writer.write("class=\"" + tmp.getSchemClass().getName() + "\" ");
+                                writer.write("referTo=\"" + tmp.getDBID() + "\" />");
+                                writer.write(LINE_END);
                             }
                         }
                         else {
                             for (Iterator i2 = c.iterator(); i2.hasNext();) {
                                 Object value = i2.next();
-                                buffer.append(indent1);
-                                buffer.append("<attribute ");
-                                buffer.append("name=\"" + att.getName() + "\" ");
-                                buffer.append("value=\"" + validateXMLText(value.toString()) + "\" />");
-                                buffer.append(LINE_END);
+                                writer.write(indent1);
+                                writer.write("<attribute ");
+                                writer.write("name=\"" + att.getName() + "\" ");
+                                writer.write("value=\"" + validateXMLText(value.toString()) + "\" />");
+                                writer.write(LINE_END);
                             }
                         }
                     }
                 }
             }
         }
-        buffer.append(indent + indent);
-        buffer.append("</instance>");
-        buffer.append(LINE_END);
-        return buffer.toString();
+        writer.write(indent + indent);
+        writer.write("</instance>");
+        writer.write(LINE_END);
     }
     
     /**
@@ -1796,6 +2471,9 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
         // Update cache
         cache.remove(oldDBID);
         cache.put(instance);
+        changedDbIds.add(new Long[]{oldDBID, instance.getDBID()});
+        changedInstances.add(instance);
+        attributeValueIndex.markChanged(instance);
         isDirty = true; // The file is dirty now
         updateDBIDsInDiagrams(oldDBID, instance);
     }
@@ -1807,6 +2485,7 @@ public class XMLFileAdaptor implements PersistenceAdaptor {
      */
     private void updateDBIDsInDiagrams(Long oldDbId, 
                                        GKInstance instance) {
+        loadDeferredDiagrams();
         if (pdInstToDiagram == null || pdInstToDiagram.size() == 0)
             return;
         for (RenderablePathway diagram : pdInstToDiagram.values()) {
@@ -10,10 +10,21 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
+import org.gk.model.InstanceCache;
 import org.gk.persistence.MySQLAdaptor;
 import org.gk.util.FileUtilities;
 import org.gk.util.GKApplicationUtilities;
@@ -38,9 +49,21 @@ public class CommandLineRunner {
 
     /** The summary file headings. */
     private static final String[] SUMMARY_HDGS = {
-            "Report", "Issue Count"
+            "Report", "Issue Count", "Time (ms)", "Cache Lookups", "Peak Memory (MB)"
     };
 
+    /** The property for the number of checks run at the same time. */
+    private static final String WORKERS_PROP = "workers";
+
+    /** How often the used heap is sampled, in milliseconds. */
+    private static final long MEMORY_SAMPLE_INTERVAL = 100L;
+
+    /**
+     * Run the QA checks listed in resources/CommandLineQAList.txt. Use option --workers
+     * (or property workers in auth.properties) to run checks in parallel: each worker
+     * has its own MySQLAdaptor and takes the next check when its current check is done.
+     * Checks that took the longest time in the previous run are started first.
+     */
     public static void main(String[] args) throws Exception {
         PropertyConfigurator.configure("resources/log4j.properties");
         
@@ -72,41 +95,179 @@ public class CommandLineRunner {
         }
         // Augment or override the auth file values.
         authProps.putAll(cmdLineProps);
+        int workers = Integer.parseInt(authProps.getProperty(WORKERS_PROP, "1"));
+        if (workers < 1)
+            throw new IllegalArgumentException("The number of workers should be at least 1: " + workers);
 
-        MySQLAdaptor dba = new MySQLAdaptor(authProps.getProperty("dbHost"),
-                authProps.getProperty("dbName"),
-                authProps.getProperty("dbUser"),
-                authProps.getProperty("dbPwd"));
-        
         List<QualityCheck> checks = getAllQAChecks();
+        List<CheckResult> results = new ArrayList<CheckResult>();
+        for (QualityCheck check : checks)
+            results.add(new CheckResult(check));
+        // Have to be called before the output directory is cleaned up
+        Map<String, Long> previousTimes = loadPreviousTimes();
         File dir = getOutputDir();
+        runChecks(results, previousTimes, workers, authProps, dir);
+
         File summaryFile = new File(dir, SUMMARY_FILE_NM);
         FileUtilities summary = new FileUtilities();
         summary.setOutput(summaryFile.getPath());
         summary.printLine(String.join(SUMMARY_DELIMITER, SUMMARY_HDGS));
-        for (QualityCheck check : checks) {
-            check.setDatasource(dba);
-            logger.info("Run " + check.getClass().getName() + "...");
-            QAReport report = check.checkInCommand();
-            if (report == null) {
-                logger.error("Cannot generate report!");
+        Exception error = null;
+        for (CheckResult result : results) {
+            if (result.error != null && error == null)
+                error = result.error;
+            if (result.report == null)
                 continue;
-            }
-            String title = check.getDisplayName().replace('_', ' ');
+            String title = result.check.getDisplayName().replace('_', ' ');
             String summaryLine = String.join(SUMMARY_DELIMITER, title,
-                    Integer.toString(report.getReportLines().size()));
+                    Integer.toString(result.report.getReportLines().size()),
+                    Long.toString(result.time),
+                    Long.toString(result.cacheLookups),
+                    Long.toString(result.peakMemory / (1024 * 1024)));
             summary.printLine(summaryLine);
-            if (report.isEmpty()) {
-                logger.info("Nothing to report!");
-                continue;
-            }
-            String baseName = check.getReportFileName();
-            File file = new File(dir, baseName);
-            report.output(baseName, dir.getAbsolutePath());
-            logger.info("Output to " + file.getPath());
         }
         summary.close();
         logger.info("Summary is printed as " + summaryFile.getPath());
+        // Make sure a failed check is not missed
+        if (error != null)
+            throw error;
+    }
+
+    private static void runChecks(List<CheckResult> results,
+                                  Map<String, Long> previousTimes,
+                                  int workers,
+                                  Properties authProps,
+                                  File dir) throws Exception {
+        // Longest checks first so that a slow check is not left running alone at the end
+        List<CheckResult> ordered = new ArrayList<CheckResult>(results);
+        ordered.sort((r1, r2) -> {
+            Long time1 = previousTimes.getOrDefault(r1.check.getDisplayName(), Long.MAX_VALUE);
+            Long time2 = previousTimes.getOrDefault(r2.check.getDisplayName(), Long.MAX_VALUE);
+            return time2.compareTo(time1);
+        });
+        BlockingQueue<CheckResult> queue = new LinkedBlockingQueue<CheckResult>(ordered);
+        Set<CheckResult> running = ConcurrentHashMap.newKeySet();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "QA memory sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            long used = getUsedMemory();
+            for (CheckResult result : running)
+                result.updatePeakMemory(used);
+        }, 0, MEMORY_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        workers = Math.min(workers, Math.max(1, results.size()));
+        logger.info("Run " + results.size() + " checks with " + workers + " worker(s)...");
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(() -> {
+                    // Each worker uses its own connection and cache
+                    MySQLAdaptor dba = new MySQLAdaptor(authProps.getProperty("dbHost"),
+                            authProps.getProperty("dbName"),
+                            authProps.getProperty("dbUser"),
+                            authProps.getProperty("dbPwd"));
+                    try {
+                        CheckResult result = null;
+                        while ((result = queue.poll()) != null)
+                            runCheck(result, dba, dir, running);
+                    }
+                    finally {
+                        dba.cleanUp();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch(ExecutionException e) {
+                    if (e.getCause() instanceof Exception)
+                        throw (Exception) e.getCause();
+                    throw e;
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            sampler.shutdownNow();
+        }
+    }
+
+    private static void runCheck(CheckResult result,
+                                 MySQLAdaptor dba,
+                                 File dir,
+                                 Set<CheckResult> running) throws Exception {
+        QualityCheck check = result.check;
+        check.setDatasource(dba);
+        logger.info("Run " + check.getClass().getName() + "...");
+        InstanceCache cache = dba.getInstanceCache();
+        long startLookups = cache.getHitCount() + cache.getMissCount();
+        result.updatePeakMemory(getUsedMemory());
+        running.add(result);
+        long time = System.currentTimeMillis();
+        try {
+            result.report = check.checkInCommand();
+        }
+        catch(Exception e) {
+            logger.error("Error in " + check.getClass().getName() + ": ", e);
+            result.error = e;
+            return;
+        }
+        finally {
+            running.remove(result);
+            result.time = System.currentTimeMillis() - time;
+            result.updatePeakMemory(getUsedMemory());
+            result.cacheLookups = cache.getHitCount() + cache.getMissCount() - startLookups;
+        }
+        logger.info(check.getClass().getName() + " done in " + result.time + " ms.");
+        QAReport report = result.report;
+        if (report == null) {
+            logger.error("Cannot generate report!");
+            return;
+        }
+        if (report.isEmpty()) {
+            logger.info("Nothing to report!");
+            return;
+        }
+        String baseName = check.getReportFileName();
+        File file = new File(dir, baseName);
+        report.output(baseName, dir.getAbsolutePath());
+        logger.info("Output to " + file.getPath());
+    }
+
+    private static long getUsedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Load the running times of checks from the summary file generated by the previous run.
+     * @return key: display name of a check; value: time in milliseconds
+     */
+    private static Map<String, Long> loadPreviousTimes() {
+        Map<String, Long> titleToTime = new HashMap<String, Long>();
+        File file = new File("QA_Output", SUMMARY_FILE_NM);
+        if (!file.exists())
+            return titleToTime;
+        try (Stream<String> lines = Files.lines(file.toPath())) {
+            lines.skip(1) // Headings
+                 .map(line -> line.split(SUMMARY_DELIMITER))
+                 .filter(tokens -> tokens.length > 2)
+                 .forEach(tokens -> {
+                     try {
+                         titleToTime.put(tokens[0].replace(' ', '_'), Long.valueOf(tokens[2]));
+                     }
+                     catch(NumberFormatException e) {} // Generated by an old version
+                 });
+        }
+        catch(IOException e) {
+            logger.error("Cannot read the previous summary: ", e);
+        }
+        return titleToTime;
     }
     
     private static File getOutputDir() throws IOException {
@@ -145,4 +306,31 @@ public class CommandLineRunner {
         throw new IllegalStateException("Make sure resources/auth.properties exists, which provides database connection information");
     }
     
+    /**
+     * Running information for a QualityCheck.
+     */
+    private static class CheckResult {
+        private QualityCheck check;
+        private QAReport report;
+        private Exception error;
+        private long time;
+        // Hits and misses of the adaptor's InstanceCache. The same instance may be looked up
+        // many times. Each worker has its own MySQLAdaptor and runs one check at a time, so
+        // only lookups by this check are counted. Instances cached by earlier checks of the
+        // same worker may be hit.
+        private long cacheLookups;
+        // Used heap sampled during the check. If checks are run in parallel, memory used
+        // by other checks is included.
+        private volatile long peakMemory;
+
+        public CheckResult(QualityCheck check) {
+            this.check = check;
+        }
+
+        public synchronized void updatePeakMemory(long used) {
+            if (used > peakMemory)
+                peakMemory = used;
+        }
+    }
+    
 }
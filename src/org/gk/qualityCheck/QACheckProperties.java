@@ -44,7 +44,12 @@ public class QACheckProperties {
 
     public static Date getDate(String key) throws ParseException {
         String value = getProperty(key);
-        return  value == null ? null : DATE_FORMAT.parse(value);
+        if (value == null)
+            return null;
+        // SimpleDateFormat is not thread-safe and checks may be run in parallel
+        synchronized (DATE_FORMAT) {
+            return DATE_FORMAT.parse(value);
+        }
     }
 
     public static Float getFloat(String key) {
@@ -116,6 +116,12 @@ public class ReachResultTableFrame extends JFrame {
         openBut.setToolTipText("Open pre-generated Reach output files");
         JButton cancelBut = new JButton("Cancel");
         
+        JButton addBut = new JButton("Add");
+        addBut.setToolTipText("Add pre-generated Reach output files to the table");
+        addBut.addActionListener(e -> {
+            new ReachTablePersister().addPreProcessedFiles(ReachResultTableFrame.this);
+        });
+        
         JButton loadBtn = new JButton("Load");
         loadBtn.setToolTipText("Load pre-processed files in a folder. One PMCID has four json files.");
         loadBtn.addActionListener(e -> {
@@ -152,6 +158,7 @@ public class ReachResultTableFrame extends JFrame {
         installButtonListeners(acceptBut, openBut, cancelBut, eventTable);
         botPanel.add(acceptBut);
         botPanel.add(openBut);
+        botPanel.add(addBut);
         botPanel.add(loadBtn);
         botPanel.add(processBtn);
         botPanel.add(localProcessBtn);
@@ -233,6 +240,16 @@ public class ReachResultTableFrame extends JFrame {
         }
     }
     
+    /**
+     * Add FRIES data to the rows in the table.
+     *
+     * @param friesObjects
+     */
+    public void addReachData(List<FriesObject> friesObjects) {
+        ReachTableModel tableModel = (ReachTableModel) eventTable.getModel();
+        tableModel.addReachData(friesObjects);
+    }
+    
     public void setTableData(List<ReachResultTableRowData> rows) {
         ReachTableModel tableModel = (ReachTableModel) eventTable.getModel();
         tableModel.setTableData(rows);
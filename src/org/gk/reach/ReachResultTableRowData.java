@@ -2,6 +2,7 @@ package org.gk.reach;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.gk.model.Reference;
@@ -79,7 +80,7 @@ public class ReachResultTableRowData implements Serializable {
         return arguments.get(1).getType();
     }
 
-    private String getParticipantId(Entity entity) {
+    private static String getParticipantId(Entity entity) {
         if (entity ==  null)
             return null;
         List<XRef> xrefs = entity.getXrefs();
@@ -155,6 +156,26 @@ public class ReachResultTableRowData implements Serializable {
     	references.add(reference);
     }
     
+    /**
+     * Create a key for the row the passed event should be in. This is the same as getRowKey() for a row
+     * having the event as the first event, but no row or String is created.
+     * @param event an event with two Entity arguments
+     * @return
+     */
+    static RowKey createRowKey(Event event) {
+        List<Argument> arguments = event.getArguments();
+        Entity participantA = (Entity) arguments.get(0).getArg();
+        Entity participantB = (Entity) arguments.get(1).getArg();
+        return new RowKey(participantA.getText(),
+                          getParticipantId(participantA),
+                          arguments.get(0).getType(),
+                          participantB.getText(),
+                          getParticipantId(participantB),
+                          arguments.get(1).getType(),
+                          event.getType(),
+                          event.getSubtype());
+    }
+    
     public String getRowKey() {
         return (getParticipantAText() +
                 getParticipantAId() + 
@@ -165,5 +186,35 @@ public class ReachResultTableRowData implements Serializable {
                 getInteractionType() +
                 getInteractionSubtype()).toUpperCase();
     }
+    
+    /**
+     * Key for rows used to aggregate events. Values are compared case-insensitively.
+     */
+    static final class RowKey {
+        private final String[] values;
+        private final int hash;
+        
+        RowKey(String... values) {
+            this.values = new String[values.length];
+            for (int i = 0; i < values.length; i++)
+                this.values[i] = values[i] == null ? null : values[i].toUpperCase();
+            this.hash = Arrays.hashCode(this.values);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof RowKey))
+                return false;
+            RowKey other = (RowKey) obj;
+            return hash == other.hash && Arrays.equals(values, other.values);
+        }
+    }
 
 }
@@ -1,14 +1,16 @@
 package org.gk.reach;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.swing.table.AbstractTableModel;
 
 import org.gk.model.Reference;
+import org.gk.reach.ReachResultTableRowData.RowKey;
 import org.gk.reach.model.fries.Entity;
 import org.gk.reach.model.fries.Event;
 import org.gk.reach.model.fries.FrameObject;
@@ -19,11 +21,14 @@ public class ReachTableModel extends AbstractTableModel {
     
     private List<String> columnNames;
     private List<ReachResultTableRowData> tableData;
+    // Index of rows by participants and interaction types: new events are merged into existing rows
+    private Map<RowKey, Integer> keyToRow;
 
 	public ReachTableModel() {
 	    // Copy this list to avoid change
 		columnNames = new ArrayList<>(ReachConstants.COLUMN_NAMES_PROCESS);
 		tableData = new ArrayList<>();
+		keyToRow = new HashMap<>();
 	}
 
 	/**
@@ -66,52 +71,95 @@ public class ReachTableModel extends AbstractTableModel {
             return;
         tableData.clear();
         tableData.addAll(data);
+        keyToRow.clear();
+        for (int i = 0; i < tableData.size(); i++) {
+            ReachResultTableRowData row = tableData.get(i);
+            if (row.getEvents() != null && row.getEvents().size() > 0 && isPairEvent(row.getEvents().get(0)))
+                keyToRow.putIfAbsent(ReachResultTableRowData.createRowKey(row.getEvents().get(0)), i);
+        }
         fireTableStructureChanged();
     }
 
 	/**
-	 * Add REACH data to the given table.
+	 * Set REACH data to the table. Use addReachData() to merge more data into the table.
 	 *
 	 * @param dataObjects
 	 */
     public void setReachData(List<FriesObject> dataObjects) {
         tableData.clear();
-    	Map<String, ReachResultTableRowData> rowMap = new HashMap<>();
-        for (int i = 0; i < dataObjects.size(); i++) { //For each of the FriesObjects
-            FriesObject fo = dataObjects.get(i);
+        keyToRow.clear();
+        merge(dataObjects, null);
+        fireTableDataChanged();
+    }
+
+    /**
+     * Merge REACH data into the table. Events are added into existing rows for the same participants
+     * and interaction types. Only rows added or changed are fired.
+     *
+     * @param dataObjects
+     */
+    public void addReachData(List<FriesObject> dataObjects) {
+        int firstNewRow = tableData.size();
+        TreeSet<Integer> updatedRows = new TreeSet<>();
+        merge(dataObjects, updatedRows);
+        if (tableData.size() > firstNewRow)
+            fireTableRowsInserted(firstNewRow, tableData.size() - 1);
+        // Fire contiguous changed rows together
+        Integer start = null;
+        Integer end = null;
+        for (Integer row : updatedRows) {
+            if (end != null && row == end + 1) {
+                end = row;
+                continue;
+            }
+            if (start != null)
+                fireTableRowsUpdated(start, end);
+            start = end = row;
+        }
+        if (start != null)
+            fireTableRowsUpdated(start, end);
+    }
+
+    private boolean isPairEvent(Event event) {
+        if (event.getArguments() == null || event.getArguments().size() < 2)
+            return false;
+        FrameObject participantA = event.getArguments().get(0).getArg();
+        FrameObject participantB = event.getArguments().get(1).getArg();
+        return participantA instanceof Entity && participantB instanceof Entity;
+    }
+
+    /**
+     * @param updatedRows indexes of existing rows changed by merging are added if not null.
+     */
+    private void merge(List<FriesObject> dataObjects, Set<Integer> updatedRows) {
+        int firstNewRow = tableData.size();
+        for (FriesObject fo : dataObjects) { //For each of the FriesObjects
             if (fo.getEvents() == null || fo.getEvents().getFrameObjects() == null)
                 continue;
-            for (Event event : dataObjects.get(i).getEvents().getFrameObjects()) {
-                if (event.getArguments().size() < 2)
-                    continue;
+            Reference reference = fo.getReference();
+            for (Event event : fo.getEvents().getFrameObjects()) {
                 // Limit to events with two participants.
-                FrameObject participantA = event.getArguments().get(0).getArg();
-                FrameObject participantB = event.getArguments().get(1).getArg();
-                if (!(participantA instanceof Entity) || !(participantB instanceof Entity))
+                if (!isPairEvent(event))
                     continue;
-                
-                ReachResultTableRowData newRow = new ReachResultTableRowData();
-                newRow.addEvent(event);
-                Reference reference = dataObjects.get(i).getReference();
-                newRow.addReference(reference);
-                String uniquePairing = newRow.getRowKey();
-                // If the contents of newRow are contained in rowSet.
-                if (rowMap.keySet().contains(uniquePairing)) {
-                	// Add the event to the uniquePairing key.
-                    rowMap.get(uniquePairing).addReference(reference);
-                	rowMap.get(uniquePairing).addEvent(event);
+                RowKey uniquePairing = ReachResultTableRowData.createRowKey(event);
+                Integer rowIndex = keyToRow.get(uniquePairing);
+                if (rowIndex == null) {
+                    ReachResultTableRowData newRow = new ReachResultTableRowData();
+                    newRow.addEvent(event);
+                    newRow.addReference(reference);
+                    keyToRow.put(uniquePairing, tableData.size());
+                    tableData.add(newRow);
                 }
                 else {
-                	//Add a new uniquePairing key with newRow
-                    rowMap.put(uniquePairing, newRow);
+                    // Add the event to the uniquePairing key.
+                    ReachResultTableRowData row = tableData.get(rowIndex);
+                    row.addReference(reference);
+                    row.addEvent(event);
+                    if (updatedRows != null && rowIndex < firstNewRow)
+                        updatedRows.add(rowIndex);
                 }
             }
         }
-        // Add all rows in the map to the table.
-        for (ReachResultTableRowData uniquePairing : rowMap.values()) {
-            tableData.add(uniquePairing);
-        }
-        fireTableDataChanged();
     }
 
 	@Override
@@ -3,15 +3,19 @@ package org.gk.reach;
 import java.awt.Component;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.JTable;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.TableModel;
 
@@ -31,8 +35,10 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  *
  */
 public class ReachTablePersister {
+    // Times to try fetching a reference from NCBI
+    private static final int REFERENCE_FETCH_TRIES = 3;
     // Used to control open process
-    private boolean isOpenCanceled;
+    private volatile boolean isOpenCanceled;
     
     public ReachTablePersister() {
     }
@@ -58,6 +64,18 @@ public class ReachTablePersister {
     }
     
     public void openPreProcessedFiles(ReachResultTableFrame frame) {
+        openPreProcessedFiles(frame, false);
+    }
+    
+    /**
+     * Add events in FRIES files to the rows displayed in the table.
+     * @param frame
+     */
+    public void addPreProcessedFiles(ReachResultTableFrame frame) {
+        openPreProcessedFiles(frame, true);
+    }
+    
+    private void openPreProcessedFiles(ReachResultTableFrame frame, boolean isForAdding) {
         FileNameExtensionFilter filter = new FileNameExtensionFilter("FRIES Files", "json");
         File[] files = getFiles(true,
                                 "Choose one or more FRIES files...",
@@ -66,7 +84,7 @@ public class ReachTablePersister {
                                 filter);
         if (files == null || files.length == 0)
             return;
-        Thread t = new Thread(() -> openPreProcessedFiles(files, frame));
+        Thread t = new Thread(() -> openPreProcessedFiles(files, frame, isForAdding));
         t.start();
     }
     
@@ -106,46 +124,90 @@ public class ReachTablePersister {
         return files;
     }
 
-    private void openPreProcessedFiles(File[] files, ReachResultTableFrame frame) {
+    private void openPreProcessedFiles(File[] files, ReachResultTableFrame frame, boolean isForAdding) {
+        isOpenCanceled = false;
         ProgressPane progressPane = new ProgressPane();
         frame.setGlassPane(progressPane);
         progressPane.setMaximum(files.length);
         progressPane.setTitle("Processing Fries Files");
         progressPane.enableCancelAction(e -> isOpenCanceled = true);
         frame.getGlassPane().setVisible(true);
-        // Create Fries object from Fries file
-        ReferenceFetch referenceFetch = new ReferenceFetch();
+        // Create Fries objects from Fries files in a pool of threads. References are fetched
+        // in the background and cached.
+        ReferenceFetch referenceFetch = new ReferenceFetch(getReferenceCacheDir());
+        ExecutorService executor = Executors.newFixedThreadPool(getThreads(files.length));
         try {
+            List<Future<FriesObject>> futures = new ArrayList<>();
+            for (File file : files) {
+                futures.add(executor.submit(() -> openPreProcessedFile(file, referenceFetch)));
+            }
+            // Collect results in the order of the files
             List<FriesObject> friesObjects = new ArrayList<FriesObject>();
             int count = 0;
-            for (File file : files) {
+            for (int i = 0; i < files.length; i++) {
                 if (isOpenCanceled)
                     break;
-                progressPane.setText("Processing " + file.getName() + "...");
+                progressPane.setText("Processing " + files[i].getName() + "...");
                 progressPane.setValue(++count);
-                String jsonOutput = new String(Files.readAllBytes(file.toPath()));
-                FriesObject friesObject = ReachUtils.readJsonText(jsonOutput);
-                if (friesObject.getReference() == null) {
-                    String paperId = file.getName().substring(0, file.getName().indexOf("."));
-                    progressPane.setText("Fetching reference...");
-                    Reference reference = referenceFetch.fetchReference(paperId);
-                    friesObject.setReference(reference);
-                }
-                friesObjects.add(friesObject);
+                friesObjects.add(futures.get(i).get());
             }
-            if (!isOpenCanceled)
+            if (!isOpenCanceled) {
                 // Add data to the table.
-                frame.setReachData(friesObjects);
+                if (isForAdding)
+                    SwingUtilities.invokeLater(() -> frame.addReachData(friesObjects));
+                else
+                    frame.setReachData(friesObjects);
+            }
             frame.getGlassPane().setVisible(false);
         }
-        catch(IOException e) {
+        catch(Exception e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
             JOptionPane.showMessageDialog(frame,
-                                          "Error in loading Fries files: " + e.getMessage(),
+                                          "Error in loading Fries files: " + cause.getMessage(),
                                           "Error in Opening",
                                           JOptionPane.ERROR_MESSAGE);
-            e.printStackTrace();
+            cause.printStackTrace();
             frame.getGlassPane().setVisible(false);
         }
+        finally {
+            executor.shutdownNow();
+            referenceFetch.shutdown();
+        }
+    }
+
+    private FriesObject openPreProcessedFile(File file, ReferenceFetch referenceFetch) throws Exception {
+        if (isOpenCanceled)
+            return null;
+        FriesObject friesObject = ReachUtils.readFile(file);
+        if (friesObject.getReference() == null) {
+            String paperId = file.getName().substring(0, file.getName().indexOf("."));
+            friesObject.setReference(fetchReference(paperId, referenceFetch));
+        }
+        return friesObject;
+    }
+
+    /**
+     * Failed requests (e.g. throttled by NCBI) are removed by ReferenceFetch so that they
+     * can be sent again here.
+     */
+    private Reference fetchReference(String paperId, ReferenceFetch referenceFetch) throws Exception {
+        for (int i = 1; ; i++) {
+            try {
+                return referenceFetch.fetchReferenceAsync(paperId).get();
+            }
+            catch(ExecutionException e) {
+                if (!(e.getCause() instanceof IOException) || i >= REFERENCE_FETCH_TRIES || isOpenCanceled)
+                    throw e;
+            }
+        }
+    }
+
+    private int getThreads(int fileCount) {
+        return Math.max(1, Math.min(fileCount, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private File getReferenceCacheDir() {
+        return new File(GKApplicationUtilities.getReactomeDir(), "reach_references");
     }
     
     //TODO: For the time being, the data is serized into a Java object. Somehow I cannot
@@ -1,6 +1,7 @@
 package org.gk.reach;
 
 import java.awt.event.MouseEvent;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
@@ -32,6 +33,9 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class ReachUtils {
+    // ObjectMapper is thread-safe after it is configured
+    private static final ObjectMapper FRIES_MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     
     public static String extractId(GKInstance instance) throws InvalidAttributeException, Exception {
         if (instance == null)
@@ -143,6 +147,19 @@ public class ReachUtils {
         return mapper.readValue(inputJson, cls);
     }
 
+    /**
+     * Parse a FRIES file. The file is parsed as a stream without being read into a String first.
+     * This method can be called from several threads.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static FriesObject readFile(File file) throws IOException {
+        if (file == null)
+            return null;
+        return FRIES_MAPPER.readValue(file, FriesObject.class);
+    }
+
     public static FriesObject readFile(String fileName) throws IOException {
         if (fileName == null || fileName.length() == 0)
             return null;
@@ -1,21 +1,80 @@
 package org.gk.reach;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.log4j.Logger;
 import org.gk.model.Person;
 import org.gk.model.Reference;
 import org.gk.reach.model.paperMetadata.PaperMetadata;
 
+/**
+ * Fetch references for papers from NCBI. Metadata returned by NCBI can be cached in a directory
+ * as files named by paper ids so that a paper is fetched only once. References can be fetched
+ * asynchronously by fetchReferenceAsync(): requests for the same paper are merged into one, and
+ * at most MAX_REQUESTS requests run at the same time. Whether called directly or asynchronously,
+ * requests sent to NCBI are started at least MIN_REQUEST_INTERVAL milliseconds apart.
+ */
 public class ReferenceFetch {
+    private static final Logger logger = Logger.getLogger(ReferenceFetch.class);
+    // Number of threads used by fetchReferenceAsync(). This doesn't limit the request rate.
+    private static final int MAX_REQUESTS = 3;
+    // NCBI allows 3 requests per second without an API key
+    private static final long MIN_REQUEST_INTERVAL = 334L; // in milliseconds
+    // The earliest time the next request to NCBI can be started
+    private static long nextRequestTime = 0L;
+
+    private String referenceUrl = ReachConstants.REFERENCE_URL;
+    private File cacheDir;
+    private ExecutorService executor;
+    // Requests that are running or done
+    private Map<String, CompletableFuture<Reference>> paperIdToFuture = new ConcurrentHashMap<>();
+
     public ReferenceFetch() {
     }
 
+    /**
+     * @param cacheDir a directory used to cache fetched metadata. It will be created if it doesn't exist.
+     */
+    public ReferenceFetch(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Set the URL used to fetch metadata. The default is ReachConstants.REFERENCE_URL. This is
+     * used to test against a local server.
+     * @param referenceUrl
+     */
+    public void setReferenceUrl(String referenceUrl) {
+        this.referenceUrl = referenceUrl;
+    }
+
+    public String getReferenceUrl() {
+        return referenceUrl;
+    }
+
     public Reference fetchReference(String paperId) throws IOException {
-        StringBuilder stringBuilder = new StringBuilder(ReachConstants.REFERENCE_URL);
+        StringBuilder stringBuilder = new StringBuilder(referenceUrl);
         if (paperId.toUpperCase().startsWith(ReachConstants.PMC))
             stringBuilder.append(ReachConstants.PMC_QUERY);
         else if (paperId.toUpperCase().startsWith(ReachConstants.PMID))
@@ -23,17 +82,140 @@ public class ReferenceFetch {
         else return null;
 
         stringBuilder.append(ReachConstants.ID_QUERY);
+        String cacheKey = paperId.toUpperCase();
         // Remove "PMC" or "PMID" from paperId.
         paperId = paperId.replaceAll("[\\D.]", "");
         stringBuilder.append(paperId);
         stringBuilder.append(ReachConstants.RETMODE);
         stringBuilder.append(ReachConstants.TOOL_EMAIL);
 
-        ReachHttpCall reachCall = new ReachHttpCall();
-        String metadata = reachCall.callHttpGet(stringBuilder.toString());
+        String metadata = readCache(cacheKey);
+        boolean isCached = metadata != null;
+        if (!isCached) {
+            waitForRequestSlot();
+            ReachHttpCall reachCall = new ReachHttpCall();
+            metadata = reachCall.callHttpGet(stringBuilder.toString());
+            // A non-200 response (e.g. a request is throttled) is returned as an empty string
+            if (metadata == null || metadata.trim().length() == 0)
+                throw new IOException("No metadata returned for " + cacheKey);
+        }
         PaperMetadata paperMetadataObj = ReachUtils.readJsonText(metadata, PaperMetadata.class);
-        Map<String, Object> paperData = paperMetadataObj.getResult().getPaperData().get(paperId);
-        return createReference(paperData);
+        Map<String, Object> paperData = null;
+        if (paperMetadataObj != null && paperMetadataObj.getResult() != null &&
+            paperMetadataObj.getResult().getPaperData() != null)
+            paperData = paperMetadataObj.getResult().getPaperData().get(paperId);
+        if (paperData == null)
+            throw new IOException("No metadata found for " + cacheKey);
+        Reference reference = createReference(paperData);
+        // Cache only metadata that can be used
+        if (!isCached)
+            writeCache(cacheKey, metadata);
+        return reference;
+    }
+
+    /**
+     * Fetch a reference in a background thread. Only one request is sent for the same paper.
+     * Call shutdown() when no more reference is needed.
+     * @param paperId
+     * @return a CompletableFuture for the reference, which completes exceptionally if the
+     * reference cannot be fetched.
+     */
+    public CompletableFuture<Reference> fetchReferenceAsync(String paperId) {
+        String key = paperId.toUpperCase();
+        CompletableFuture<Reference> future = paperIdToFuture.computeIfAbsent(key, k -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetchReference(paperId);
+            }
+            catch(IOException e) {
+                throw new CompletionException(e);
+            }
+        }, getExecutor()));
+        // Allow failed requests to be tried again
+        future.whenComplete((reference, e) -> {
+            if (e != null)
+                paperIdToFuture.remove(key, future);
+        });
+        return future;
+    }
+
+    /**
+     * Block until a request to NCBI can be started so that no more than three requests are
+     * started in one second, whatever the number of threads used.
+     */
+    private static void waitForRequestSlot() throws IOException {
+        long waitTime;
+        synchronized (ReferenceFetch.class) {
+            long now = System.currentTimeMillis();
+            long startTime = Math.max(now, nextRequestTime);
+            nextRequestTime = startTime + MIN_REQUEST_INTERVAL;
+            waitTime = startTime - now;
+        }
+        if (waitTime <= 0)
+            return;
+        try {
+            Thread.sleep(waitTime);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to fetch a reference", e);
+        }
+    }
+
+    /**
+     * Stop threads used by fetchReferenceAsync().
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(MAX_REQUESTS, r -> {
+                Thread t = new Thread(r, "ReferenceFetch");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    private File getCacheFile(String paperId) {
+        if (cacheDir == null)
+            return null;
+        return new File(cacheDir, paperId.replaceAll("[^A-Za-z0-9]", "_") + ".json");
+    }
+
+    private String readCache(String paperId) {
+        File file = getCacheFile(paperId);
+        if (file == null || !file.exists())
+            return null;
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        }
+        catch(IOException e) {
+            logger.warn("Cannot read cached metadata in " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private void writeCache(String paperId, String metadata) {
+        File file = getCacheFile(paperId);
+        if (file == null)
+            return;
+        try {
+            if (!cacheDir.exists())
+                cacheDir.mkdirs();
+            // Written into a temporary file first so that a partial file is never read
+            File tmpFile = File.createTempFile(file.getName(), ".tmp", cacheDir);
+            Files.write(tmpFile.toPath(), metadata.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e) {
+            logger.warn("Cannot cache metadata in " + file + ": " + e);
+        }
     }
 
     private Reference createReference(Map<String, Object> paperData) {
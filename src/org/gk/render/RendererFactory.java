@@ -29,6 +29,16 @@ public class RendererFactory {
         return factory;
     }
     
+    /**
+     * Create a new RendererFactory whose Renderer objects are not shared with the singleton.
+     * Renderer objects keep the state of the Renderable being drawn. Threads drawing diagrams
+     * at the same time should use their own factories.
+     * @return a new RendererFactory
+     */
+    public static RendererFactory createFactory() {
+        return new RendererFactory();
+    }
+    
     RendererFactory() {
         init();
     }
@@ -12,6 +12,8 @@ import java.util.*;
  */
 @SuppressWarnings("rawtypes")
 public class GKSchemaClass implements SchemaClass, Serializable {
+	// The same as before attribute ordinals were added so that saved schemas can still be loaded
+	private static final long serialVersionUID = 7456867799171846168L;
 
 	private String id;
 	private String name;
@@ -26,6 +28,8 @@ public class GKSchemaClass implements SchemaClass, Serializable {
 	private Set reverseAttributeNames = new HashSet();
 	private static Comparator classAncestorSorter;
 	private Collection[] definingAttributes;
+	// Ordinals of attributes used by the compact attribute storage in GKInstance. Created lazily.
+	private transient volatile Map<String, Integer> attributeIndexes;
 
 
 	public GKSchemaClass() {
@@ -50,6 +54,28 @@ public class GKSchemaClass implements SchemaClass, Serializable {
 	public void addAttribute(SchemaAttribute attribute) {
 		//System.out.println("GKSchema.addAttribute\t" + attribute.toString());
 		attributes.put(attribute.getName(), attribute);
+		attributeIndexes = null;
+	}
+	
+	/**
+	 * Get the ordinal of an attribute in this class. Ordinals are from 0 to getAttributeCount() - 1.
+	 * @param attributeName
+	 * @return -1 if the attribute is not valid for this class.
+	 */
+	public int getAttributeIndex(String attributeName) {
+		Map<String, Integer> indexes = attributeIndexes;
+		if (indexes == null) {
+			indexes = new HashMap<String, Integer>();
+			for (Iterator it = attributes.keySet().iterator(); it.hasNext();)
+				indexes.put((String) it.next(), indexes.size());
+			attributeIndexes = indexes;
+		}
+		Integer index = indexes.get(attributeName);
+		return index == null ? -1 : index;
+	}
+	
+	public int getAttributeCount() {
+		return attributes.size();
 	}
 
 	private void addOwnAttribute(SchemaAttribute attribute) {
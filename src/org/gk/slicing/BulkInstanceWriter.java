@@ -0,0 +1,307 @@
+package org.gk.slicing;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.gk.model.GKInstance;
+import org.gk.persistence.MySQLAdaptor;
+import org.gk.schema.GKSchema;
+import org.gk.schema.GKSchemaAttribute;
+import org.gk.schema.GKSchemaClass;
+import org.gk.schema.SchemaClass;
+
+/**
+ * Write GKInstances into a database in bulk. Rows are collected for each table and each set of
+ * columns, and inserted by multi-row INSERT statements. Prepared statements for full batches are
+ * reused. Compared with SlicingEngine.storeInstance(), which runs one INSERT for each table of each
+ * instance, the number of round trips is reduced by the batch size. Instances must have DB_IDs
+ * already. Call flush() after all instances have been written, and close() in a finally block
+ * so that prepared statements are released if writing fails.
+ */
+public class BulkInstanceWriter {
+    private static final Logger logger = Logger.getLogger(BulkInstanceWriter.class);
+    // Rows in one INSERT statement
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    // Flush earlier if the values are big (e.g. storedATXML) to stay under max_allowed_packet
+    private static final long MAX_BATCH_BYTES = 1024 * 1024;
+
+    private MySQLAdaptor targetDBA;
+    private GKSchema schema;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    // Key: table name and column names
+    private Map<String, RowBuffer> buffers;
+    // Prepared statements for full batches
+    private Map<String, PreparedStatement> statements;
+    private long rowCount;
+    private long statementCount;
+
+    public BulkInstanceWriter(MySQLAdaptor targetDBA) throws Exception {
+        this.targetDBA = targetDBA;
+        this.schema = (GKSchema) targetDBA.getSchema();
+        buffers = new HashMap<String, RowBuffer>();
+        statements = new HashMap<String, PreparedStatement>();
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("The batch size should be at least 1: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return the number of rows inserted so far.
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the number of INSERT statements executed so far.
+     */
+    public long getStatementCount() {
+        return statementCount;
+    }
+
+    /**
+     * Add rows for the passed instance. The rows may not be inserted until flush() is called.
+     * @param instance
+     * @throws Exception
+     */
+    public void write(GKInstance instance) throws Exception {
+        Long dbID = instance.getDBID();
+        if (dbID == null)
+            throw new IllegalArgumentException("BulkInstanceWriter.write(): " + instance + " has no DB_ID.");
+        // Change class to the target
+        SchemaClass cls = schema.getClassByName(instance.getSchemClass().getName());
+        SchemaClass rootCls = schema.getRootClass();
+        List classHierarchy = new ArrayList();
+        classHierarchy.addAll(cls.getOrderedAncestors());
+        classHierarchy.add(cls);
+        for (Iterator ancI = classHierarchy.iterator(); ancI.hasNext();) {
+            GKSchemaClass ancestor = (GKSchemaClass) ancI.next();
+            List<String> columns = new ArrayList<String>();
+            List<Object> values = new ArrayList<Object>();
+            columns.add("DB_ID");
+            values.add(dbID);
+            if (ancestor == rootCls) {
+                columns.add("_class");
+                values.add(cls.getName());
+            }
+            List<GKSchemaAttribute> multiAtts = new ArrayList<GKSchemaAttribute>();
+            for (Iterator attI = ancestor.getOwnAttributes().iterator(); attI.hasNext();) {
+                GKSchemaAttribute att = (GKSchemaAttribute) attI.next();
+                if (att.getName().equals("DB_ID"))
+                    continue;
+                List attVals = instance.getAttributeValuesList(att.getName());
+                if ((attVals == null) || (attVals.isEmpty()))
+                    continue;
+                if (att.isMultiple()) {
+                    multiAtts.add(att);
+                }
+                else if (att.isInstanceTypeAttribute()) {
+                    GKInstance val = (GKInstance) attVals.get(0);
+                    columns.add(att.getName());
+                    values.add(val.getDBID());
+                    columns.add(att.getName() + "_class");
+                    values.add(val.getSchemClass().getName());
+                }
+                else {
+                    columns.add(att.getName());
+                    values.add(attVals.get(0));
+                }
+            }
+            addRow(ancestor.getName(), columns, values);
+            for (GKSchemaAttribute att : multiAtts) {
+                List attVals = instance.getAttributeValuesList(att.getName());
+                String table = ancestor.getName() + "_2_" + att.getName();
+                columns = new ArrayList<String>();
+                columns.add("DB_ID");
+                columns.add(att.getName());
+                columns.add(att.getName() + "_rank");
+                if (att.isInstanceTypeAttribute())
+                    columns.add(att.getName() + "_class");
+                for (int i = 0; i < attVals.size(); i++) {
+                    values = new ArrayList<Object>();
+                    values.add(dbID);
+                    if (att.isInstanceTypeAttribute()) {
+                        GKInstance attVal = (GKInstance) attVals.get(i);
+                        values.add(attVal.getDBID());
+                        values.add(i);
+                        values.add(attVal.getSchemClass().getName());
+                    }
+                    else {
+                        values.add(attVals.get(i));
+                        values.add(i);
+                    }
+                    addRow(table, columns, values);
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert all collected rows and release prepared statements.
+     * @throws Exception
+     */
+    public void flush() throws Exception {
+        for (RowBuffer buffer : buffers.values())
+            flush(buffer);
+        close();
+        logger.info("BulkInstanceWriter: " + rowCount + " rows inserted by " + statementCount + " statements.");
+    }
+
+    /**
+     * Release prepared statements kept for full batches. Rows not flushed yet are dropped.
+     * This method can be called more than once.
+     * @throws Exception
+     */
+    public void close() throws Exception {
+        buffers.clear();
+        Exception error = null;
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            }
+            catch(Exception e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        statements.clear();
+        if (error != null)
+            throw error;
+    }
+
+    private void addRow(String table,
+                        List<String> columns,
+                        List<Object> values) throws Exception {
+        String key = table + columns;
+        RowBuffer buffer = buffers.get(key);
+        if (buffer == null) {
+            buffer = new RowBuffer(table, columns);
+            buffers.put(key, buffer);
+        }
+        Object[] row = new Object[values.size()];
+        for (int i = 0; i < row.length; i++) {
+            Object value = values.get(i);
+            // Boolean is mapped to enum('TRUE','FALSE'). See SlicingEngine.storeInstance().
+            if (value instanceof Boolean)
+                value = ((Boolean)value).booleanValue() ? "TRUE" : "FALSE";
+            else if (value instanceof String)
+                buffer.bytes += getEncodedLength((String)value);
+            row[i] = value;
+        }
+        buffer.bytes += 8 * row.length;
+        buffer.rows.add(row);
+        if (buffer.rows.size() >= batchSize || buffer.bytes >= MAX_BATCH_BYTES)
+            flush(buffer);
+    }
+
+    /**
+     * Get the number of bytes of a String encoded in UTF-8 without encoding it. Names
+     * and summations may have many multibyte characters.
+     */
+    public static long getEncodedLength(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80)
+                length ++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4; // A supplementary character
+                i ++;
+            }
+            else
+                length += 3;
+        }
+        return length;
+    }
+
+    private void flush(RowBuffer buffer) throws Exception {
+        int size = buffer.rows.size();
+        if (size == 0)
+            return;
+        PreparedStatement ps = null;
+        boolean isCached = (size == batchSize);
+        if (isCached) {
+            ps = statements.get(buffer.key);
+            if (ps == null) {
+                ps = getConnection().prepareStatement(buffer.createInsert(size));
+                statements.put(buffer.key, ps);
+            }
+        }
+        else
+            ps = getConnection().prepareStatement(buffer.createInsert(size));
+        try {
+            int index = 1;
+            for (Object[] row : buffer.rows) {
+                for (Object value : row)
+                    ps.setObject(index ++, value);
+            }
+            ps.executeUpdate();
+        }
+        finally {
+            if (!isCached)
+                ps.close();
+        }
+        rowCount += size;
+        statementCount ++;
+        buffer.rows.clear();
+        buffer.bytes = 0;
+    }
+
+    private Connection getConnection() {
+        return targetDBA.getConnection();
+    }
+
+    /**
+     * Rows waiting to be inserted into a table with a fixed set of columns.
+     */
+    private static class RowBuffer {
+        private String key;
+        private String table;
+        private List<String> columns;
+        private List<Object[]> rows;
+        private long bytes;
+
+        public RowBuffer(String table, List<String> columns) {
+            this.table = table;
+            this.columns = columns;
+            this.key = table + columns;
+            rows = new ArrayList<Object[]>();
+        }
+
+        public String createInsert(int rowNumber) {
+            StringBuilder placeHolders = new StringBuilder("(");
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0)
+                    placeHolders.append(",");
+                placeHolders.append("?");
+            }
+            placeHolders.append(")");
+            StringBuilder builder = new StringBuilder();
+            builder.append("INSERT INTO ").append(table).append(" (");
+            builder.append(String.join(",", columns));
+            builder.append(") VALUES ");
+            for (int i = 0; i < rowNumber; i++) {
+                if (i > 0)
+                    builder.append(",");
+                builder.append(placeHolders);
+            }
+            return builder.toString();
+        }
+    }
+
+}
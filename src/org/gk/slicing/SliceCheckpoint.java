@@ -0,0 +1,276 @@
+package org.gk.slicing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.gk.model.GKInstance;
+import org.gk.util.LongHashSet;
+
+/**
+ * A compact on-disk checkpoint for SlicingEngine.slice() so that a failed run can be resumed from
+ * the last completed stage. Only DB_IDs and class names are saved for the instances in a slice:
+ * instances are re-created from the source database when a run is resumed. Values changed in memory
+ * (e.g. releaseStatus, five stars) are not saved. Stages making these changes should be run again
+ * if their results have not been written into a database. The file is GZIP compressed and written
+ * into a temporary file first, which is then renamed, so that a crash during saving cannot corrupt
+ * the previous checkpoint.
+ */
+public class SliceCheckpoint {
+    // Used to check the file format
+    private static final int MAGIC = 0x534C4350; // SLCP
+    private static final int VERSION = 1;
+
+    /**
+     * Stages in SlicingEngine.slice() in the order they run.
+     */
+    public enum Stage {
+        PREPARE_TARGET,
+        EXTRACT,
+        QA,
+        FILL,
+        DUMP,
+        RELEASE_INFO,
+        STABLE_IDS,
+        REVISIONS,
+        REVIEW_STATUS
+    }
+
+    private File file;
+    // Used to make sure a checkpoint is not used for another slice
+    private String runKey;
+    private List<Stage> startedStages;
+    // Key: completed stage; Value: time used in milliseconds
+    private Map<Stage, Long> stageTimes;
+    private long[] checkedIDs;
+    // Key: DB_ID; Value: class name
+    private Map<Long, String> eventClasses;
+    private Map<Long, String> sliceClasses;
+    private long[] reviewStatusEventIDs;
+
+    public SliceCheckpoint(File file, String runKey) {
+        this.file = file;
+        this.runKey = runKey;
+        startedStages = new ArrayList<Stage>();
+        stageTimes = new LinkedHashMap<Stage, Long>();
+        checkedIDs = new long[0];
+        eventClasses = new HashMap<Long, String>();
+        sliceClasses = new HashMap<Long, String>();
+        reviewStatusEventIDs = new long[0];
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isStarted(Stage stage) {
+        return startedStages.contains(stage);
+    }
+
+    public void setStarted(Stage stage) {
+        if (!startedStages.contains(stage))
+            startedStages.add(stage);
+    }
+
+    public boolean isCompleted(Stage stage) {
+        return stageTimes.containsKey(stage);
+    }
+
+    public void setCompleted(Stage stage, long time) {
+        setStarted(stage);
+        stageTimes.put(stage, time);
+    }
+
+    /**
+     * @return times used by completed stages in milliseconds, including stages completed
+     * in previous runs.
+     */
+    public Map<Stage, Long> getStageTimes() {
+        return stageTimes;
+    }
+
+    public long[] getCheckedIDs() {
+        return checkedIDs;
+    }
+
+    public void setCheckedIDs(LongHashSet ids) {
+        this.checkedIDs = ids.toArray();
+    }
+
+    public Map<Long, String> getEventClasses() {
+        return eventClasses;
+    }
+
+    public void setEvents(Map<?, ?> eventMap) {
+        this.eventClasses = getClassNames(eventMap);
+    }
+
+    public Map<Long, String> getSliceClasses() {
+        return sliceClasses;
+    }
+
+    public void setSlice(Map<Long, GKInstance> sliceMap) {
+        this.sliceClasses = getClassNames(sliceMap);
+    }
+
+    public long[] getReviewStatusEventIDs() {
+        return reviewStatusEventIDs;
+    }
+
+    public void setReviewStatusEvents(List<GKInstance> events) {
+        reviewStatusEventIDs = new long[events.size()];
+        for (int i = 0; i < events.size(); i++)
+            reviewStatusEventIDs[i] = events.get(i).getDBID();
+    }
+
+    private Map<Long, String> getClassNames(Map<?, ?> map) {
+        Map<Long, String> idToCls = new HashMap<Long, String>();
+        for (Object obj : map.values()) {
+            GKInstance inst = (GKInstance) obj;
+            idToCls.put(inst.getDBID(), inst.getSchemClass().getName());
+        }
+        return idToCls;
+    }
+
+    /**
+     * Load the checkpoint from the file.
+     * @return false if the file doesn't exist.
+     * @throws IOException
+     * @throws IllegalStateException if the file was saved for another slice.
+     */
+    public boolean load() throws IOException {
+        if (!file.exists())
+            return false;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (dis.readInt() != MAGIC)
+                throw new IOException(file + " is not a slicing checkpoint file.");
+            int version = dis.readInt();
+            if (version != VERSION)
+                throw new IOException(file + ": checkpoint version " + version + " is not supported.");
+            String key = dis.readUTF();
+            if (!key.equals(runKey))
+                throw new IllegalStateException("SliceCheckpoint.load(): " + file + " was saved for \"" + key +
+                                                "\", not for \"" + runKey + "\". Delete it to start a new slice.");
+            startedStages.clear();
+            int size = dis.readInt();
+            for (int i = 0; i < size; i++)
+                startedStages.add(Stage.valueOf(dis.readUTF()));
+            stageTimes.clear();
+            size = dis.readInt();
+            for (int i = 0; i < size; i++) {
+                Stage stage = Stage.valueOf(dis.readUTF());
+                stageTimes.put(stage, dis.readLong());
+            }
+            checkedIDs = readLongs(dis);
+            eventClasses = readClassNames(dis);
+            sliceClasses = readClassNames(dis);
+            reviewStatusEventIDs = readLongs(dis);
+        }
+        finally {
+            dis.close();
+        }
+        return true;
+    }
+
+    /**
+     * Save the checkpoint into the file.
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeUTF(runKey);
+            dos.writeInt(startedStages.size());
+            for (Stage stage : startedStages)
+                dos.writeUTF(stage.name());
+            dos.writeInt(stageTimes.size());
+            for (Stage stage : stageTimes.keySet()) {
+                dos.writeUTF(stage.name());
+                dos.writeLong(stageTimes.get(stage));
+            }
+            writeLongs(checkedIDs, dos);
+            writeClassNames(eventClasses, dos);
+            writeClassNames(sliceClasses, dos);
+            writeLongs(reviewStatusEventIDs, dos);
+        }
+        finally {
+            dos.close();
+        }
+        Files.move(tmpFile.toPath(),
+                   file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete the file after a slice is done.
+     */
+    public void delete() {
+        file.delete();
+    }
+
+    private void writeLongs(long[] values, DataOutputStream dos) throws IOException {
+        dos.writeInt(values.length);
+        for (long value : values)
+            dos.writeLong(value);
+    }
+
+    private long[] readLongs(DataInputStream dis) throws IOException {
+        long[] values = new long[dis.readInt()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = dis.readLong();
+        return values;
+    }
+
+    /**
+     * Class names are written once into a table. Each instance is written as its DB_ID
+     * and an index into the table.
+     */
+    private void writeClassNames(Map<Long, String> idToCls, DataOutputStream dos) throws IOException {
+        Map<String, Integer> clsToIndex = new LinkedHashMap<String, Integer>();
+        for (String cls : idToCls.values()) {
+            if (!clsToIndex.containsKey(cls))
+                clsToIndex.put(cls, clsToIndex.size());
+        }
+        dos.writeInt(clsToIndex.size());
+        for (String cls : clsToIndex.keySet())
+            dos.writeUTF(cls);
+        dos.writeInt(idToCls.size());
+        for (Long id : idToCls.keySet()) {
+            dos.writeLong(id);
+            dos.writeInt(clsToIndex.get(idToCls.get(id)));
+        }
+    }
+
+    private Map<Long, String> readClassNames(DataInputStream dis) throws IOException {
+        String[] classes = new String[dis.readInt()];
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = dis.readUTF();
+        int size = dis.readInt();
+        Map<Long, String> idToCls = new HashMap<Long, String>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            long id = dis.readLong();
+            idToCls.put(id, classes[dis.readInt()]);
+        }
+        return idToCls;
+    }
+
+}
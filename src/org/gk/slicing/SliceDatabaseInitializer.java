@@ -0,0 +1,255 @@
+package org.gk.slicing;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.gk.persistence.MySQLAdaptor;
+
+/**
+ * Create a slice database from a source database via JDBC: all tables are created with the
+ * definitions in the source database, and rows in tables for the schema (DataModel) and the
+ * ontology (Ontology) are copied. Rows are read by streaming result sets and written by batched
+ * INSERTs, which are rewritten into multi-row INSERTs by the driver. Tables are copied in parallel,
+ * each in its own pair of connections. Tables are created with the MyISAM engine, which is used
+ * by slice databases. Neither mysqldump nor mysql is needed.
+ */
+public class SliceDatabaseInitializer {
+    private static final Logger logger = Logger.getLogger(SliceDatabaseInitializer.class);
+    // Tables whose rows are copied
+    public static final String[] DATA_TABLES = new String[] {"DataModel", "Ontology"};
+    private static final int BATCH_SIZE = 500;
+
+    private MySQLAdaptor sourceDBA;
+    private String targetDbHost;
+    private String targetDbName;
+    private String targetDbUser;
+    private String targetDbPwd;
+    private int targetDbPort = 3306;
+    private int threads = 1;
+
+    public SliceDatabaseInitializer(MySQLAdaptor sourceDBA,
+                                    String targetDbHost,
+                                    String targetDbName,
+                                    String targetDbUser,
+                                    String targetDbPwd,
+                                    int targetDbPort) {
+        this.sourceDBA = sourceDBA;
+        this.targetDbHost = targetDbHost;
+        this.targetDbName = targetDbName;
+        this.targetDbUser = targetDbUser;
+        this.targetDbPwd = targetDbPwd;
+        this.targetDbPort = targetDbPort;
+    }
+
+    /**
+     * Set the number of tables copied at the same time. The default is 1.
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Create the target database and copy tables from the source database.
+     * @param dropExisting true to drop the target database if it exists. Otherwise, an
+     * SQLException will be thrown if it exists.
+     * @throws Exception
+     */
+    public void initialize(boolean dropExisting) throws Exception {
+        long time1 = System.currentTimeMillis();
+        createDatabase(dropExisting);
+        List<String> tables = createTables();
+        List<String> dataTables = new ArrayList<String>();
+        for (String table : DATA_TABLES) {
+            if (tables.contains(table))
+                dataTables.add(table);
+        }
+        copyTables(dataTables);
+        long time2 = System.currentTimeMillis();
+        logger.info("SliceDatabaseInitializer: " + tables.size() + " tables created and " +
+                    dataTables.size() + " copied in " + (time2 - time1) + " ms.");
+    }
+
+    private void createDatabase(boolean dropExisting) throws SQLException {
+        // Connect to the server without a database
+        Connection conn = connect(targetDbHost, targetDbPort, "", targetDbUser, targetDbPwd);
+        try {
+            Statement stat = conn.createStatement();
+            if (dropExisting)
+                stat.execute("DROP DATABASE IF EXISTS `" + targetDbName + "`");
+            logger.info("Creating database " + targetDbName + "...");
+            stat.execute("CREATE DATABASE `" + targetDbName + "`");
+            stat.close();
+        }
+        finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Create all base tables in the target database.
+     * @return names of the created tables.
+     * @throws SQLException
+     */
+    private List<String> createTables() throws SQLException {
+        List<String> tables = new ArrayList<String>();
+        Connection sourceConn = connectSource();
+        Connection targetConn = connectTarget();
+        try {
+            Statement sourceStat = sourceConn.createStatement();
+            ResultSet rs = sourceStat.executeQuery("SHOW FULL TABLES WHERE Table_type = 'BASE TABLE'");
+            while (rs.next())
+                tables.add(rs.getString(1));
+            rs.close();
+            Statement targetStat = targetConn.createStatement();
+            for (String table : tables) {
+                rs = sourceStat.executeQuery("SHOW CREATE TABLE `" + table + "`");
+                rs.next();
+                String ddl = rs.getString(2);
+                rs.close();
+                // Slice databases use MyISAM
+                ddl = ddl.replaceFirst("(?i)ENGINE=\\w+", "ENGINE=MyISAM");
+                targetStat.execute(ddl);
+            }
+            targetStat.close();
+            sourceStat.close();
+        }
+        finally {
+            sourceConn.close();
+            targetConn.close();
+        }
+        return tables;
+    }
+
+    private void copyTables(List<String> tables) throws Exception {
+        if (tables.size() == 0)
+            return;
+        int poolSize = Math.max(1, Math.min(threads, tables.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (final String table : tables) {
+                futures.add(executor.submit(() -> copyTable(table)));
+            }
+            // Get results in order so that the first error is thrown
+            for (int i = 0; i < tables.size(); i++) {
+                long rows = futures.get(i).get();
+                logger.info("Copied table " + tables.get(i) + ": " + rows + " rows.");
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long copyTable(String table) throws SQLException {
+        Connection sourceConn = connectSource();
+        Connection targetConn = connectTarget();
+        try {
+            // Stream rows instead of reading the whole table into memory
+            Statement sourceStat = sourceConn.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                                                              ResultSet.CONCUR_READ_ONLY);
+            sourceStat.setFetchSize(Integer.MIN_VALUE);
+            ResultSet rs = sourceStat.executeQuery("SELECT * FROM `" + table + "`");
+            ResultSetMetaData metaData = rs.getMetaData();
+            int colCount = metaData.getColumnCount();
+            StringBuilder insert = new StringBuilder("INSERT INTO `" + table + "` (");
+            StringBuilder placeHolders = new StringBuilder();
+            boolean[] isBinary = new boolean[colCount + 1];
+            for (int i = 1; i <= colCount; i++) {
+                if (i > 1) {
+                    insert.append(",");
+                    placeHolders.append(",");
+                }
+                insert.append("`").append(metaData.getColumnName(i)).append("`");
+                placeHolders.append("?");
+                int type = metaData.getColumnType(i);
+                // Bytes should be copied as they are (e.g. in the Ontology table)
+                isBinary[i] = type == Types.BLOB ||
+                              type == Types.BINARY ||
+                              type == Types.VARBINARY ||
+                              type == Types.LONGVARBINARY;
+            }
+            insert.append(") VALUES (").append(placeHolders).append(")");
+            Statement targetStat = targetConn.createStatement();
+            targetStat.execute("ALTER TABLE `" + table + "` DISABLE KEYS");
+            PreparedStatement ps = targetConn.prepareStatement(insert.toString());
+            long rows = 0;
+            while (rs.next()) {
+                for (int i = 1; i <= colCount; i++) {
+                    if (isBinary[i])
+                        ps.setBytes(i, rs.getBytes(i));
+                    else
+                        ps.setObject(i, rs.getObject(i));
+                }
+                ps.addBatch();
+                rows ++;
+                if (rows % BATCH_SIZE == 0)
+                    ps.executeBatch();
+            }
+            if (rows % BATCH_SIZE != 0)
+                ps.executeBatch();
+            ps.close();
+            rs.close();
+            sourceStat.close();
+            targetStat.execute("ALTER TABLE `" + table + "` ENABLE KEYS");
+            targetStat.close();
+            return rows;
+        }
+        finally {
+            sourceConn.close();
+            targetConn.close();
+        }
+    }
+
+    private Connection connectSource() throws SQLException {
+        return connect(sourceDBA.getDBHost(),
+                       sourceDBA.getDBPort(),
+                       sourceDBA.getDBName(),
+                       sourceDBA.getDBUser(),
+                       sourceDBA.getDBPwd());
+    }
+
+    private Connection connectTarget() throws SQLException {
+        return connect(targetDbHost,
+                       targetDbPort,
+                       targetDbName,
+                       targetDbUser,
+                       targetDbPwd);
+    }
+
+    private Connection connect(String host,
+                               int port,
+                               String dbName,
+                               String user,
+                               String pwd) throws SQLException {
+        Properties prop = new Properties();
+        prop.setProperty("user", user);
+        prop.setProperty("password", pwd);
+        // The same as used in MySQLAdaptor
+        prop.setProperty("useUnicode", "true");
+        prop.setProperty("characterEncoding", "UTF-8");
+        prop.setProperty("zeroDateTimeBehavior", "convertToNull");
+        // Batched INSERTs are sent as multi-row INSERTs
+        prop.setProperty("rewriteBatchedStatements", "true");
+        return DriverManager.getConnection("jdbc:mysql://" + host + ":" + port + "/" + dbName, prop);
+    }
+
+}
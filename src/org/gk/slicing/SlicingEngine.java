@@ -10,19 +10,10 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.PrintStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -52,8 +43,10 @@ import org.gk.schema.InvalidAttributeException;
 import org.gk.schema.InvalidAttributeValueException;
 import org.gk.schema.Schema;
 import org.gk.schema.SchemaClass;
+import org.gk.slicing.SliceCheckpoint.Stage;
 import org.gk.slicing.updateTracker.UpdateTrackerHandler;
 import org.gk.util.GKApplicationUtilities;
+import org.gk.util.LongHashSet;
 
 
 
@@ -79,9 +72,6 @@ public class SlicingEngine {
     // For logging
     private static final Logger logger = Logger.getLogger(SlicingEngine.class);
     // Constants
-    private final String DUMP_FILE_NAME = "slicingDump.sql";
-    private final String SCHEMA_FILE_NAME = "slicingSchema.sql";
-    private final String ONTOLOGY_FILE_NAME = "slicingOntology.sql";
     protected final static String REFERRER_ATTRIBUTE_KEY = "referrers";
     // Source
     protected MySQLAdaptor sourceDBA;
@@ -97,7 +87,7 @@ public class SlicingEngine {
     protected Map eventMap;
     protected Map<Long, GKInstance> sliceMap;
     // To control references checking
-    protected Set checkedIDs;
+    protected LongHashSet checkedIDs;
     // IDs from the top-level pathways
     protected List<Long> topLevelIDs;
     // File name for the top-level events
@@ -115,7 +105,6 @@ public class SlicingEngine {
     private String logFileName;
     // To control some parameters for testing
     private boolean isInDev = false;
-    private String path = "/usr/local/mysql/bin/";
     private boolean setReleasedInStableIdentifier = false;
     private Long defaultPersonId = null;
     // Control UpdateTracker instance creation and writing back to gk_central
@@ -123,13 +112,18 @@ public class SlicingEngine {
     private boolean uploadUpdateTrackersToSource = false;
     // Handle reviewStatus
     private boolean updateReviewStatusToSource = false;
+    // Number of threads used to load attribute values from the source database
+    private int loadingThreads = 1;
+    // Used to resume a failed slice. Null for no checkpoint.
+    private String checkpointFileName;
+    private SliceCheckpoint checkpoint;
     
     /**
      * Default constructor
      */
     public SlicingEngine() {
         sliceMap = new HashMap();
-        checkedIDs = new HashSet();
+        checkedIDs = new LongHashSet();
     }
     
     public void setDefaultPersonId(Long id) {
@@ -205,6 +199,33 @@ public class SlicingEngine {
         return this.lastReleaseDate;
     }
 
+    /**
+     * Set the number of threads used to bulk load attribute values from the source database.
+     * Each thread uses its own connection. The default is 1, i.e. no parallel loading.
+     * @param threads
+     */
+    public void setLoadingThreads(int threads) {
+        this.loadingThreads = threads;
+    }
+    
+    public int getLoadingThreads() {
+        return this.loadingThreads;
+    }
+
+    /**
+     * Set the file used to save a checkpoint after each stage of slice(). If the file exists
+     * when slice() is called, the slice is resumed from the last completed stage. The file is
+     * deleted after the slice is done.
+     * @param fileName
+     */
+    public void setCheckpointFileName(String fileName) {
+        this.checkpointFileName = fileName;
+    }
+    
+    public String getCheckpointFileName() {
+        return this.checkpointFileName;
+    }
+
     public void setPreviousSlice(MySQLAdaptor previousSliceDBA) {
         this.previousSliceDBA = previousSliceDBA;
     }
@@ -217,9 +238,85 @@ public class SlicingEngine {
         validateConditions();
         topLevelIDs = getReleasedProcesses();
         speciesIDs = getSpeciesIDs();
-        if(!prepareTargetDatabase())
-            throw new IllegalStateException("SlicingEngine.slice(): " +
-                    "target database cannot be set up.");
+        checkpoint = openCheckpoint();
+        // A dump that was not completed may have left rows in the target database
+        boolean isDumpBroken = checkpoint != null && 
+                               checkpoint.isStarted(Stage.DUMP) && 
+                               !checkpoint.isCompleted(Stage.DUMP);
+        if (!isCompleted(Stage.PREPARE_TARGET) || isDumpBroken) {
+            // The target database may have been created by a failed run
+            boolean dropExisting = checkpoint != null && checkpoint.isStarted(Stage.PREPARE_TARGET);
+            long time = startStage(Stage.PREPARE_TARGET);
+            if(!prepareTargetDatabase(dropExisting))
+                throw new IllegalStateException("SlicingEngine.slice(): " +
+                        "target database cannot be set up.");
+            completeStage(Stage.PREPARE_TARGET, time);
+        }
+        if (!isCompleted(Stage.EXTRACT)) {
+            long time = startStage(Stage.EXTRACT);
+            extractSlice();
+            if (checkpoint != null) {
+                checkpoint.setEvents(eventMap);
+                checkpoint.setSlice(sliceMap);
+                checkpoint.setCheckedIDs(checkedIDs);
+            }
+            completeStage(Stage.EXTRACT, time);
+        }
+        else
+            restoreSlice();
+        if (!isCompleted(Stage.QA)) {
+            long time = startStage(Stage.QA);
+            runQA();
+            completeStage(Stage.QA, time);
+        }
+        List<GKInstance> eventsWithReviewStatusUpdated = null;
+        if (!isCompleted(Stage.DUMP)) {
+            // Filled values are kept in memory only. Therefore, they should be
+            // filled again if they have not been dumped.
+            long time = startStage(Stage.FILL);
+            eventsWithReviewStatusUpdated = fillSlice();
+            completeStage(Stage.FILL, time);
+            time = startStage(Stage.DUMP);
+            dumpInstances();
+            if (checkpoint != null) {
+                // Keep the dumped slice for the following stages
+                checkpoint.setSlice(sliceMap);
+                checkpoint.setReviewStatusEvents(eventsWithReviewStatusUpdated);
+            }
+            completeStage(Stage.DUMP, time);
+        }
+        else
+            eventsWithReviewStatusUpdated = restoreReviewStatusEvents();
+        if (!isCompleted(Stage.RELEASE_INFO)) {
+            long time = startStage(Stage.RELEASE_INFO);
+            addFrontPage();
+            addReleaseNumber();
+            completeStage(Stage.RELEASE_INFO, time);
+        }
+        if (!isCompleted(Stage.STABLE_IDS)) {
+            long time = startStage(Stage.STABLE_IDS);
+            setStableIdReleased();
+            completeStage(Stage.STABLE_IDS, time);
+        }
+        if (!isCompleted(Stage.REVISIONS)) {
+            long time = startStage(Stage.REVISIONS);
+            handleRevisions();
+            completeStage(Stage.REVISIONS, time);
+        }
+        if (!isCompleted(Stage.REVIEW_STATUS)) {
+            long time = startStage(Stage.REVIEW_STATUS);
+            updateReviewStatusToSource(eventsWithReviewStatusUpdated);
+            completeStage(Stage.REVIEW_STATUS, time);
+        }
+        if (checkpoint != null) {
+            logger.info("Time for stages (ms), including previous runs: " + checkpoint.getStageTimes());
+            // Everything is done. The next run should start from scratch.
+            checkpoint.delete();
+            checkpoint = null;
+        }
+    }
+    
+    private void extractSlice() throws Exception {
         eventMap = extractEvents();
         extractReferences();
         extractRegulations();
@@ -231,6 +328,9 @@ public class SlicingEngine {
         extractPathwayDiagrams();
         extractUpdateTrackerInstances();
         extractReviewStatus();
+    }
+    
+    private void runQA() throws Exception {
         PrintStream output = null;
         if (logFileName != null)
             output = new PrintStream(new FileOutputStream(logFileName));
@@ -239,15 +339,18 @@ public class SlicingEngine {
         SlicingQualityAssay qa = new SlicingQualityAssay();
         qa.setSliceMap(this.sliceMap);
         qa.setSourceDBA(sourceDBA);
-        qa.validateExistence(output);
-        qa.validateEventsInHierarchy(topLevelIDs,
-                                     output);
-        qa.validateAttributes(output);
-        qa.validateStableIds(output); // Added a new check for StableIds on August 1, 2016
-        // Better call this method as the last QA to make sure the attributes have been checked.
-        qa.validateUpdateTrackers(output);
+        // Validations scan the slice in parallel. A check for StableIds was added on August 1, 2016.
+        qa.validateAll(topLevelIDs, output);
         if (logFileName != null)
             output.close(); // Close it if output is opened by the application
+    }
+    
+    /**
+     * Fill or change attribute values for instances in the slice. The changes are done in memory only.
+     * @return Events that have been assigned five stars.
+     * @throws Exception
+     */
+    private List<GKInstance> fillSlice() throws Exception {
         addReleaseStatus();
         logger.info("Filling Attribute Values...");
         // Need to fill values for Complex.includedLocation
@@ -263,12 +366,96 @@ public class SlicingEngine {
         // This step has to be called just before dumpInstances() since the replacementInstance
         // slot in _Deleted will be checked against the sliceMap.
         handleDeletions();
-        dumpInstances();
-        addFrontPage();
-        addReleaseNumber();
-        setStableIdReleased();
-        handleRevisions();
-        updateReviewStatusToSource(eventsWithReviewStatusUpdated);
+        return eventsWithReviewStatusUpdated;
+    }
+    
+    private SliceCheckpoint openCheckpoint() throws Exception {
+        if (checkpointFileName == null)
+            return null;
+        // Make sure a checkpoint cannot be used for another slice
+        String runKey = sourceDBA.getDBHost() + "/" + sourceDBA.getDBName() + " -> " + 
+                        targetDbHost + "/" + targetDbName + ", release " + releaseNumber;
+        SliceCheckpoint checkpoint = new SliceCheckpoint(new File(checkpointFileName), runKey);
+        if (checkpoint.load())
+            logger.info("Resume slicing from checkpoint " + checkpointFileName + 
+                        ". Completed stages: " + checkpoint.getStageTimes().keySet());
+        return checkpoint;
+    }
+    
+    private boolean isCompleted(Stage stage) {
+        return checkpoint != null && checkpoint.isCompleted(stage);
+    }
+    
+    private long startStage(Stage stage) throws IOException {
+        logger.info("Starting stage " + stage + "...");
+        if (checkpoint != null) {
+            checkpoint.setStarted(stage);
+            checkpoint.save();
+        }
+        return System.currentTimeMillis();
+    }
+    
+    private void completeStage(Stage stage, long startTime) throws IOException {
+        long time = System.currentTimeMillis() - startTime;
+        logger.info("Time for stage " + stage + ": " + time + " ms");
+        if (checkpoint != null) {
+            checkpoint.setCompleted(stage, time);
+            checkpoint.save();
+        }
+    }
+    
+    /**
+     * Re-create eventMap, sliceMap and checkedIDs from the checkpoint. Instances are re-created
+     * from the source database.
+     * @throws Exception
+     */
+    private void restoreSlice() throws Exception {
+        logger.info("Restoring the slice from the checkpoint...");
+        long time1 = System.currentTimeMillis();
+        sliceMap = new HashMap<Long, GKInstance>();
+        Map<Long, String> idToCls = checkpoint.getSliceClasses();
+        for (Long dbId : idToCls.keySet())
+            sliceMap.put(dbId, (GKInstance) sourceDBA.getInstance(idToCls.get(dbId), dbId));
+        eventMap = new HashMap();
+        idToCls = checkpoint.getEventClasses();
+        for (Long dbId : idToCls.keySet()) {
+            GKInstance event = sliceMap.get(dbId);
+            if (event == null)
+                event = (GKInstance) sourceDBA.getInstance(idToCls.get(dbId), dbId);
+            eventMap.put(dbId, event);
+        }
+        long[] ids = checkpoint.getCheckedIDs();
+        checkedIDs = new LongHashSet(ids.length);
+        for (long id : ids)
+            checkedIDs.add(id);
+        if (!isCompleted(Stage.DUMP)) {
+            // All values are needed for filling and dumping
+            loadAttributeValuesByClass(new ArrayList<GKInstance>(sliceMap.values()));
+            // This change was done during extracting
+            removeDoNotReleaseEventsFromDiagrams(new PathwayDiagramSlicingHelper());
+        }
+        long time2 = System.currentTimeMillis();
+        logger.info("Restored " + sliceMap.size() + " instances: " + (time2 - time1) + " ms");
+    }
+    
+    /**
+     * Get Events that should be written back to the source database with five stars after the slice
+     * has been dumped in a previous run.
+     * @return
+     * @throws Exception
+     */
+    private List<GKInstance> restoreReviewStatusEvents() throws Exception {
+        if (!updateReviewStatusToSource || isCompleted(Stage.REVIEW_STATUS))
+            return new ArrayList<GKInstance>();
+        Map<Long, GKInstance> events = new HashMap<Long, GKInstance>();
+        for (long dbId : checkpoint.getReviewStatusEventIDs()) {
+            GKInstance event = sliceMap.get(dbId);
+            if (event != null)
+                events.put(dbId, event);
+        }
+        // Five stars have not been written back to the source database. Assign them again.
+        StarSystemHelper helper = new StarSystemHelper();
+        return helper.assignFiveStarsToEvents(sourceDBA, events);
     }
     
     private void cleanUpNegativePrecedingEvents() throws Exception {
@@ -313,8 +500,8 @@ public class SlicingEngine {
         ensureReplacementInstances(_Deleteds);
         // To control the size of the reference graph, we will make sure referred replacementInstances are in the slicemap.
         // Otherwise, replacementInstances will be updated.
+        loadAttributeValuesByClass(new ArrayList<GKInstance>(_Deleteds));
         for (GKInstance _Deleted : _Deleteds) {
-            sourceDBA.fastLoadInstanceAttributeValues(_Deleted);
             List<GKInstance> replacementInstances = _Deleted.getAttributeValuesList(ReactomeJavaConstants.replacementInstances);
             // Make sure all replacementInstances have been checked out. Otherwise, remove it.
             // The list is updated directly. 
@@ -325,8 +512,8 @@ public class SlicingEngine {
                     logger.info(_Deleted + ": Remove replacementInstance, " + inst);
                 }
             }
-            extractReferencesToInstance(_Deleted, false);
         }
+        extractReferencesToInstances(_Deleteds);
         logger.info("Done deletion.");
     }
     
@@ -559,14 +746,18 @@ public class SlicingEngine {
             if (needTransaction)
                 sourceDBA.startTransaction();
             
-            GKInstance defaultIE = createDefaultIE(sourceDBA);
-            sourceDBA.storeInstance(defaultIE);
-            
+            // Created when it is needed so that a re-run resumed from a checkpoint,
+            // with all StableIdentifiers updated, doesn't store another one
+            GKInstance defaultIE = null;
             for (Long dbId : sliceMap.keySet()) {
                 GKInstance inst = sliceMap.get(dbId);
                 if (inst.getSchemClass().isa(ReactomeJavaConstants.StableIdentifier)) {
                     Boolean released = (Boolean) inst.getAttributeValue(ReactomeJavaConstants.released);
                     if (released == null || !released) {
+                        if (defaultIE == null) {
+                            defaultIE = createDefaultIE(sourceDBA);
+                            sourceDBA.storeInstance(defaultIE);
+                        }
                         inst.setAttributeValue(ReactomeJavaConstants.released,
                                                Boolean.TRUE);
                         sourceDBA.updateInstanceAttribute(inst,
@@ -644,6 +835,7 @@ public class SlicingEngine {
     protected void extractPathwayDiagrams() throws Exception {
         PathwayDiagramSlicingHelper diagramHelper = new PathwayDiagramSlicingHelper();
         diagramHelper.isInDev = isInDev;
+        List<GKInstance> diagrams = new ArrayList<GKInstance>();
         for (Long dbID : topLevelIDs) {
             GKInstance process = sliceMap.get(dbID);
             // It may not be a realease ready. A mistake in the
@@ -654,27 +846,36 @@ public class SlicingEngine {
             if (diagram == null)
                 continue; // Just ignore it for time being
             // Add this diagram to the slice map
-            extractReferencesToInstance(diagram);
+            diagrams.add(diagram);
             // Need to pull up any contained sub-pathway diagrams for this process
             Set<GKInstance> subDiagrams = diagramHelper.loadContainedSubPathways(diagram, sourceDBA);
-            for (GKInstance subDiagram : subDiagrams) {
-                extractReferencesToInstance(subDiagram);
-            }
+            diagrams.addAll(subDiagrams);
         }
-        // Additional step to remove events that should not be released but in the diagrams for some reasons
+        extractReferencesToInstances(diagrams);
+        removeDoNotReleaseEventsFromDiagrams(diagramHelper);
+        logger.info("extractPathwayDiagrams(): " + sliceMap.size());
+    }
+    
+    /**
+     * Additional step to remove events that should not be released but in the diagrams for some reasons.
+     * @param diagramHelper
+     * @throws Exception
+     */
+    private void removeDoNotReleaseEventsFromDiagrams(PathwayDiagramSlicingHelper diagramHelper) throws Exception {
+        diagramHelper.isInDev = isInDev;
         for (Long dbId : sliceMap.keySet()) {
             GKInstance inst = sliceMap.get(dbId);
             if (inst.getSchemClass().isa(ReactomeJavaConstants.PathwayDiagram)) {
                 diagramHelper.removeDoNotReleaseEvents(inst, sourceDBA);
             }
         }
-        logger.info("extractPathwayDiagrams(): " + sliceMap.size());
     }
     
     protected void extractUpdateTrackerInstances() throws Exception {
         if (!needUpdateTrackers)
             return; // Do nothing
         Collection<GKInstance> updateTrackerInstances = sourceDBA.fetchInstancesByClass(ReactomeJavaConstants._UpdateTracker);
+        List<GKInstance> updateTrackersInSlice = new ArrayList<GKInstance>();
         for (GKInstance updateTrackerInstance : updateTrackerInstances) {
             GKInstance updatedInstance = (GKInstance) updateTrackerInstance.getAttributeValue(ReactomeJavaConstants.updatedInstance);
             if (updatedInstance == null || updatedInstance.getDBID() == null)
@@ -682,8 +883,9 @@ public class SlicingEngine {
             // Make sure the updated instance is in the slice database
             if (!sliceMap.containsKey(updatedInstance.getDBID()))
                 continue; // The updated instance is not extracted, don't need this UpdatedTracker instance.
-            extractReferencesToInstance(updateTrackerInstance);
+            updateTrackersInSlice.add(updateTrackerInstance);
         }
+        extractReferencesToInstances(updateTrackersInSlice);
         logger.info("extractUpdateTrackerInstances(): " + sliceMap.size());
     }
     
@@ -694,8 +896,7 @@ public class SlicingEngine {
     private void extractReviewStatus() throws Exception {
         StarSystemHelper helper = new StarSystemHelper();
         Collection<GKInstance> reviewStatuses = helper.extractReviewStatus(sourceDBA);
-        for (GKInstance reviewStatus : reviewStatuses)
-            extractReferencesToInstance(reviewStatus);
+        extractReferencesToInstances(reviewStatuses);
     }
     
     /**
@@ -744,18 +945,21 @@ public class SlicingEngine {
         // and "hasInstance" values first
         Collection events = sourceDBA.fetchInstancesByClass("Event");
         SchemaClass cls = sourceDBA.getSchema().getClassByName("Event");
-        sourceDBA.loadInstanceAttributeValues(events, cls.getAttribute("precedingEvent"));
+        List attributes = new ArrayList();
+        attributes.add(cls.getAttribute("precedingEvent"));
         // _doNotRelease has been moved to Event since May, 2005.
         // _doNotRelease has been changed to _doRelease as of March 8, 2007
-        sourceDBA.loadInstanceAttributeValues(events, cls.getAttribute(ReactomeJavaConstants._doRelease));
+        attributes.add(cls.getAttribute(ReactomeJavaConstants._doRelease));
         cls = sourceDBA.getSchema().getClassByName("Pathway");
-        sourceDBA.loadInstanceAttributeValues(events, cls.getAttribute(ReactomeJavaConstants.hasEvent));
+        attributes.add(cls.getAttribute(ReactomeJavaConstants.hasEvent));
         cls = sourceDBA.getSchema().getClassByName("ConceptualEvent");
         if (cls != null)
-            sourceDBA.loadInstanceAttributeValues(events, cls.getAttribute("hasSpecialisedForm"));
+            attributes.add(cls.getAttribute("hasSpecialisedForm"));
         cls = sourceDBA.getSchema().getClassByName("EquivalentEventSet");
         if (cls != null)
-            sourceDBA.loadInstanceAttributeValues(events, cls.getAttribute("hasMember"));
+            attributes.add(cls.getAttribute("hasMember"));
+        // Attributes are loaded in parallel if more than one thread is configured
+        sourceDBA.loadInstanceAttributeValuesInParallel(events, attributes, loadingThreads);
         // Get the list of events based on _doRelease
         GKInstance event = null;
         for (Iterator it = events.iterator(); it.hasNext();) {
@@ -776,11 +980,19 @@ public class SlicingEngine {
     }
     
     /**
-     * A new FrontPage instance should be created and saved into the database.
+     * A new FrontPage instance should be created and saved into the database. A FrontPage left
+     * by a failed run resumed from a checkpoint is deleted first.
      */
     private void addFrontPage() {
         try {
             MySQLAdaptor targetDBA = getTargetDBA();
+            Collection<GKInstance> existing = targetDBA.fetchInstancesByClass("FrontPage");
+            if (existing != null) {
+                for (GKInstance inst : existing) {
+                    logger.info("Delete FrontPage left by a previous run: " + inst.getDBID());
+                    targetDBA.deleteInstance(inst);
+                }
+            }
             Schema schema = targetDBA.getSchema();
             SchemaClass cls = schema.getClassByName("FrontPage");
             GKInstance frontPage = new GKInstance(cls);
@@ -812,6 +1024,13 @@ public class SlicingEngine {
             SchemaClass releaseCls = targetDBA.getSchema().getClassByName(ReactomeJavaConstants._Release);
             if (releaseCls == null)
                 return; // This is an old schema
+            // Stored by a failed run resumed from a checkpoint
+            Collection<?> existing = targetDBA.fetchInstanceByAttribute(ReactomeJavaConstants._Release,
+                                                                        ReactomeJavaConstants.releaseNumber,
+                                                                        "=",
+                                                                        Integer.valueOf(releaseNumber));
+            if (existing != null && existing.size() > 0)
+                return;
             GKInstance release = createReleaseInstance(targetDBA, Integer.valueOf(releaseNumber), releaseDate);
             targetDBA.storeInstance(release);
         }
@@ -956,9 +1175,17 @@ public class SlicingEngine {
         if (isTnSupported)
             targetDBA.startTransaction();
         try {
-            for (Long dbId : sliceMap.keySet()) {
-                GKInstance instance = (GKInstance) sliceMap.get(dbId);
-                storeInstance(instance, targetDBA);
+            // Rows are inserted in bulk by tables
+            BulkInstanceWriter writer = new BulkInstanceWriter(targetDBA);
+            try {
+                for (Long dbId : sliceMap.keySet()) {
+                    GKInstance instance = (GKInstance) sliceMap.get(dbId);
+                    writer.write(instance);
+                }
+                writer.flush();
+            }
+            finally {
+                writer.close();
             }
             if (isTnSupported)
                 targetDBA.commit();
@@ -967,6 +1194,8 @@ public class SlicingEngine {
             if (isTnSupported)
                 targetDBA.rollback();
             logger.error("SlicingEngine.dumpInstances(): " + e, e);
+            // Don't let the slice go on (and a checkpoint record it as dumped)
+            throw e;
         }
         long time2 = System.currentTimeMillis();
         logger.info("Time for dumpInstances(): " + (time2 - time1));
@@ -1127,12 +1356,14 @@ public class SlicingEngine {
             return; // Nothing to do
         GKInstance species = null;
         Long dbId = null;
+        List<GKInstance> speciesList = new ArrayList<GKInstance>();
         for (Iterator it = speciesIDs.iterator(); it.hasNext();) {
             dbId = (Long) it.next();
             species = sourceDBA.fetchInstance(dbId);;
             if (species != null)
-                extractReferencesToInstance(species);
+                speciesList.add(species);
         }
+        extractReferencesToInstances(speciesList);
     }
     
     /**
@@ -1148,48 +1379,44 @@ public class SlicingEngine {
         sourceDBA.loadInstanceAttributeValues(regulations, cls.getAttribute(ReactomeJavaConstants.regulatedEntity));
         GKInstance regulation = null;
         GKInstance regulatedEntity = null;
+        List<GKInstance> regulationsInSlice = new ArrayList<GKInstance>();
         for (Iterator it = regulations.iterator(); it.hasNext();) {
             regulation = (GKInstance) it.next();
             regulatedEntity = (GKInstance) regulation.getAttributeValue(ReactomeJavaConstants.regulatedEntity);
             if (regulatedEntity == null)
                 continue;
             if (sliceMap.containsKey(regulatedEntity.getDBID())) {
-                extractReferencesToInstance(regulation);
+                regulationsInSlice.add(regulation);
             }
         }
+        extractReferencesToInstances(regulationsInSlice);
         logger.info("extractRegulations: " + sliceMap.size() + " instances.");
     }
 
     protected void extractReferences() throws Exception {
         // Check all references in the events
-        GKInstance instance = null;
-        Long dbID = null;
         long time1 = System.currentTimeMillis();
-        for (Iterator it = eventMap.keySet().iterator(); it.hasNext();) {
-            dbID = (Long) it.next();
-            instance = (GKInstance) eventMap.get(dbID);
-            extractReferencesToInstance(instance);
-//            logger.info("Total touched instances: " + checkedIDs.size());
-        }
+        extractReferencesToInstances(eventMap.values());
         logger.info("extractReferences(): " + sliceMap.size() + " instances");
         logger.info("Time for extractReferences: " + (System.currentTimeMillis() - time1));
     }
     
-    private void extractReferencesToInstance(GKInstance instance,
-                                             boolean needFastLoadAttributes) throws Exception {
-        Set current = new HashSet();
-        Set next = new HashSet();
-        current.add(instance);
-        GKInstance tmp = null;
-        List values = null;
-        GKSchemaAttribute att = null;
-//        logger.info("Instance: " + instance);
+    /**
+     * Push the passed instances and all instances referred by them directly or indirectly into
+     * the slice. Events not in the slice are not followed. The references are traversed level
+     * by level, and instances in a level are loaded together, grouped by their classes, so that
+     * the number of queries doesn't grow with the number of instances.
+     * @param instances
+     * @throws Exception
+     */
+    private void extractReferencesToInstances(Collection<GKInstance> instances) throws Exception {
+        List<GKInstance> current = new ArrayList<GKInstance>(instances);
+        int level = 0;
         while (current.size() > 0) {
-            for (Iterator it = current.iterator(); it.hasNext();) {
-                tmp = (GKInstance) it.next();
-                if (checkedIDs.contains(tmp.getDBID()))
+            List<GKInstance> inSlice = new ArrayList<GKInstance>();
+            for (GKInstance tmp : current) {
+                if (!checkedIDs.add(tmp.getDBID()))
                     continue; // It has been checked
-                checkedIDs.add(tmp.getDBID());
                 if (tmp.getSchemClass() == null)
                     logger.error("Current event: " + tmp.getDBID() + " has no SchemaClass assigned!");
                 // Check if an event should be in a slice
@@ -1197,39 +1424,65 @@ public class SlicingEngine {
                     !eventMap.containsKey(tmp.getDBID())) 
                         continue;
                 pushToMap(tmp, sliceMap);
-                // Load all instances
-//                sourceDBA.loadInstanceAttributeValues(tmp);
-
-                // Use this version to increase the performance hopefully
-                if (needFastLoadAttributes)
-                    sourceDBA.fastLoadInstanceAttributeValues(tmp);
-                
-                for (Iterator it1 = tmp.getSchemaAttributes().iterator(); it1.hasNext();) {
-                    att = (GKSchemaAttribute) it1.next();
+                inSlice.add(tmp);
+            }
+            loadAttributeValuesByClass(inSlice);
+            // Collect the next level
+            List<GKInstance> next = new ArrayList<GKInstance>();
+            LongHashSet nextIDs = new LongHashSet();
+            for (GKInstance tmp : inSlice) {
+                for (Iterator it = tmp.getSchemaAttributes().iterator(); it.hasNext();) {
+                    GKSchemaAttribute att = (GKSchemaAttribute) it.next();
                     if (!att.isInstanceTypeAttribute())
                         continue;
-                    values = tmp.getAttributeValuesList(att);
+                    List values = tmp.getAttributeValuesList(att);
                     if (values == null || values.size() == 0)
                         continue;
-                    for (Iterator it2 = values.iterator(); it2.hasNext();) {
-                        GKInstance reference = (GKInstance) it2.next();
+                    for (Iterator it1 = values.iterator(); it1.hasNext();) {
+                        GKInstance reference = (GKInstance) it1.next();
                         if (reference.getSchemClass() == null)
                             logger.error("reference is wrong: " + reference + ". No SchemaClass is assigned to it!");
-                        if (checkedIDs.contains(reference.getDBID()))
+                        if (checkedIDs.contains(reference.getDBID()) ||
+                            !nextIDs.add(reference.getDBID()))
                             continue;
                         next.add(reference);
                     }
                 }
             }
-            current.clear();
-            current.addAll(next);
-            next.clear();
-//            logger.info("Current: " + current.size());
+            level ++;
+            logger.debug("Level " + level + ": " + inSlice.size() + " instances added, " + 
+                         next.size() + " instances in the next level.");
+            current = next;
         }
     }
     
-    private void extractReferencesToInstance(GKInstance instance) throws Exception {
-        extractReferencesToInstance(instance, true);
+    /**
+     * Load all attribute values for the passed instances using bulk queries, one set of
+     * queries for each SchemaClass. Instances that have been inflated are not loaded again
+     * so that changes made in them (e.g. in handleDeletions()) are kept.
+     * @param instances
+     * @throws Exception
+     */
+    private void loadAttributeValuesByClass(List<GKInstance> instances) throws Exception {
+        Map<SchemaClass, List<GKInstance>> clsToInstances = new HashMap<SchemaClass, List<GKInstance>>();
+        for (GKInstance instance : instances) {
+            if (instance.isInflated())
+                continue;
+            List<GKInstance> list = clsToInstances.get(instance.getSchemClass());
+            if (list == null) {
+                list = new ArrayList<GKInstance>();
+                clsToInstances.put(instance.getSchemClass(), list);
+            }
+            list.add(instance);
+        }
+        for (SchemaClass cls : clsToInstances.keySet()) {
+            List<GKInstance> list = clsToInstances.get(cls);
+            sourceDBA.loadInstanceAttributeValuesInParallel(list, 
+                                                            cls.getAttributes(),
+                                                            loadingThreads);
+            for (GKInstance instance : list)
+                instance.setIsInflated(true);
+        }
     }
     
     protected void pushToMap(GKInstance instance, Map map) {
@@ -1270,49 +1523,36 @@ public class SlicingEngine {
         return ids;
     }
     
-    private boolean prepareTargetDatabase() throws Exception {
+    /**
+     * Create the target database with the schema and the ontology copied from the source
+     * database.
+     * @param dropExisting true to drop the target database if it exists (e.g. it was left
+     * by a failed run).
+     * @return false if the target database cannot be set up.
+     * @throws Exception
+     */
+    private boolean prepareTargetDatabase(boolean dropExisting) throws Exception {
         if (sourceDBA == null)
             throw new IllegalStateException("SlicingEngine.prepareTargetDatabase(): source database is not specified.");
-        if (!runDumpCommand(null, DUMP_FILE_NAME))
-            return false;
-        if (!runDumpCommand("DataModel", SCHEMA_FILE_NAME))
-            return false;
-        if (!runDumpCommand("Ontology", ONTOLOGY_FILE_NAME))
-            return false;
-        if (!createTargetDatabase())
-            return false;
-        if (!runImport(DUMP_FILE_NAME))
-            return false;
-        if (!runImport(SCHEMA_FILE_NAME))
-            return false;
-        if (!runImport(ONTOLOGY_FILE_NAME))
-            return false;
-        if (!runAlterTables())
+        SliceDatabaseInitializer initializer = new SliceDatabaseInitializer(sourceDBA,
+                                                                            targetDbHost,
+                                                                            targetDbName,
+                                                                            targetDbUser,
+                                                                            targetDbPwd,
+                                                                            targetDbPort);
+        initializer.setThreads(loadingThreads);
+        try {
+            initializer.initialize(dropExisting);
+        }
+        catch(Exception e) {
+            logger.error("SlicingEngine.prepareTargetDatabase(): " + e, e);
             return false;
+        }
+        // A cached adaptor may point to a dropped database
+        targetDBA = null;
         return true;
     }
     
-    private boolean runImport(String fileName) throws Exception {
-        StringBuilder importCommand = new StringBuilder();
-        if (isInDev && path != null)
-            importCommand.append(path);
-        importCommand.append("mysql ");
-        attachConnectInfo(importCommand,
-                          targetDbHost,
-                          targetDbUser,
-                          targetDbPwd);
-        importCommand.append(" ");
-        importCommand.append(targetDbName);
-        logger.info("runImport: " + importCommand.toString());
-        Process process = Runtime.getRuntime().exec(importCommand.toString());
-        OutputStream output = process.getOutputStream();
-        InputStream input = new FileInputStream(fileName);
-        pipe(input, output);
-        String errorMessage = getErrorMessage(process);
-        process.destroy();
-        return checkErrorMessage(errorMessage);
-    }
-    
     private MySQLAdaptor getTargetDBA() throws Exception {
         if (targetDBA != null)
             return targetDBA;
@@ -1324,170 +1564,6 @@ public class SlicingEngine {
         return targetDBA;
     }
     
-    private boolean checkErrorMessage(String error) {
-        if (error == null || error.length() == 0)
-            return true;
-        // If the output is Warning, it should be fine
-        if (error.contains(": [Warning]") || error.contains("Warning: ")) { // Something for mysqldump: [Warning] or mysqladmin: [Warning]
-            logger.warn(error);
-            return true;
-        }
-        logger.error(error);
-        return false;
-    }
-    
-    private String getErrorMessage(Process process) throws Exception {
-        InputStream is = process.getErrorStream();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        String line = null;
-        StringBuffer buffer = new StringBuffer();
-        while ((line = reader.readLine()) != null) {
-            buffer.append(line);
-            buffer.append("\n");
-        }
-        reader.close();
-        is.close();
-        logger.error(buffer.toString());
-        return buffer.toString();
-    }
-    
-    private void attachConnectInfo(StringBuilder buffer,
-                                   MySQLAdaptor dba) {
-        attachConnectInfo(buffer, 
-                          dba.getDBHost(),
-                          dba.getDBUser(),
-                          dba.getDBPwd());
-    }
-    
-    private void attachConnectInfo(StringBuilder buffer,
-                                   String dbHost,
-                                   String dbUser,
-                                   String dbPwd) {
-        buffer.append("-h");
-        buffer.append(dbHost);
-        buffer.append(" -u");
-        buffer.append(dbUser);
-        buffer.append(" -p");
-        buffer.append(dbPwd);
-    }
-    
-    private boolean createTargetDatabase() throws Exception {
-        StringBuilder createDB = new StringBuilder();
-        if (isInDev && path != null)
-            createDB.append(path);
-        createDB.append("mysqladmin ");
-        attachConnectInfo(createDB, 
-                          targetDbHost,
-                          targetDbUser,
-                          targetDbPwd);
-        createDB.append(" create ");
-        createDB.append(targetDbName);
-        logger.info("createTargetDatabase: " + createDB.toString());
-        Process process = Runtime.getRuntime().exec(createDB.toString());
-        String message = getErrorMessage(process);
-        process.waitFor();
-        process.destroy();
-        return checkErrorMessage(message);
-    }
-    
-    private void pipe(InputStream input, OutputStream output) throws Exception {
-        // Reader and writer should not be used here since ad hoc bytes might be
-        // in the database (e.g. Ontology table).
-        ReadableByteChannel source = Channels.newChannel(input);
-        ByteBuffer buffer = ByteBuffer.allocate(10 * 1024); // 10k
-        WritableByteChannel sink = Channels.newChannel(output);
-        @SuppressWarnings("unused")
-        int tmp = 0;
-        while ((tmp = source.read(buffer)) > 0) {
-            buffer.flip();
-            sink.write(buffer);
-            buffer.clear();
-        }
-        sink.close();
-        output.close();
-        source.close();
-        input.close();
-    }
-    
-    
-    private boolean runAlterTables() throws Exception {
-        MySQLAdaptor targetDBA = getTargetDBA();
-        Connection targetDBAConnection = targetDBA.getConnection();
-
-        java.util.List tables = getTables(targetDBAConnection);
-        changeToMyISAM(tables,targetDBAConnection);
-        return true;
-    }
-    
-	private static java.util.List getTables(Connection conn) {
-		java.util.List tables = new ArrayList();
-		try {
-			Statement statement = conn.createStatement();
-			ResultSet resultset = statement.executeQuery("Show Tables");
-			while (resultset.next()) {
-				String name = resultset.getString(1);
-				tables.add(name);
-			}
-			resultset.close();
-			statement.close();
-		}
-		catch(SQLException e) {
-			e.printStackTrace();
-		}
-		return tables;
-	}
-	
-	private void changeToMyISAM(java.util.List tables,
-	                            Connection conn) throws SQLException {
-	    Statement statement = conn.createStatement();
-	    for (Iterator it = tables.iterator(); it.hasNext();) {
-	        String table = it.next().toString();
-	        statement.execute("ALTER TABLE " + table + " ENGINE=MyISAM");
-	    }
-	    statement.close();
-	}
-     
-    private boolean runDumpCommand(String tableName, String dumpFileName) throws Exception {
-        StringBuilder mysqldump = new StringBuilder();
-        if (isInDev && path != null)
-            mysqldump.append(path);
-        if (tableName == null)
-            mysqldump.append("mysqldump --skip-lock-tables -d ");
-        else
-            mysqldump.append("mysqldump --skip-lock-tables -q --add-drop-table -e --add-locks ");
-        attachConnectInfo(mysqldump, sourceDBA);
-        mysqldump.append(" ");
-        mysqldump.append(sourceDBA.getDBName());
-        if (tableName != null) {
-            mysqldump.append(" ");
-            mysqldump.append(tableName);
-        }
-        // These cannot work
-        //mysqldump.append(" > ");
-        //mysqldump.append(dumpFileName);
-        logger.info("runDumpCommand: " + mysqldump.toString());
-        Process process = Runtime.getRuntime().exec(mysqldump.toString());
-        InputStream input = process.getInputStream();
-        OutputStream output = new FileOutputStream(dumpFileName);
-        pipe(input, output);
-        String error = getErrorMessage(process);
-        process.destroy();
-        return checkErrorMessage(error);
-        // For the schema file, change the DBEngine to MyISAM
-//        if (!dumpFileName.equals("slicingOntology.sql")) {
-//        	Charset charset = StandardCharsets.UTF_8;
-//        	Path inputFile = Paths.get(dumpFileName);
-//        	try {	
-//        		String content = new String(Files.readAllBytes(inputFile), charset);
-//        		content = content.replaceAll("(?i)ENGINE=InnoDB", "ENGINE=MyISAM");
-//        		Files.write(inputFile, content.getBytes(charset));     
-//        		logger.info("runDumpCommand: changed innodb to myisam");
-//        	} catch (IOException e) {
-//        		throw new RuntimeException("Error changing innodb to MyISAM", e);
-//        	}
-//        }
-    }
-
     public static void main(String[] args) {
         // Set up log4j
         PropertyConfigurator.configure("SliceLog4j.properties");
@@ -1611,7 +1687,11 @@ public class SlicingEngine {
                                                       pwd,
                                                       Integer.parseInt(dbPort));
             // To keep this connection consistent to avoid time out
-            sourceDBA.initDumbThreadForConnection(1 * 60 * 1000); // 1 minute
+            sourceDBA.setConnectionCheckInterval(1 * 60 * 1000); // 1 minute
+            // Use less memory for the large number of instances loaded
+            String useCompactInstances = properties.getProperty("useCompactInstances");
+            if (useCompactInstances != null && useCompactInstances.trim().equals("true"))
+                sourceDBA.setUseCompactInstances(true);
             engine.setSource(sourceDBA);
             engine.setTargetDbName(targetDbName);
             engine.setTargetDbHost(targetDbHost);
@@ -1626,6 +1706,12 @@ public class SlicingEngine {
             engine.setLogFileName(logFileName);
             engine.needUpdateTrackers = needUpdateTrackers;
             engine.setPreviousSlice(previousSliceDBA);
+            String loadingThreads = properties.getProperty("loadingThreads");
+            if (loadingThreads != null && loadingThreads.trim().length() > 0)
+                engine.setLoadingThreads(Integer.parseInt(loadingThreads.trim()));
+            String checkpointFileName = properties.getProperty("checkpointFileName");
+            if (checkpointFileName != null && checkpointFileName.trim().length() > 0)
+                engine.setCheckpointFileName(checkpointFileName.trim());
             engine.setReleasedInStableIdentifier = new Boolean(setReleasedInStableIdentifier);
             engine.defaultPersonId = new Long(defaultPersonId);
             engine.slice();
@@ -13,7 +13,15 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 import org.gk.database.StableIdentifierGenerator;
@@ -36,6 +44,10 @@ public class SlicingQualityAssay {
     private final static Logger logger = Logger.getLogger(SlicingQualityAssay.class);
     private Map<Long, GKInstance> sliceMap;
     private MySQLAdaptor sourceDBA;
+    // Number of threads used to scan the slice
+    private int threads = Runtime.getRuntime().availableProcessors();
+    // Shared by validations running at the same time so that no more than threads are used
+    private ForkJoinPool pool;
     
     /**
      * Default constructor.
@@ -51,6 +63,54 @@ public class SlicingQualityAssay {
         this.sourceDBA = dba;
     }
     
+    /**
+     * Set the number of threads used to scan the slice in each validation. The default is
+     * the number of available processors.
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
+    public int getThreads() {
+        return this.threads;
+    }
+    
+    /**
+     * Run all validations. Validations changing the slice run in the order they depend on each
+     * other: instances not in the database are removed first, then references to instances not in
+     * the slice. The checks for StableIdentifiers and _UpdateTrackers, which depend on these, run at
+     * the same time. Each validation scans the slice in parallel. Results are written in the same
+     * order as running validations one by one.
+     * @param topicIds
+     * @param output
+     * @throws Exception
+     */
+    public void validateAll(List<Long> topicIds,
+                            PrintStream output) throws Exception {
+        validateExistence(output);
+        validateEventsInHierarchy(topicIds, output);
+        validateAttributes(output);
+        logger.info("validateStableIds() and validateUpdateTrackers()...");
+        final Set<String> stidClassNames = getClassNamesWithStableIds();
+        loadStableIds(stidClassNames);
+        loadUpdatedInstances();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            Future<List<GKInstance>> instancesWithoutStableIds = executor.submit(() -> findInstancesWithoutStableIds(stidClassNames));
+            Future<List<GKInstance>> emptyUpdateTrackers = executor.submit(() -> findEmptyUpdateTrackers());
+            reportInstancesWithoutStableIds(instancesWithoutStableIds.get(), output);
+            // Better call this method as the last QA to make sure the attributes have been checked.
+            excludeUpdateTrackers(emptyUpdateTrackers.get(), output);
+        }
+        finally {
+            executor.shutdown();
+            pool.shutdown();
+            pool = null;
+        }
+    }
+    
     /**
      * Make sure all Events are listed in the pathway hierarchy that can be returned by the RESTful API.
      * The restful api returns a tree based on hasEvent. This may need to be changed if new attribute
@@ -64,7 +124,7 @@ public class SlicingQualityAssay {
         logger.info("validateEventsInHierarchy...");
         long time1 = System.currentTimeMillis();
         // Get events covered by the pathway hierarchy.
-        Set<GKInstance> eventsInTree = new HashSet<GKInstance>();
+        final Set<GKInstance> eventsInTree = new HashSet<GKInstance>();
         for (Long topicId : topicIds) {
             GKInstance event = sliceMap.get(topicId);
             Set<GKInstance> containedEvents = InstanceUtilities.getContainedInstances(event, 
@@ -73,15 +133,13 @@ public class SlicingQualityAssay {
             eventsInTree.add(event); // Don't forget itself
         }
         // Get a list of events that are not covered
-        List<GKInstance> eventsNotInTree = new ArrayList<GKInstance>();
-        for (Long dbId : sliceMap.keySet()) {
-            GKInstance event = sliceMap.get(dbId);
+        List<GKInstance> eventsNotInTree = scan(event -> {
             if (!event.getSchemClass().isa(ReactomeJavaConstants.Event))
-                continue;
+                return null;
             if (eventsInTree.contains(event))
-                continue;
-            eventsNotInTree.add(event);
-        }
+                return null;
+            return event;
+        });
         long time2 = System.currentTimeMillis();
         logger.info("validateEventsInHierarchy: " + (time2 - time1) / 1000.0d + " seconds.");
         logger.info("Events that have not listed in the pathway hierarchy: " + eventsNotInTree.size() + " instances");
@@ -106,42 +164,47 @@ public class SlicingQualityAssay {
      */
     public void validateAttributes(PrintStream output) throws Exception {
         logger.info("validateAttributes()...");
-        GKInstance instance = null;
-        List values = null;
-        Long dbID = null;
-        GKInstance ref = null;
-        SchemaAttribute att = null;
-        output.println("ATTRIBUTE_REMOVED\tattClass\tattDbId\tattName\tattribute\tclass\tdbId\tname");
-        for (Iterator it = sliceMap.keySet().iterator(); it.hasNext();) {
-            dbID = (Long) it.next();
-            instance = (GKInstance) sliceMap.get(dbID);
+        // Each instance is checked in one thread only, so its own lists can be changed there
+        List<List<RemovedReference>> removedList = scan(instance -> {
             instance.setIsInflated(true); // To prevent to fetch values again.
+            List<RemovedReference> removed = null;
             for (Iterator it1 = instance.getSchemClass().getAttributes().iterator(); it1.hasNext();) {
-                att = (GKSchemaAttribute) it1.next();
+                SchemaAttribute att = (GKSchemaAttribute) it1.next();
                 if (!att.isInstanceTypeAttribute())
                     continue;
-                values = instance.getAttributeValuesList(att);
+                List values = instance.getAttributeValuesList(att);
                 if (values == null || values.size() == 0)
                     continue;
                 for (Iterator it2 = values.iterator(); it2.hasNext();) {
-                    ref = (GKInstance) it2.next();
+                    GKInstance ref = (GKInstance) it2.next();
                     if (!sliceMap.containsKey(ref.getDBID())) {
                         it2.remove();
-                        String refDbId = ref.getDBID().toString();
-                        String refClass = ref.getSchemClass().getName();
-                        String refName = ref.getDisplayName();
-                        String attName = att.getName();
-                        String instanceName = instance.getDisplayName();
-                        String instanceClass = instance.getSchemClass().getName();
-                        // https://reactome.atlassian.net/browse/DEV-973 format change
-                        output.println("ATTRIBUTE_REMOVED\t"+refClass+"\t"+refDbId+"\t"+refName+"\t"+
-                        		attName+"\t"+instanceClass+"\t"+dbID.toString()+"\t"+instanceName);
-
-//                        output.println("\"" + ref.toString() + "\" in \"" + att.getName() + "\" for \"" + instance + 
-//                                           "\" is not in the slice and removed from the attribute list!");
+                        if (removed == null)
+                            removed = new ArrayList<RemovedReference>();
+                        removed.add(new RemovedReference(instance, att, ref));
                     }
                 }
             }
+            return removed;
+        });
+        output.println("ATTRIBUTE_REMOVED\tattClass\tattDbId\tattName\tattribute\tclass\tdbId\tname");
+        for (List<RemovedReference> removed : removedList) {
+            for (RemovedReference reference : removed) {
+                GKInstance ref = reference.ref;
+                GKInstance instance = reference.instance;
+                String refDbId = ref.getDBID().toString();
+                String refClass = ref.getSchemClass().getName();
+                String refName = ref.getDisplayName();
+                String attName = reference.att.getName();
+                String instanceName = instance.getDisplayName();
+                String instanceClass = instance.getSchemClass().getName();
+                // https://reactome.atlassian.net/browse/DEV-973 format change
+                output.println("ATTRIBUTE_REMOVED\t"+refClass+"\t"+refDbId+"\t"+refName+"\t"+
+                        attName+"\t"+instanceClass+"\t"+instance.getDBID().toString()+"\t"+instanceName);
+
+//                output.println("\"" + ref.toString() + "\" in \"" + att.getName() + "\" for \"" + instance + 
+//                                   "\" is not in the slice and removed from the attribute list!");
+            }
         }
         output.println();
     }
@@ -153,21 +216,67 @@ public class SlicingQualityAssay {
      */
     public void validateStableIds(PrintStream output) throws Exception {
         logger.info("validateStableIds()...");
+        Set<String> stidClassNames = getClassNamesWithStableIds();
+        loadStableIds(stidClassNames);
+        List<GKInstance> instances = findInstancesWithoutStableIds(stidClassNames);
+        reportInstancesWithoutStableIds(instances, output);
+    }
+    
+    private void loadStableIds(final Set<String> stidClassNames) throws Exception {
+        loadAttributeValues(inst -> stidClassNames.contains(inst.getSchemClass().getName()),
+                            ReactomeJavaConstants.stableIdentifier);
+    }
+    
+    private void loadUpdatedInstances() throws Exception {
+        loadAttributeValues(inst -> inst.getSchemClass().isa(ReactomeJavaConstants._UpdateTracker),
+                            ReactomeJavaConstants.updatedInstance);
+    }
+    
+    /**
+     * Load values of an attribute in one go on the calling thread, so that scan() never loads them
+     * lazily from worker threads. Instances inflated by validateAttributes() are skipped: their
+     * values have been checked and should not be loaded again.
+     * @param filter instances to be checked
+     * @param attName
+     * @throws Exception
+     */
+    private void loadAttributeValues(Predicate<GKInstance> filter,
+                                     String attName) throws Exception {
+        List<GKInstance> toBeLoaded = new ArrayList<GKInstance>();
+        for (GKInstance inst : sliceMap.values()) {
+            if (inst.isInflated() || !filter.test(inst))
+                continue;
+            if (!inst.getSchemClass().isValidAttribute(attName))
+                continue;
+            if (!inst.isAttributeValueLoaded(inst.getSchemClass().getAttribute(attName)))
+                toBeLoaded.add(inst);
+        }
+        if (toBeLoaded.size() > 0)
+            sourceDBA.loadInstanceAttributeValues(toBeLoaded, new String[]{attName});
+    }
+    
+    private Set<String> getClassNamesWithStableIds() throws Exception {
         StableIdentifierGenerator stidGenerator = new StableIdentifierGenerator();
-        Set<String> stidClassNames = stidGenerator.getClassNamesWithStableIds(sourceDBA);
+        return stidGenerator.getClassNamesWithStableIds(sourceDBA);
+    }
+    
+    private List<GKInstance> findInstancesWithoutStableIds(final Set<String> stidClassNames) throws Exception {
+        return scan(inst -> {
+            if (!stidClassNames.contains(inst.getSchemClass().getName()))
+                return null;
+            GKInstance stableId = (GKInstance) inst.getAttributeValue(ReactomeJavaConstants.stableIdentifier);
+            if (stableId == null)
+                return inst;
+            return null;
+        });
+    }
+    
+    private void reportInstancesWithoutStableIds(List<GKInstance> instances,
+                                                 PrintStream output) {
         output.println("StableIdentifier checking...");
-        int count = 0;
-        for (Long dbId : sliceMap.keySet()) {
-            GKInstance inst = sliceMap.get(dbId);
-            if (stidClassNames.contains(inst.getSchemClass().getName())) {
-                GKInstance stableId = (GKInstance) inst.getAttributeValue(ReactomeJavaConstants.stableIdentifier);
-                if (stableId == null) {
-                    output.println(inst + " has no stableIdentifier.");
-                    count ++;
-                }
-            }
-        }
-        output.println("Total instances requiring stableIdentifiers but not having them: " + count);
+        for (GKInstance inst : instances)
+            output.println(inst + " has no stableIdentifier.");
+        output.println("Total instances requiring stableIdentifiers but not having them: " + instances.size());
     }
     
     /**
@@ -210,16 +319,93 @@ public class SlicingQualityAssay {
      * @throws Exception
      */
     public void validateUpdateTrackers(PrintStream output) throws Exception {
-        for (Iterator it = sliceMap.keySet().iterator(); it.hasNext();) {
-            Long dbId = (Long) it.next();
-            GKInstance inst = sliceMap.get(dbId);
+        loadUpdatedInstances();
+        excludeUpdateTrackers(findEmptyUpdateTrackers(), output);
+    }
+    
+    private List<GKInstance> findEmptyUpdateTrackers() throws Exception {
+        return scan(inst -> {
             if (!inst.getSchemClass().isa(ReactomeJavaConstants._UpdateTracker))
-                continue;
+                return null;
             List<GKInstance> updatedInstances = inst.getAttributeValuesList(ReactomeJavaConstants.updatedInstance);
-            if (updatedInstances == null || updatedInstances.size() == 0) {
-                output.println("_UpdatedTracker is exluded: " + inst);
-                it.remove();
+            if (updatedInstances == null || updatedInstances.size() == 0)
+                return inst;
+            return null;
+        });
+    }
+    
+    private void excludeUpdateTrackers(List<GKInstance> updateTrackers,
+                                       PrintStream output) {
+        for (GKInstance inst : updateTrackers) {
+            output.println("_UpdatedTracker is exluded: " + inst);
+            sliceMap.remove(inst.getDBID());
+        }
+    }
+    
+    /**
+     * Check all instances in the slice in parallel. The slice should not be changed during
+     * scanning. Values used by checkers should have been loaded.
+     * @param checker returns null if nothing should be reported for an instance.
+     * @return non-null results in the order of the slice.
+     * @throws Exception
+     */
+    private <T> List<T> scan(final InstanceChecker<T> checker) throws Exception {
+        final List<GKInstance> instances = new ArrayList<GKInstance>(sliceMap.values());
+        ForkJoinPool pool = this.pool;
+        if (pool == null)
+            pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            return pool.submit(() -> instances.parallelStream()
+                                              .map(inst -> {
+                                                  try {
+                                                      return checker.check(inst);
+                                                  }
+                                                  catch(Exception e) {
+                                                      throw new CheckerException(e);
+                                                  }
+                                              })
+                                              .filter(Objects::nonNull)
+                                              .collect(Collectors.toList())).get();
+        }
+        catch(ExecutionException e) {
+            // Throw the original exception
+            for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+                if (t instanceof CheckerException && t.getCause() instanceof Exception)
+                    throw (Exception) t.getCause();
             }
+            throw e;
+        }
+        finally {
+            if (pool != this.pool)
+                pool.shutdown();
+        }
+    }
+    
+    private interface InstanceChecker<T> {
+        public T check(GKInstance instance) throws Exception;
+    }
+    
+    /**
+     * Used to pass an exception thrown by an InstanceChecker through a stream.
+     */
+    private static class CheckerException extends RuntimeException {
+        
+        public CheckerException(Throwable cause) {
+            super(cause);
+        }
+    }
+    
+    private static class RemovedReference {
+        private GKInstance instance;
+        private SchemaAttribute att;
+        private GKInstance ref;
+        
+        public RemovedReference(GKInstance instance,
+                                SchemaAttribute att,
+                                GKInstance ref) {
+            this.instance = instance;
+            this.att = att;
+            this.ref = ref;
         }
     }
     
@@ -4,15 +4,26 @@ import static org.gk.slicing.updateTracker.utils.DBUtils.getCreatedInstanceEdit;
 import static org.gk.slicing.updateTracker.utils.DBUtils.getMostRecentReleaseInstance;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.gk.model.GKInstance;
 import org.gk.model.InstanceDisplayNameGenerator;
 import org.gk.model.ReactomeJavaConstants;
 import org.gk.persistence.MySQLAdaptor;
+import org.gk.schema.GKSchema;
+import org.gk.schema.GKSchemaClass;
+import org.gk.schema.SchemaAttribute;
+import org.gk.schema.SchemaClass;
+import org.gk.slicing.BulkInstanceWriter;
 import org.gk.slicing.updateTracker.comparer.EventComparer;
 import org.gk.slicing.updateTracker.comparer.InstanceComparer;
 import org.gk.slicing.updateTracker.comparer.physicalentity.PhysicalEntityComparerFactory;
@@ -28,8 +39,20 @@ import org.gk.slicing.updateTracker.utils.DBUtils;
  */
 public class UpdateTrackerHandler {
     private final static Logger logger = Logger.getLogger(UpdateTracker.class);
+    // Instance-type attributes followed by comparers into other instances
+    private final static String[] CHILD_ATTRIBUTES = {
+        ReactomeJavaConstants.hasComponent,
+        ReactomeJavaConstants.hasMember,
+        ReactomeJavaConstants.hasCandidate,
+        ReactomeJavaConstants.repeatedUnit,
+        ReactomeJavaConstants.summation,
+        ReactomeJavaConstants.regulatedBy
+    };
 
     private EventComparer eventComparer;
+    private EventMatcher eventMatcher;
+    // Number of threads used to compare instance pairs
+    private int threads = Runtime.getRuntime().availableProcessors();
 
     private DbAdaptorMap dbAdaptorMap;
     private long personId;
@@ -46,6 +69,19 @@ public class UpdateTrackerHandler {
         this.personId = personId;
     }
 
+    /**
+     * Set the number of threads used to compare instance pairs. The default is the number of
+     * available processors.
+     * @param threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
     public void handleUpdateTrackerInstances(boolean uploadUpdateTrackerInstancesToSource) throws Exception {
         if (uploadUpdateTrackerInstancesToSource) {
         	logger.info("Storing release instance in source database");
@@ -85,39 +121,194 @@ public class UpdateTrackerHandler {
         InstanceMatcher instanceMatcher = getInstanceMatcher(comparisonType);
 
         logger.info("Getting " + comparisonType.name() + " instance pairs...");
-        Set<Map.Entry<GKInstance,GKInstance>> equivalentInstancePairs =
-            instanceMatcher.getCurationPreviousToCurrentInstanceMap().entrySet();
+        List<Map.Entry<GKInstance,GKInstance>> equivalentInstancePairs =
+            new ArrayList<>(instanceMatcher.getCurationPreviousToCurrentInstanceMap().entrySet());
 
         logger.info("Instance pairs size: " + equivalentInstancePairs.size());
+        loadComparedAttributeValues(equivalentInstancePairs);
+        List<Set<Action>> pairActions = getChanges(comparisonType, equivalentInstancePairs);
+
+        Map<Long, GKInstance> dbIdToSourceInstance = new HashMap<>();
+        if (uploadUpdateTrackerInstancesToSource) {
+            dbIdToSourceInstance = fetchSourceInstances(equivalentInstancePairs, pairActions);
+        }
         List<GKInstance> toBeUploadedToSrcDBA = new ArrayList<>();
-        for (Map.Entry<GKInstance, GKInstance> equivalentInstancePair : equivalentInstancePairs) {
-            Set<Action> actions = getInstanceComparer(comparisonType, equivalentInstancePair)
-                .getChanges(equivalentInstancePair);
+        List<GKInstance> toBeStoredInSliceDBA = new ArrayList<>();
+        for (int i = 0; i < equivalentInstancePairs.size(); i++) {
+            Set<Action> actions = pairActions.get(i);
 
             if (!actions.isEmpty()) {
                 logger.info("Actions " + actions);
-                GKInstance currentInstance = equivalentInstancePair.getValue();
+                GKInstance currentInstance = equivalentInstancePairs.get(i).getValue();
 
                 if (uploadUpdateTrackerInstancesToSource) {
-                    logger.info("Adding toBeUploadedToSrcDBA " + currentInstance);
-                    GKInstance sourceInstance = getSourceDBA().fetchInstance(currentInstance.getDBID());
-                    GKInstance updateTracker = sourceUpdateTrackerBuilder
-                        .build(sourceInstance, actions)
-                        .createUpdateTrackerInstance(getSourceDBA());
-                    toBeUploadedToSrcDBA.add(updateTracker);
+                    GKInstance sourceInstance = dbIdToSourceInstance.get(currentInstance.getDBID());
+                    if (sourceInstance == null) {
+                        logger.warn("Cannot find " + currentInstance + " in the source database");
+                    }
+                    else {
+                        logger.info("Adding toBeUploadedToSrcDBA " + currentInstance);
+                        GKInstance updateTracker = sourceUpdateTrackerBuilder
+                            .build(sourceInstance, actions)
+                            .createUpdateTrackerInstance(getSourceDBA());
+                        toBeUploadedToSrcDBA.add(updateTracker);
+                    }
                 }
 
-                logger.info("Storing instance in current slice dba " + currentInstance);
-                getCurrentSliceDBA().storeInstance(
+                logger.info("Adding toBeStoredInSliceDBA " + currentInstance);
+                toBeStoredInSliceDBA.add(
                     sliceUpdateTrackerBuilder
                         .build(currentInstance, actions)
                         .createUpdateTrackerInstance(getCurrentSliceDBA())
                 );
             }
         }
+        storeInSliceDB(toBeStoredInSliceDBA);
         commitToSourceDB(toBeUploadedToSrcDBA);
     }
 
+    /**
+     * Compare instance pairs in a pool of threads. Values used by comparers should have been loaded
+     * by loadComparedAttributeValues() so that comparing doesn't query databases.
+     * @return actions for each pair in the same order as the passed pairs.
+     */
+    private List<Set<Action>> getChanges(ComparisonType comparisonType,
+                                         List<Map.Entry<GKInstance, GKInstance>> equivalentInstancePairs)
+        throws Exception {
+        long time1 = System.currentTimeMillis();
+        List<Set<Action>> pairActions = new ArrayList<>(equivalentInstancePairs.size());
+        if (threads < 2 || equivalentInstancePairs.size() < 2) {
+            for (Map.Entry<GKInstance, GKInstance> equivalentInstancePair : equivalentInstancePairs) {
+                pairActions.add(getInstanceComparer(comparisonType, equivalentInstancePair)
+                    .getChanges(equivalentInstancePair));
+            }
+        } else {
+            // Make sure the comparer is created in this thread
+            if (comparisonType == ComparisonType.EVENT) {
+                getEventComparer();
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Set<Action>>> futures = new ArrayList<>(equivalentInstancePairs.size());
+                for (Map.Entry<GKInstance, GKInstance> equivalentInstancePair : equivalentInstancePairs) {
+                    futures.add(executor.submit(() -> getInstanceComparer(comparisonType, equivalentInstancePair)
+                        .getChanges(equivalentInstancePair)));
+                }
+                for (Future<Set<Action>> future : futures) {
+                    pairActions.add(future.get());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        long time2 = System.currentTimeMillis();
+        logger.info("Time for comparing " + equivalentInstancePairs.size() + " pairs: " + (time2 - time1) + " ms");
+        return pairActions;
+    }
+
+    /**
+     * Load attribute values of compared instances and instances reached by comparers (e.g. components
+     * and summations) from their databases in bulk.
+     */
+    private void loadComparedAttributeValues(List<Map.Entry<GKInstance, GKInstance>> equivalentInstancePairs)
+        throws Exception {
+        Set<GKInstance> previousInstances = new HashSet<>();
+        Set<GKInstance> currentInstances = new HashSet<>();
+        for (Map.Entry<GKInstance, GKInstance> equivalentInstancePair : equivalentInstancePairs) {
+            previousInstances.add(equivalentInstancePair.getKey());
+            currentInstances.add(equivalentInstancePair.getValue());
+        }
+        long time1 = System.currentTimeMillis();
+        loadAttributeValues(getPreviousSliceDBA(), previousInstances);
+        loadAttributeValues(getCurrentSliceDBA(), currentInstances);
+        long time2 = System.currentTimeMillis();
+        logger.info("Time for loading compared attribute values: " + (time2 - time1) + " ms");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadAttributeValues(MySQLAdaptor dbAdaptor, Collection<GKInstance> instances) throws Exception {
+        boolean needRegulationReferers = isRegulatedEntityUsed(dbAdaptor);
+        Set<GKInstance> loaded = new HashSet<>();
+        Set<GKInstance> toBeLoaded = new HashSet<>(instances);
+        while (!toBeLoaded.isEmpty()) {
+            dbAdaptor.loadInstanceAttributeValues(toBeLoaded);
+            loaded.addAll(toBeLoaded);
+            if (needRegulationReferers) {
+                dbAdaptor.loadInstanceReverseAttributeValues(toBeLoaded,
+                                                             new String[] {ReactomeJavaConstants.regulatedEntity});
+                markReferersLoaded(toBeLoaded, ReactomeJavaConstants.regulatedEntity);
+            }
+            Set<GKInstance> next = new HashSet<>();
+            for (GKInstance instance : toBeLoaded) {
+                for (String attName : CHILD_ATTRIBUTES) {
+                    if (instance.getSchemClass().isValidAttribute(attName)) {
+                        next.addAll(instance.getAttributeValuesList(attName));
+                    }
+                }
+                if (needRegulationReferers) {
+                    Collection<GKInstance> regulations = instance.getReferers(ReactomeJavaConstants.regulatedEntity);
+                    if (regulations != null) {
+                        next.addAll(regulations);
+                    }
+                }
+            }
+            next.removeAll(loaded);
+            toBeLoaded = next;
+        }
+    }
+
+    /**
+     * MySQLAdaptor.loadInstanceReverseAttributeValues() doesn't mark referers as loaded for instances
+     * without any referer. An empty collection is set for them so that comparers, which run in other
+     * threads, don't query the database via GKInstance.getReferers().
+     */
+    private void markReferersLoaded(Collection<GKInstance> instances, String attName) throws Exception {
+        for (GKInstance instance : instances) {
+            GKSchemaClass cls = (GKSchemaClass) instance.getSchemClass();
+            for (Object att : cls.getReferersByName(attName)) {
+                if (!instance.isRefererValueLoaded((SchemaAttribute) att)) {
+                    instance.setRefererNoCheck((SchemaAttribute) att, new ArrayList<GKInstance>());
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if Regulations refer to regulated events via regulatedEntity (an older schema).
+     */
+    private boolean isRegulatedEntityUsed(MySQLAdaptor dbAdaptor) throws Exception {
+        if (dbAdaptor.getSchema() == null) {
+            dbAdaptor.fetchSchema();
+        }
+        GKSchema schema = (GKSchema) dbAdaptor.getSchema();
+        if (!schema.isValidClass(ReactomeJavaConstants.Regulation)) {
+            return false;
+        }
+        SchemaClass regulationCls = schema.getClassByName(ReactomeJavaConstants.Regulation);
+        return regulationCls.isValidAttribute(ReactomeJavaConstants.regulatedEntity);
+    }
+
+    /**
+     * Fetch instances having changes from the source database in bulk.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Long, GKInstance> fetchSourceInstances(List<Map.Entry<GKInstance, GKInstance>> equivalentInstancePairs,
+                                                       List<Set<Action>> pairActions) throws Exception {
+        List<Long> dbIds = new ArrayList<>();
+        for (int i = 0; i < equivalentInstancePairs.size(); i++) {
+            if (!pairActions.get(i).isEmpty()) {
+                dbIds.add(equivalentInstancePairs.get(i).getValue().getDBID());
+            }
+        }
+        Map<Long, GKInstance> dbIdToInstance = new HashMap<>();
+        String rootClassName = ((GKSchema) getSourceDBA().getSchema()).getRootClass().getName();
+        Collection<GKInstance> instances = getSourceDBA().fetchInstances(rootClassName, dbIds);
+        for (GKInstance instance : instances) {
+            dbIdToInstance.put(instance.getDBID(), instance);
+        }
+        return dbIdToInstance;
+    }
+
     private InstanceComparer getInstanceComparer(ComparisonType comparisonType, Map.Entry<GKInstance, GKInstance> equivalentInstancePair) throws Exception {
         InstanceComparer instanceComparer;
         if (comparisonType == ComparisonType.EVENT) {
@@ -128,21 +319,29 @@ public class UpdateTrackerHandler {
         return instanceComparer;
     }
 
-    private EventComparer getEventComparer() throws Exception {
+    private synchronized EventComparer getEventComparer() throws Exception {
         if (this.eventComparer == null) {
-            this.eventComparer = new EventComparer(new EventMatcher(getPreviousSliceDBA(), getCurrentSliceDBA(), getSourceDBA()));
+            this.eventComparer = new EventComparer(getEventMatcher());
         }
         return this.eventComparer;
     }
 
+    private EventMatcher getEventMatcher() throws Exception {
+        // The same matcher is used for pairs and by EventComparer
+        if (this.eventMatcher == null) {
+            this.eventMatcher = new EventMatcher(
+                getDbAdaptorMap().getOlderDbAdaptor(),
+                getDbAdaptorMap().getNewerDbAdaptor(),
+                getDbAdaptorMap().getTargetDbAdaptor());
+        }
+        return this.eventMatcher;
+    }
+
     private InstanceMatcher getInstanceMatcher(ComparisonType comparisonType)
         throws Exception {
         InstanceMatcher instanceMatcher;
         if (comparisonType == ComparisonType.EVENT) {
-            instanceMatcher = new EventMatcher(
-                getDbAdaptorMap().getOlderDbAdaptor(),
-                getDbAdaptorMap().getNewerDbAdaptor(),
-                getDbAdaptorMap().getTargetDbAdaptor());
+            instanceMatcher = getEventMatcher();
         } else {
             instanceMatcher = new PhysicalEntityMatcher(
                 getDbAdaptorMap().getOlderDbAdaptor(),
@@ -152,6 +351,55 @@ public class UpdateTrackerHandler {
         return instanceMatcher;
     }
 
+    /**
+     * Store _UpdateTracker instances in the current slice with multi-row INSERTs in one transaction.
+     * The slice is not changed by others during slicing so DB_IDs are assigned after the largest one.
+     */
+    private void storeInSliceDB(List<GKInstance> instances) throws Exception {
+        if (instances == null || instances.size() == 0)
+            return; // Nothing to do.
+        logger.info("Instances to store in current slice database: " + instances.size());
+        MySQLAdaptor sliceDBA = getCurrentSliceDBA();
+        boolean needTransaction = sliceDBA.supportsTransactions();
+        try {
+            if (needTransaction) {
+                sliceDBA.startTransaction();
+            }
+            // The shared InstanceEdit and _Release should be stored first
+            GKInstance firstInstance = instances.get(0);
+            for (String attName : new String[] {ReactomeJavaConstants.created, ReactomeJavaConstants._release}) {
+                GKInstance value = (GKInstance) firstInstance.getAttributeValue(attName);
+                if (value != null && value.getDBID() == null) {
+                    sliceDBA.storeInstance(value);
+                }
+            }
+            long dbId = sliceDBA.fetchMaxDbId();
+            if (dbId < 0) {
+                throw new IllegalStateException("Cannot get the largest DB_ID in " + sliceDBA);
+            }
+            BulkInstanceWriter writer = new BulkInstanceWriter(sliceDBA);
+            try {
+                for (GKInstance instance : instances) {
+                    instance.setDBID(++dbId);
+                    writer.write(instance);
+                }
+                writer.flush();
+            }
+            finally {
+                writer.close();
+            }
+            if (needTransaction) {
+                sliceDBA.commit();
+            }
+        } catch(Exception e) {
+            if (needTransaction) {
+                sliceDBA.rollback();
+            }
+            logger.error("UpdateTrackerHandler.storeInSliceDB(): " + e, e);
+            throw e;
+        }
+    }
+
     private void commitToSourceDB(List<GKInstance> instances) throws Exception {
         if (instances == null || instances.size() == 0)
             return; // Nothing to do.
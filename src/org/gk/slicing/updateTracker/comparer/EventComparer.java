@@ -208,10 +208,12 @@ public class EventComparer extends InstanceComparer {
             return null;
         }
 
-        return getPreviousToCurrentInstanceMap().entrySet().stream()
-            .filter(entry -> entry.getKey().getDBID().equals(previousEvent.getDBID()))
-            .findFirst()
-            .orElse(null);
+        // Pairs are kept in both maps
+        GKInstance currentEvent = getPreviousToCurrentInstanceMap().get(previousEvent);
+        if (currentEvent == null) {
+            return null;
+        }
+        return new AbstractMap.SimpleEntry<>(previousEvent, currentEvent);
     }
 
     private Map<GKInstance, GKInstance> getPreviousToCurrentInstanceMap() {
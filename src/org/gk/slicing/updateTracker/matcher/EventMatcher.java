@@ -20,7 +20,9 @@ public class EventMatcher extends InstanceMatcher {
     @Override
     protected List<GKInstance> getManuallyCuratedInstances(MySQLAdaptor dbAdaptor) throws Exception {
         List<GKInstance> manuallyCuratedEvents = new ArrayList<>();
-        for (GKInstance event : getAllInstancesFromDBA(dbAdaptor)) {
+        List<GKInstance> events = getAllInstancesFromDBA(dbAdaptor);
+        loadAttributeValues(dbAdaptor, events, ReactomeJavaConstants.evidenceType, ReactomeJavaConstants.species);
+        for (GKInstance event : events) {
             if (!isElectronicallyInferred(event)) {
                 manuallyCuratedEvents.add(event);
             }
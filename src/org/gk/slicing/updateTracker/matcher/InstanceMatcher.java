@@ -1,9 +1,13 @@
 package org.gk.slicing.updateTracker.matcher;
 
 import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
 import org.gk.persistence.MySQLAdaptor;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Joel Weiser (joel.weiser@oicr.on.ca)
@@ -67,10 +71,8 @@ public abstract class InstanceMatcher {
     protected abstract List<GKInstance> getManuallyCuratedInstances(MySQLAdaptor dbAdaptor) throws Exception;
 
     protected GKInstance getEquivalentInstance(
-        GKInstance instance, List<GKInstance> instancesToCheck, boolean checkClass) {
-        GKInstance equivalentInstance = instancesToCheck.stream().filter(
-            instanceToCheck -> instanceToCheck.getDBID().equals(instance.getDBID())
-        ).findFirst().orElse(null);
+        GKInstance instance, Map<Long, GKInstance> dbIdToInstancesToCheck, boolean checkClass) {
+        GKInstance equivalentInstance = dbIdToInstancesToCheck.get(instance.getDBID());
 
         if (equivalentInstance != null) {
             // Quality Check
@@ -100,6 +102,33 @@ public abstract class InstanceMatcher {
         return new ArrayList<>((Collection<GKInstance>) dba.fetchInstancesByClass(getInstanceType()));
     }
 
+    /**
+     * Load values of the passed attributes for all passed instances in bulk so that filtering
+     * instances doesn't query the database for each instance. Display names of referred instances
+     * are loaded too.
+     */
+    @SuppressWarnings("unchecked")
+    protected void loadAttributeValues(MySQLAdaptor dba, Collection<GKInstance> instances, String... attNames)
+        throws Exception {
+        if (instances.isEmpty()) {
+            return;
+        }
+        dba.loadInstanceAttributeValues(instances, attNames);
+        Set<GKInstance> referredInstances = new HashSet<>();
+        for (GKInstance instance : instances) {
+            for (String attName : attNames) {
+                if (!instance.getSchemClass().isValidAttribute(attName) ||
+                    !instance.getSchemClass().getAttribute(attName).isInstanceTypeAttribute()) {
+                    continue;
+                }
+                referredInstances.addAll(instance.getAttributeValuesList(attName));
+            }
+        }
+        if (!referredInstances.isEmpty()) {
+            dba.loadInstanceAttributeValues(referredInstances, new String[] {ReactomeJavaConstants._displayName});
+        }
+    }
+
     protected abstract String getInstanceType();
 
     private void analyzeInstances() throws Exception {
@@ -112,13 +141,18 @@ public abstract class InstanceMatcher {
         List<GKInstance> removedInstances = new ArrayList<>();
         List<GKInstance> addedInstances = new ArrayList<>();
 
-        List<GKInstance> previousInstances = getManuallyCuratedInstances(this.previousDBA);
-        List<GKInstance> currentInstances = getManuallyCuratedInstances(this.currentDBA);
+        List<List<GKInstance>> manuallyCuratedInstances = getManuallyCuratedInstances(
+            this.previousDBA, this.currentDBA, this.curationDBA);
+        List<GKInstance> previousInstances = manuallyCuratedInstances.get(0);
+        List<GKInstance> currentInstances = manuallyCuratedInstances.get(1);
+        List<GKInstance> curationInstances = manuallyCuratedInstances.get(2);
 
-        List<GKInstance> curationInstances = getManuallyCuratedInstances(this.curationDBA);
+        // Instances are joined by DB_IDs
+        Map<Long, GKInstance> dbIdToPreviousInstance = getDbIdToInstance(previousInstances);
+        Map<Long, GKInstance> dbIdToCurationInstance = getDbIdToInstance(curationInstances);
 
         for (GKInstance currentInstance : currentInstances) {
-            GKInstance previousInstance = getEquivalentInstance(currentInstance, previousInstances, true);
+            GKInstance previousInstance = getEquivalentInstance(currentInstance, dbIdToPreviousInstance, true);
             if (previousInstance == null) {
                 addedInstances.add(currentInstance);
             } else {
@@ -140,7 +174,7 @@ public abstract class InstanceMatcher {
                 currentToPreviousInstances.put(currentInstance, previousInstance);
 
                 GKInstance curationInstance = getEquivalentInstance(
-                    currentInstance, curationInstances, false);
+                    currentInstance, dbIdToCurationInstance, false);
                 if (curationInstance != null) {
                     curationPreviousToCurrentInstances.put(previousInstance, currentInstance);
                     curationCurrentToPreviousInstances.put(currentInstance, previousInstance);
@@ -161,4 +195,42 @@ public abstract class InstanceMatcher {
         this.addedInstances = addedInstances;
         this.removedInstances = removedInstances;
     }
+
+    private Map<Long, GKInstance> getDbIdToInstance(List<GKInstance> instances) {
+        Map<Long, GKInstance> dbIdToInstance = new HashMap<>(instances.size() * 4 / 3 + 1);
+        for (GKInstance instance : instances) {
+            // Keep the first one as the list was scanned before
+            dbIdToInstance.putIfAbsent(instance.getDBID(), instance);
+        }
+        return dbIdToInstance;
+    }
+
+    /**
+     * Get manually curated instances from the passed databases. Databases are scanned at the same time
+     * if they are different MySQLAdaptor objects, since a MySQLAdaptor cannot be used by several threads.
+     */
+    private List<List<GKInstance>> getManuallyCuratedInstances(MySQLAdaptor... dbAdaptors) throws Exception {
+        List<List<GKInstance>> rtn = new ArrayList<>();
+        Set<MySQLAdaptor> distinctDbAdaptors = Collections.newSetFromMap(new IdentityHashMap<>());
+        distinctDbAdaptors.addAll(Arrays.asList(dbAdaptors));
+        if (distinctDbAdaptors.size() < dbAdaptors.length) {
+            for (MySQLAdaptor dbAdaptor : dbAdaptors) {
+                rtn.add(getManuallyCuratedInstances(dbAdaptor));
+            }
+            return rtn;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(dbAdaptors.length);
+        try {
+            List<Future<List<GKInstance>>> futures = new ArrayList<>();
+            for (MySQLAdaptor dbAdaptor : dbAdaptors) {
+                futures.add(executor.submit(() -> getManuallyCuratedInstances(dbAdaptor)));
+            }
+            for (Future<List<GKInstance>> future : futures) {
+                rtn.add(future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return rtn;
+    }
 }
@@ -5,7 +5,11 @@ import org.gk.model.ReactomeJavaConstants;
 import org.gk.persistence.MySQLAdaptor;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -23,7 +27,10 @@ public class PhysicalEntityMatcher extends InstanceMatcher {
     @Override
     protected List<GKInstance> getManuallyCuratedInstances(MySQLAdaptor dbAdaptor) throws Exception {
         List<GKInstance> manuallyCuratedPhysicalEntities = new ArrayList<>();
-        for (GKInstance physicalEntity : getAllInstancesFromDBA(dbAdaptor)) {
+        List<GKInstance> physicalEntities = getAllInstancesFromDBA(dbAdaptor);
+        loadAttributeValues(dbAdaptor, physicalEntities, ReactomeJavaConstants.species, ReactomeJavaConstants.inferredFrom);
+        loadAttributeValues(dbAdaptor, getInferredFromInstances(physicalEntities), ReactomeJavaConstants.species);
+        for (GKInstance physicalEntity : physicalEntities) {
             if (!isElectronicallyInferred(physicalEntity)) {
                 manuallyCuratedPhysicalEntities.add(physicalEntity);
             }
@@ -36,6 +43,28 @@ public class PhysicalEntityMatcher extends InstanceMatcher {
         return ReactomeJavaConstants.PhysicalEntity;
     }
 
+    /**
+     * Get instances in inferredFrom, which are not in the passed list, so that their species can be loaded.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<GKInstance> getInferredFromInstances(List<GKInstance> physicalEntities) throws Exception {
+        Set<GKInstance> physicalEntitySet = Collections.newSetFromMap(new IdentityHashMap<>());
+        physicalEntitySet.addAll(physicalEntities);
+        Set<GKInstance> sourceInstances = new HashSet<>();
+        for (GKInstance physicalEntity : physicalEntities) {
+            if (!physicalEntity.getSchemClass().isValidAttribute(ReactomeJavaConstants.inferredFrom)) {
+                continue;
+            }
+            List<GKInstance> values = physicalEntity.getAttributeValuesList(ReactomeJavaConstants.inferredFrom);
+            for (GKInstance value : values) {
+                if (!physicalEntitySet.contains(value)) {
+                    sourceInstances.add(value);
+                }
+            }
+        }
+        return sourceInstances;
+    }
+
     private boolean isElectronicallyInferred(GKInstance instance) throws Exception {
         return hasOnlyNonHumanSpecies(instance) && inferredExclusivelyFromHuman(instance);
     }
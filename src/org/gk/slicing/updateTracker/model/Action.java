@@ -1,7 +1,7 @@
 package org.gk.slicing.updateTracker.model;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Joel Weiser (joel.weiser@oicr.on.ca)
@@ -10,7 +10,8 @@ public class Action implements Comparable<Action> {
     private ActionType actionType;
     private ActionObject actionObject;
 
-    private static Map<ActionType, Map<ActionObject, Action>> actionCache = new HashMap<>();
+    // Actions may be created by several threads comparing instances
+    private static Map<ActionType, Map<ActionObject, Action>> actionCache = new ConcurrentHashMap<>();
 
     /**
      * Returns the Action object representing the change to a physical entity or event (e.g. "addInput",
@@ -22,7 +23,7 @@ public class Action implements Comparable<Action> {
      */
     public static Action getAction(ActionType actionType, ActionObject actionObject) {
         return actionCache
-            .computeIfAbsent(actionType, k -> new HashMap<>())
+            .computeIfAbsent(actionType, k -> new ConcurrentHashMap<>())
             .computeIfAbsent(actionObject, k -> new Action(actionType, actionObject));
     }
 
@@ -30,8 +30,8 @@ public class GKFileFilter extends FileFilter {
 		int index = fileName.lastIndexOf(".");
 		if (index == -1)
 		    return false; // No ext not accepted
-		String ext = fileName.substring(index);
-		if (extName.equalsIgnoreCase(ext))
+		// Use endsWith so that an ext name having more than one dot (e.g. .rtpj.gz) can be used
+		if (fileName.toLowerCase().endsWith(extName.toLowerCase()))
 			return true;
 		return false;
 	}
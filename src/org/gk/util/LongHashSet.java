@@ -0,0 +1,149 @@
+package org.gk.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive long values using open addressing with linear probing. Compared with
+ * a HashSet of Long objects, no object is created for each value, so it is much smaller and
+ * faster when millions of DB_IDs need to be tracked (e.g. during slicing). This class is not
+ * thread-safe.
+ */
+public class LongHashSet {
+    private static final int DEFAULT_CAPACITY = 1024;
+    // Rehash when the table is more than half full
+    private static final float LOAD_FACTOR = 0.5f;
+    // Used to mark an empty slot. The value itself is tracked by hasEmptyValue.
+    private static final long EMPTY = 0L;
+
+    private long[] table;
+    private int size;
+    private boolean hasEmptyValue;
+    private int threshold;
+
+    public LongHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the number of values expected to be added without rehashing
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize)
+            capacity <<= 1;
+        table = new long[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @param value
+     * @return true if the value was not in this set.
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (hasEmptyValue)
+                return false;
+            hasEmptyValue = true;
+            size ++;
+            return true;
+        }
+        int index = indexOf(value, table);
+        if (table[index] == value)
+            return false;
+        table[index] = value;
+        size ++;
+        if (size > threshold)
+            rehash(table.length << 1);
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY)
+            return hasEmptyValue;
+        return table[indexOf(value, table)] == value;
+    }
+
+    /**
+     * @param value
+     * @return true if the value was in this set.
+     */
+    public boolean remove(long value) {
+        if (value == EMPTY) {
+            if (!hasEmptyValue)
+                return false;
+            hasEmptyValue = false;
+            size --;
+            return true;
+        }
+        int index = indexOf(value, table);
+        if (table[index] != value)
+            return false;
+        table[index] = EMPTY;
+        size --;
+        // Re-insert the following values in the same cluster so that they can still be found
+        int mask = table.length - 1;
+        for (int i = (index + 1) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            long tmp = table[i];
+            table[i] = EMPTY;
+            table[indexOf(tmp, table)] = tmp;
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+        hasEmptyValue = false;
+        size = 0;
+    }
+
+    /**
+     * @return all values in this set in no particular order.
+     */
+    public long[] toArray() {
+        long[] values = new long[size];
+        int i = 0;
+        if (hasEmptyValue)
+            values[i++] = EMPTY;
+        for (long value : table) {
+            if (value != EMPTY)
+                values[i++] = value;
+        }
+        return values;
+    }
+
+    /**
+     * @return the slot containing the value, or the empty slot where it should be put.
+     */
+    private int indexOf(long value, long[] table) {
+        int mask = table.length - 1;
+        int index = hash(value) & mask;
+        while (table[index] != EMPTY && table[index] != value)
+            index = (index + 1) & mask;
+        return index;
+    }
+
+    private void rehash(int capacity) {
+        long[] newTable = new long[capacity];
+        for (long value : table) {
+            if (value != EMPTY)
+                newTable[indexOf(value, newTable)] = value;
+        }
+        table = newTable;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int hash(long value) {
+        // Mix bits since DB_IDs are usually sequential
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,184 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.MySQLAdaptor;
+import org.gk.persistence.XMLFileAdaptor;
+import org.gk.schema.Schema;
+import org.gk.slicing.BulkInstanceWriter;
+import org.junit.Test;
+
+public class BulkInstanceWriterTest {
+
+    /**
+     * A MySQLAdaptor without a database. Prepared statements are recorded, and executing
+     * them may be set to fail.
+     */
+    private static class StubAdaptor extends MySQLAdaptor {
+        private Schema schema;
+        private List<String> executedStatements = new ArrayList<String>();
+        private List<String> openStatements = new ArrayList<String>();
+        private boolean failExecuting;
+
+        public StubAdaptor(Schema schema) {
+            this.schema = schema;
+        }
+
+        @Override
+        public Schema getSchema() {
+            return schema;
+        }
+
+        @Override
+        public Connection getConnection() {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                       new Class<?>[]{Connection.class},
+                                                       new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("prepareStatement"))
+                        return createStatement((String) args[0]);
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+
+        private PreparedStatement createStatement(final String sql) {
+            openStatements.add(sql);
+            return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                              new Class<?>[]{PreparedStatement.class},
+                                                              new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("setObject"))
+                        return null;
+                    if (name.equals("executeUpdate")) {
+                        if (failExecuting)
+                            throw new SQLException("Executing is set to fail");
+                        executedStatements.add(sql);
+                        return 0;
+                    }
+                    if (name.equals("close")) {
+                        openStatements.remove(sql);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(name);
+                }
+            });
+        }
+
+        /**
+         * @return the numbers of rows in executed INSERT statements into the passed table
+         */
+        private List<Integer> getInsertedRows(String table) {
+            List<Integer> rows = new ArrayList<Integer>();
+            for (String sql : executedStatements) {
+                if (sql.startsWith("INSERT INTO " + table + " "))
+                    rows.add(sql.split("\\),\\(").length);
+            }
+            return rows;
+        }
+    }
+
+    private GKInstance createCompartment(Schema schema, long dbId, String name) {
+        GKInstance instance = InstanceTestUtilities.createInstance(schema, ReactomeJavaConstants.Compartment, dbId);
+        instance.setDisplayName(name);
+        return instance;
+    }
+
+    private String repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++)
+            builder.append(text);
+        return builder.toString();
+    }
+
+    @Test
+    public void testEncodedLength() {
+        assertEquals(0, BulkInstanceWriter.getEncodedLength(""));
+        assertEquals(5, BulkInstanceWriter.getEncodedLength("ATP:1"));
+        // Latin-1, Greek, CJK and a supplementary character
+        assertEquals(2, BulkInstanceWriter.getEncodedLength("é"));
+        assertEquals(2, BulkInstanceWriter.getEncodedLength("α"));
+        assertEquals(3, BulkInstanceWriter.getEncodedLength("中"));
+        assertEquals(4, BulkInstanceWriter.getEncodedLength("😀"));
+        // An unpaired surrogate is encoded as a replacement character
+        assertEquals(3, BulkInstanceWriter.getEncodedLength("\ud83d"));
+        for (String text : Arrays.asList("TNF-α [plasma membrane]",
+                                         "β-D-glucose → 中😀",
+                                         "5′-AMP")) {
+            assertEquals(text,
+                         text.getBytes(StandardCharsets.UTF_8).length,
+                         BulkInstanceWriter.getEncodedLength(text));
+        }
+    }
+
+    @Test
+    public void testSplitByBytes() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        // 300,000 characters are 300,000 bytes in ASCII and 600,000 bytes in UTF-8 for e-acute.
+        // Two rows are under 1 MB in ASCII, but over it with multibyte characters.
+        StubAdaptor dba = new StubAdaptor(schema);
+        BulkInstanceWriter writer = new BulkInstanceWriter(dba);
+        writer.write(createCompartment(schema, 1L, repeat("a", 300000)));
+        writer.write(createCompartment(schema, 2L, repeat("a", 300000)));
+        assertEquals(0, dba.getInsertedRows("DatabaseObject").size());
+        writer.flush();
+        assertEquals(Arrays.asList(2), dba.getInsertedRows("DatabaseObject"));
+
+        dba = new StubAdaptor(schema);
+        writer = new BulkInstanceWriter(dba);
+        writer.write(createCompartment(schema, 1L, repeat("é", 300000)));
+        assertEquals(0, dba.getInsertedRows("DatabaseObject").size());
+        writer.write(createCompartment(schema, 2L, repeat("é", 300000)));
+        writer.write(createCompartment(schema, 3L, "cytosol"));
+        assertEquals(Arrays.asList(2), dba.getInsertedRows("DatabaseObject"));
+        writer.flush();
+        assertEquals(Arrays.asList(2, 1), dba.getInsertedRows("DatabaseObject"));
+        assertEquals(3, dba.getInsertedRows("Compartment").stream().mapToInt(Integer::intValue).sum());
+        assertTrue(dba.openStatements.isEmpty());
+    }
+
+    @Test
+    public void testClosingStatements() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        // Full batches use cached statements, which should be closed even without flushing
+        StubAdaptor dba = new StubAdaptor(schema);
+        BulkInstanceWriter writer = new BulkInstanceWriter(dba);
+        writer.setBatchSize(1);
+        writer.write(createCompartment(schema, 1L, "cytosol"));
+        assertTrue(dba.openStatements.size() > 0);
+        writer.close();
+        assertTrue(dba.openStatements.isEmpty());
+        // A statement for a partial batch should be closed when it fails
+        dba = new StubAdaptor(schema);
+        writer = new BulkInstanceWriter(dba);
+        writer.write(createCompartment(schema, 1L, "cytosol"));
+        dba.failExecuting = true;
+        try {
+            writer.flush();
+            fail("Flushing should fail");
+        }
+        catch(SQLException e) {
+        }
+        finally {
+            writer.close();
+        }
+        assertTrue(dba.openStatements.isEmpty());
+    }
+
+}
@@ -0,0 +1,148 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.XMLFileAdaptor;
+import org.gk.schema.Schema;
+import org.gk.schema.SchemaClass;
+import org.junit.Test;
+
+/**
+ * Make sure GKInstance works the same with or without the compact attribute storage.
+ */
+public class CompactAttributeStorageTest {
+
+    private static final Logger logger = Logger.getLogger(CompactAttributeStorageTest.class);
+
+    @Test
+    public void testAttributeValues() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        SchemaClass reactionCls = schema.getClassByName(ReactomeJavaConstants.Reaction);
+        SchemaClass pathwayCls = schema.getClassByName(ReactomeJavaConstants.Pathway);
+        for (boolean compact : new boolean[] {false, true}) {
+            GKInstance reaction = InstanceTestUtilities.createInstance(reactionCls, 1L);
+            reaction.setUseCompactStorage(compact);
+            assertEquals(compact, reaction.isUsingCompactStorage());
+            GKInstance input1 = InstanceTestUtilities.createInstance(schema.getClassByName(ReactomeJavaConstants.SimpleEntity), 2L);
+            input1.setUseCompactStorage(compact);
+            GKInstance input2 = InstanceTestUtilities.createInstance(schema.getClassByName(ReactomeJavaConstants.SimpleEntity), 3L);
+            input2.setUseCompactStorage(compact);
+            // Single value
+            reaction.setAttributeValue(ReactomeJavaConstants.name, "test");
+            assertEquals("test", reaction.getAttributeValue(ReactomeJavaConstants.name));
+            assertEquals(1, reaction.getAttributeValuesList(ReactomeJavaConstants.name).size());
+            // Multiple values
+            reaction.setAttributeValue(ReactomeJavaConstants.input, input1);
+            reaction.addAttributeValue(ReactomeJavaConstants.input, input2);
+            List inputs = reaction.getAttributeValuesList(ReactomeJavaConstants.input);
+            assertEquals(2, inputs.size());
+            assertEquals(input1, reaction.getAttributeValue(ReactomeJavaConstants.input));
+            // The returned list should be backed by the instance
+            inputs.remove(input1);
+            assertEquals(input2, reaction.getAttributeValue(ReactomeJavaConstants.input));
+            reaction.getAttributeValuesList(ReactomeJavaConstants.name).add("test1");
+            assertEquals(2, reaction.getAttributeValuesList(ReactomeJavaConstants.name).size());
+            // Empty values
+            reaction.setAttributeValue(ReactomeJavaConstants.output, null);
+            assertNull(reaction.getAttributeValue(ReactomeJavaConstants.output));
+            assertTrue(reaction.getAttributeValuesList(ReactomeJavaConstants.output).isEmpty());
+            reaction.setAttributeValue(ReactomeJavaConstants.output, new ArrayList());
+            assertNull(reaction.getAttributeValue(ReactomeJavaConstants.output));
+            // Values should be kept after the class is changed
+            reaction.setSchemaClass(pathwayCls);
+            assertEquals("test", reaction.getAttributeValue(ReactomeJavaConstants.name));
+            assertEquals(2, reaction.getAttributeValuesList(ReactomeJavaConstants.name).size());
+            reaction.setSchemaClass(reactionCls);
+            assertEquals(input2, reaction.getAttributeValue(ReactomeJavaConstants.input));
+            // Clone
+            GKInstance clone = (GKInstance) reaction.clone();
+            assertEquals(compact, clone.isUsingCompactStorage());
+            assertEquals(input2, clone.getAttributeValue(ReactomeJavaConstants.input));
+            // Referers
+            assertFalse(input2.isRefererValueLoaded(schema.getClassByName(ReactomeJavaConstants.Reaction).getAttribute(ReactomeJavaConstants.input)));
+            input2.addRefererNoCheck(reactionCls.getAttribute(ReactomeJavaConstants.input), reaction);
+            assertEquals(reaction, input2.getReferers(ReactomeJavaConstants.input).iterator().next());
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        SchemaClass reactionCls = schema.getClassByName(ReactomeJavaConstants.Reaction);
+        GKInstance reaction = InstanceTestUtilities.createInstance(reactionCls, 1L);
+        reaction.setUseCompactStorage(true);
+        GKInstance input = InstanceTestUtilities.createInstance(schema.getClassByName(ReactomeJavaConstants.SimpleEntity), 2L);
+        input.setUseCompactStorage(true);
+        reaction.setAttributeValue(ReactomeJavaConstants.name, "test");
+        reaction.addAttributeValue(ReactomeJavaConstants.name, "test1");
+        reaction.setAttributeValue(ReactomeJavaConstants.input, input);
+        reaction.setAttributeValue(ReactomeJavaConstants.output, null);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(reaction);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        GKInstance copy = (GKInstance) ois.readObject();
+        ois.close();
+        assertTrue(copy.isUsingCompactStorage());
+        assertEquals(2, copy.getAttributeValuesList(ReactomeJavaConstants.name).size());
+        assertEquals("test1", copy.getAttributeValuesList(ReactomeJavaConstants.name).get(1));
+        assertEquals(Long.valueOf(2L), ((GKInstance) copy.getAttributeValue(ReactomeJavaConstants.input)).getDBID());
+        // Loaded without any value
+        assertTrue(copy.isAttributeValueLoaded(reactionCls.getAttribute(ReactomeJavaConstants.output)));
+        assertTrue(copy.getAttributeValuesList(ReactomeJavaConstants.output).isEmpty());
+    }
+
+    /**
+     * Compare memory used by the two kinds of storage. This is not run as a test. Run main()
+     * to print the numbers.
+     */
+    public void checkMemoryUsage() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        SchemaClass cls = schema.getClassByName(ReactomeJavaConstants.ReferenceGeneProduct);
+        int total = 100000;
+        for (boolean compact : new boolean[] {false, true}) {
+            long memory1 = getUsedMemory();
+            List<GKInstance> instances = new ArrayList<GKInstance>(total);
+            for (int i = 0; i < total; i++) {
+                GKInstance instance = InstanceTestUtilities.createInstance(cls, i);
+                instance.setUseCompactStorage(compact);
+                instance.setAttributeValue(ReactomeJavaConstants._displayName, "UniProt:P" + i);
+                instance.setAttributeValue(ReactomeJavaConstants.identifier, "P" + i);
+                instance.setAttributeValue(ReactomeJavaConstants.name, "Gene" + i);
+                instance.addAttributeValue(ReactomeJavaConstants.name, "Gene" + i + "-1");
+                instances.add(instance);
+            }
+            long memory2 = getUsedMemory();
+            logger.info((compact ? "Compact: " : "HashMap: ") + (memory2 - memory1) / total + " bytes per instance");
+            instances.clear();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BasicConfigurator.configure();
+        new CompactAttributeStorageTest().checkMemoryUsage();
+    }
+
+    private long getUsedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.FileAdaptor;
+import org.junit.Test;
+
+/**
+ * Test FileAdaptor.search() with secondary indexes. This should be run in the project
+ * directory so that the schema can be loaded.
+ */
+public class FileAdaptorSearchTest {
+
+    private Set<String> search(FileAdaptor adaptor, String attName, String operator, String value) throws Exception {
+        Collection<?> c = adaptor.search(ReactomeJavaConstants.Pathway, attName, operator, value);
+        Set<String> names = new HashSet<String>();
+        for (Iterator<?> it = c.iterator(); it.hasNext();)
+            names.add(((GKInstance) it.next()).getDisplayName());
+        return names;
+    }
+
+    private Set<String> set(String... names) {
+        Set<String> set = new HashSet<String>();
+        for (String name : names)
+            set.add(name);
+        return set;
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        File dir = Files.createTempDirectory("file_adaptor").toFile();
+        try {
+            FileAdaptor adaptor = new FileAdaptor(dir.getAbsolutePath());
+            GKInstance species = adaptor.createNewInstance(ReactomeJavaConstants.Species);
+            species.setDisplayName("Homo sapiens");
+            for (int i = 0; i < 3000; i++) {
+                GKInstance pathway = adaptor.createNewInstance(ReactomeJavaConstants.Pathway);
+                pathway.setDisplayName("Pathway " + i);
+                pathway.setAttributeValue(ReactomeJavaConstants.name, "Pathway " + i);
+                if (i % 2 == 0)
+                    pathway.addAttributeValue(ReactomeJavaConstants.name, "Even <" + i + ">");
+                if (i == 5)
+                    pathway.setAttributeValue(ReactomeJavaConstants.species, species);
+            }
+            adaptor.save();
+
+            assertEquals(set("Pathway 4"), search(adaptor, ReactomeJavaConstants.name, "=", "Even <4>"));
+            assertEquals(set("Pathway 1234"), search(adaptor, ReactomeJavaConstants.name, "REGEXP", "^Pathway 1234$"));
+            assertEquals(111, search(adaptor, ReactomeJavaConstants.name, "LIKE", "%Pathway 12%").size());
+            assertEquals(set("Pathway 5"), search(adaptor, ReactomeJavaConstants.species, "LIKE", "%sapiens%"));
+            assertEquals(2999, search(adaptor, ReactomeJavaConstants.species, "IS NULL", null).size());
+            String indexName = "index." + ReactomeJavaConstants.Pathway + "." + ReactomeJavaConstants.name;
+            assertTrue(new File(dir, indexName).exists());
+
+            // Indexes should be updated when changes are saved
+            GKInstance pathway = (GKInstance) adaptor.search(ReactomeJavaConstants.Pathway,
+                                                             ReactomeJavaConstants.name,
+                                                             "=",
+                                                             "Pathway 7").iterator().next();
+            adaptor.loadInstanceAttributes(pathway);
+            pathway.setAttributeValue(ReactomeJavaConstants.name, "Changed");
+            adaptor.markAsDirty(pathway);
+            GKInstance newPathway = adaptor.createNewInstance(ReactomeJavaConstants.Pathway);
+            newPathway.setDisplayName("New");
+            newPathway.setAttributeValue(ReactomeJavaConstants.name, "Changed");
+            adaptor.save();
+            assertEquals(set("Pathway 7", "New"), search(adaptor, ReactomeJavaConstants.name, "=", "Changed"));
+            assertTrue(search(adaptor, ReactomeJavaConstants.name, "=", "Pathway 7").isEmpty());
+
+            // Saved indexes should be used by a new adaptor
+            long modified = new File(dir, indexName).lastModified();
+            adaptor = new FileAdaptor(dir.getAbsolutePath());
+            assertEquals(set("Pathway 7", "New"), search(adaptor, ReactomeJavaConstants.name, "=", "Changed"));
+            assertEquals(modified, new File(dir, indexName).lastModified());
+        }
+        finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.gk.model.GKInstance;
+import org.gk.model.InstanceCache;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.XMLFileAdaptor;
+import org.gk.schema.Schema;
+import org.junit.Test;
+
+public class InstanceCacheTest {
+
+    @Test
+    public void testLRU() {
+        InstanceCache cache = new InstanceCache(InstanceCache.Policy.LRU, 3);
+        for (long i = 1; i <= 3; i++)
+            cache.put(InstanceTestUtilities.createInstance(null, i));
+        // Touch the first instance so that the second one is the eldest
+        assertNotNull(cache.get(1L));
+        cache.put(InstanceTestUtilities.createInstance(null, 4L));
+        assertEquals(3, cache.size());
+        assertNull(cache.get(2L));
+        assertNotNull(cache.get(1L));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testDirtyNotEvicted() {
+        InstanceCache cache = new InstanceCache(InstanceCache.Policy.LRU, 2);
+        GKInstance dirty = InstanceTestUtilities.createInstance(null, 1L);
+        dirty.setIsDirty(true);
+        cache.put(dirty);
+        for (long i = 2; i <= 5; i++)
+            cache.put(InstanceTestUtilities.createInstance(null, i));
+        assertTrue(cache.containsKey(1L));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testWeighted() {
+        long weight = InstanceCache.estimateWeight(InstanceTestUtilities.createInstance(null, 1L));
+        InstanceCache cache = new InstanceCache(InstanceCache.Policy.WEIGHTED, weight * 10);
+        for (long i = 1; i <= 20; i++)
+            cache.put(InstanceTestUtilities.createInstance(null, i));
+        assertTrue(cache.getEstimatedWeight() <= weight * 10);
+        assertEquals(10, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testWeightUpdate() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        GKInstance instance = InstanceTestUtilities.createInstance(schema, ReactomeJavaConstants.Pathway, 1L);
+        long weight = InstanceCache.estimateWeight(instance);
+        InstanceCache cache = new InstanceCache(InstanceCache.Policy.WEIGHTED, weight * 3);
+        cache.put(instance);
+        instance.setAttributeValueNoCheck(ReactomeJavaConstants.name, "A long name for the test pathway");
+        // Weights are not re-estimated by get()
+        cache.get(1L);
+        assertEquals(weight, cache.getEstimatedWeight());
+        cache.updateWeight(instance);
+        long loadedWeight = InstanceCache.estimateWeight(instance);
+        assertTrue(loadedWeight > weight);
+        assertEquals(loadedWeight, cache.getEstimatedWeight());
+        // Instances not in the cache are ignored
+        cache.updateWeight(InstanceTestUtilities.createInstance(null, 2L));
+        assertEquals(loadedWeight, cache.getEstimatedWeight());
+    }
+
+    @Test
+    public void testWeak() {
+        InstanceCache cache = new InstanceCache(InstanceCache.Policy.WEAK, 0);
+        GKInstance instance = InstanceTestUtilities.createInstance(null, 1L);
+        cache.put(instance);
+        assertTrue(cache.get(1L) == instance);
+        cache.remove(1L);
+        assertNull(cache.get(1L));
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.MySQLAdaptor;
+import org.gk.persistence.XMLFileAdaptor;
+import org.gk.schema.Schema;
+import org.gk.slicing.updateTracker.matcher.InstanceMatcher;
+import org.junit.Test;
+
+public class InstanceMatcherTest {
+
+    /**
+     * A MySQLAdaptor without a database holding the instances returned for it. The thread
+     * fetching the instances is recorded.
+     */
+    private static class ListAdaptor extends MySQLAdaptor {
+        private List<GKInstance> instances;
+        // Wait before returning so that adaptors finish in a different order
+        private long delay;
+        private Thread fetchingThread;
+
+        public ListAdaptor(List<GKInstance> instances, long delay) {
+            this.instances = instances;
+            this.delay = delay;
+        }
+    }
+
+    private static class ListMatcher extends InstanceMatcher {
+
+        public ListMatcher(MySQLAdaptor previousDBA,
+                           MySQLAdaptor currentDBA,
+                           MySQLAdaptor curationDBA) throws Exception {
+            super(previousDBA, currentDBA, curationDBA);
+        }
+
+        @Override
+        protected List<GKInstance> getManuallyCuratedInstances(MySQLAdaptor dbAdaptor) throws Exception {
+            ListAdaptor adaptor = (ListAdaptor) dbAdaptor;
+            adaptor.fetchingThread = Thread.currentThread();
+            Thread.sleep(adaptor.delay);
+            return adaptor.instances;
+        }
+
+        @Override
+        protected String getInstanceType() {
+            return ReactomeJavaConstants.Event;
+        }
+    }
+
+    private List<GKInstance> createInstances(Schema schema, String clsName, long... dbIds) {
+        List<GKInstance> instances = new ArrayList<GKInstance>();
+        for (long dbId : dbIds)
+            instances.add(InstanceTestUtilities.createInstance(schema, clsName, dbId));
+        return instances;
+    }
+
+    @Test
+    public void testMatching() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        List<GKInstance> previous = createInstances(schema, ReactomeJavaConstants.Pathway, 1, 2, 3, 4);
+        List<GKInstance> current = createInstances(schema, ReactomeJavaConstants.Pathway, 2, 3, 5);
+        // The same DB_ID in a different class should not be matched
+        current.addAll(createInstances(schema, ReactomeJavaConstants.Reaction, 4));
+        List<GKInstance> curation = createInstances(schema, ReactomeJavaConstants.Pathway, 3, 5);
+        // Distinct adaptors are queried in parallel. The previous one finishes last.
+        ListAdaptor previousDBA = new ListAdaptor(previous, 200L);
+        ListAdaptor currentDBA = new ListAdaptor(current, 100L);
+        ListAdaptor curationDBA = new ListAdaptor(curation, 0L);
+        InstanceMatcher matcher = new ListMatcher(previousDBA, currentDBA, curationDBA);
+        for (ListAdaptor dba : Arrays.asList(previousDBA, currentDBA, curationDBA))
+            assertNotSame(Thread.currentThread(), dba.fetchingThread);
+        assertEquals(2, matcher.getPreviousToCurrentInstanceMap().size());
+        assertTrue(matcher.getPreviousToCurrentInstanceMap().get(previous.get(1)) == current.get(0));
+        assertTrue(matcher.getCurrentToPreviousInstanceMap().get(current.get(1)) == previous.get(2));
+        assertEquals(Arrays.asList(current.get(2), current.get(3)), matcher.getAddedInstances());
+        assertEquals(Arrays.asList(previous.get(0), previous.get(3)), matcher.getRemovedInstances());
+        // Only the pair with DB_ID 3 is in the curation database
+        assertEquals(1, matcher.getCurationPreviousToCurrentInstanceMap().size());
+        assertTrue(matcher.getCurationCurrentToPreviousInstances().get(current.get(1)) == previous.get(2));
+    }
+
+    @Test
+    public void testMatchingWithSharedAdaptor() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        List<GKInstance> instances = createInstances(schema, ReactomeJavaConstants.Pathway, 1, 2);
+        // The same adaptor cannot be used by several threads
+        ListAdaptor dba = new ListAdaptor(instances, 0L);
+        InstanceMatcher matcher = new ListMatcher(dba, dba, dba);
+        assertTrue(dba.fetchingThread == Thread.currentThread());
+        assertEquals(2, matcher.getPreviousToCurrentInstanceMap().size());
+        assertEquals(0, matcher.getAddedInstances().size());
+        assertEquals(0, matcher.getRemovedInstances().size());
+        assertEquals(2, matcher.getCurationPreviousToCurrentInstanceMap().size());
+    }
+
+}
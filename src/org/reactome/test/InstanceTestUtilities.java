@@ -0,0 +1,33 @@
+package org.reactome.test;
+
+import org.gk.model.GKInstance;
+import org.gk.schema.Schema;
+import org.gk.schema.SchemaClass;
+
+/**
+ * Create GKInstance objects used by tests. These instances are not in any database.
+ */
+class InstanceTestUtilities {
+
+    private InstanceTestUtilities() {
+    }
+
+    /**
+     * @param cls null for an instance without a SchemaClass
+     * @param dbId
+     * @return an inflated GKInstance so that no attribute value is loaded
+     */
+    static GKInstance createInstance(SchemaClass cls, long dbId) {
+        GKInstance instance = new GKInstance();
+        if (cls != null)
+            instance.setSchemaClass(cls);
+        instance.setDBID(dbId);
+        instance.setIsInflated(true);
+        return instance;
+    }
+
+    static GKInstance createInstance(Schema schema, String clsName, long dbId) {
+        return createInstance(schema.getClassByName(clsName), dbId);
+    }
+
+}
@@ -0,0 +1,55 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.gk.util.LongHashSet;
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+    @Test
+    public void testAddAndRemove() {
+        LongHashSet set = new LongHashSet(4);
+        assertTrue(set.add(0L));
+        assertFalse(set.add(0L));
+        assertTrue(set.add(-1L));
+        for (long i = 1; i <= 1000; i++)
+            assertTrue(set.add(i));
+        assertEquals(1002, set.size());
+        assertTrue(set.contains(500L));
+        assertTrue(set.remove(500L));
+        assertFalse(set.contains(500L));
+        assertFalse(set.remove(500L));
+        assertTrue(set.remove(0L));
+        assertFalse(set.contains(0L));
+        assertEquals(1000, set.size());
+        assertEquals(1000, set.toArray().length);
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(1L));
+    }
+
+    @Test
+    public void testAgainstHashSet() {
+        Random random = new Random(17);
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextInt(5000);
+            if (random.nextBoolean())
+                assertEquals(expected.add(value), set.add(value));
+            else
+                assertEquals(expected.remove(value), set.remove(value));
+        }
+        assertEquals(expected.size(), set.size());
+        for (long value = 0; value < 5000; value++)
+            assertEquals(expected.contains(value), set.contains(value));
+    }
+
+}
@@ -0,0 +1,96 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.event.TableModelEvent;
+
+import org.gk.model.Reference;
+import org.gk.reach.ReachTableModel;
+import org.gk.reach.model.fries.Argument;
+import org.gk.reach.model.fries.Entity;
+import org.gk.reach.model.fries.Event;
+import org.gk.reach.model.fries.FrameCollection;
+import org.gk.reach.model.fries.FriesObject;
+import org.junit.Test;
+
+public class ReachTableModelTest {
+
+    private Entity createEntity(String text) {
+        Entity entity = new Entity();
+        entity.setText(text);
+        return entity;
+    }
+
+    private Event createEvent(Entity a, Entity b, String type) {
+        Event event = new Event();
+        event.setType(type);
+        List<Argument> arguments = new ArrayList<>();
+        for (Entity entity : new Entity[] {a, b}) {
+            Argument argument = new Argument();
+            argument.setType("controlled");
+            argument.setArg(entity);
+            arguments.add(argument);
+        }
+        event.setArguments(arguments);
+        return event;
+    }
+
+    private FriesObject createFriesObject(String pmcid, Event... events) {
+        FriesObject fo = new FriesObject();
+        FrameCollection<Event> collection = new FrameCollection<>();
+        for (Event event : events)
+            collection.addFrameObject(event);
+        fo.setEvents(collection);
+        Reference reference = new Reference();
+        reference.setPmcid(pmcid);
+        fo.setReference(reference);
+        return fo;
+    }
+
+    @Test
+    public void testIncrementalMerge() {
+        Entity a = createEntity("TP53");
+        Entity b = createEntity("MDM2");
+        Entity c = createEntity("EGFR");
+        FriesObject paper1 = createFriesObject("PMC1",
+                                               createEvent(a, b, "activation"),
+                                               createEvent(createEntity("tp53"), b, "activation"),
+                                               createEvent(a, c, "activation"));
+        ReachTableModel model = new ReachTableModel();
+        List<TableModelEvent> events = new ArrayList<>();
+        model.addTableModelListener(e -> events.add(e));
+        model.setReachData(Arrays.asList(paper1));
+        // Keys are compared case-insensitively
+        assertEquals(2, model.getRowCount());
+        assertEquals(2, model.getReachResultTableRowData(0).getOccurrenceCoount());
+        assertEquals(1, events.size());
+        model.setValueAt(true, 0, 10);
+
+        // Adding a paper should only touch affected rows
+        events.clear();
+        FriesObject paper2 = createFriesObject("PMC2",
+                                               createEvent(a, c, "activation"),
+                                               createEvent(b, c, "inhibition"));
+        model.addReachData(Arrays.asList(paper2));
+        assertEquals(3, model.getRowCount());
+        assertEquals(2, model.getReachResultTableRowData(1).getCitationCount());
+        assertEquals(2, events.size());
+        assertEquals(TableModelEvent.INSERT, events.get(0).getType());
+        assertEquals(2, events.get(0).getFirstRow());
+        assertEquals(TableModelEvent.UPDATE, events.get(1).getType());
+        assertEquals(1, events.get(1).getFirstRow());
+        assertEquals(1, events.get(1).getLastRow());
+        // Existing rows are kept
+        assertEquals(true, model.getReachResultTableRowData(0).getIsAccepted());
+
+        // Setting data again should replace the rows
+        model.setReachData(Arrays.asList(paper2));
+        assertEquals(2, model.getRowCount());
+        assertEquals(false, model.getReachResultTableRowData(0).getIsAccepted());
+    }
+
+}
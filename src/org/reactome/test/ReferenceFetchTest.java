@@ -0,0 +1,144 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gk.model.Reference;
+import org.gk.reach.ReferenceFetch;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test ReferenceFetch against a local server returning NCBI esummary JSON.
+ */
+public class ReferenceFetchTest {
+    private static final String METADATA = "{\"header\": {\"type\": \"esummary\", \"version\": \"0.3\"}, " +
+            "\"result\": {\"uids\": [\"3539452\"], \"3539452\": {" +
+            "\"authors\": [{\"name\": \"Smith J\"}, {\"name\": \"Doe A\"}], " +
+            "\"pages\": \"1-10\", " +
+            "\"articleids\": [{\"idtype\": \"pmid\", \"value\": \"23193287\"}, {\"idtype\": \"pmcid\", \"value\": \"PMC3539452\"}], " +
+            "\"source\": \"Nucleic Acids Res\", " +
+            "\"title\": \"A test paper\", " +
+            "\"volume\": \"41\", " +
+            "\"pubdate\": \"2013 Jan\"}}}";
+
+    @Test
+    public void testFetchWithCache() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/esummary.fcgi", exchange -> {
+            requests.incrementAndGet();
+            try {
+                // Make sure requests overlap
+                Thread.sleep(200);
+            }
+            catch(InterruptedException e) {}
+            byte[] bytes = METADATA.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        });
+        server.start();
+        File cacheDir = Files.createTempDirectory("reference_cache").toFile();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/esummary.fcgi?";
+        try {
+            ReferenceFetch fetch = new ReferenceFetch(cacheDir);
+            fetch.setReferenceUrl(url);
+            List<CompletableFuture<Reference>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                futures.add(fetch.fetchReferenceAsync(i % 2 == 0 ? "PMC3539452" : "pmc3539452"));
+            for (CompletableFuture<Reference> future : futures) {
+                Reference reference = future.get();
+                assertEquals("A test paper", reference.getTitle());
+                assertEquals(23193287L, reference.getPmid());
+            }
+            // Requests for the same paper should be merged
+            assertEquals(1, requests.get());
+            fetch.shutdown();
+            assertTrue(new File(cacheDir, "PMC3539452.json").exists());
+            // The server should not be called when the metadata is cached
+            fetch = new ReferenceFetch(cacheDir);
+            fetch.setReferenceUrl(url);
+            assertEquals(2013, fetch.fetchReference("PMC3539452").getYear());
+            assertEquals(1, requests.get());
+        }
+        finally {
+            server.stop(0);
+            for (File file : cacheDir.listFiles())
+                file.delete();
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void testThrottling() throws Exception {
+        List<Long> startTimes = Collections.synchronizedList(new ArrayList<Long>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/esummary.fcgi", exchange -> {
+            startTimes.add(System.currentTimeMillis());
+            // The first request is throttled
+            if (startTimes.size() == 1) {
+                exchange.sendResponseHeaders(429, -1);
+                exchange.close();
+                return;
+            }
+            byte[] bytes = METADATA.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        });
+        server.start();
+        try {
+            ReferenceFetch fetch = new ReferenceFetch();
+            fetch.setReferenceUrl("http://localhost:" + server.getAddress().getPort() + "/esummary.fcgi?");
+            try {
+                fetch.fetchReferenceAsync("PMC3539452").get();
+                fail("A throttled request should fail");
+            }
+            catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            // The failed request can be sent again
+            assertEquals("A test paper", fetch.fetchReferenceAsync("PMC3539452").get().getTitle());
+            // Requests for different papers run in parallel but are not started too fast
+            List<CompletableFuture<Reference>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++)
+                futures.add(fetch.fetchReferenceAsync("PMC" + i));
+            for (CompletableFuture<Reference> future : futures) {
+                try {
+                    future.get();
+                    fail("No metadata for the paper should be found");
+                }
+                catch(ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+            fetch.shutdown();
+            assertEquals(6, startTimes.size());
+            // Four requests in parallel take at least three intervals of 334 ms. Some
+            // time is allowed for the latency of the local server.
+            assertTrue(startTimes.get(5) - startTimes.get(2) >= 900L);
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.XMLFileAdaptor;
+import org.gk.schema.Schema;
+import org.gk.slicing.SliceCheckpoint;
+import org.gk.slicing.SliceCheckpoint.Stage;
+import org.gk.util.LongHashSet;
+import org.junit.Test;
+
+public class SliceCheckpointTest {
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        File dir = Files.createTempDirectory("slice_checkpoint").toFile();
+        File file = new File(dir, "checkpoint");
+        try {
+            SliceCheckpoint checkpoint = new SliceCheckpoint(file, "test_slice:95");
+            assertFalse(checkpoint.load());
+            checkpoint.setCompleted(Stage.PREPARE_TARGET, 10L);
+            checkpoint.setCompleted(Stage.EXTRACT, 20L);
+            checkpoint.setStarted(Stage.QA);
+            Map<Long, GKInstance> events = new HashMap<Long, GKInstance>();
+            events.put(1L, InstanceTestUtilities.createInstance(schema, ReactomeJavaConstants.Pathway, 1L));
+            events.put(2L, InstanceTestUtilities.createInstance(schema, ReactomeJavaConstants.Reaction, 2L));
+            Map<Long, GKInstance> slice = new HashMap<Long, GKInstance>(events);
+            slice.put(3L, InstanceTestUtilities.createInstance(schema, ReactomeJavaConstants.SimpleEntity, 3L));
+            checkpoint.setEvents(events);
+            checkpoint.setSlice(slice);
+            LongHashSet checkedIDs = new LongHashSet();
+            checkedIDs.add(1L);
+            checkedIDs.add(3L);
+            checkpoint.setCheckedIDs(checkedIDs);
+            checkpoint.setReviewStatusEvents(Arrays.asList(events.get(2L)));
+            checkpoint.save();
+            assertFalse(new File(file.getAbsolutePath() + ".tmp").exists());
+
+            SliceCheckpoint loaded = new SliceCheckpoint(file, "test_slice:95");
+            assertTrue(loaded.load());
+            assertTrue(loaded.isCompleted(Stage.EXTRACT));
+            assertTrue(loaded.isStarted(Stage.QA));
+            assertFalse(loaded.isCompleted(Stage.QA));
+            assertFalse(loaded.isStarted(Stage.DUMP));
+            // Stages should be kept in order
+            assertEquals(Arrays.asList(Stage.PREPARE_TARGET, Stage.EXTRACT),
+                         Arrays.asList(loaded.getStageTimes().keySet().toArray()));
+            assertEquals(Long.valueOf(20L), loaded.getStageTimes().get(Stage.EXTRACT));
+            assertEquals(2, loaded.getEventClasses().size());
+            assertEquals(ReactomeJavaConstants.Reaction, loaded.getEventClasses().get(2L));
+            assertEquals(3, loaded.getSliceClasses().size());
+            assertEquals(ReactomeJavaConstants.SimpleEntity, loaded.getSliceClasses().get(3L));
+            long[] ids = loaded.getCheckedIDs();
+            Arrays.sort(ids);
+            assertArrayEquals(new long[]{1L, 3L}, ids);
+            assertArrayEquals(new long[]{2L}, loaded.getReviewStatusEventIDs());
+
+            // A checkpoint saved for another slice should not be used
+            try {
+                new SliceCheckpoint(file, "test_slice:96").load();
+                fail("A checkpoint for another slice should not be loaded");
+            }
+            catch(IllegalStateException e) {
+            }
+            loaded.delete();
+            assertFalse(file.exists());
+        }
+        finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+}
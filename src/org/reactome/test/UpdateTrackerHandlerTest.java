@@ -0,0 +1,173 @@
+package org.reactome.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
+import org.gk.persistence.MySQLAdaptor;
+import org.gk.persistence.XMLFileAdaptor;
+import org.gk.schema.Schema;
+import org.gk.schema.SchemaAttribute;
+import org.gk.slicing.updateTracker.UpdateTrackerHandler;
+import org.junit.Test;
+
+/**
+ * Make sure UpdateTrackerHandler loads everything used by comparers before comparing pairs
+ * in several threads.
+ */
+public class UpdateTrackerHandlerTest {
+
+    /**
+     * A MySQLAdaptor without a database. Attribute values of created instances are kept in a map
+     * and set back when they are loaded. Lazy loading for one instance in a thread other than
+     * the test thread is recorded.
+     */
+    private static class StubAdaptor extends MySQLAdaptor {
+        private Schema schema;
+        private List<GKInstance> events;
+        private Map<GKInstance, Map<String, List<?>>> storedValues;
+        private List<String> lazyLoads;
+        private Thread testThread;
+
+        public StubAdaptor(Schema schema, List<String> lazyLoads) {
+            this.schema = schema;
+            this.testThread = Thread.currentThread();
+            this.lazyLoads = lazyLoads;
+            storedValues = new HashMap<GKInstance, Map<String, List<?>>>();
+            events = createEvents();
+            for (GKInstance instance : storedValues.keySet())
+                store(instance);
+        }
+
+        private void store(GKInstance instance) {
+            Map<String, List<?>> values = storedValues.get(instance);
+            for (Object att : instance.getSchemClass().getAttributes()) {
+                String attName = ((SchemaAttribute) att).getName();
+                if (instance.isAttributeValueLoaded((SchemaAttribute) att))
+                    values.put(attName, instance.getAttributeValuesListNoCheck(attName));
+            }
+            instance.deflate();
+        }
+
+        private void load(GKInstance instance, SchemaAttribute att) {
+            List<?> values = storedValues.get(instance).get(att.getName());
+            instance.setAttributeValueNoCheck(att, values == null ? null : new ArrayList<Object>(values));
+        }
+
+        private GKInstance createStoredInstance(String clsName, long dbId) {
+            GKInstance instance = InstanceTestUtilities.createInstance(schema, clsName, dbId);
+            // Attribute values should be loaded from this adaptor
+            instance.setIsInflated(false);
+            instance.setDbAdaptor(this);
+            storedValues.put(instance, new HashMap<String, List<?>>());
+            return instance;
+        }
+
+        private List<GKInstance> createEvents() {
+            try {
+                GKInstance pathway = createStoredInstance(ReactomeJavaConstants.Pathway, 1L);
+                GKInstance reaction = createStoredInstance(ReactomeJavaConstants.Reaction, 2L);
+                GKInstance input = createStoredInstance(ReactomeJavaConstants.Complex, 3L);
+                input.setAttributeValue(ReactomeJavaConstants.hasComponent,
+                                        createStoredInstance(ReactomeJavaConstants.SimpleEntity, 4L));
+                GKInstance summation = createStoredInstance(ReactomeJavaConstants.Summation, 5L);
+                GKInstance regulation = createStoredInstance(ReactomeJavaConstants.PositiveRegulation, 6L);
+                regulation.setAttributeValue(ReactomeJavaConstants.regulator,
+                                             createStoredInstance(ReactomeJavaConstants.SimpleEntity, 7L));
+                reaction.setAttributeValue(ReactomeJavaConstants.input, input);
+                reaction.setAttributeValue(ReactomeJavaConstants.summation, summation);
+                reaction.setAttributeValue(ReactomeJavaConstants.regulatedBy, regulation);
+                pathway.setAttributeValue(ReactomeJavaConstants.hasEvent, reaction);
+                pathway.setAttributeValue(ReactomeJavaConstants.summation, summation);
+                List<GKInstance> events = new ArrayList<GKInstance>();
+                events.add(pathway);
+                events.add(reaction);
+                events.add(createStoredInstance(ReactomeJavaConstants.BlackBoxEvent, 8L));
+                return events;
+            }
+            catch(Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Schema getSchema() {
+            return schema;
+        }
+
+        @Override
+        public Collection fetchInstancesByClass(String className) throws Exception {
+            List<GKInstance> rtn = new ArrayList<GKInstance>();
+            if (className.equals(ReactomeJavaConstants.Event))
+                rtn.addAll(events);
+            else if (className.equals(ReactomeJavaConstants._Release)) {
+                GKInstance release = InstanceTestUtilities.createInstance(schema, className, 10L);
+                release.setAttributeValue(ReactomeJavaConstants.releaseNumber, 90);
+                rtn.add(release);
+            }
+            return rtn;
+        }
+
+        @Override
+        public GKInstance fetchInstance(String className, Long dbID) throws Exception {
+            return createStoredInstance(className, dbID);
+        }
+
+        @Override
+        public void loadInstanceAttributeValues(Collection instances) throws Exception {
+            for (Iterator<?> it = instances.iterator(); it.hasNext();) {
+                GKInstance instance = (GKInstance) it.next();
+                for (Object att : instance.getSchemClass().getAttributes()) {
+                    if (!instance.isAttributeValueLoaded((SchemaAttribute) att))
+                        load(instance, (SchemaAttribute) att);
+                }
+            }
+        }
+
+        @Override
+        public void loadInstanceAttributeValues(Collection instances, String[] attNames) throws Exception {
+            loadInstanceAttributeValues(instances);
+        }
+
+        @Override
+        public void loadInstanceReverseAttributeValues(Collection instances, String[] attNames) throws Exception {
+        }
+
+        @Override
+        public void loadInstanceAttributeValues(GKInstance instance, SchemaAttribute attribute) throws Exception {
+            // Don't use toString(), which may load _displayName
+            load(instance, attribute);
+            if (Thread.currentThread() != testThread)
+                lazyLoads.add(instance.getDBID() + "." + attribute.getName() + " in " + Thread.currentThread().getName());
+        }
+
+        @Override
+        public Collection fetchInstanceByAttribute(SchemaAttribute att, String operator, Object value) throws Exception {
+            if (Thread.currentThread() != testThread)
+                lazyLoads.add(((GKInstance) value).getDBID() + " <- " + att.getName() + " in " + Thread.currentThread().getName());
+            return new ArrayList<GKInstance>();
+        }
+    }
+
+    @Test
+    public void testComparingWithoutQueries() throws Exception {
+        Schema schema = new XMLFileAdaptor().getSchema();
+        List<String> lazyLoads = Collections.synchronizedList(new ArrayList<String>());
+        UpdateTrackerHandler handler = new UpdateTrackerHandler(new StubAdaptor(schema, lazyLoads),
+                                                                new StubAdaptor(schema, lazyLoads),
+                                                                new StubAdaptor(schema, lazyLoads),
+                                                                9L);
+        handler.setThreads(4);
+        handler.handleUpdateTrackerInstances(false);
+        assertEquals(Collections.emptyList(), lazyLoads);
+    }
+
+}
@@ -9,12 +9,18 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import junit.framework.TestCase;
 
+import org.gk.model.GKInstance;
+import org.gk.model.ReactomeJavaConstants;
 import org.gk.persistence.GKBReader;
 import org.gk.persistence.Project;
 import org.gk.persistence.XMLFileAdaptor;
@@ -61,6 +67,165 @@ public class XMLFileAdaptorTest extends TestCase {
         }
     }
     
+    /**
+     * Check that changes appended into the journal are applied when the project is opened again,
+     * a truncated record at the end of the journal is ignored, and a journal written against
+     * another version of the project file is not applied.
+     */
+    public void testJournal() throws Exception {
+        File file = File.createTempFile("JournalTest", ".rtpj");
+        file.deleteOnExit();
+        XMLFileAdaptor adaptor = new XMLFileAdaptor();
+        adaptor.setUseJournal(true);
+        GKInstance compartment = adaptor.createNewInstance(ReactomeJavaConstants.Compartment);
+        compartment.setDisplayName("cytosol");
+        GKInstance toBeDeleted = adaptor.createNewInstance(ReactomeJavaConstants.Compartment);
+        toBeDeleted.setDisplayName("nucleoplasm");
+        adaptor.save(file.getAbsolutePath());
+        File journalFile = XMLFileAdaptor.getJournalFile(file.getAbsolutePath());
+        journalFile.deleteOnExit();
+        assertFalse(journalFile.exists());
+        // Make some changes
+        long projectSize = file.length();
+        compartment.setDisplayName("cytoplasm");
+        adaptor.markAsDirty(compartment);
+        adaptor.deleteInstance(toBeDeleted);
+        GKInstance newCompartment = adaptor.createNewInstance(ReactomeJavaConstants.Compartment);
+        newCompartment.setDisplayName("mitochondrial matrix");
+        adaptor.setProjectDescription("Journal test");
+        adaptor.save();
+        // The project file should not be touched
+        assertEquals(projectSize, file.length());
+        assertTrue(journalFile.exists());
+        // Add a broken record
+        FileOutputStream fos = new FileOutputStream(journalFile, true);
+        fos.write("#delta 1000 1\n<delta>".getBytes());
+        fos.close();
+        long journalSize = journalFile.length();
+        XMLFileAdaptor reloaded = new XMLFileAdaptor(file.getAbsolutePath());
+        assertTrue(journalFile.length() < journalSize);
+        assertEquals("cytoplasm", reloaded.fetchInstance(compartment.getDBID()).getDisplayName());
+        assertNull(reloaded.fetchInstance(toBeDeleted.getDBID()));
+        assertEquals("mitochondrial matrix", reloaded.fetchInstance(newCompartment.getDBID()).getDisplayName());
+        assertEquals(2, reloaded.fetchInstancesByClass(ReactomeJavaConstants.Compartment).size());
+        assertEquals("Journal test", reloaded.getProjectDescription());
+        // Compact the journal
+        reloaded.compactJournal();
+        assertFalse(journalFile.exists());
+        reloaded = new XMLFileAdaptor(file.getAbsolutePath());
+        assertEquals(2, reloaded.fetchInstancesByClass(ReactomeJavaConstants.Compartment).size());
+        // A journal should not be applied to a project file rewritten by other means
+        reloaded.setUseJournal(true);
+        GKInstance cytoplasm = reloaded.fetchInstance(compartment.getDBID());
+        cytoplasm.setDisplayName("cytosol");
+        reloaded.markAsDirty(cytoplasm);
+        reloaded.save();
+        assertTrue(journalFile.exists());
+        File otherFile = File.createTempFile("JournalTest", ".rtpj");
+        otherFile.deleteOnExit();
+        XMLFileAdaptor other = new XMLFileAdaptor();
+        other.createNewInstance(ReactomeJavaConstants.Compartment).setDisplayName("nucleoplasm");
+        other.save(otherFile.getAbsolutePath());
+        Files.copy(otherFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        reloaded = new XMLFileAdaptor(file.getAbsolutePath());
+        Collection<?> compartments = reloaded.fetchInstancesByClass(ReactomeJavaConstants.Compartment);
+        assertEquals(1, compartments.size());
+        assertEquals("nucleoplasm", ((GKInstance) compartments.iterator().next()).getDisplayName());
+        assertFalse(journalFile.exists());
+        File staleFile = new File(journalFile.getPath() + XMLFileAdaptor.STALE_JOURNAL_FILE_EXT);
+        assertTrue(staleFile.exists());
+        staleFile.delete();
+    }
+    
+    /**
+     * Check that referrers are still correct after references are changed and instances are deleted.
+     */
+    public void testReferrers() throws Exception {
+        XMLFileAdaptor adaptor = new XMLFileAdaptor();
+        GKInstance cytosol = adaptor.createNewInstance(ReactomeJavaConstants.Compartment);
+        GKInstance nucleoplasm = adaptor.createNewInstance(ReactomeJavaConstants.Compartment);
+        GKInstance atp = adaptor.createNewInstance(ReactomeJavaConstants.SimpleEntity);
+        atp.setAttributeValue(ReactomeJavaConstants.compartment, cytosol);
+        adaptor.markAsDirty(atp);
+        GKInstance complex = adaptor.createNewInstance(ReactomeJavaConstants.Complex);
+        complex.setAttributeValue(ReactomeJavaConstants.compartment, cytosol);
+        complex.addAttributeValue(ReactomeJavaConstants.hasComponent, atp);
+        adaptor.markAsDirty(complex);
+        Map<String, List<GKInstance>> referrers = adaptor.getReferrersMap(cytosol);
+        assertEquals(1, referrers.size());
+        assertEquals(2, referrers.get(ReactomeJavaConstants.compartment).size());
+        assertEquals(1, adaptor.getReferers(atp).size());
+        // Change a reference
+        atp.setAttributeValue(ReactomeJavaConstants.compartment, nucleoplasm);
+        adaptor.markAsDirty(atp);
+        assertEquals(1, adaptor.getReferers(cytosol).size());
+        assertEquals(1, adaptor.getReferers(nucleoplasm).size());
+        // Delete a referrer
+        adaptor.deleteInstance(complex);
+        assertEquals(0, adaptor.getReferers(cytosol).size());
+        assertEquals(0, adaptor.getReferers(atp).size());
+        // Delete a referred instance
+        adaptor.deleteInstance(nucleoplasm);
+        assertEquals(0, adaptor.getReferrersMap(nucleoplasm).size());
+        assertNull(atp.getAttributeValue(ReactomeJavaConstants.compartment));
+    }
+    
+    /**
+     * Check that attribute value indexes used by fetchInstanceByAttribute() follow changes.
+     */
+    public void testAttributeIndexes() throws Exception {
+        XMLFileAdaptor adaptor = new XMLFileAdaptor();
+        GKInstance cytosol = adaptor.createNewInstance(ReactomeJavaConstants.Compartment);
+        cytosol.setAttributeValue(ReactomeJavaConstants.name, "cytosol");
+        adaptor.markAsDirty(cytosol);
+        GKInstance cytoplasm = adaptor.createNewInstance(ReactomeJavaConstants.Compartment);
+        cytoplasm.setAttributeValue(ReactomeJavaConstants.name, "Cytoplasm");
+        adaptor.markAsDirty(cytoplasm);
+        Collection found = adaptor.fetchInstanceByAttribute(ReactomeJavaConstants.Compartment,
+                                                            ReactomeJavaConstants.name,
+                                                            "=",
+                                                            "CYTOSOL");
+        assertEquals(1, found.size());
+        assertTrue(found.contains(cytosol));
+        found = adaptor.fetchInstanceByAttribute(ReactomeJavaConstants.Compartment,
+                                                 ReactomeJavaConstants.name,
+                                                 "LIKE",
+                                                 "cyto%");
+        assertEquals(2, found.size());
+        found = adaptor.fetchInstanceByAttribute(ReactomeJavaConstants.Compartment,
+                                                 ReactomeJavaConstants.DB_ID,
+                                                 "=",
+                                                 cytoplasm.getDBID());
+        assertEquals(1, found.size());
+        // Change a value
+        cytosol.setAttributeValue(ReactomeJavaConstants.name, "nucleoplasm");
+        adaptor.markAsDirty(cytosol);
+        found = adaptor.fetchInstanceByAttribute(ReactomeJavaConstants.Compartment,
+                                                 ReactomeJavaConstants.name,
+                                                 "=",
+                                                 "cytosol");
+        assertEquals(0, found.size());
+        found = adaptor.fetchInstanceByAttribute(ReactomeJavaConstants.Compartment,
+                                                 ReactomeJavaConstants.name,
+                                                 "LIKE",
+                                                 "cyto%");
+        assertEquals(1, found.size());
+        // Delete an instance
+        adaptor.deleteInstance(cytoplasm);
+        found = adaptor.fetchInstanceByAttribute(ReactomeJavaConstants.Compartment,
+                                                 ReactomeJavaConstants.name,
+                                                 "LIKE",
+                                                 "cyto%");
+        assertEquals(0, found.size());
+        // The same results should be returned without indexes
+        adaptor.setUseAttributeIndexes(false);
+        found = adaptor.fetchInstanceByAttribute(ReactomeJavaConstants.Compartment,
+                                                 ReactomeJavaConstants.name,
+                                                 "=",
+                                                 "Nucleoplasm");
+        assertEquals(1, found.size());
+    }
+    
     public void testREGEXP() {
         Pattern pattern = Pattern.compile("^Formation");
         String value = "Formation of Complex";